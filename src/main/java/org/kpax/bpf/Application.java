@@ -31,12 +31,15 @@ import org.springframework.context.annotation.AnnotationConfigApplicationContext
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.EnableMBeanExport;
+import org.springframework.jmx.support.RegistrationPolicy;
 
 /**
  * @author Eugen Covaci
  */
 @Configuration
 @ComponentScan(basePackages = "org.kpax.bpf")
+@EnableMBeanExport(registration = RegistrationPolicy.REPLACE_EXISTING)
 public class Application {
 
 	private static final Logger logger = LoggerFactory.getLogger(Application.class);
@@ -19,6 +19,7 @@ import java.util.jar.Manifest;
 
 import javax.annotation.PostConstruct;
 
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
@@ -43,6 +44,36 @@ public class SystemConfig {
 	@Value("${ticket.threshold}")
 	private Integer ticketThreshold;
 
+	@Value("${ticket.renewal.lead}")
+	private Integer ticketRenewalLead;
+
+	@Value("${login.retry.delay}")
+	private Integer loginRetryDelay;
+
+	@Value("${login.retry.max.delay}")
+	private Integer loginRetryMaxDelay;
+
+	@Value("${kdc.cache.ttl}")
+	private Integer kdcCacheTtl;
+
+	@Value("${kdc.race.stagger}")
+	private Integer kdcRaceStagger;
+
+	@Value("${kdc.race.timeout}")
+	private Integer kdcRaceTimeout;
+
+	@Value("${service.ticket.prefetch.enabled}")
+	private boolean serviceTicketPrefetchEnabled;
+
+	@Value("${ticket.cache.file}")
+	private String ticketCacheFile;
+
+	@Value("${keytab.file}")
+	private String keytabFile;
+
+	@Value("${private.ticket.cache.file}")
+	private String privateTicketCacheFile;
+
 	@Value("${eviction.period}")
 	private Integer evictionPeriod;
 
@@ -61,6 +92,105 @@ public class SystemConfig {
 	@Value("${eviction.enabled}")
 	private boolean evictionEnabled;
 
+	@Value("${keep.alive.enabled}")
+	private boolean keepAliveEnabled;
+
+	@Value("${keep.alive.timeout}")
+	private Integer keepAliveTimeout;
+
+	@Value("${event.loop.threads}")
+	private Integer eventLoopThreads;
+
+	@Value("${buffer.pool.max.memory}")
+	private Long bufferPoolMaxMemory;
+
+	@Value("${preemptive.auth.enabled}")
+	private boolean preemptiveAuthEnabled;
+
+	@Value("${upstream.pool.size}")
+	private Integer upstreamPoolSize;
+
+	@Value("${upstream.health.period}")
+	private Integer upstreamHealthPeriod;
+
+	@Value("${upstream.probe.timeout}")
+	private Integer upstreamProbeTimeout;
+
+	@Value("${upstream.max.failures}")
+	private Integer upstreamMaxFailures;
+
+	@Value("${upstream.pool.max.idle}")
+	private Integer upstreamPoolMaxIdle;
+
+	@Value("${upstream.connect.stagger}")
+	private Integer upstreamConnectStagger;
+
+	@Value("${upstream.connect.timeout}")
+	private Integer upstreamConnectTimeout;
+
+	@Value("${upstream.dns.cache.ttl}")
+	private Integer upstreamDnsCacheTtl;
+
+	@Value("${pac.file}")
+	private String pacFile;
+
+	@Value("${pac.engines}")
+	private Integer pacEngines;
+
+	@Value("${pac.cache.size}")
+	private Integer pacCacheSize;
+
+	@Value("${pac.cache.ttl}")
+	private Integer pacCacheTtl;
+
+	@Value("${pac.cache.path}")
+	private boolean pacCacheByPath;
+
+	@Value("${response.spool.enabled}")
+	private boolean responseSpoolEnabled;
+
+	@Value("${response.spool.memory}")
+	private Integer responseSpoolMemory;
+
+	@Value("${download.segments.enabled}")
+	private boolean downloadSegmentsEnabled;
+
+	@Value("${download.segments.threshold}")
+	private Long downloadSegmentsThreshold;
+
+	@Value("${download.segments.count}")
+	private Integer downloadSegmentsCount;
+
+	@Value("${cache.enabled}")
+	private boolean cacheEnabled;
+
+	@Value("${cache.max.memory}")
+	private Long cacheMaxMemory;
+
+	@Value("${cache.max.entry.size}")
+	private Integer cacheMaxEntrySize;
+
+	@Value("${cache.collapse.enabled}")
+	private boolean cacheCollapseEnabled;
+
+	@Value("${cache.collapse.timeout}")
+	private Integer cacheCollapseTimeout;
+
+	@Value("${cache.collapse.memory}")
+	private Integer cacheCollapseMemory;
+
+	@Value("${cache.disk.dir}")
+	private String cacheDiskDir;
+
+	@Value("${cache.disk.max.size}")
+	private Long cacheDiskMaxSize;
+
+	@Value("${cache.disk.max.entries}")
+	private Integer cacheDiskMaxEntries;
+
+	@Value("${cache.disk.patterns}")
+	private String cacheDiskPatterns;
+
 	private String releaseVersion;
 
 	@PostConstruct
@@ -87,6 +217,55 @@ public class SystemConfig {
 		return ticketThreshold;
 	}
 
+	public Integer getTicketRenewalLead() {
+		return ticketRenewalLead;
+	}
+
+	public Integer getLoginRetryDelay() {
+		return loginRetryDelay;
+	}
+
+	public Integer getLoginRetryMaxDelay() {
+		return loginRetryMaxDelay;
+	}
+
+	public Integer getKdcCacheTtl() {
+		return kdcCacheTtl;
+	}
+
+	public Integer getKdcRaceStagger() {
+		return kdcRaceStagger;
+	}
+
+	public Integer getKdcRaceTimeout() {
+		return kdcRaceTimeout;
+	}
+
+	public boolean isServiceTicketPrefetchEnabled() {
+		return serviceTicketPrefetchEnabled;
+	}
+
+	public String getTicketCacheFile() {
+		return ticketCacheFile;
+	}
+
+	public String getKeytabFile() {
+		return keytabFile;
+	}
+
+	public String getPrivateTicketCacheFile() {
+		return privateTicketCacheFile;
+	}
+
+	/**
+	 * @return <code>true</code> when the password may be left empty, the credentials coming
+	 * from a keytab or a ticket cache.
+	 */
+	public boolean isPasswordOptional() {
+		return StringUtils.isNotEmpty(keytabFile) || StringUtils.isNotEmpty(ticketCacheFile)
+				|| StringUtils.isNotEmpty(privateTicketCacheFile);
+	}
+
 	public Integer getEvictionPeriod() {
 		return evictionPeriod;
 	}
@@ -111,6 +290,138 @@ public class SystemConfig {
 		return evictionEnabled;
 	}
 
+	public boolean isKeepAliveEnabled() {
+		return keepAliveEnabled;
+	}
+
+	public Integer getKeepAliveTimeout() {
+		return keepAliveTimeout;
+	}
+
+	public Integer getEventLoopThreads() {
+		return eventLoopThreads;
+	}
+
+	public Long getBufferPoolMaxMemory() {
+		return bufferPoolMaxMemory;
+	}
+
+	public boolean isPreemptiveAuthEnabled() {
+		return preemptiveAuthEnabled;
+	}
+
+	public Integer getUpstreamPoolSize() {
+		return upstreamPoolSize;
+	}
+
+	public Integer getUpstreamPoolMaxIdle() {
+		return upstreamPoolMaxIdle;
+	}
+
+	public Integer getUpstreamHealthPeriod() {
+		return upstreamHealthPeriod;
+	}
+
+	public Integer getUpstreamProbeTimeout() {
+		return upstreamProbeTimeout;
+	}
+
+	public Integer getUpstreamMaxFailures() {
+		return upstreamMaxFailures;
+	}
+
+	public Integer getUpstreamConnectStagger() {
+		return upstreamConnectStagger;
+	}
+
+	public Integer getUpstreamConnectTimeout() {
+		return upstreamConnectTimeout;
+	}
+
+	public Integer getUpstreamDnsCacheTtl() {
+		return upstreamDnsCacheTtl;
+	}
+
+	public String getPacFile() {
+		return pacFile;
+	}
+
+	public Integer getPacEngines() {
+		return pacEngines;
+	}
+
+	public Integer getPacCacheSize() {
+		return pacCacheSize;
+	}
+
+	public Integer getPacCacheTtl() {
+		return pacCacheTtl;
+	}
+
+	public boolean isPacCacheByPath() {
+		return pacCacheByPath;
+	}
+
+	public boolean isResponseSpoolEnabled() {
+		return responseSpoolEnabled;
+	}
+
+	public Integer getResponseSpoolMemory() {
+		return responseSpoolMemory;
+	}
+
+	public boolean isDownloadSegmentsEnabled() {
+		return downloadSegmentsEnabled;
+	}
+
+	public Long getDownloadSegmentsThreshold() {
+		return downloadSegmentsThreshold;
+	}
+
+	public Integer getDownloadSegmentsCount() {
+		return downloadSegmentsCount;
+	}
+
+	public boolean isCacheEnabled() {
+		return cacheEnabled;
+	}
+
+	public Long getCacheMaxMemory() {
+		return cacheMaxMemory;
+	}
+
+	public Integer getCacheMaxEntrySize() {
+		return cacheMaxEntrySize;
+	}
+
+	public boolean isCacheCollapseEnabled() {
+		return cacheCollapseEnabled;
+	}
+
+	public Integer getCacheCollapseTimeout() {
+		return cacheCollapseTimeout;
+	}
+
+	public Integer getCacheCollapseMemory() {
+		return cacheCollapseMemory;
+	}
+
+	public String getCacheDiskDir() {
+		return cacheDiskDir;
+	}
+
+	public Long getCacheDiskMaxSize() {
+		return cacheDiskMaxSize;
+	}
+
+	public Integer getCacheDiskMaxEntries() {
+		return cacheDiskMaxEntries;
+	}
+
+	public String getCacheDiskPatterns() {
+		return cacheDiskPatterns;
+	}
+
 	public String getReleaseVersion() {
 		return releaseVersion;
 	}
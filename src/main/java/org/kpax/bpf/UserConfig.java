@@ -14,6 +14,9 @@
 
 package org.kpax.bpf;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.annotation.PostConstruct;
 
 import org.apache.commons.configuration2.Configuration;
@@ -21,6 +24,8 @@ import org.apache.commons.configuration2.PropertiesConfiguration;
 import org.apache.commons.configuration2.builder.FileBasedConfigurationBuilder;
 import org.apache.commons.configuration2.ex.ConfigurationException;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpHost;
+import org.kpax.bpf.exception.InvalidConfigException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.PropertySource;
@@ -99,6 +104,58 @@ public class UserConfig {
 		return proxyPort;
 	}
 
+	/**
+	 * Parse the remote proxies: <code>proxy.host</code> may hold several host names separated by commas,
+	 * each possibly followed by <code>:port</code>, otherwise <code>proxy.port</code> applies.
+	 * An IPv6 address is written within brackets, like <code>[fd00::1]:3128</code>.
+	 *
+	 * @return The remote proxies, unresolved, possibly empty.
+	 * @throws InvalidConfigException when an entry is not valid.
+	 */
+	public List<HttpHost> getProxyHosts() {
+		List<HttpHost> proxies = new ArrayList<>();
+		if (proxyHost != null) {
+			for (String entry : proxyHost.split(",")) {
+				entry = entry.trim();
+				if (entry.isEmpty()) {
+					continue;
+				}
+				proxies.add(toProxy(entry));
+			}
+		}
+		return proxies;
+	}
+
+	private HttpHost toProxy(String entry) {
+		String host = entry;
+		String port = null;
+		if (entry.startsWith("[")) {
+			int end = entry.indexOf(']');
+			if (end < 0 || end + 1 < entry.length() && entry.charAt(end + 1) != ':') {
+				throw new InvalidConfigException("Invalid proxy " + entry);
+			}
+			host = entry.substring(1, end);
+			port = end + 1 < entry.length() ? entry.substring(end + 2) : null;
+		} else if (entry.indexOf(':') >= 0) {
+			if (entry.indexOf(':') != entry.lastIndexOf(':')) {
+				throw new InvalidConfigException("Invalid proxy " + entry + ", an IPv6 address goes within brackets");
+			}
+			host = entry.substring(0, entry.indexOf(':'));
+			port = entry.substring(entry.indexOf(':') + 1);
+		}
+		if (host.isEmpty()) {
+			throw new InvalidConfigException("Invalid proxy " + entry);
+		}
+		if (port == null) {
+			return new HttpHost(host, proxyPort);
+		}
+		if (!StringUtils.isNumeric(port) || port.isEmpty() || port.length() > 5 || Integer.parseInt(port) < 1
+				|| Integer.parseInt(port) > 65535) {
+			throw new InvalidConfigException("Invalid port in proxy " + entry);
+		}
+		return new HttpHost(host, Integer.parseInt(port));
+	}
+
 	public void setDomain(String domain) {
 		this.domain = domain;
 	}
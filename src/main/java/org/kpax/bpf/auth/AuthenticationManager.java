@@ -19,9 +19,21 @@ import java.io.File;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.security.PrivilegedAction;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
 
 import javax.annotation.PostConstruct;
 
+import org.apache.http.HttpHost;
+import org.kpax.bpf.SystemConfig;
+import org.kpax.bpf.UserConfig;
 import org.kpax.bpf.exception.CommandExecutionException;
 import org.kpax.bpf.exception.InvalidKdcException;
 import org.kpax.bpf.exception.KdcNotFoundException;
@@ -29,14 +41,22 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationContext;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
 import org.springframework.stereotype.Component;
 
 /**
  * Handles the Kerberos authentication.
+ * <p>
+ * Once logged in, the ticket is renewed in background ahead of its expiry
+ * (see <code>ticket.renewal.lead</code>), so that the requests never wait for a login.
+ * After each login, the remote proxy's service ticket is obtained as well
+ * (see <code>service.ticket.prefetch.enabled</code>), sparing the first request a KDC round trip.
  *
  * @author Eugen Covaci
  */
 @Component
+@ManagedResource(objectName = "org.kpax.bpf:type=AuthenticationManager", description = "Kerberos authentication")
 public class AuthenticationManager implements Closeable {
 
     private static final Logger logger = LoggerFactory.getLogger(AuthenticationManager.class);
@@ -44,11 +64,53 @@ public class AuthenticationManager implements Closeable {
     @Autowired
     private ApplicationContext applicationContext;
 
+    @Autowired
+    private SystemConfig systemConfig;
+
+    @Autowired
+    private UserConfig userConfig;
+
     /**
      * The current Kerberos authenticator.
      */
     private volatile KerberosAuthenticator currentAuthenticator;
 
+    /**
+     * The current authenticator's credentials, as read by the requests.
+     */
+    private volatile CredentialSnapshot currentSnapshot;
+
+    private ScheduledExecutorService renewalScheduler;
+
+    private ScheduledFuture<?> pendingRenewal;
+
+    private boolean closed;
+
+    private final LongAdder renewals = new LongAdder();
+
+    private final LongAdder renewalFailures = new LongAdder();
+
+    private final LongAdder blockingLogins = new LongAdder();
+
+    private final LongAdder ticketCacheLogins = new LongAdder();
+
+    private volatile long lastRenewalMillis = -1;
+
+    private final LongAdder loginFailures = new LongAdder();
+
+    private final LongAdder failFastLogins = new LongAdder();
+
+    /**
+     * The last login failure, <code>null</code> after a successful login.
+     */
+    private volatile LoginFailure loginFailure;
+
+    private final LongAdder prefetchedTickets = new LongAdder();
+
+    private final LongAdder prefetchFailures = new LongAdder();
+
+    private volatile long lastPrefetchMillis = -1;
+
     @PostConstruct
     public void init() {
 
@@ -72,23 +134,270 @@ public class AuthenticationManager implements Closeable {
     /**
      * It creates a new logged in Kerberos authenticator if the current one is not
      * valid.
+     * <p>
+     * Only one login is made at a time, the concurrent callers wait for its outcome.
+     * After a failed login, the failure is rethrown without trying again until
+     * the backoff delay elapses, so that an outage or a wrong password does not turn
+     * into a burst of logins (possibly locking the account).
      *
      * @throws GeneralSecurityException
      * @throws InvalidKdcException
      */
     public KerberosAuthenticator authenticate()
             throws GeneralSecurityException, KdcNotFoundException, CommandExecutionException, InvalidKdcException {
-        if (currentAuthenticator == null || !currentAuthenticator.isValid()) {
-            synchronized (this) {
-                if (currentAuthenticator == null || !currentAuthenticator.isValid()) {
-                    KerberosAuthenticator authenticator = applicationContext.getBean(KerberosAuthenticator.class);
-                    authenticator.login();
-                    logger.info("New authenticator created");
-                    currentAuthenticator = authenticator;
+        currentSnapshot();
+        return currentAuthenticator;
+    }
+
+    /**
+     * Get the current credentials, logging in when they are not valid.
+     * When they are, it costs a volatile read and a {@link System#nanoTime()} call, no lock, no allocation.
+     */
+    private CredentialSnapshot currentSnapshot()
+            throws GeneralSecurityException, KdcNotFoundException, CommandExecutionException, InvalidKdcException {
+        CredentialSnapshot snapshot = currentSnapshot;
+        if (snapshot != null && snapshot.isValid()) {
+            return snapshot;
+        }
+        checkLoginFailure();
+        synchronized (this) {
+            snapshot = currentSnapshot;
+            if (snapshot == null || !snapshot.isValid()) {
+                // The login we've been waiting for might have failed
+                checkLoginFailure();
+                KerberosAuthenticator authenticator = applicationContext.getBean(KerberosAuthenticator.class);
+                try {
+                    authenticator.login(null);
+                } catch (GeneralSecurityException | KdcNotFoundException | CommandExecutionException
+                        | InvalidKdcException | RuntimeException e) {
+                    loginFailed(e);
+                    throw e;
                 }
+                loginFailure = null;
+                logger.info("New authenticator created");
+                countLogin(authenticator);
+                prefetchServiceTicket(authenticator);
+                snapshot = setCurrentAuthenticator(authenticator);
+                scheduleRenewal(authenticator);
             }
         }
-        return currentAuthenticator;
+        return snapshot;
+    }
+
+    private CredentialSnapshot setCurrentAuthenticator(KerberosAuthenticator authenticator) {
+        currentAuthenticator = authenticator;
+        currentSnapshot = authenticator.getSnapshot();
+        return currentSnapshot;
+    }
+
+    /**
+     * Forget the last login failure, so that the next authentication tries to log in right away.
+     * To be called when the user asks explicitly for it, e.g. after changing the credentials.
+     */
+    public void clearLoginFailure() {
+        loginFailure = null;
+    }
+
+    /**
+     * Rethrow the last login failure, unless its backoff delay has elapsed.
+     */
+    private void checkLoginFailure()
+            throws GeneralSecurityException, KdcNotFoundException, CommandExecutionException, InvalidKdcException {
+        LoginFailure failure = loginFailure;
+        if (failure != null && System.nanoTime() - failure.retryTime < 0) {
+            failFastLogins.increment();
+            Exception e = failure.exception;
+            if (e instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) e;
+            } else if (e instanceof KdcNotFoundException) {
+                throw (KdcNotFoundException) e;
+            } else if (e instanceof CommandExecutionException) {
+                throw (CommandExecutionException) e;
+            } else if (e instanceof InvalidKdcException) {
+                throw (InvalidKdcException) e;
+            }
+            throw (RuntimeException) e;
+        }
+    }
+
+    /**
+     * Record a login failure, doubling the backoff delay of the previous one.
+     *
+     * @return The backoff delay (milliseconds).
+     */
+    private long loginFailed(Exception e) {
+        LoginFailure previous = loginFailure;
+        long delay = previous != null
+                ? Math.min(previous.delay * 2, TimeUnit.SECONDS.toMillis(systemConfig.getLoginRetryMaxDelay()))
+                : TimeUnit.SECONDS.toMillis(systemConfig.getLoginRetryDelay());
+        loginFailure = new LoginFailure(e, delay);
+        loginFailures.increment();
+        logger.warn("Login failed, no new attempt in the next {} seconds", TimeUnit.MILLISECONDS.toSeconds(delay));
+        return delay;
+    }
+
+    /**
+     * Schedule the background renewal of the authenticator's ticket, if enabled.
+     */
+    private synchronized void scheduleRenewal(KerberosAuthenticator authenticator) {
+        if (systemConfig.getTicketRenewalLead() <= 0) {
+            return;
+        }
+        long validFor = authenticator.getValidityDate().getTime() - System.currentTimeMillis();
+        long delay = validFor - TimeUnit.SECONDS.toMillis(systemConfig.getTicketRenewalLead());
+        if (delay < validFor / 2) {
+            // Short-lived ticket, do not renew it over and over
+            delay = validFor / 2;
+        }
+        scheduleRenewal(Math.max(delay, 0));
+    }
+
+    private synchronized void scheduleRenewal(long delay) {
+        if (closed) {
+            return;
+        }
+        if (pendingRenewal != null) {
+            // At most one renewal pending
+            pendingRenewal.cancel(false);
+        }
+        if (renewalScheduler == null) {
+            renewalScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "kerberos-renewal");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        logger.info("Schedule the ticket renewal in {} seconds", TimeUnit.MILLISECONDS.toSeconds(delay));
+        pendingRenewal = renewalScheduler.schedule(this::renew, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Log in a new authenticator, then swap it with the current one.
+     * The requests keep using the current authenticator meanwhile.
+     */
+    private void renew() {
+        logger.info("Renew the Kerberos ticket in background");
+        long start = System.nanoTime();
+        try {
+            KerberosAuthenticator previous = currentAuthenticator;
+            KerberosAuthenticator authenticator = applicationContext.getBean(KerberosAuthenticator.class);
+            authenticator.login(previous != null ? previous.getExpiryDate() : null);
+            lastRenewalMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            renewals.increment();
+            if (authenticator.isFromTicketCache()) {
+                ticketCacheLogins.increment();
+            }
+            loginFailure = null;
+            logger.info("Ticket renewed in {} ms", lastRenewalMillis);
+            prefetchServiceTicket(authenticator);
+
+            // The previous authenticator is left to the requests still using it
+            setCurrentAuthenticator(authenticator);
+            scheduleRenewal(authenticator);
+        } catch (Exception e) {
+            renewalFailures.increment();
+            logger.warn("Error on renewing the Kerberos ticket", e);
+            long delay = loginFailed(e);
+            CredentialSnapshot snapshot = currentSnapshot;
+            if (snapshot != null && snapshot.isValid()) {
+                scheduleRenewal(delay);
+            } else {
+                // From now on, the next request logs in
+                logger.warn("The ticket has expired, stop the background renewal");
+            }
+        }
+    }
+
+    private void countLogin(KerberosAuthenticator authenticator) {
+        if (authenticator.isFromTicketCache()) {
+            ticketCacheLogins.increment();
+        } else {
+            blockingLogins.increment();
+        }
+    }
+
+    /**
+     * Get the remote proxy's service ticket before any request needs it, if enabled.
+     * A failure is not fatal, the ticket is then obtained on the first Negotiate authentication.
+     */
+    private void prefetchServiceTicket(KerberosAuthenticator authenticator) {
+        if (!systemConfig.isServiceTicketPrefetchEnabled()) {
+            return;
+        }
+        Set<String> hostNames = userConfig.getProxyHosts().stream()
+                .map(HttpHost::getHostName).collect(Collectors.toCollection(LinkedHashSet::new));
+        for (String hostName : hostNames) {
+            long start = System.nanoTime();
+            try {
+                authenticator.prefetchServiceTicket(hostName);
+                lastPrefetchMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                prefetchedTickets.increment();
+                logger.info("Service ticket prefetched in {} ms, saved to the first request", lastPrefetchMillis);
+            } catch (Exception e) {
+                prefetchFailures.increment();
+                logger.warn("Cannot prefetch the service ticket of " + hostName, e);
+            }
+        }
+    }
+
+    @ManagedAttribute(description = "The number of successful background renewals")
+    public long getRenewals() {
+        return renewals.sum();
+    }
+
+    @ManagedAttribute(description = "The number of failed background renewals")
+    public long getRenewalFailures() {
+        return renewalFailures.sum();
+    }
+
+    @ManagedAttribute(description = "The number of logins made while requests were waiting")
+    public long getBlockingLogins() {
+        return blockingLogins.sum();
+    }
+
+    @ManagedAttribute(description = "The number of logins with a ticket found in a ticket cache, without asking the KDC")
+    public long getTicketCacheLogins() {
+        return ticketCacheLogins.sum();
+    }
+
+    @ManagedAttribute(description = "The number of failed logins, in background or not")
+    public long getLoginFailures() {
+        return loginFailures.sum();
+    }
+
+    @ManagedAttribute(description = "The number of authentications failed fast during a login backoff")
+    public long getFailFastLogins() {
+        return failFastLogins.sum();
+    }
+
+    @ManagedAttribute(description = "The number of proxy service tickets obtained ahead of the requests")
+    public long getPrefetchedTickets() {
+        return prefetchedTickets.sum();
+    }
+
+    @ManagedAttribute(description = "The number of failed service ticket prefetches")
+    public long getPrefetchFailures() {
+        return prefetchFailures.sum();
+    }
+
+    @ManagedAttribute(description = "The duration of the last service ticket prefetch, that is the time saved to the first request (milliseconds), -1 if none")
+    public long getLastPrefetchMillis() {
+        return lastPrefetchMillis;
+    }
+
+    @ManagedAttribute(description = "The duration of the last background renewal (milliseconds), -1 if none")
+    public long getLastRenewalMillis() {
+        return lastRenewalMillis;
+    }
+
+    @ManagedAttribute(description = "The time left before the current ticket expires (seconds), -1 if not logged in")
+    public long getSecondsToExpiry() {
+        KerberosAuthenticator authenticator = currentAuthenticator;
+        Date expiryDate = authenticator != null ? authenticator.getExpiryDate() : null;
+        if (expiryDate == null) {
+            return -1;
+        }
+        return Math.max(0, TimeUnit.MILLISECONDS.toSeconds(expiryDate.getTime() - System.currentTimeMillis()));
     }
 
     /**
@@ -96,21 +405,52 @@ public class AuthenticationManager implements Closeable {
      *
      * @param action The action to be executed.
      * @param <T>
+     * @return The action's result.
      * @throws GeneralSecurityException  when authentication failed.
      * @throws KdcNotFoundException      when no KDC server is found.
      * @throws CommandExecutionException when getting KDC server list failed.
      * @throws InvalidKdcException       when at least one KDC server is found but it is not valid.
      */
-    public <T> void executePrivileged(PrivilegedAction<T> action)
+    public <T> T executePrivileged(PrivilegedAction<T> action)
             throws GeneralSecurityException, KdcNotFoundException, CommandExecutionException, InvalidKdcException {
-        authenticate().execute(action);
+        return currentSnapshot().execute(action);
     }
 
     @Override
     public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            if (renewalScheduler != null) {
+                renewalScheduler.shutdownNow();
+                renewalScheduler = null;
+            }
+        }
+        currentSnapshot = null;
         if (currentAuthenticator != null) {
             currentAuthenticator.logout();
         }
     }
 
+    private static class LoginFailure {
+
+        private final Exception exception;
+
+        /**
+         * The backoff delay (milliseconds).
+         */
+        private final long delay;
+
+        /**
+         * No new login before this time, as given by {@link System#nanoTime()}.
+         */
+        private final long retryTime;
+
+        private LoginFailure(Exception exception, long delay) {
+            this.exception = exception;
+            this.delay = delay;
+            this.retryTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+        }
+
+    }
+
 }
@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * Contributors:
+ *     Eugen Covaci - initial design and implementation
+ *******************************************************************************/
+
+package org.kpax.bpf.auth;
+
+import java.security.AccessControlContext;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.Subject;
+import javax.security.auth.SubjectDomainCombiner;
+
+/**
+ * An immutable view of the logged in credentials, cheap enough to be checked and used on every request:
+ * the validity is a {@link System#nanoTime()} deadline, and the access control context binding
+ * the subject is built once, instead of once per {@link Subject#doAs(Subject, PrivilegedAction)} call.
+ * <p>
+ * Since the deadline is monotonic, it does not follow the wall clock adjustments made after the snapshot.
+ *
+ * @author Eugen Covaci
+ */
+public final class CredentialSnapshot {
+
+    private final Subject subject;
+
+    private final AccessControlContext context;
+
+    /**
+     * As given by {@link System#nanoTime()}.
+     */
+    private final long validUntil;
+
+    /**
+     * @param subject      The logged in subject.
+     * @param validityDate The date after which the credentials are no longer considered valid.
+     */
+    public CredentialSnapshot(Subject subject, Date validityDate) {
+        this.subject = subject;
+        this.context = AccessController.doPrivileged((PrivilegedAction<AccessControlContext>) () ->
+                new AccessControlContext(AccessController.getContext(), new SubjectDomainCombiner(subject)));
+        this.validUntil = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(validityDate.getTime() - System.currentTimeMillis());
+    }
+
+    /**
+     * @return <code>true</code> until the validity date.
+     */
+    public boolean isValid() {
+        return validUntil - System.nanoTime() > 0;
+    }
+
+    /**
+     * Execute the action as the subject, like {@link Subject#doAs(Subject, PrivilegedAction)} does.
+     *
+     * @param action The action to be executed.
+     * @return The action's result.
+     */
+    public <T> T execute(PrivilegedAction<T> action) {
+        return AccessController.doPrivileged(action, context);
+    }
+
+    public Subject getSubject() {
+        return subject;
+    }
+
+}
@@ -0,0 +1,281 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * Contributors:
+ *     Eugen Covaci - initial design and implementation
+ *******************************************************************************/
+
+package org.kpax.bpf.auth;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Hashtable;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import javax.annotation.PostConstruct;
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+
+import org.kpax.bpf.SystemConfig;
+import org.kpax.bpf.exception.CommandExecutionException;
+import org.kpax.bpf.util.CommandExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Finds the KDC servers of a domain by looking up its <code>_kerberos._tcp</code> SRV records
+ * with the JNDI DNS provider, without leaving the JVM.
+ * <p>
+ * The records are cached, so that the logins following the first one do not wait for DNS.
+ * When the lookup itself fails (as opposed to the domain having no such records),
+ * the <code>nslookup</code> command is used instead.
+ *
+ * @author Eugen Covaci
+ */
+@Component
+@ManagedResource(objectName = "org.kpax.bpf:type=KdcResolver", description = "KDC discovery")
+public class KdcResolver {
+
+    private static final Logger logger = LoggerFactory.getLogger(KdcResolver.class);
+
+    public static final int DEFAULT_KDC_PORT = 88;
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    /**
+     * The JNDI DNS provider's URL, <code>dns:</code> meaning the system's DNS servers.
+     */
+    private String providerUrl = "dns:";
+
+    private long cacheTtl;
+
+    private final Map<String, CachedRecords> cache = new ConcurrentHashMap<>();
+
+    private final LongAdder lookups = new LongAdder();
+
+    private final LongAdder cacheHits = new LongAdder();
+
+    private final LongAdder fallbacks = new LongAdder();
+
+    public KdcResolver() {
+    }
+
+    /**
+     * @param providerUrl The JNDI DNS provider's URL, like <code>dns://127.0.0.1:53</code>.
+     * @param cacheTtl    How long the records are cached, in seconds.
+     */
+    public KdcResolver(String providerUrl, long cacheTtl) {
+        this.providerUrl = providerUrl;
+        this.cacheTtl = TimeUnit.SECONDS.toNanos(cacheTtl);
+    }
+
+    @PostConstruct
+    public void init() {
+        cacheTtl = TimeUnit.SECONDS.toNanos(systemConfig.getKdcCacheTtl());
+    }
+
+    /**
+     * Get the KDC servers of a domain, the preferred first.
+     * <p>
+     * As per RFC 2782, the servers are ordered by priority, then randomly with respect to their weights
+     * within the same priority. A server not listening on the default port is returned as <code>host:port</code>.
+     *
+     * @param domain The network domain.
+     * @return The KDC servers, possibly empty.
+     * @throws CommandExecutionException when the lookup fails.
+     */
+    public List<String> resolve(String domain) throws CommandExecutionException {
+        String name = "_kerberos._tcp." + domain.toUpperCase();
+        CachedRecords cached = cache.get(name);
+        if (cached != null && System.nanoTime() - cached.expiryTime < 0) {
+            cacheHits.increment();
+            return order(cached.records);
+        }
+
+        List<SrvRecord> records;
+        try {
+            records = lookup(name);
+        } catch (NamingException e) {
+            logger.warn("Cannot look up the SRV records of " + name + ", fall back to nslookup", e);
+            fallbacks.increment();
+            return new ArrayList<>(CommandExecutor.nslookupKdc(domain));
+        }
+        cache.put(name, new CachedRecords(records, System.nanoTime() + cacheTtl));
+        return order(records);
+    }
+
+    /**
+     * Forget the cached records.
+     */
+    public void clearCache() {
+        cache.clear();
+    }
+
+    private List<SrvRecord> lookup(String name) throws NamingException {
+        logger.info("Look up the SRV records of {}", name);
+        lookups.increment();
+        Hashtable<String, String> env = new Hashtable<>();
+        env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.dns.DnsContextFactory");
+        env.put(Context.PROVIDER_URL, providerUrl);
+        DirContext context = new InitialDirContext(env);
+        try {
+            Attribute attribute = context.getAttributes(name, new String[] { "SRV" }).get("SRV");
+            List<SrvRecord> records = new ArrayList<>();
+            if (attribute != null) {
+                NamingEnumeration<?> values = attribute.getAll();
+                while (values.hasMore()) {
+                    SrvRecord record = SrvRecord.parse(values.next().toString());
+                    if (record != null) {
+                        records.add(record);
+                    }
+                }
+            }
+            logger.info("SRV records of {}: {}", name, records);
+            return records;
+        } catch (NameNotFoundException e) {
+            logger.info("No SRV record found for {}", name);
+            return Collections.emptyList();
+        } finally {
+            context.close();
+        }
+    }
+
+    /**
+     * Order the records by priority, then by a weighted random selection (RFC 2782).
+     */
+    private static List<String> order(List<SrvRecord> records) {
+        Map<Integer, List<SrvRecord>> byPriority = records.stream()
+                .collect(Collectors.groupingBy(record -> record.priority));
+        List<String> kdcs = new ArrayList<>(records.size());
+        byPriority.keySet().stream().sorted().forEach(priority -> {
+            List<SrvRecord> remaining = new LinkedList<>(byPriority.get(priority));
+
+            // The zero weights first, so they have a very small chance of being selected
+            remaining.sort(Comparator.comparingInt(record -> record.weight));
+            while (!remaining.isEmpty()) {
+                int totalWeight = remaining.stream().mapToInt(record -> record.weight).sum();
+                int random = totalWeight > 0 ? ThreadLocalRandom.current().nextInt(totalWeight + 1) : 0;
+                int runningSum = 0;
+                for (SrvRecord record : remaining) {
+                    runningSum += record.weight;
+                    if (runningSum >= random) {
+                        kdcs.add(record.toKdc());
+                        remaining.remove(record);
+                        break;
+                    }
+                }
+            }
+        });
+        return kdcs;
+    }
+
+    @ManagedAttribute(description = "The number of DNS lookups")
+    public long getLookups() {
+        return lookups.sum();
+    }
+
+    @ManagedAttribute(description = "The number of resolutions answered from cache")
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    @ManagedAttribute(description = "The number of resolutions that fell back to nslookup")
+    public long getFallbacks() {
+        return fallbacks.sum();
+    }
+
+    private static class SrvRecord {
+
+        private final int priority;
+
+        private final int weight;
+
+        private final int port;
+
+        private final String target;
+
+        private SrvRecord(int priority, int weight, int port, String target) {
+            this.priority = priority;
+            this.weight = weight;
+            this.port = port;
+            this.target = target;
+        }
+
+        /**
+         * Parse an SRV record like <code>0 100 88 dc.example.com.</code>
+         *
+         * @return The record or <code>null</code> when it is malformed or means "no service".
+         */
+        private static SrvRecord parse(String value) {
+            String[] fields = value.trim().split("\\s+");
+            if (fields.length != 4) {
+                logger.warn("Ignore malformed SRV record: {}", value);
+                return null;
+            }
+            String target = fields[3].endsWith(".") ? fields[3].substring(0, fields[3].length() - 1) : fields[3];
+            if (target.isEmpty()) {
+                return null;
+            }
+            try {
+                return new SrvRecord(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]),
+                        Integer.parseInt(fields[2]), target);
+            } catch (NumberFormatException e) {
+                logger.warn("Ignore malformed SRV record: {}", value);
+                return null;
+            }
+        }
+
+        private String toKdc() {
+            return port == DEFAULT_KDC_PORT ? target : target + ":" + port;
+        }
+
+        @Override
+        public String toString() {
+            return priority + " " + weight + " " + port + " " + target;
+        }
+
+    }
+
+    private static class CachedRecords {
+
+        private final List<SrvRecord> records;
+
+        /**
+         * As given by {@link System#nanoTime()}.
+         */
+        private final long expiryTime;
+
+        private CachedRecords(List<SrvRecord> records, long expiryTime) {
+            this.records = records;
+            this.expiryTime = expiryTime;
+        }
+
+    }
+
+}
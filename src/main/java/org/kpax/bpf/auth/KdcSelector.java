@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * Contributors:
+ *     Eugen Covaci - initial design and implementation
+ *******************************************************************************/
+
+package org.kpax.bpf.auth;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.kpax.bpf.SystemConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Chooses the KDC server to log in with by racing TCP connections to the candidates,
+ * started one after another at a short interval (like Happy Eyeballs does), so that
+ * a dead KDC costs at most this interval instead of a full Kerberos timeout.
+ * <p>
+ * The winner is remembered per domain and raced first next time.
+ *
+ * @author Eugen Covaci
+ */
+@Component
+@ManagedResource(objectName = "org.kpax.bpf:type=KdcSelector", description = "KDC selection")
+public class KdcSelector {
+
+    private static final Logger logger = LoggerFactory.getLogger(KdcSelector.class);
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    private long stagger;
+
+    private long timeout;
+
+    private final Map<String, String> fastestKdcs = new ConcurrentHashMap<>();
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "kdc-race");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final LongAdder races = new LongAdder();
+
+    private final LongAdder racesLost = new LongAdder();
+
+    private volatile long lastRaceMillis = -1;
+
+    public KdcSelector() {
+    }
+
+    /**
+     * @param stagger The delay before racing the next KDC, in milliseconds.
+     * @param timeout The maximum duration of a race, in milliseconds.
+     */
+    public KdcSelector(long stagger, long timeout) {
+        this.stagger = stagger;
+        this.timeout = timeout;
+    }
+
+    @PostConstruct
+    public void init() {
+        stagger = systemConfig.getKdcRaceStagger();
+        timeout = systemConfig.getKdcRaceTimeout();
+    }
+
+    /**
+     * Order the KDC servers of a domain by their ability to answer quickly.
+     * <p>
+     * The first one accepting a connection comes first, followed by the ones not raced
+     * or still connecting at that moment, in their original order, then by the ones that failed.
+     * When no KDC answers in time, the original order is kept.
+     *
+     * @param domain The network domain.
+     * @param kdcs   The KDC servers, the preferred first, as <code>host</code> or <code>host:port</code>.
+     * @return The reordered KDC servers.
+     */
+    public List<String> select(String domain, List<String> kdcs) {
+        if (kdcs.size() < 2) {
+            return kdcs;
+        }
+        List<String> candidates = new ArrayList<>(kdcs);
+        String fastest = fastestKdcs.get(domain);
+        if (fastest != null && candidates.remove(fastest)) {
+            candidates.add(0, fastest);
+        }
+
+        races.increment();
+        long start = System.nanoTime();
+        CompletionService<String> completionService = new ExecutorCompletionService<>(executor);
+        List<Future<String>> probes = new ArrayList<>();
+        List<String> failed = new ArrayList<>();
+        String winner = null;
+        try {
+            long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeout);
+            int next = 0;
+            int pending = 0;
+            while (winner == null) {
+                if (next < candidates.size()) {
+                    String kdc = candidates.get(next++);
+                    probes.add(completionService.submit(() -> probe(kdc)));
+                    pending++;
+                } else if (pending == 0) {
+                    break;
+                }
+                long wait = next < candidates.size()
+                        ? Math.min(TimeUnit.MILLISECONDS.toNanos(stagger), deadline - System.nanoTime())
+                        : deadline - System.nanoTime();
+                if (wait <= 0) {
+                    break;
+                }
+
+                // Wait for the first outcome, then start the next KDC right away if it failed
+                Future<String> done = completionService.poll(wait, TimeUnit.NANOSECONDS);
+                if (done != null) {
+                    pending--;
+                    try {
+                        winner = done.get();
+                    } catch (Exception e) {
+                        String kdc = candidates.get(probes.indexOf(done));
+                        logger.info("KDC {} not reachable: {}", kdc, e.getCause());
+                        failed.add(kdc);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            probes.forEach(probe -> probe.cancel(true));
+        }
+        lastRaceMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        if (winner == null) {
+            logger.warn("No KDC answered in {} ms, keep the original order", timeout);
+            racesLost.increment();
+            return kdcs;
+        }
+        logger.info("KDC {} answered first, in {} ms", winner, lastRaceMillis);
+        fastestKdcs.put(domain, winner);
+        List<String> ordered = new ArrayList<>(candidates.size());
+        ordered.add(winner);
+        for (String kdc : candidates) {
+            if (!kdc.equals(winner) && !failed.contains(kdc)) {
+                ordered.add(kdc);
+            }
+        }
+        ordered.addAll(failed);
+        return ordered;
+    }
+
+    /**
+     * Connect to the KDC, then close the connection right away.
+     *
+     * @return The KDC.
+     */
+    private String probe(String kdc) throws IOException {
+        int index = kdc.lastIndexOf(':');
+        String host = index > 0 ? kdc.substring(0, index) : kdc;
+        int port = index > 0 ? Integer.parseInt(kdc.substring(index + 1)) : KdcResolver.DEFAULT_KDC_PORT;
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(host, port), (int) timeout);
+        }
+        return kdc;
+    }
+
+    @ManagedAttribute(description = "The number of KDC races")
+    public long getRaces() {
+        return races.sum();
+    }
+
+    @ManagedAttribute(description = "The number of KDC races without any KDC answering")
+    public long getRacesLost() {
+        return racesLost.sum();
+    }
+
+    @ManagedAttribute(description = "The duration of the last KDC race (milliseconds), -1 if none")
+    public long getLastRaceMillis() {
+        return lastRaceMillis;
+    }
+
+    @PreDestroy
+    public void close() {
+        executor.shutdownNow();
+    }
+
+}
@@ -14,28 +14,47 @@
 
 package org.kpax.bpf.auth;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.security.GeneralSecurityException;
 import java.security.PrivilegedAction;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import javax.security.auth.Subject;
 import javax.security.auth.callback.Callback;
 import javax.security.auth.callback.NameCallback;
 import javax.security.auth.callback.PasswordCallback;
 import javax.security.auth.kerberos.KerberosTicket;
+import javax.security.auth.login.AppConfigurationEntry;
+import javax.security.auth.login.Configuration;
 import javax.security.auth.login.LoginContext;
 import javax.security.auth.login.LoginException;
 
+import org.apache.commons.lang3.StringUtils;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.GSSManager;
+import org.ietf.jgss.GSSName;
+import org.ietf.jgss.Oid;
 import org.kpax.bpf.SystemConfig;
 import org.kpax.bpf.UserConfig;
 import org.kpax.bpf.exception.CommandExecutionException;
 import org.kpax.bpf.exception.InvalidKdcException;
 import org.kpax.bpf.exception.KdcNotFoundException;
-import org.kpax.bpf.util.CommandExecutor;
 import org.kpax.bpf.util.LocalDateUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -56,59 +75,97 @@ public class KerberosAuthenticator {
 
     private static final Logger logger = LoggerFactory.getLogger(KerberosAuthenticator.class);
 
+    private static final String KRB5_MECHANISM_OID = "1.2.840.113554.1.2.2";
+
     @Autowired
     private UserConfig userConfig;
 
     @Autowired
     private SystemConfig config;
 
+    @Autowired
+    private KdcResolver kdcResolver;
+
+    @Autowired
+    private KdcSelector kdcSelector;
+
+    /**
+     * The value given to <code>java.security.krb5.kdc</code> by the last login, if any.
+     */
+    private static String discoveredKdcs;
+
     private LoginContext loginContext;
 
     private Date validityDate;
 
+    private Date expiryDate;
+
+    private boolean fromTicketCache;
+
+    private CredentialSnapshot snapshot;
+
     /**
      * Performs Kerberos authentication.
+     * <p>
+     * A ticket found in the private ticket cache or in the user's one (see <code>private.ticket.cache.file</code>
+     * and <code>ticket.cache.file</code>) is used without asking the KDC, provided it is still valid
+     * and expires after <code>previousExpiry</code>. Otherwise the KDC is asked for a new ticket,
+     * with the keytab (see <code>keytab.file</code>) or the password, then the ticket is saved
+     * in the private ticket cache. Without a keytab nor a password, the login fails
+     * without asking the KDC.
+     *
+     * @param previousExpiry The end time of the ticket being renewed, <code>null</code> if none.
      * @throws GeneralSecurityException  when authentication failed.
      * @throws KdcNotFoundException      when no KDC server is found.
      * @throws CommandExecutionException when getting KDC server list failed.
      * @throws InvalidKdcException       when at least one KDC server is found but it is not valid.
      */
     @SuppressWarnings("restriction")
-    void login()
+    void login(Date previousExpiry)
             throws GeneralSecurityException, KdcNotFoundException,
             CommandExecutionException, InvalidKdcException {
 
-        // The list of KDC servers, always empty when krb5.conf is set
-        Set<String> kdcs = new HashSet<>();
-
-        if (System.getProperty("java.security.krb5.conf") == null
-                && System.getProperty("java.security.krb5.kdc") == null) {
-            kdcs = CommandExecutor.nslookupKdc(userConfig.getDomain());
-            logger.info("kdc list: {}", kdcs);
-            if (kdcs.isEmpty()) {
-                throw new KdcNotFoundException();
-            }
-            System.setProperty("java.security.krb5.realm", userConfig.getDomain().toUpperCase());
+        if (loginFromTicketCache(config.getPrivateTicketCacheFile(), previousExpiry)
+                || loginFromTicketCache(config.getTicketCacheFile(), previousExpiry)) {
+            return;
         }
 
         // Create login context
-        this.loginContext = new LoginContext("JAASClient", callbacks -> {
-            for (Callback callback : callbacks) {
-                if (callback instanceof NameCallback) {
-                    ((NameCallback) callback).setName(userConfig.getUsername() + "@" + userConfig.getDomain().toUpperCase());
-                }
-                if (callback instanceof PasswordCallback) {
-                    ((PasswordCallback) callback).setPassword(userConfig.getPassword().toCharArray());
+        if (StringUtils.isNotEmpty(config.getKeytabFile())) {
+            Map<String, String> options = new HashMap<>();
+            options.put("useKeyTab", "true");
+            options.put("keyTab", config.getKeytabFile());
+            options.put("storeKey", "true");
+            this.loginContext = newLoginContext(options);
+        } else if (StringUtils.isEmpty(userConfig.getPassword())) {
+            // An empty password would only be a failed pre-authentication, counting towards the account lockout
+            throw new LoginException("No usable ticket found in the ticket caches"
+                    + " and neither a password nor a keytab to ask the KDC for one");
+        } else {
+            this.loginContext = new LoginContext("JAASClient", this::handleCallbacks);
+        }
+
+        // The Kerberos configuration is global to the JVM,
+        // so it must not change while another login is in progress
+        synchronized (KerberosAuthenticator.class) {
+            String kdcProperty = System.getProperty("java.security.krb5.kdc");
+
+            // Whether the KDC servers are ours to choose, that is neither krb5.conf
+            // nor java.security.krb5.kdc has been set by the user
+            boolean discovered = System.getProperty("java.security.krb5.conf") == null
+                    && (kdcProperty == null || kdcProperty.equals(discoveredKdcs));
+            if (discovered) {
+                List<String> kdcs = kdcResolver.resolve(userConfig.getDomain());
+                logger.info("kdc list: {}", kdcs);
+                if (kdcs.isEmpty()) {
+                    throw new KdcNotFoundException();
                 }
-            }
-        });
 
-        Iterator<String> kdcItr = kdcs.iterator();
-        do {
-            String kdc = null;
-            if (kdcItr.hasNext()) {
-                kdc = kdcItr.next();
-                System.setProperty("java.security.krb5.kdc", kdc);
+                // The fastest KDC first, the others being tried in order
+                // by the Kerberos client only when it cannot reach the previous one
+                discoveredKdcs = String.join(" ", kdcSelector.select(userConfig.getDomain(), kdcs));
+                System.setProperty("java.security.krb5.realm", userConfig.getDomain().toUpperCase());
+                System.setProperty("java.security.krb5.kdc", discoveredKdcs);
                 try {
                     // We need this because the system properties have changed
                     sun.security.krb5.Config.refresh();
@@ -125,41 +182,223 @@ public class KerberosAuthenticator {
                 logger.info("* java.security.krb5.realm [{}]", System.getProperty("java.security.krb5.realm"));
 
                 this.loginContext.login();
-                if (kdc != null) {
-                    logger.info("Authentication succeeded for kdc = [" + kdc + "]");
+            } catch (LoginException e) {
+                if (discovered) {
+                    System.clearProperty("java.security.krb5.kdc");
+                    discoveredKdcs = null;
+                    throw new InvalidKdcException(e);
                 }
+                throw e;
+            }
+        }
 
-                break;
-            } catch (LoginException e) {
-                if (kdcItr.hasNext()) {
-                    logger.warn("Authentication failed for kdc = [" + kdc + "], try another kdc", e);
-                } else {
-                    if (kdc != null) {
-                        System.clearProperty("java.security.krb5.kdc");
-                        throw new InvalidKdcException(e);
-                    }
-                    throw e;
+        setDates(getTicket(loginContext.getSubject()));
+        saveTicket();
+    }
+
+    /**
+     * Log in with the ticket found in a ticket cache, if still valid.
+     *
+     * @param cacheFile      The ticket cache file, possibly empty.
+     * @param previousExpiry The ticket must expire after this date, if not <code>null</code>.
+     * @return <code>true</code> when logged in.
+     */
+    private boolean loginFromTicketCache(String cacheFile, Date previousExpiry) {
+        if (StringUtils.isEmpty(cacheFile) || !new File(cacheFile).isFile()) {
+            return false;
+        }
+        Map<String, String> options = new HashMap<>();
+        options.put("useTicketCache", "true");
+        options.put("ticketCache", cacheFile);
+        try {
+            LoginContext context = newLoginContext(options);
+            context.login();
+            KerberosTicket ticket = getTicket(context.getSubject());
+            Date validity = LocalDateUtils.substract(ticket.getEndTime(), Calendar.SECOND, config.getTicketThreshold());
+            if (validity.after(new Date())
+                    && (previousExpiry == null || ticket.getEndTime().after(previousExpiry))) {
+                logger.info("Use the ticket found in {}", cacheFile);
+                this.loginContext = context;
+                this.fromTicketCache = true;
+                setDates(ticket);
+                return true;
+            }
+            logger.info("The ticket found in {} expires too soon: {}", cacheFile, ticket.getEndTime());
+            context.logout();
+        } catch (LoginException e) {
+            logger.info("No usable ticket found in {}: {}", cacheFile, e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Save the ticket in the private ticket cache, if enabled, readable by the current user only.
+     */
+    @SuppressWarnings("restriction")
+    private void saveTicket() {
+        String cacheFile = config.getPrivateTicketCacheFile();
+        if (StringUtils.isEmpty(cacheFile)) {
+            return;
+        }
+        KerberosTicket ticket = getTicket(loginContext.getSubject());
+        Path cachePath = Paths.get(cacheFile).toAbsolutePath();
+        Path tempPath = cachePath.resolveSibling(cachePath.getFileName() + ".tmp");
+        synchronized (KerberosAuthenticator.class) {
+            try {
+                Files.deleteIfExists(tempPath);
+                if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+                    Files.createFile(tempPath,
+                            PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+                }
+                sun.security.krb5.PrincipalName client = new sun.security.krb5.PrincipalName(
+                        ticket.getClient().getName());
+                sun.security.krb5.internal.ccache.CredentialsCache cache =
+                        sun.security.krb5.internal.ccache.CredentialsCache.create(client, tempPath.toString());
+                if (cache == null) {
+                    throw new IOException("Cannot create the ticket cache " + tempPath);
+                }
+                cache.update(new sun.security.krb5.internal.ccache.Credentials(
+                        client,
+                        new sun.security.krb5.PrincipalName(ticket.getServer().getName()),
+                        new sun.security.krb5.EncryptionKey(ticket.getSessionKeyType(), ticket.getSessionKey().getEncoded()),
+                        toKerberosTime(ticket.getAuthTime()),
+                        toKerberosTime(ticket.getStartTime()),
+                        toKerberosTime(ticket.getEndTime()),
+                        toKerberosTime(ticket.getRenewTill()),
+                        false,
+                        new sun.security.krb5.internal.TicketFlags(ticket.getFlags()),
+                        ticket.getClientAddresses() != null
+                                ? new sun.security.krb5.internal.HostAddresses(ticket.getClientAddresses())
+                                : null,
+                        null,
+                        new sun.security.krb5.internal.Ticket(ticket.getEncoded()),
+                        null));
+                cache.save();
+                Files.move(tempPath, cachePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                logger.info("Ticket saved in {}", cachePath);
+            } catch (Exception e) {
+                logger.warn("Cannot save the ticket in " + cachePath, e);
+                try {
+                    Files.deleteIfExists(tempPath);
+                } catch (IOException ignore) {
                 }
             }
+        }
+    }
 
-        } while (kdcItr.hasNext());
+    @SuppressWarnings("restriction")
+    private static sun.security.krb5.internal.KerberosTime toKerberosTime(Date date) {
+        return date != null ? new sun.security.krb5.internal.KerberosTime(date) : null;
+    }
 
-        // Retrieve the Kerberos credentials
-        Subject subject = this.loginContext.getSubject();
+    /**
+     * Create a login context with the Kerberos login module, never prompting for the password.
+     *
+     * @param options The login module's options, besides the principal.
+     */
+    private LoginContext newLoginContext(Map<String, String> options) throws LoginException {
+        options.put("principal", userConfig.getUsername() + "@" + userConfig.getDomain().toUpperCase());
+        options.put("doNotPrompt", "true");
+        AppConfigurationEntry entry = new AppConfigurationEntry("com.sun.security.auth.module.Krb5LoginModule",
+                AppConfigurationEntry.LoginModuleControlFlag.REQUIRED, options);
+        return new LoginContext("JAASClient", null, this::handleCallbacks, new Configuration() {
+            @Override
+            public AppConfigurationEntry[] getAppConfigurationEntry(String name) {
+                return new AppConfigurationEntry[] { entry };
+            }
+        });
+    }
 
-        // Get Kerberos ticket
+    private void handleCallbacks(Callback[] callbacks) {
+        for (Callback callback : callbacks) {
+            if (callback instanceof NameCallback) {
+                ((NameCallback) callback).setName(userConfig.getUsername() + "@" + userConfig.getDomain().toUpperCase());
+            }
+            if (callback instanceof PasswordCallback) {
+                String password = userConfig.getPassword();
+                ((PasswordCallback) callback).setPassword(password != null ? password.toCharArray() : new char[0]);
+            }
+        }
+    }
+
+    private static KerberosTicket getTicket(Subject subject) {
         KerberosTicket kerberosTicket = null;
         for (Object obj : subject.getPrivateCredentials()) {
             if (obj instanceof KerberosTicket) {
                 kerberosTicket = ((KerberosTicket) obj);
             }
         }
+        return kerberosTicket;
+    }
 
-        // Calculate the validity date
+    /**
+     * Calculate the validity date.
+     */
+    private void setDates(KerberosTicket kerberosTicket) {
         Date endDate = kerberosTicket.getEndTime();
         logger.info("Expire date {}", endDate);
+        this.expiryDate = endDate;
         this.validityDate = LocalDateUtils.substract(endDate, Calendar.SECOND, config.getTicketThreshold());
         logger.info("Validity date {}", this.validityDate);
+        this.snapshot = new CredentialSnapshot(loginContext.getSubject(), validityDate);
+    }
+
+    /**
+     * @return The credentials for the requests, <code>null</code> when not logged in.
+     */
+    CredentialSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * @return <code>true</code> when the ticket has been found in a ticket cache rather than asked to the KDC.
+     */
+    boolean isFromTicketCache() {
+        return fromTicketCache;
+    }
+
+    /**
+     * Get the service ticket of the HTTP service on the given host, so that the first
+     * Negotiate authentication with this host does not have to ask the KDC for it.
+     * <p>
+     * The ticket is kept in this authenticator's subject, where the Kerberos mechanism
+     * looks for it before asking the KDC. The host name is canonicalized the same way
+     * the HTTP client's SPNEGO scheme does, so that both ask for the same service principal.
+     *
+     * @param host The host, usually the remote proxy.
+     * @throws GSSException when the service ticket cannot be obtained.
+     */
+    void prefetchServiceTicket(String host) throws GSSException {
+        String serviceName = "HTTP@" + canonicalHostName(host);
+        logger.info("Prefetch the service ticket for {}", serviceName);
+        try {
+            execute((PrivilegedExceptionAction<Void>) () -> {
+                Oid krb5Mechanism = new Oid(KRB5_MECHANISM_OID);
+                GSSManager manager = GSSManager.getInstance();
+                GSSName serverName = manager.createName(serviceName, GSSName.NT_HOSTBASED_SERVICE);
+                GSSContext context = manager.createContext(serverName.canonicalize(krb5Mechanism), krb5Mechanism,
+                        null, GSSContext.DEFAULT_LIFETIME);
+                try {
+                    // The first token needs the service ticket, that's all we want
+                    context.initSecContext(new byte[0], 0, 0);
+                } finally {
+                    context.dispose();
+                }
+                return null;
+            });
+        } catch (PrivilegedActionException e) {
+            throw (GSSException) e.getException();
+        }
+    }
+
+    private static String canonicalHostName(String host) {
+        try {
+            InetAddress address = InetAddress.getByName(host);
+            String canonicalName = address.getCanonicalHostName();
+            return address.getHostAddress().contentEquals(canonicalName) ? host : canonicalName;
+        } catch (UnknownHostException e) {
+            return host;
+        }
     }
 
     /**
@@ -188,21 +427,43 @@ public class KerberosAuthenticator {
         return validityDate != null && validityDate.after(new Date());
     }
 
+    /**
+     * @return The date after which the ticket is no longer considered valid, <code>null</code> when not logged in.
+     */
+    Date getValidityDate() {
+        return validityDate;
+    }
+
+    /**
+     * @return The ticket's end time, <code>null</code> when not logged in.
+     */
+    Date getExpiryDate() {
+        return expiryDate;
+    }
+
     /**
      * Execute action in the current JAAS security context.
      *
      * @param action The action to be executed.
      * @return The result of processing.
      */
-    <T> void execute(PrivilegedAction<T> action) {
+    <T> T execute(PrivilegedAction<T> action) {
         if (loginContext != null) {
-            Subject.doAs(loginContext.getSubject(), action);
+            return Subject.doAs(loginContext.getSubject(), action);
         } else {
             throw new SecurityException("Kerberos authentication not found");
         }
 
     }
 
+    private <T> T execute(PrivilegedExceptionAction<T> action) throws PrivilegedActionException {
+        if (loginContext != null) {
+            return Subject.doAs(loginContext.getSubject(), action);
+        } else {
+            throw new SecurityException("Kerberos authentication not found");
+        }
+    }
+
     @Override
     protected void finalize() throws Throwable {
         logout();
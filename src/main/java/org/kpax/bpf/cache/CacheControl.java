@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * Contributors:
+ *     Eugen Covaci - initial design and implementation
+ *******************************************************************************/
+
+package org.kpax.bpf.cache;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpMessage;
+
+/**
+ * The <code>Cache-Control</code> directives of a message (RFC 7234 section 5.2).
+ *
+ * @author Eugen Covaci
+ */
+final class CacheControl {
+
+	private static final long MAX_DELTA_SECONDS = 1L << 31;
+
+	private final Map<String, String> directives = new HashMap<>();
+
+	private CacheControl() {
+	}
+
+	static CacheControl of(HttpMessage message) {
+		return of(message.getHeaders(HttpHeaders.CACHE_CONTROL));
+	}
+
+	/**
+	 * @param headers The <code>Cache-Control</code> headers.
+	 */
+	static CacheControl of(Header[] headers) {
+		CacheControl cacheControl = new CacheControl();
+		for (Header header : headers) {
+			for (HeaderElement element : header.getElements()) {
+				cacheControl.directives.put(element.getName().toLowerCase(Locale.ROOT),
+						StringUtils.defaultString(element.getValue()));
+			}
+		}
+		return cacheControl;
+	}
+
+	boolean has(String directive) {
+		return directives.containsKey(directive);
+	}
+
+	/**
+	 * @param directive A directive with a delta-seconds argument, like <code>max-age</code>.
+	 * @return Its value in milliseconds, <code>-1</code> when absent or invalid.
+	 */
+	long millis(String directive) {
+		String value = directives.get(directive);
+		if (!StringUtils.isNumeric(value) || value.isEmpty()) {
+			return -1;
+		}
+		// The values too big mean 2^31 (RFC 7234 section 1.2.1)
+		long seconds = value.length() > 10 ? MAX_DELTA_SECONDS : Math.min(Long.parseLong(value), MAX_DELTA_SECONDS);
+		return seconds * 1000;
+	}
+
+}
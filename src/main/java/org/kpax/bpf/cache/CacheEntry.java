@@ -0,0 +1,437 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * Contributors:
+ *     Eugen Covaci - initial design and implementation
+ *******************************************************************************/
+
+package org.kpax.bpf.cache;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.StatusLine;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.message.HeaderGroup;
+
+/**
+ * A stored response, with its age and freshness computed as in RFC 7234 section 4.2.
+ * It is immutable: the revalidation makes a new entry.
+ *
+ * @author Eugen Covaci
+ */
+final class CacheEntry {
+
+	/**
+	 * The hop-by-hop headers, and the ones computed when the entry is served.
+	 */
+	private static final Set<String> UNSTORED_HEADERS = new HashSet<>(Arrays.asList("connection", "keep-alive",
+			"proxy-connection", "proxy-authenticate", "proxy-authorization", "te", "trailer", "transfer-encoding",
+			"upgrade", "content-length", "age"));
+
+	/**
+	 * The headers a <code>304 Not Modified</code> response carries (RFC 7232 section 4.1).
+	 */
+	private static final Set<String> NOT_MODIFIED_HEADERS = new HashSet<>(Arrays.asList("cache-control",
+			"content-location", "date", "etag", "expires", "vary"));
+
+	/**
+	 * The heuristic freshness lifetime is capped, so that no warning is due (RFC 7234 section 4.2.2).
+	 */
+	private static final long MAX_HEURISTIC_LIFETIME = TimeUnit.DAYS.toMillis(1);
+
+	private final StatusLine statusLine;
+
+	private final HeaderGroup headers = new HeaderGroup();
+
+	/**
+	 * The body in memory, <code>null</code> when it is in {@link #file}.
+	 */
+	private final byte[] body;
+
+	/**
+	 * The body on disk (see {@link DiskStore}), <code>null</code> when it is in memory.
+	 */
+	private final Path file;
+
+	private final long contentLength;
+
+	private final long responseTime;
+
+	/**
+	 * The <code>corrected_initial_age</code> of RFC 7234 section 4.2.3.
+	 */
+	private final long initialAge;
+
+	private final long freshnessLifetime;
+
+	private final boolean noCache;
+
+	private final boolean mustRevalidate;
+
+	/**
+	 * The values of the request headers named by <code>Vary</code>, by lower case name.
+	 */
+	private final Map<String, String> varyValues;
+
+	/**
+	 * @param request      The request.
+	 * @param response     The response, its entity being ignored.
+	 * @param body         The response body.
+	 * @param requestTime  When the request was sent.
+	 * @param responseTime When the response was received.
+	 */
+	CacheEntry(HttpRequest request, HttpResponse response, byte[] body, long requestTime, long responseTime) {
+		this(response.getStatusLine(), response.getAllHeaders(), body, null, body.length, responseTime,
+				initialAge(response, requestTime, responseTime),
+				varyValues(request, response.getHeaders(HttpHeaders.VARY)));
+	}
+
+	/**
+	 * @param request       The request.
+	 * @param response      The response, its entity being ignored.
+	 * @param file          The response body.
+	 * @param contentLength The size of the body.
+	 * @param requestTime   When the request was sent.
+	 * @param responseTime  When the response was received.
+	 */
+	CacheEntry(HttpRequest request, HttpResponse response, Path file, long contentLength, long requestTime,
+			long responseTime) {
+		this(response.getStatusLine(), response.getAllHeaders(), null, file, contentLength, responseTime,
+				initialAge(response, requestTime, responseTime),
+				varyValues(request, response.getHeaders(HttpHeaders.VARY)));
+	}
+
+	private CacheEntry(StatusLine statusLine, Header[] allHeaders, byte[] body, Path file, long contentLength,
+			long responseTime, long initialAge, Map<String, String> varyValues) {
+		this.statusLine = new BasicStatusLine(statusLine.getProtocolVersion(), statusLine.getStatusCode(),
+				statusLine.getReasonPhrase());
+		for (Header header : allHeaders) {
+			if (!UNSTORED_HEADERS.contains(header.getName().toLowerCase(Locale.ROOT))) {
+				headers.addHeader(header);
+			}
+		}
+		this.body = body;
+		this.file = file;
+		this.contentLength = contentLength;
+		this.responseTime = responseTime;
+		this.initialAge = initialAge;
+		this.varyValues = varyValues;
+
+		long date = getDate();
+		CacheControl cacheControl = CacheControl.of(headers.getHeaders(HttpHeaders.CACHE_CONTROL));
+		this.freshnessLifetime = freshnessLifetime(cacheControl, date);
+		this.noCache = cacheControl.has("no-cache");
+		this.mustRevalidate = cacheControl.has("must-revalidate") || cacheControl.has("proxy-revalidate")
+				|| cacheControl.has("s-maxage");
+	}
+
+	/**
+	 * Restore an entry saved by {@link DiskStore}.
+	 */
+	static CacheEntry restore(StatusLine statusLine, Header[] headers, Path file, long contentLength,
+			long responseTime, long initialAge, Map<String, String> varyValues) {
+		return new CacheEntry(statusLine, headers, null, file, contentLength, responseTime, initialAge, varyValues);
+	}
+
+	/**
+	 * @return The <code>corrected_initial_age</code> of RFC 7234 section 4.2.3.
+	 */
+	private static long initialAge(HttpResponse response, long requestTime, long responseTime) {
+		Header dateHeader = response.getFirstHeader(HttpHeaders.DATE);
+		Date date = dateHeader != null ? DateUtils.parseDate(dateHeader.getValue()) : null;
+		long apparentAge = date != null ? Math.max(0, responseTime - date.getTime()) : 0;
+		long correctedAgeValue = ageValue(response) + (responseTime - requestTime);
+		return Math.max(apparentAge, correctedAgeValue);
+	}
+
+	private static long ageValue(HttpResponse response) {
+		Header age = response.getFirstHeader(HttpHeaders.AGE);
+		if (age != null && StringUtils.isNumeric(age.getValue()) && !age.getValue().isEmpty()
+				&& age.getValue().length() < 10) {
+			return TimeUnit.SECONDS.toMillis(Long.parseLong(age.getValue()));
+		}
+		return 0;
+	}
+
+	private static Map<String, String> varyValues(HttpRequest request, Header[] varyHeaders) {
+		if (varyHeaders.length == 0) {
+			return Collections.emptyMap();
+		}
+		Map<String, String> values = new HashMap<>();
+		for (Header vary : varyHeaders) {
+			for (HeaderElement element : vary.getElements()) {
+				values.put(element.getName().toLowerCase(Locale.ROOT), requestValues(request, element.getName()));
+			}
+		}
+		return values;
+	}
+
+	private static String requestValues(HttpRequest request, String name) {
+		return Arrays.stream(request.getHeaders(name)).map(header -> header.getValue().trim())
+				.collect(Collectors.joining(","));
+	}
+
+	private long freshnessLifetime(CacheControl cacheControl, long date) {
+		long sMaxAge = cacheControl.millis("s-maxage");
+		if (sMaxAge >= 0) {
+			return sMaxAge;
+		}
+		long maxAge = cacheControl.millis("max-age");
+		if (maxAge >= 0) {
+			return maxAge;
+		}
+		Header expires = headers.getFirstHeader(HttpHeaders.EXPIRES);
+		if (expires != null) {
+			// An invalid date means already expired
+			Date expiresDate = DateUtils.parseDate(expires.getValue());
+			return expiresDate != null ? Math.max(0, expiresDate.getTime() - date) : 0;
+		}
+		Date lastModified = getDateHeader(HttpHeaders.LAST_MODIFIED);
+		if (lastModified != null && HttpCache.isCacheableByDefault(statusLine.getStatusCode())) {
+			return Math.min(Math.max(0, date - lastModified.getTime()) / 10, MAX_HEURISTIC_LIFETIME);
+		}
+		return 0;
+	}
+
+	private Date getDateHeader(String name) {
+		Header header = headers.getFirstHeader(name);
+		return header != null ? DateUtils.parseDate(header.getValue()) : null;
+	}
+
+	/**
+	 * @return The origin's <code>Date</code>, else when the response was received.
+	 */
+	private long getDate() {
+		Date date = getDateHeader(HttpHeaders.DATE);
+		return date != null ? date.getTime() : responseTime;
+	}
+
+	/**
+	 * @param now The current time.
+	 * @return The age of the response, in milliseconds.
+	 */
+	long currentAge(long now) {
+		return initialAge + Math.max(0, now - responseTime);
+	}
+
+	long getFreshnessLifetime() {
+		return freshnessLifetime;
+	}
+
+	/**
+	 * @return Whether the response has <code>Cache-Control: no-cache</code>, hence is always revalidated.
+	 */
+	boolean isNoCache() {
+		return noCache;
+	}
+
+	/**
+	 * @return Whether the response cannot be served stale.
+	 */
+	boolean isMustRevalidate() {
+		return mustRevalidate;
+	}
+
+	/**
+	 * @param request A request for the same URI.
+	 * @return Whether the request has the same values as the stored one for the headers named by <code>Vary</code>.
+	 */
+	boolean matchesVary(HttpRequest request) {
+		for (Map.Entry<String, String> entry : varyValues.entrySet()) {
+			if (!entry.getValue().equals(requestValues(request, entry.getKey()))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	boolean hasValidator() {
+		return headers.containsHeader(HttpHeaders.ETAG) || headers.containsHeader(HttpHeaders.LAST_MODIFIED);
+	}
+
+	String getETag() {
+		Header etag = headers.getFirstHeader(HttpHeaders.ETAG);
+		return etag != null ? etag.getValue() : null;
+	}
+
+	/**
+	 * Make the request conditional on the validators of this entry.
+	 */
+	void addConditions(HttpRequest request) {
+		Header etag = headers.getFirstHeader(HttpHeaders.ETAG);
+		if (etag != null) {
+			request.setHeader(HttpHeaders.IF_NONE_MATCH, etag.getValue());
+		}
+		Header lastModified = headers.getFirstHeader(HttpHeaders.LAST_MODIFIED);
+		if (lastModified != null) {
+			request.setHeader(HttpHeaders.IF_MODIFIED_SINCE, lastModified.getValue());
+		}
+	}
+
+	/**
+	 * Evaluate the client's own conditions against this entry (RFC 7232 section 6).
+	 *
+	 * @return Whether the client already has this response.
+	 */
+	boolean isNotModified(HttpRequest request) {
+		Header[] ifNoneMatch = request.getHeaders(HttpHeaders.IF_NONE_MATCH);
+		if (ifNoneMatch.length > 0) {
+			String etag = getETag();
+			for (Header header : ifNoneMatch) {
+				for (String tag : header.getValue().split(",")) {
+					tag = tag.trim();
+					if (tag.equals("*") || (etag != null && weakTag(tag).equals(weakTag(etag)))) {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+		Header ifModifiedSince = request.getFirstHeader(HttpHeaders.IF_MODIFIED_SINCE);
+		if (ifModifiedSince != null) {
+			Date since = DateUtils.parseDate(ifModifiedSince.getValue());
+			Date lastModified = getDateHeader(HttpHeaders.LAST_MODIFIED);
+			return since != null && lastModified != null && !lastModified.after(since);
+		}
+		return false;
+	}
+
+	private static String weakTag(String tag) {
+		return tag.startsWith("W/") ? tag.substring(2) : tag;
+	}
+
+	/**
+	 * Freshen this entry with a <code>304 Not Modified</code> response (RFC 7234 section 4.3.4).
+	 *
+	 * @return The new entry.
+	 */
+	CacheEntry update(HttpResponse notModified, long requestTime, long responseTime) {
+		HeaderGroup merged = new HeaderGroup();
+		for (Header header : headers.getAllHeaders()) {
+			if (!notModified.containsHeader(header.getName())) {
+				merged.addHeader(header);
+			}
+		}
+		for (Header header : notModified.getAllHeaders()) {
+			merged.addHeader(header);
+		}
+		return new CacheEntry(statusLine, merged.getAllHeaders(), body, file, contentLength, responseTime,
+				initialAge(notModified, requestTime, responseTime), varyValues);
+	}
+
+	/**
+	 * @param now The current time.
+	 * @return The response to serve from this entry.
+	 * @throws IOException when the body file cannot be opened.
+	 */
+	HttpResponse toResponse(long now) throws IOException {
+		BasicHttpResponse response = new BasicHttpResponse(statusLine);
+		response.setHeaders(headers.getAllHeaders());
+		response.addHeader(HttpHeaders.AGE, String.valueOf(TimeUnit.MILLISECONDS.toSeconds(currentAge(now))));
+		if (statusLine.getStatusCode() != HttpStatus.SC_NO_CONTENT) {
+			response.addHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(contentLength));
+
+			// Opened right away, so that the file cannot be deleted in between
+			response.setEntity(file != null ? new MappedFileEntity(FileChannel.open(file), contentLength)
+					: new ByteArrayEntity(body));
+		}
+		return response;
+	}
+
+	/**
+	 * @param now The current time.
+	 * @return The <code>304 Not Modified</code> response to a client already having this entry.
+	 */
+	HttpResponse toNotModifiedResponse(long now) {
+		BasicHttpResponse response = new BasicHttpResponse(
+				new BasicStatusLine(statusLine.getProtocolVersion(), HttpStatus.SC_NOT_MODIFIED, "Not Modified"));
+		for (Header header : headers.getAllHeaders()) {
+			if (NOT_MODIFIED_HEADERS.contains(header.getName().toLowerCase(Locale.ROOT))) {
+				response.addHeader(header);
+			}
+		}
+		response.addHeader(HttpHeaders.AGE, String.valueOf(TimeUnit.MILLISECONDS.toSeconds(currentAge(now))));
+		return response;
+	}
+
+	long getContentLength() {
+		return contentLength;
+	}
+
+	/**
+	 * @return Whether the body is on disk.
+	 */
+	boolean isOnDisk() {
+		return file != null;
+	}
+
+	Path getFile() {
+		return file;
+	}
+
+	StatusLine getStatusLine() {
+		return statusLine;
+	}
+
+	Header[] getHeaders() {
+		return headers.getAllHeaders();
+	}
+
+	long getResponseTime() {
+		return responseTime;
+	}
+
+	long getInitialAge() {
+		return initialAge;
+	}
+
+	Map<String, String> getVaryValues() {
+		return varyValues;
+	}
+
+	/**
+	 * @return The approximate memory held by this entry.
+	 */
+	long weight() {
+		long weight = (body != null ? body.length : 0) + 256;
+		for (Header header : headers.getAllHeaders()) {
+			weight += header.getName().length() + header.getValue().length() + 32;
+		}
+		return weight;
+	}
+
+	@Override
+	public String toString() {
+		return statusLine + " (" + contentLength + (file != null ? " bytes on disk)" : " bytes)");
+	}
+
+}
@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * Contributors:
+ *     Eugen Covaci - initial design and implementation
+ *******************************************************************************/
+
+package org.kpax.bpf.cache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.kpax.bpf.util.LocalIOUtils;
+
+/**
+ * The cache's part in a request: either the response is served from the cache,
+ * or the request is forwarded and its response given to {@link #complete(HttpResponse)}.
+ * It is closed once the response is written.
+ *
+ * @author Eugen Covaci
+ * @see HttpCache#exchange(URI, HttpRequest)
+ */
+public class CacheExchange implements Closeable {
+
+	final HttpCache cache;
+
+	final URI uri;
+
+	final String key;
+
+	final HttpRequest request;
+
+	final long requestTime;
+
+	/**
+	 * The stored response for this request, if any, not fresh enough.
+	 */
+	final CacheEntry stale;
+
+	/**
+	 * Whether the request has been made conditional on the validators of {@link #stale}.
+	 */
+	final boolean revalidating;
+
+	private final HttpResponse cachedResponse;
+
+	/**
+	 * The identical requests in flight this one leads or follows, if any.
+	 */
+	final RequestCollapser.Flight flight;
+
+	CacheExchange(HttpCache cache, URI uri, String key, HttpRequest request, long requestTime, CacheEntry stale,
+			boolean revalidating, HttpResponse cachedResponse, RequestCollapser.Flight flight) {
+		this.cache = cache;
+		this.uri = uri;
+		this.key = key;
+		this.request = request;
+		this.requestTime = requestTime;
+		this.stale = stale;
+		this.revalidating = revalidating;
+		this.cachedResponse = cachedResponse;
+		this.flight = flight;
+	}
+
+	/**
+	 * @return The response to serve without forwarding the request, <code>null</code> if none.
+	 */
+	public HttpResponse getCachedResponse() {
+		return cachedResponse;
+	}
+
+	/**
+	 * Store, refresh or invalidate the cached response with the remote response.
+	 *
+	 * @param response The remote response.
+	 * @return The response to write back: the same one, possibly with its body
+	 * copied into the cache while written, or the cached one when it has been revalidated.
+	 * @throws IOException when the body of the revalidated response cannot be read.
+	 */
+	public HttpResponse complete(HttpResponse response) throws IOException {
+		return cache != null ? cache.complete(this, response) : response;
+	}
+
+	/**
+	 * Release the cached file or the shared response, if any.
+	 */
+	@Override
+	public void close() {
+		if (cachedResponse != null && cachedResponse.getEntity() instanceof MappedFileEntity) {
+			// Not written if the client has gone
+			LocalIOUtils.close((MappedFileEntity) cachedResponse.getEntity());
+		}
+		if (flight != null) {
+			flight.land();
+		}
+	}
+
+}
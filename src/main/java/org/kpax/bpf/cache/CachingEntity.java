@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * Contributors:
+ *     Eugen Covaci - initial design and implementation
+ *******************************************************************************/
+
+package org.kpax.bpf.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.function.Consumer;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.kpax.bpf.util.LocalIOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a copy of the body while it is written to the client,
+ * handed over once the whole body is written, unless it is too big.
+ *
+ * @author Eugen Covaci
+ */
+class CachingEntity extends HttpEntityWrapper {
+
+	private static final Logger logger = LoggerFactory.getLogger(CachingEntity.class);
+
+	private final Sink sink;
+
+	/**
+	 * @param entity The response entity.
+	 * @param sink   Receives the copy.
+	 */
+	CachingEntity(HttpEntity entity, Sink sink) {
+		super(entity);
+		this.sink = sink;
+	}
+
+	/**
+	 * @param entity     The response entity.
+	 * @param maxSize    The maximum size of the copy.
+	 * @param completion Receives the copy of the complete body.
+	 */
+	CachingEntity(HttpEntity entity, int maxSize, Consumer<byte[]> completion) {
+		this(entity, new MemorySink(entity.getContentLength(), maxSize, completion));
+	}
+
+	@Override
+	public void writeTo(OutputStream outStream) throws IOException {
+		// Through the wrapped entity's own writeTo, which may not read its content as a single stream
+		CopyingOutputStream copyingStream = new CopyingOutputStream(outStream);
+		boolean copying;
+		try {
+			wrappedEntity.writeTo(copyingStream);
+			copying = copyingStream.copying;
+		} catch (IOException | RuntimeException e) {
+			if (copyingStream.copying) {
+				sink.abort();
+			}
+			throw e;
+		}
+		if (copying) {
+			try {
+				sink.complete();
+			} catch (Exception e) {
+				// The client has the whole body anyway
+				logger.warn("Cannot cache the response", e);
+			}
+		}
+	}
+
+	/**
+	 * Writes to the client and to the sink, until the sink gives up.
+	 */
+	private class CopyingOutputStream extends FilterOutputStream {
+
+		private boolean copying = true;
+
+		CopyingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			if (copying) {
+				copying = sink.write(b, off, len);
+			}
+		}
+
+	}
+
+	/**
+	 * Where the copy goes.
+	 */
+	interface Sink {
+
+		/**
+		 * @return <code>false</code> to stop copying, the sink having given up.
+		 * @throws IOException
+		 */
+		boolean write(byte[] b, int off, int len) throws IOException;
+
+		/**
+		 * The whole body has been copied.
+		 *
+		 * @throws IOException
+		 */
+		void complete() throws IOException;
+
+		/**
+		 * The body could not be read nor written.
+		 */
+		void abort();
+
+	}
+
+	private static class MemorySink implements Sink {
+
+		private final int maxSize;
+
+		private final Consumer<byte[]> completion;
+
+		private ByteArrayOutputStream copy;
+
+		MemorySink(long contentLength, int maxSize, Consumer<byte[]> completion) {
+			this.maxSize = maxSize;
+			this.completion = completion;
+			this.copy = new ByteArrayOutputStream(contentLength >= 0 && contentLength <= maxSize ? (int) contentLength
+					: LocalIOUtils.DEFAULT_BUFFER_SIZE);
+		}
+
+		@Override
+		public boolean write(byte[] b, int off, int len) {
+			if (copy.size() + len > maxSize) {
+				copy = null;
+				return false;
+			}
+			copy.write(b, off, len);
+			return true;
+		}
+
+		@Override
+		public void complete() {
+			completion.accept(copy.toByteArray());
+		}
+
+		@Override
+		public void abort() {
+			copy = null;
+		}
+
+	}
+
+}
@@ -0,0 +1,825 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * Contributors:
+ *     Eugen Covaci - initial design and implementation
+ *******************************************************************************/
+
+package org.kpax.bpf.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.StatusLine;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+import org.kpax.bpf.util.LocalIOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A disk tier for the responses that never change once published, like the build artifacts:
+ * it survives the restarts and serves the bodies from memory-mapped files.
+ * <p>
+ * The layout of the directory:
+ * <ul>
+ * <li><code>objects/</code> - the bodies, named by the SHA-256 of their content,
+ * so that the same artifact published under several URIs is stored once</li>
+ * <li><code>meta/</code> - the status line and the headers of the responses, named by the SHA-256 of their key</li>
+ * <li><code>index</code> - an open addressing hash table of fixed size slots, memory-mapped,
+ * that keeps the entries off the heap: the key hash, the content hash, the size and the last access time</li>
+ * <li><code>tmp/</code> - the bodies being received</li>
+ * </ul>
+ * The size of the bodies is bounded, the least recently used entries being evicted.
+ * The integrity of a body is checked on each read by its size and, the first time it is read
+ * since the start, by its SHA-256, the corrupted ones being dropped.
+ * <p>
+ * The index is rebuilt from the <code>meta/</code> files when it cannot be used,
+ * like after changing the maximum number of entries.
+ *
+ * @author Eugen Covaci
+ */
+public class DiskStore implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(DiskStore.class);
+
+	private static final long INDEX_MAGIC = 0x425046494458_0001L;
+
+	private static final int META_MAGIC = 0x4250464d;
+
+	private static final int HEADER_SIZE = 64;
+
+	private static final int SLOT_SIZE = 96;
+
+	// The slot layout
+	private static final int STATE = 0;
+	private static final int LAST_ACCESS = 8;
+	private static final int CONTENT_LENGTH = 16;
+	private static final int KEY_HASH = 24;
+	private static final int CONTENT_HASH = 56;
+	private static final int STORED = 88;
+
+	private static final int HASH_SIZE = 32;
+
+	private static final byte USED = 1;
+
+	/**
+	 * Evict down to this part of the bounds, so that the eviction does not run on each store.
+	 */
+	private static final double EVICTION_TARGET = 0.9;
+
+	private final Path dir;
+
+	private final Path objectsDir;
+
+	private final Path metaDir;
+
+	private final Path tmpDir;
+
+	private final long maxSize;
+
+	private final int maxEntries;
+
+	private final List<Pattern> patterns;
+
+	private final int slotCount;
+
+	private FileChannel indexChannel;
+
+	private MappedByteBuffer index;
+
+	private long size;
+
+	private int entries;
+
+	/**
+	 * The content hashes checked since the start.
+	 */
+	private final Set<String> verified = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * The bodies that could not be deleted, like the ones being read on Windows.
+	 */
+	private final Set<Path> pendingDeletes = new HashSet<>();
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder stores = new LongAdder();
+
+	private final LongAdder evictions = new LongAdder();
+
+	private final LongAdder corruptions = new LongAdder();
+
+	/**
+	 * @param dir        The directory, created if missing.
+	 * @param maxSize    The maximum size of the bodies, in bytes.
+	 * @param maxEntries The maximum number of entries.
+	 * @param patterns   The path patterns of the immutable URIs, with <code>*</code> and <code>?</code> wildcards.
+	 * @throws IOException
+	 */
+	public DiskStore(Path dir, long maxSize, int maxEntries, List<String> patterns) throws IOException {
+		this.dir = dir;
+		this.objectsDir = dir.resolve("objects");
+		this.metaDir = dir.resolve("meta");
+		this.tmpDir = dir.resolve("tmp");
+		this.maxSize = maxSize;
+		this.maxEntries = maxEntries;
+		this.patterns = patterns.stream().map(String::trim).filter(pattern -> !pattern.isEmpty())
+				.map(DiskStore::toRegex).collect(Collectors.toList());
+		this.slotCount = maxEntries * 4 / 3 + 1;
+		Files.createDirectories(objectsDir);
+		Files.createDirectories(metaDir);
+		Files.createDirectories(tmpDir);
+		try (Stream<Path> files = Files.list(tmpDir)) {
+			files.forEach(DiskStore::deleteQuietly);
+		}
+		openIndex();
+	}
+
+	private static Pattern toRegex(String pattern) {
+		StringBuilder regex = new StringBuilder();
+		StringBuilder literal = new StringBuilder();
+		for (char c : pattern.toCharArray()) {
+			if (c == '*' || c == '?') {
+				if (literal.length() > 0) {
+					regex.append(Pattern.quote(literal.toString()));
+					literal.setLength(0);
+				}
+				regex.append(c == '*' ? ".*" : ".");
+			} else {
+				literal.append(c);
+			}
+		}
+		if (literal.length() > 0) {
+			regex.append(Pattern.quote(literal.toString()));
+		}
+		return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE);
+	}
+
+	private void openIndex() throws IOException {
+		Path indexFile = dir.resolve("index");
+		long indexSize = HEADER_SIZE + (long) slotCount * SLOT_SIZE;
+		boolean usable = Files.exists(indexFile) && Files.size(indexFile) == indexSize;
+		indexChannel = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		if (!usable) {
+			indexChannel.truncate(0);
+		}
+		index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, indexSize);
+		if (usable && index.getLong(0) == INDEX_MAGIC && index.getInt(8) == slotCount) {
+			for (int slot = 0; slot < slotCount; slot++) {
+				if (isUsed(slot)) {
+					entries++;
+					size += index.getLong(offset(slot) + CONTENT_LENGTH);
+				}
+			}
+			logger.info("Disk cache opened: {} entries, {} bytes", entries, size);
+		} else {
+			rebuildIndex();
+		}
+	}
+
+	/**
+	 * Fill a new index from the <code>meta/</code> files, dropping the bodies no longer referenced.
+	 */
+	private void rebuildIndex() throws IOException {
+		logger.info("Rebuild the disk cache index");
+		for (int i = 0; i < HEADER_SIZE + slotCount * SLOT_SIZE; i += 8) {
+			index.putLong(i, 0);
+		}
+		index.putLong(0, INDEX_MAGIC);
+		index.putInt(8, slotCount);
+		List<Path> metaFiles;
+		try (Stream<Path> files = Files.walk(metaDir)) {
+			metaFiles = files.filter(Files::isRegularFile).collect(Collectors.toList());
+		}
+		Set<String> referenced = new HashSet<>();
+		for (Path metaFile : metaFiles) {
+			try {
+				Meta meta = readMeta(metaFile);
+				Path object = objectPath(meta.contentHash);
+				if (entries < maxEntries && Files.size(object) == meta.contentLength) {
+					insert(sha256(meta.key), fromHex(meta.contentHash), meta.contentLength,
+							Files.getLastModifiedTime(metaFile).toMillis());
+					referenced.add(meta.contentHash);
+					continue;
+				}
+			} catch (IOException e) {
+				logger.debug("Invalid cache entry " + metaFile, e);
+			}
+			deleteQuietly(metaFile);
+		}
+		try (Stream<Path> files = Files.walk(objectsDir)) {
+			files.filter(Files::isRegularFile).filter(file -> !referenced.contains(file.getFileName().toString()))
+					.forEach(DiskStore::deleteQuietly);
+		}
+		logger.info("Disk cache index rebuilt: {} entries, {} bytes", entries, size);
+	}
+
+	/**
+	 * @param uri      The URI of the request.
+	 * @param response The response.
+	 * @return Whether the response is immutable, hence goes to this store.
+	 */
+	public boolean accepts(URI uri, HttpResponse response) {
+		if (CacheControl.of(response).has("immutable")) {
+			return true;
+		}
+		String path = uri.getPath();
+		if (path != null) {
+			for (Pattern pattern : patterns) {
+				if (pattern.matcher(path).matches()) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param key The cache key.
+	 * @return The entry, or <code>null</code> when missing or corrupted.
+	 */
+	public CacheEntry get(String key) {
+		byte[] keyHash = sha256(key);
+		String contentHash;
+		long contentLength;
+		synchronized (this) {
+			int slot = find(keyHash);
+			if (slot < 0) {
+				return null;
+			}
+			int offset = offset(slot);
+			index.putLong(offset + LAST_ACCESS, System.currentTimeMillis());
+			contentHash = toHex(getHash(offset + CONTENT_HASH));
+			contentLength = index.getLong(offset + CONTENT_LENGTH);
+		}
+		boolean badContent = false;
+		try {
+			Meta meta = readMeta(metaPath(keyHash));
+			if (!meta.key.equals(key)) {
+				// Another key with the same hash, nothing to worry about
+				return null;
+			}
+			Path object = objectPath(contentHash);
+			if (Files.size(object) != contentLength) {
+				badContent = true;
+				throw new IOException("Size mismatch");
+			}
+			if (!verified.contains(contentHash)) {
+				if (!contentHash.equals(toHex(digest(object, contentLength)))) {
+					badContent = true;
+					throw new IOException("Content hash mismatch");
+				}
+				verified.add(contentHash);
+			}
+			hits.increment();
+			return CacheEntry.restore(meta.statusLine, meta.headers, object, contentLength, meta.responseTime,
+					meta.initialAge, meta.varyValues);
+		} catch (IOException e) {
+			logger.warn("Drop the corrupted cache entry {}: {}", key, e.getMessage());
+			corruptions.increment();
+			remove(key);
+			if (badContent) {
+				// Bad for all the entries referencing it
+				deleteQuietly(objectPath(contentHash));
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * @return A writer of a body to store.
+	 * @throws IOException
+	 */
+	public Writer newWriter() throws IOException {
+		return new Writer(Files.createTempFile(tmpDir, "body", ".tmp"), maxSize / 4);
+	}
+
+	/**
+	 * Store the entry, its body being already in this store.
+	 *
+	 * @param key   The cache key.
+	 * @param entry An entry on disk, like the one of a {@link Writer}.
+	 * @return Whether it is stored.
+	 */
+	public boolean put(String key, CacheEntry entry) {
+		byte[] keyHash = sha256(key);
+		String contentHash = entry.getFile().getFileName().toString();
+		try {
+			writeMeta(metaPath(keyHash), key, entry, contentHash);
+		} catch (IOException e) {
+			logger.warn("Cannot store the cache entry " + key, e);
+			return false;
+		}
+		synchronized (this) {
+			if (!Files.exists(entry.getFile())) {
+				// Evicted meanwhile with another entry of the same content
+				return false;
+			}
+			index(keyHash, contentHash, entry.getContentLength());
+		}
+		stores.increment();
+		return true;
+	}
+
+	/**
+	 * Index an entry whose body is in the store, evicting the least recently used ones beyond the bounds.
+	 */
+	private void index(byte[] keyHash, String contentHash, long contentLength) {
+		int slot = find(keyHash);
+		if (slot >= 0) {
+			size -= index.getLong(offset(slot) + CONTENT_LENGTH);
+			entries--;
+			String previous = toHex(getHash(offset(slot) + CONTENT_HASH));
+			delete(slot);
+			if (!previous.equals(contentHash)) {
+				deleteUnreferenced(Collections.singleton(previous));
+			}
+		}
+		if (size + contentLength > maxSize || entries + 1 > maxEntries) {
+			evict((long) (maxSize * EVICTION_TARGET) - contentLength, (int) (maxEntries * EVICTION_TARGET),
+					contentHash);
+		}
+		insert(keyHash, fromHex(contentHash), contentLength, System.currentTimeMillis());
+	}
+
+	/**
+	 * @param key The cache key.
+	 * @return Whether there was such an entry.
+	 */
+	public boolean remove(String key) {
+		byte[] keyHash = sha256(key);
+		synchronized (this) {
+			int slot = find(keyHash);
+			if (slot < 0) {
+				return false;
+			}
+			String contentHash = toHex(getHash(offset(slot) + CONTENT_HASH));
+			size -= index.getLong(offset(slot) + CONTENT_LENGTH);
+			entries--;
+			delete(slot);
+			deleteUnreferenced(Collections.singleton(contentHash));
+		}
+		deleteQuietly(metaPath(keyHash));
+		return true;
+	}
+
+	/**
+	 * Drop all the entries.
+	 */
+	public synchronized void clear() {
+		for (int slot = 0; slot < slotCount; slot++) {
+			if (isUsed(slot)) {
+				deleteQuietly(metaPath(getHash(offset(slot) + KEY_HASH)));
+				deleteQuietly(objectPath(toHex(getHash(offset(slot) + CONTENT_HASH))));
+				index.put(offset(slot) + STATE, (byte) 0);
+			}
+		}
+		size = 0;
+		entries = 0;
+		verified.clear();
+		pendingDeletes.clear();
+	}
+
+	/**
+	 * Evict the least recently used entries down to the given bounds.
+	 *
+	 * @param keptContent The hash of a body to keep, even if no entry references it yet.
+	 */
+	private void evict(long targetSize, int targetEntries, String keptContent) {
+		List<Integer> slots = new ArrayList<>();
+		for (int slot = 0; slot < slotCount; slot++) {
+			if (isUsed(slot)) {
+				slots.add(slot);
+			}
+		}
+		slots.sort(Comparator.comparingLong(slot -> index.getLong(offset(slot) + LAST_ACCESS)));
+		List<byte[]> evicted = new ArrayList<>();
+		long evictedSize = 0;
+		for (int slot : slots) {
+			if (size - evictedSize <= Math.max(0, targetSize) && entries - evicted.size() <= targetEntries) {
+				break;
+			}
+			evicted.add(getHash(offset(slot) + KEY_HASH));
+			evictedSize += index.getLong(offset(slot) + CONTENT_LENGTH);
+		}
+
+		// Deleting moves the slots around, so find them again
+		Set<String> contentHashes = new HashSet<>();
+		for (byte[] keyHash : evicted) {
+			int slot = find(keyHash);
+			contentHashes.add(toHex(getHash(offset(slot) + CONTENT_HASH)));
+			size -= index.getLong(offset(slot) + CONTENT_LENGTH);
+			entries--;
+			delete(slot);
+			deleteQuietly(metaPath(keyHash));
+		}
+		contentHashes.remove(keptContent);
+		deleteUnreferenced(contentHashes);
+		evictions.add(evicted.size());
+		logger.debug("Evicted {} entries from the disk cache", evicted.size());
+	}
+
+	/**
+	 * Delete the bodies no entry references anymore.
+	 */
+	private void deleteUnreferenced(Set<String> contentHashes) {
+		Set<String> candidates = new HashSet<>(contentHashes);
+		for (int slot = 0; slot < slotCount && !candidates.isEmpty(); slot++) {
+			if (isUsed(slot)) {
+				candidates.remove(toHex(getHash(offset(slot) + CONTENT_HASH)));
+			}
+		}
+		for (String contentHash : candidates) {
+			pendingDeletes.add(objectPath(contentHash));
+			verified.remove(contentHash);
+		}
+		pendingDeletes.removeIf(file -> {
+			try {
+				Files.deleteIfExists(file);
+				return true;
+			} catch (IOException e) {
+				logger.debug("Cannot delete {} yet: {}", file, e.getMessage());
+				return false;
+			}
+		});
+	}
+
+	// The index
+
+	private static int offset(int slot) {
+		return HEADER_SIZE + slot * SLOT_SIZE;
+	}
+
+	private boolean isUsed(int slot) {
+		return index.get(offset(slot) + STATE) == USED;
+	}
+
+	private int home(byte[] keyHash) {
+		return (int) ((ByteBuffer.wrap(keyHash).getInt() & 0xffffffffL) % slotCount);
+	}
+
+	private byte[] getHash(int offset) {
+		byte[] hash = new byte[HASH_SIZE];
+		for (int i = 0; i < HASH_SIZE; i++) {
+			hash[i] = index.get(offset + i);
+		}
+		return hash;
+	}
+
+	private void putHash(int offset, byte[] hash) {
+		for (int i = 0; i < HASH_SIZE; i++) {
+			index.put(offset + i, hash[i]);
+		}
+	}
+
+	/**
+	 * @return The slot of the key, or <code>-1</code>.
+	 */
+	private int find(byte[] keyHash) {
+		for (int slot = home(keyHash); isUsed(slot); slot = (slot + 1) % slotCount) {
+			if (Arrays.equals(keyHash, getHash(offset(slot) + KEY_HASH))) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Insert a missing key, there being always a free slot since the table is bigger than the maximum entries.
+	 */
+	private void insert(byte[] keyHash, byte[] contentHash, long contentLength, long stored) {
+		int slot = home(keyHash);
+		while (isUsed(slot)) {
+			slot = (slot + 1) % slotCount;
+		}
+		int offset = offset(slot);
+		index.putLong(offset + LAST_ACCESS, stored);
+		index.putLong(offset + CONTENT_LENGTH, contentLength);
+		putHash(offset + KEY_HASH, keyHash);
+		putHash(offset + CONTENT_HASH, contentHash);
+		index.putLong(offset + STORED, stored);
+		index.put(offset + STATE, USED);
+		size += contentLength;
+		entries++;
+	}
+
+	/**
+	 * Free the slot, shifting back the following ones of the cluster so that no lookup stops too early.
+	 */
+	private void delete(int slot) {
+		int free = slot;
+		for (int next = (free + 1) % slotCount; isUsed(next); next = (next + 1) % slotCount) {
+			int home = home(getHash(offset(next) + KEY_HASH));
+			// Shift back unless the home lies cyclically in (free, next]
+			boolean stays = free <= next ? (free < home && home <= next) : (free < home || home <= next);
+			if (!stays) {
+				for (int i = 0; i < SLOT_SIZE; i++) {
+					index.put(offset(free) + i, index.get(offset(next) + i));
+				}
+				free = next;
+			}
+		}
+		index.put(offset(free) + STATE, (byte) 0);
+	}
+
+	// The files
+
+	private Path objectPath(String contentHash) {
+		return objectsDir.resolve(contentHash.substring(0, 2)).resolve(contentHash);
+	}
+
+	private Path metaPath(byte[] keyHash) {
+		String hex = toHex(keyHash);
+		return metaDir.resolve(hex.substring(0, 2)).resolve(hex);
+	}
+
+	private void writeMeta(Path metaFile, String key, CacheEntry entry, String contentHash) throws IOException {
+		Files.createDirectories(metaFile.getParent());
+		Path tmpFile = Files.createTempFile(tmpDir, "meta", ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile)))) {
+			out.writeInt(META_MAGIC);
+			out.writeUTF(key);
+			StatusLine statusLine = entry.getStatusLine();
+			ProtocolVersion version = statusLine.getProtocolVersion();
+			out.writeUTF(version.getProtocol());
+			out.writeInt(version.getMajor());
+			out.writeInt(version.getMinor());
+			out.writeInt(statusLine.getStatusCode());
+			out.writeUTF(statusLine.getReasonPhrase() != null ? statusLine.getReasonPhrase() : "");
+			Header[] headers = entry.getHeaders();
+			out.writeInt(headers.length);
+			for (Header header : headers) {
+				out.writeUTF(header.getName());
+				out.writeUTF(header.getValue());
+			}
+			out.writeInt(entry.getVaryValues().size());
+			for (Map.Entry<String, String> vary : entry.getVaryValues().entrySet()) {
+				out.writeUTF(vary.getKey());
+				out.writeUTF(vary.getValue());
+			}
+			out.writeLong(entry.getResponseTime());
+			out.writeLong(entry.getInitialAge());
+			out.writeUTF(contentHash);
+			out.writeLong(entry.getContentLength());
+		} catch (IOException e) {
+			deleteQuietly(tmpFile);
+			throw e;
+		}
+		Files.move(tmpFile, metaFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static Meta readMeta(Path metaFile) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(metaFile)))) {
+			if (in.readInt() != META_MAGIC) {
+				throw new IOException("Not a cache entry");
+			}
+			Meta meta = new Meta();
+			meta.key = in.readUTF();
+			ProtocolVersion version = new ProtocolVersion(in.readUTF(), in.readInt(), in.readInt());
+			meta.statusLine = new BasicStatusLine(version, in.readInt(), in.readUTF());
+			meta.headers = new Header[in.readInt()];
+			for (int i = 0; i < meta.headers.length; i++) {
+				meta.headers[i] = new BasicHeader(in.readUTF(), in.readUTF());
+			}
+			int varyCount = in.readInt();
+			meta.varyValues = varyCount > 0 ? new HashMap<>() : Collections.emptyMap();
+			for (int i = 0; i < varyCount; i++) {
+				meta.varyValues.put(in.readUTF(), in.readUTF());
+			}
+			meta.responseTime = in.readLong();
+			meta.initialAge = in.readLong();
+			meta.contentHash = in.readUTF();
+			meta.contentLength = in.readLong();
+			return meta;
+		}
+	}
+
+	private static byte[] digest(Path file, long contentLength) throws IOException {
+		MessageDigest digest = newDigest();
+		try (FileChannel channel = FileChannel.open(file)) {
+			for (long position = 0; position < contentLength; position += Integer.MAX_VALUE) {
+				digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position,
+						Math.min(Integer.MAX_VALUE, contentLength - position)));
+			}
+		}
+		return digest.digest();
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static byte[] sha256(String key) {
+		return newDigest().digest(key.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+	private static byte[] fromHex(String hex) {
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		}
+		return bytes;
+	}
+
+	private static void deleteQuietly(Path file) {
+		try {
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			logger.debug("Cannot delete {}: {}", file, e.getMessage());
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		if (index != null) {
+			index.force();
+		}
+		LocalIOUtils.close(indexChannel);
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public synchronized int getEntries() {
+		return entries;
+	}
+
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getStores() {
+		return stores.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	public long getCorruptions() {
+		return corruptions.sum();
+	}
+
+	private static class Meta {
+		private String key;
+		private StatusLine statusLine;
+		private Header[] headers;
+		private Map<String, String> varyValues;
+		private long responseTime;
+		private long initialAge;
+		private String contentHash;
+		private long contentLength;
+	}
+
+	/**
+	 * Receives a body to store, its SHA-256 computed on the way.
+	 */
+	public class Writer {
+
+		private final Path tmpFile;
+
+		private final long maxLength;
+
+		private final MessageDigest digest = newDigest();
+
+		private final OutputStream out;
+
+		private long length;
+
+		private Writer(Path tmpFile, long maxLength) throws IOException {
+			this.tmpFile = tmpFile;
+			this.maxLength = maxLength;
+			this.out = new DigestOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile)), digest);
+		}
+
+		/**
+		 * @return <code>false</code> when the body is too big, the writer being aborted.
+		 * @throws IOException
+		 */
+		public boolean write(byte[] b, int off, int len) throws IOException {
+			if (length + len > maxLength) {
+				abort();
+				return false;
+			}
+			out.write(b, off, len);
+			length += len;
+			return true;
+		}
+
+		/**
+		 * Move the body to its place in the store and index its entry at once,
+		 * so that no eviction nor failure leaves the body without an entry or the entry without its body.
+		 *
+		 * @param key     The cache key.
+		 * @param toEntry Makes the entry from the body file.
+		 * @return The stored entry, <code>null</code> when it cannot be stored, the body being dropped.
+		 * @throws IOException
+		 */
+		public CacheEntry commit(String key, Function<Path, CacheEntry> toEntry) throws IOException {
+			out.close();
+			String contentHash = toHex(digest.digest());
+			Path object = objectPath(contentHash);
+			CacheEntry entry = toEntry.apply(object);
+			byte[] keyHash = sha256(key);
+			try {
+				writeMeta(metaPath(keyHash), key, entry, contentHash);
+			} catch (IOException e) {
+				logger.warn("Cannot store the cache entry " + key, e);
+				deleteQuietly(tmpFile);
+				return null;
+			}
+			synchronized (DiskStore.this) {
+				pendingDeletes.remove(object);
+				try {
+					if (Files.exists(object) && Files.size(object) == length) {
+						// The same content under another URI
+						deleteQuietly(tmpFile);
+					} else {
+						Files.createDirectories(object.getParent());
+						Files.move(tmpFile, object, StandardCopyOption.REPLACE_EXISTING,
+								StandardCopyOption.ATOMIC_MOVE);
+					}
+				} catch (IOException e) {
+					deleteQuietly(tmpFile);
+					throw e;
+				}
+				index(keyHash, contentHash, length);
+			}
+			stores.increment();
+			return entry;
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		public void abort() {
+			LocalIOUtils.close(out);
+			deleteQuietly(tmpFile);
+		}
+
+	}
+
+}
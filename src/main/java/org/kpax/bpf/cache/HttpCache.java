@@ -0,0 +1,676 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * Contributors:
+ *     Eugen Covaci - initial design and implementation
+ *******************************************************************************/
+
+package org.kpax.bpf.cache;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.kpax.bpf.SystemConfig;
+import org.kpax.bpf.util.LocalIOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * A shared in-memory cache of the responses to the plain HTTP <code>GET</code> requests, as of RFC 7234:
+ * the fresh responses are served from memory, the stale ones are revalidated with conditional requests
+ * and the unsafe requests invalidate them. The memory is bounded, the least valuable responses
+ * being evicted by a {@link SegmentedLru}.
+ * <p>
+ * Being shared, it does not store the <code>private</code> responses, the responses to authorized
+ * requests unless explicitly allowed, nor the responses setting cookies.
+ * The partial responses are not stored either.
+ * <p>
+ * With a {@link DiskStore}, the immutable responses go to disk instead of memory,
+ * so that the build artifacts outlive the restarts.
+ * <p>
+ * The concurrent requests missing the same response are collapsed into one (see {@link RequestCollapser}).
+ *
+ * @author Eugen Covaci
+ */
+@Component
+@ManagedResource(objectName = "org.kpax.bpf:type=HttpCache", description = "HTTP response cache")
+public class HttpCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(HttpCache.class);
+
+	/**
+	 * The status codes cacheable without explicit freshness (RFC 7231 section 6.1).
+	 */
+	private static final Set<Integer> CACHEABLE_BY_DEFAULT = new HashSet<>(
+			Arrays.asList(200, 203, 204, 300, 301, 404, 405, 410, 414, 501));
+
+	/**
+	 * The methods that do not invalidate the cached responses (RFC 7231 section 4.2.1).
+	 */
+	private static final Set<String> SAFE_METHODS = new HashSet<>(Arrays.asList("GET", "HEAD", "OPTIONS", "TRACE"));
+
+	private static final Set<String> CONDITIONAL_HEADERS = new HashSet<>(
+			Arrays.asList("if-none-match", "if-modified-since", "if-match", "if-unmodified-since", "if-range"));
+
+	/**
+	 * The exchange of the requests the cache has nothing to do with.
+	 */
+	private static final CacheExchange NO_EXCHANGE = new CacheExchange(null, null, null, null, 0, null, false, null,
+			null);
+
+	@Autowired
+	private SystemConfig systemConfig;
+
+	private boolean enabled;
+
+	private long maxMemory;
+
+	private int maxEntrySize;
+
+	private SegmentedLru<String, CacheEntry> entries;
+
+	/**
+	 * The disk tier, <code>null</code> if none.
+	 */
+	private DiskStore diskStore;
+
+	/**
+	 * <code>null</code> when the identical requests are not collapsed.
+	 */
+	private RequestCollapser collapser;
+
+	private final LongAdder requests = new LongAdder();
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder validatedHits = new LongAdder();
+
+	private final LongAdder revalidations = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	private final LongAdder stores = new LongAdder();
+
+	private final LongAdder invalidations = new LongAdder();
+
+	private final LongAdder bytesSaved = new LongAdder();
+
+	private final LongAdder collapsed = new LongAdder();
+
+	private final LongAdder collapseFallbacks = new LongAdder();
+
+	public HttpCache() {
+	}
+
+	/**
+	 * @param maxMemory    The memory held by the cached responses, in bytes.
+	 * @param maxEntrySize The biggest response body cached, in bytes.
+	 */
+	public HttpCache(long maxMemory, int maxEntrySize) {
+		this.enabled = true;
+		this.maxMemory = maxMemory;
+		this.maxEntrySize = maxEntrySize;
+		this.entries = new SegmentedLru<>(maxMemory, CacheEntry::weight);
+	}
+
+	/**
+	 * @param maxMemory    The memory held by the cached responses, in bytes.
+	 * @param maxEntrySize The biggest response body cached in memory, in bytes.
+	 * @param diskStore    The disk tier.
+	 */
+	public HttpCache(long maxMemory, int maxEntrySize, DiskStore diskStore) {
+		this(maxMemory, maxEntrySize);
+		this.diskStore = diskStore;
+	}
+
+	/**
+	 * @param maxMemory       The memory held by the cached responses, in bytes.
+	 * @param maxEntrySize    The biggest response body cached in memory, in bytes.
+	 * @param diskStore       The disk tier, <code>null</code> for none.
+	 * @param collapseTimeout How long a request waits for the response of an identical one, in milliseconds.
+	 * @param collapseMemory  The bytes of a shared response body kept in memory.
+	 */
+	public HttpCache(long maxMemory, int maxEntrySize, DiskStore diskStore, long collapseTimeout,
+			int collapseMemory) {
+		this(maxMemory, maxEntrySize, diskStore);
+		this.collapser = new RequestCollapser(collapseTimeout, collapseMemory);
+	}
+
+	@PostConstruct
+	public void init() {
+		enabled = systemConfig.isCacheEnabled();
+		maxMemory = systemConfig.getCacheMaxMemory();
+		maxEntrySize = systemConfig.getCacheMaxEntrySize();
+		entries = new SegmentedLru<>(maxMemory, CacheEntry::weight);
+		if (systemConfig.isCacheCollapseEnabled()) {
+			collapser = new RequestCollapser(systemConfig.getCacheCollapseTimeout(),
+					systemConfig.getCacheCollapseMemory());
+		}
+		String diskDir = systemConfig.getCacheDiskDir();
+		if (enabled && StringUtils.isNotEmpty(diskDir)) {
+			try {
+				diskStore = new DiskStore(Paths.get(diskDir), systemConfig.getCacheDiskMaxSize(),
+						systemConfig.getCacheDiskMaxEntries(),
+						Arrays.asList(StringUtils.split(systemConfig.getCacheDiskPatterns(), ',')));
+			} catch (IOException e) {
+				logger.warn("Cannot open the disk cache " + diskDir + ", caching in memory only", e);
+			}
+		}
+	}
+
+	@PreDestroy
+	public void close() {
+		LocalIOUtils.close(diskStore);
+		if (collapser != null) {
+			collapser.close();
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Look the request up: serve it from the cache if possible, else make it conditional
+	 * when there is a stale response to revalidate.
+	 *
+	 * @param uri     The absolute URI of the request.
+	 * @param request The request, without its hop-by-hop headers.
+	 * @return The cache's part in this request.
+	 */
+	public CacheExchange exchange(URI uri, HttpRequest request) {
+		String method = request.getRequestLine().getMethod();
+		if (!enabled || uri.getHost() == null) {
+			return NO_EXCHANGE;
+		}
+		String key = key(uri);
+		long now = System.currentTimeMillis();
+		if (!SAFE_METHODS.contains(method)) {
+			return new CacheExchange(this, uri, key, request, now, null, false, null, null);
+		}
+		if (!HttpGet.METHOD_NAME.equals(method) || request.containsHeader(HttpHeaders.RANGE)) {
+			return NO_EXCHANGE;
+		}
+		requests.increment();
+		CacheControl requestControl = CacheControl.of(request);
+		if (requestControl.has("no-store")) {
+			misses.increment();
+			return NO_EXCHANGE;
+		}
+
+		CacheEntry entry = entries.get(key);
+		if (entry == null && diskStore != null) {
+			entry = diskStore.get(key);
+		}
+		if (entry != null && !entry.matchesVary(request)) {
+			entry = null;
+		}
+		if (entry != null && canServe(entry, requestControl, request, now)) {
+			HttpResponse response = serve(key, entry, request, now);
+			if (response != null) {
+				return new CacheExchange(this, uri, key, request, now, null, false, response, null);
+			}
+			entry = null;
+		}
+		if (requestControl.has("only-if-cached")) {
+			misses.increment();
+			BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_GATEWAY_TIMEOUT,
+					"Gateway Timeout");
+			response.addHeader(HttpHeaders.CONTENT_LENGTH, "0");
+			response.setEntity(new ByteArrayEntity(new byte[0]));
+			return new CacheExchange(this, uri, key, request, now, null, false, response, null);
+		}
+		if (entry != null && entry.hasValidator() && !isConditional(request)) {
+			revalidations.increment();
+			entry.addConditions(request);
+			logger.debug("Revalidate {}", key);
+			return new CacheExchange(this, uri, key, request, now, entry, true, null, null);
+		}
+		RequestCollapser.Flight flight = null;
+		if (collapser != null && !isConditional(request) && !request.containsHeader(HttpHeaders.AUTHORIZATION)
+				&& !request.containsHeader("Cookie")) {
+			flight = collapser.join(key, request);
+			if (!flight.isLeader()) {
+				HttpResponse shared = flight.follow();
+				if (shared != null) {
+					collapsed.increment();
+					return new CacheExchange(this, uri, key, request, now, null, false, shared, flight);
+				}
+				collapseFallbacks.increment();
+				flight = null;
+			}
+		}
+		misses.increment();
+		return new CacheExchange(this, uri, key, request, now, entry, false, null, flight);
+	}
+
+	/**
+	 * @return The response from the entry, <code>null</code> when its body is gone.
+	 */
+	private HttpResponse serve(String key, CacheEntry entry, HttpRequest request, long now) {
+		HttpResponse response;
+		if (entry.isNotModified(request)) {
+			response = entry.toNotModifiedResponse(now);
+		} else {
+			try {
+				response = entry.toResponse(now);
+			} catch (IOException e) {
+				logger.warn("Cannot serve {} from the cache: {}", key, e.getMessage());
+				remove(key);
+				return null;
+			}
+			bytesSaved.add(entry.getContentLength());
+		}
+		hits.increment();
+		if (entry.currentAge(now) >= entry.getFreshnessLifetime()) {
+			response.addHeader(HttpHeaders.WARNING, "110 - \"Response is Stale\"");
+		}
+		logger.debug("Serve {} from the cache: {}", key, entry);
+		return response;
+	}
+
+	/**
+	 * Whether the entry satisfies the request without contacting the origin (RFC 7234 section 4).
+	 */
+	private boolean canServe(CacheEntry entry, CacheControl requestControl, HttpRequest request, long now) {
+		if (entry.isNoCache() || requestControl.has("no-cache")) {
+			return false;
+		}
+		if (!request.containsHeader(HttpHeaders.CACHE_CONTROL)) {
+			for (Header pragma : request.getHeaders(HttpHeaders.PRAGMA)) {
+				for (HeaderElement element : pragma.getElements()) {
+					if ("no-cache".equalsIgnoreCase(element.getName())) {
+						return false;
+					}
+				}
+			}
+		}
+		long age = entry.currentAge(now);
+		long lifetime = entry.getFreshnessLifetime();
+		long maxAge = requestControl.millis("max-age");
+		// max-age=0 is how the browsers ask for a revalidation
+		if (maxAge == 0 || (maxAge > 0 && age > maxAge)) {
+			return false;
+		}
+		long minFresh = requestControl.millis("min-fresh");
+		if (minFresh >= 0 && lifetime - age < minFresh) {
+			return false;
+		}
+		if (age < lifetime) {
+			return true;
+		}
+		if (requestControl.has("max-stale") && !entry.isMustRevalidate()) {
+			// Without a value, any staleness is accepted
+			long maxStale = requestControl.millis("max-stale");
+			return maxStale < 0 || age - lifetime <= maxStale;
+		}
+		return false;
+	}
+
+	private static boolean isConditional(HttpRequest request) {
+		for (Header header : request.getAllHeaders()) {
+			if (CONDITIONAL_HEADERS.contains(header.getName().toLowerCase(Locale.ROOT))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	HttpResponse complete(CacheExchange exchange, HttpResponse response) throws IOException {
+		HttpResponse completed = record(exchange, response);
+		return exchange.flight != null ? exchange.flight.lead(completed) : completed;
+	}
+
+	/**
+	 * Store, refresh or invalidate the cached response.
+	 */
+	private HttpResponse record(CacheExchange exchange, HttpResponse response) throws IOException {
+		long responseTime = System.currentTimeMillis();
+		int status = response.getStatusLine().getStatusCode();
+		if (!SAFE_METHODS.contains(exchange.request.getRequestLine().getMethod())) {
+			if (status >= 200 && status < 400) {
+				invalidate(exchange, response);
+			}
+			return response;
+		}
+
+		CacheEntry stale = exchange.stale;
+		if (status == HttpStatus.SC_NOT_MODIFIED && stale != null) {
+			Header etag = response.getFirstHeader(HttpHeaders.ETAG);
+			if (exchange.revalidating || (etag != null && etag.getValue().equals(stale.getETag()))) {
+				CacheEntry updated = stale.update(response, exchange.requestTime, responseTime);
+				if (updated.isOnDisk()) {
+					diskStore.put(exchange.key, updated);
+				} else {
+					entries.put(exchange.key, updated);
+				}
+				if (exchange.revalidating) {
+					// The client did not ask for a conditional response
+					validatedHits.increment();
+					bytesSaved.add(updated.getContentLength());
+					EntityUtils.consumeQuietly(response.getEntity());
+					logger.debug("Revalidated {}: {}", exchange.key, updated);
+					return updated.toResponse(responseTime);
+				}
+			}
+			return response;
+		}
+
+		HttpEntity entity = response.getEntity();
+		boolean toDisk = diskStore != null && entity != null && diskStore.accepts(exchange.uri, response);
+		if (isStorable(exchange.request, response, toDisk ? diskStore.getMaxSize() / 4 : maxEntrySize)) {
+			if (entity == null) {
+				store(exchange, response, new byte[0], responseTime);
+			} else if (toDisk) {
+				try {
+					response.setEntity(new CachingEntity(entity,
+							new DiskSink(exchange, response, responseTime, diskStore.newWriter())));
+				} catch (IOException e) {
+					logger.warn("Cannot write to the disk cache", e);
+				}
+			} else {
+				response.setEntity(new CachingEntity(entity, maxEntrySize,
+						body -> store(exchange, response, body, responseTime)));
+			}
+		} else if (stale != null) {
+			remove(exchange.key);
+		}
+		return response;
+	}
+
+	/**
+	 * Whether a shared cache may store the response (RFC 7234 section 3).
+	 */
+	private boolean isStorable(HttpRequest request, HttpResponse response, long maxLength) {
+		int status = response.getStatusLine().getStatusCode();
+		if (status == HttpStatus.SC_PARTIAL_CONTENT || status == HttpStatus.SC_NOT_MODIFIED) {
+			return false;
+		}
+		CacheControl responseControl = CacheControl.of(response);
+		if (responseControl.has("no-store") || responseControl.has("private")) {
+			return false;
+		}
+		if (request.containsHeader(HttpHeaders.AUTHORIZATION) && !responseControl.has("public")
+				&& !responseControl.has("must-revalidate") && !responseControl.has("s-maxage")) {
+			return false;
+		}
+		if (response.containsHeader("Set-Cookie")) {
+			return false;
+		}
+		for (Header vary : response.getHeaders(HttpHeaders.VARY)) {
+			for (HeaderElement element : vary.getElements()) {
+				if ("*".equals(element.getName())) {
+					return false;
+				}
+			}
+		}
+		HttpEntity entity = response.getEntity();
+		if (entity != null && entity.getContentLength() > maxLength) {
+			return false;
+		}
+		boolean explicit = responseControl.has("max-age") || responseControl.has("s-maxage")
+				|| responseControl.has("public") || response.containsHeader(HttpHeaders.EXPIRES);
+		if (explicit) {
+			return true;
+		}
+
+		// Only worth storing if it can be served or revalidated
+		return isCacheableByDefault(status) && (response.containsHeader(HttpHeaders.ETAG)
+				|| response.containsHeader(HttpHeaders.LAST_MODIFIED));
+	}
+
+	private void store(CacheExchange exchange, HttpResponse response, byte[] body, long responseTime) {
+		CacheEntry entry = new CacheEntry(exchange.request, response, body, exchange.requestTime, responseTime);
+		if (entries.put(exchange.key, entry)) {
+			stores.increment();
+			logger.debug("Store {}: {}", exchange.key, entry);
+		}
+	}
+
+	/**
+	 * Drop the responses an unsafe request may have changed (RFC 7234 section 4.4).
+	 */
+	private void invalidate(CacheExchange exchange, HttpResponse response) {
+		invalidate(exchange.key);
+		for (String name : new String[] { HttpHeaders.LOCATION, HttpHeaders.CONTENT_LOCATION }) {
+			Header header = response.getFirstHeader(name);
+			if (header != null) {
+				try {
+					URI location = exchange.uri.resolve(header.getValue());
+					if (exchange.uri.getHost().equalsIgnoreCase(location.getHost())) {
+						invalidate(key(location));
+					}
+				} catch (IllegalArgumentException e) {
+					logger.debug("Invalid {} header: {}", name, header.getValue());
+				}
+			}
+		}
+	}
+
+	private void invalidate(String key) {
+		boolean removed = entries.remove(key) != null;
+		if (diskStore != null && diskStore.remove(key)) {
+			removed = true;
+		}
+		if (removed) {
+			invalidations.increment();
+			logger.debug("Invalidate {}", key);
+		}
+	}
+
+	private void remove(String key) {
+		entries.remove(key);
+		if (diskStore != null) {
+			diskStore.remove(key);
+		}
+	}
+
+	/**
+	 * @return The URI without the fragment and the default port, with the scheme and the host in lower case.
+	 */
+	static String key(URI uri) {
+		String scheme = uri.getScheme() != null ? uri.getScheme().toLowerCase(Locale.ROOT) : "http";
+		StringBuilder key = new StringBuilder(scheme).append("://").append(uri.getHost().toLowerCase(Locale.ROOT));
+		int port = uri.getPort();
+		if (port >= 0 && port != ("https".equals(scheme) ? 443 : 80)) {
+			key.append(':').append(port);
+		}
+		key.append(StringUtils.defaultIfEmpty(uri.getRawPath(), "/"));
+		if (uri.getRawQuery() != null) {
+			key.append('?').append(uri.getRawQuery());
+		}
+		return key.toString();
+	}
+
+	static boolean isCacheableByDefault(int status) {
+		return CACHEABLE_BY_DEFAULT.contains(status);
+	}
+
+	@ManagedOperation(description = "Drop all the cached responses")
+	public void clear() {
+		entries.clear();
+		if (diskStore != null) {
+			diskStore.clear();
+		}
+	}
+
+	@ManagedAttribute(description = "The number of GET requests looked up")
+	public long getRequests() {
+		return requests.sum();
+	}
+
+	@ManagedAttribute(description = "The number of requests served from the cache without contacting the origin")
+	public long getHits() {
+		return hits.sum();
+	}
+
+	@ManagedAttribute(description = "The number of stale responses revalidated")
+	public long getRevalidations() {
+		return revalidations.sum();
+	}
+
+	@ManagedAttribute(description = "The number of revalidated responses served from the cache")
+	public long getValidatedHits() {
+		return validatedHits.sum();
+	}
+
+	@ManagedAttribute(description = "The number of requests without a usable cached response")
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	@ManagedAttribute(description = "The part of the requests served from the cache, revalidated or not")
+	public double getHitRatio() {
+		long total = requests.sum();
+		return total > 0 ? (double) (hits.sum() + validatedHits.sum()) / total : 0;
+	}
+
+	@ManagedAttribute(description = "The number of responses stored")
+	public long getStores() {
+		return stores.sum();
+	}
+
+	@ManagedAttribute(description = "The number of responses dropped by unsafe requests")
+	public long getInvalidations() {
+		return invalidations.sum();
+	}
+
+	@ManagedAttribute(description = "The number of responses evicted to stay within the memory bound")
+	public long getEvictions() {
+		return entries.evictions();
+	}
+
+	@ManagedAttribute(description = "The number of response body bytes served from the cache")
+	public long getBytesSaved() {
+		return bytesSaved.sum();
+	}
+
+	@ManagedAttribute(description = "The number of cached responses")
+	public int getEntries() {
+		return entries.size();
+	}
+
+	@ManagedAttribute(description = "The approximate memory held by the cached responses, in bytes")
+	public long getMemory() {
+		return entries.weight();
+	}
+
+	@ManagedAttribute(description = "The maximum memory held by the cached responses, in bytes")
+	public long getMaxMemory() {
+		return maxMemory;
+	}
+
+	@ManagedAttribute(description = "The number of requests served with the response of an identical request in flight")
+	public long getCollapsed() {
+		return collapsed.sum();
+	}
+
+	@ManagedAttribute(description = "The number of requests forwarded on their own after waiting for an identical one")
+	public long getCollapseFallbacks() {
+		return collapseFallbacks.sum();
+	}
+
+	@ManagedAttribute(description = "The number of requests served from the disk cache")
+	public long getDiskHits() {
+		return diskStore != null ? diskStore.getHits() : 0;
+	}
+
+	@ManagedAttribute(description = "The number of responses on disk")
+	public int getDiskEntries() {
+		return diskStore != null ? diskStore.getEntries() : 0;
+	}
+
+	@ManagedAttribute(description = "The size of the response bodies on disk, in bytes")
+	public long getDiskSize() {
+		return diskStore != null ? diskStore.getSize() : 0;
+	}
+
+	@ManagedAttribute(description = "The number of responses evicted from the disk to stay within the size bound")
+	public long getDiskEvictions() {
+		return diskStore != null ? diskStore.getEvictions() : 0;
+	}
+
+	@ManagedAttribute(description = "The number of corrupted responses dropped from the disk")
+	public long getDiskCorruptions() {
+		return diskStore != null ? diskStore.getCorruptions() : 0;
+	}
+
+	/**
+	 * Writes the body to the disk store, the response going there once complete.
+	 */
+	private class DiskSink implements CachingEntity.Sink {
+
+		private final CacheExchange exchange;
+
+		private final HttpResponse response;
+
+		private final long responseTime;
+
+		private final DiskStore.Writer writer;
+
+		DiskSink(CacheExchange exchange, HttpResponse response, long responseTime, DiskStore.Writer writer) {
+			this.exchange = exchange;
+			this.response = response;
+			this.responseTime = responseTime;
+			this.writer = writer;
+		}
+
+		@Override
+		public boolean write(byte[] b, int off, int len) throws IOException {
+			return writer.write(b, off, len);
+		}
+
+		@Override
+		public void complete() throws IOException {
+			CacheEntry entry = writer.commit(exchange.key, file -> new CacheEntry(exchange.request, response, file,
+					writer.getLength(), exchange.requestTime, responseTime));
+			if (entry != null) {
+				// A revalidated copy in memory would be outdated
+				entries.remove(exchange.key);
+				stores.increment();
+				logger.debug("Store {} on disk: {}", exchange.key, entry);
+			}
+		}
+
+		@Override
+		public void abort() {
+			writer.abort();
+		}
+
+	}
+
+}
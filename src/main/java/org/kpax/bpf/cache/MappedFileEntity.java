@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * Contributors:
+ *     Eugen Covaci - initial design and implementation
+ *******************************************************************************/
+
+package org.kpax.bpf.cache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.kpax.bpf.util.LocalIOUtils;
+
+/**
+ * A body served from a file: written to a channel, it goes through memory-mapped windows of the file,
+ * from the page cache straight to the socket, without being copied into the heap.
+ * The file is closed once written, or when the entity is closed.
+ *
+ * @author Eugen Covaci
+ */
+public class MappedFileEntity extends AbstractHttpEntity implements Closeable {
+
+	/**
+	 * The size of the mapped windows.
+	 */
+	private static final long WINDOW_SIZE = 16 * 1024 * 1024;
+
+	private final FileChannel fileChannel;
+
+	private final long contentLength;
+
+	/**
+	 * @param fileChannel   The opened file.
+	 * @param contentLength The size of the file.
+	 */
+	public MappedFileEntity(FileChannel fileChannel, long contentLength) {
+		this.fileChannel = fileChannel;
+		this.contentLength = contentLength;
+	}
+
+	/**
+	 * Write the whole file to the channel, then close the file.
+	 *
+	 * @param channel The channel, left open.
+	 * @throws IOException
+	 */
+	public void writeTo(WritableByteChannel channel) throws IOException {
+		try {
+			for (long position = 0; position < contentLength; position += WINDOW_SIZE) {
+				MappedByteBuffer window = fileChannel.map(FileChannel.MapMode.READ_ONLY, position,
+						Math.min(WINDOW_SIZE, contentLength - position));
+				while (window.hasRemaining()) {
+					channel.write(window);
+				}
+			}
+		} finally {
+			LocalIOUtils.close(fileChannel);
+		}
+	}
+
+	@Override
+	public void writeTo(OutputStream outStream) throws IOException {
+		writeTo(Channels.newChannel(outStream));
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return false;
+	}
+
+	@Override
+	public long getContentLength() {
+		return contentLength;
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		return Channels.newInputStream(fileChannel);
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return fileChannel.isOpen();
+	}
+
+	@Override
+	public void close() {
+		LocalIOUtils.close(fileChannel);
+	}
+
+}
@@ -0,0 +1,481 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * Contributors:
+ *     Eugen Covaci - initial design and implementation
+ *******************************************************************************/
+
+package org.kpax.bpf.cache;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.kpax.bpf.util.LocalIOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collapses the concurrent identical requests into one: while a request is in flight,
+ * the ones for the same key wait for its response instead of being forwarded,
+ * then read its body as it is received.
+ * <p>
+ * When there are followers, the body is read into the spool by a thread of its own, at the origin's pace,
+ * the leader reading it back like them: a slow leader's client does not hold the followers back.
+ * <p>
+ * A waiting request is forwarded on its own when the response does not come in time,
+ * cannot be shared (like a <code>private</code> one) or varies on headers the requests do not agree on.
+ *
+ * @author Eugen Covaci
+ */
+class RequestCollapser {
+
+	private static final Logger logger = LoggerFactory.getLogger(RequestCollapser.class);
+
+	private final Map<String, Flight> flights = new HashMap<>();
+
+	private final long timeout;
+
+	private final int memoryThreshold;
+
+	/**
+	 * Reads the shared bodies.
+	 */
+	private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "collapsed-body");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * @param timeout         How long a request waits for the response of the one in flight, in milliseconds.
+	 * @param memoryThreshold The bytes of a shared body kept in memory, the rest going to a temporary file.
+	 */
+	RequestCollapser(long timeout, int memoryThreshold) {
+		this.timeout = timeout;
+		this.memoryThreshold = memoryThreshold;
+	}
+
+	/**
+	 * @param key     The cache key.
+	 * @param request The request.
+	 * @return The flight of the request, led by it if there was none for this key.
+	 */
+	synchronized Flight join(String key, HttpRequest request) {
+		Flight flight = flights.get(key);
+		if (flight == null) {
+			flight = new Flight(key, request);
+			flights.put(key, flight);
+			return flight;
+		}
+		return flight.follower(request);
+	}
+
+	private synchronized void remove(Flight flight) {
+		flights.remove(flight.key, flight);
+	}
+
+	void close() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * A request and its response, shared by the requests waiting for it.
+	 */
+	class Flight {
+
+		private final String key;
+
+		private final HttpRequest request;
+
+		private final boolean leader;
+
+		private final Spool spool;
+
+		private final Object lock;
+
+		private final State state;
+
+		/**
+		 * The body as read by a follower, opened when joining so that the spool is kept.
+		 */
+		private InputStream input;
+
+		private Flight(String key, HttpRequest request) {
+			this.key = key;
+			this.request = request;
+			this.leader = true;
+			// The timeout is for the response head, the body comes as slowly as the origin sends it
+			this.spool = new Spool(memoryThreshold, 0);
+			this.lock = new Object();
+			this.state = new State(request);
+		}
+
+		private Flight(Flight leader, HttpRequest request) {
+			this.key = leader.key;
+			this.request = request;
+			this.leader = false;
+			this.spool = leader.spool;
+			this.lock = leader.lock;
+			this.state = leader.state;
+			this.input = spool.newInputStream();
+		}
+
+		/**
+		 * Called within the collapser's lock, hence before the leader has left.
+		 */
+		private Flight follower(HttpRequest request) {
+			synchronized (lock) {
+				state.followers++;
+			}
+			return new Flight(this, request);
+		}
+
+		boolean isLeader() {
+			return leader;
+		}
+
+		/**
+		 * Share the response of the leader, its body being copied into the spool.
+		 *
+		 * @return The response to write to the leader's client.
+		 */
+		HttpResponse lead(HttpResponse response) {
+			if (!isShareable(response)) {
+				land();
+				return response;
+			}
+			HttpEntity entity = response.getEntity();
+			BasicHttpResponse head = new BasicHttpResponse(response.getStatusLine());
+			head.setHeaders(response.getAllHeaders());
+			synchronized (lock) {
+				state.head = head;
+				state.contentLength = entity != null ? entity.getContentLength() : 0;
+				state.hasEntity = entity != null;
+				lock.notifyAll();
+			}
+			if (entity != null) {
+				response.setEntity(new SharedEntity(entity));
+			} else {
+				spool.complete();
+			}
+			return response;
+		}
+
+		private boolean isShareable(HttpResponse response) {
+			int status = response.getStatusLine().getStatusCode();
+			if (status == HttpStatus.SC_PARTIAL_CONTENT || status == HttpStatus.SC_NOT_MODIFIED) {
+				return false;
+			}
+			CacheControl cacheControl = CacheControl.of(response);
+			if (cacheControl.has("private") || cacheControl.has("no-store") || response.containsHeader("Set-Cookie")) {
+				return false;
+			}
+			for (Header vary : response.getHeaders(HttpHeaders.VARY)) {
+				for (HeaderElement element : vary.getElements()) {
+					if ("*".equals(element.getName())) {
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Wait for the response of the leader.
+		 *
+		 * @return The response, <code>null</code> if this request is to be forwarded on its own.
+		 */
+		HttpResponse follow() {
+			HttpResponse head;
+			synchronized (lock) {
+				long deadline = System.currentTimeMillis() + timeout;
+				while (state.head == null && !state.landed) {
+					long wait = deadline - System.currentTimeMillis();
+					if (wait <= 0) {
+						logger.debug("Timed out waiting for the response to {}", key);
+						break;
+					}
+					try {
+						lock.wait(wait);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						break;
+					}
+				}
+				head = state.head;
+			}
+			if (head == null || !matchesVary(head)) {
+				land();
+				return null;
+			}
+			BasicHttpResponse response = new BasicHttpResponse(head.getStatusLine());
+			response.setHeaders(head.getAllHeaders());
+			if (state.hasEntity) {
+				response.setEntity(new InputStreamEntity(input, state.contentLength));
+			}
+			logger.debug("Share the response to {}", key);
+			return response;
+		}
+
+		private boolean matchesVary(HttpResponse head) {
+			for (Header vary : head.getHeaders(HttpHeaders.VARY)) {
+				for (HeaderElement element : vary.getElements()) {
+					if (!values(request, element.getName()).equals(values(state.leaderRequest, element.getName()))) {
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Done with this request: the leader's followers still waiting are sent on their own
+		 * if there is no response to share.
+		 */
+		void land() {
+			if (leader) {
+				remove(this);
+				spool.fail(new IOException("The shared response has been abandoned"));
+				synchronized (lock) {
+					if (state.landed) {
+						return;
+					}
+					state.landed = true;
+					lock.notifyAll();
+				}
+				spool.close();
+			} else if (input != null) {
+				try {
+					input.close();
+				} catch (IOException e) {
+					logger.debug("Cannot close the shared body", e);
+				}
+				input = null;
+				synchronized (lock) {
+					state.followers--;
+				}
+			}
+		}
+
+		/**
+		 * Copies the body into the spool, by another thread when there are followers,
+		 * else while it is written to the leader's client.
+		 * When that client goes away, the body is still read for the followers.
+		 */
+		private class SharedEntity extends HttpEntityWrapper {
+
+			/**
+			 * Whether the leader's client has gone away, the body being read for the followers only.
+			 */
+			private volatile boolean clientGone;
+
+			SharedEntity(HttpEntity entity) {
+				super(entity);
+			}
+
+			@Override
+			public void writeTo(OutputStream outStream) throws IOException {
+				if (hasReaders()) {
+					CountDownLatch drained = new CountDownLatch(1);
+					InputStream inStream = spool.newInputStream();
+					try {
+						executor.execute(() -> drain(drained));
+					} catch (RejectedExecutionException e) {
+						logger.debug("Cannot read the shared body on its own thread", e);
+						inStream.close();
+						inStream = null;
+					}
+					if (inStream != null) {
+						writeFromSpool(inStream, outStream, drained);
+						return;
+					}
+				}
+				SpoolingOutputStream spoolingStream = new SpoolingOutputStream(outStream);
+				try {
+					wrappedEntity.writeTo(spoolingStream);
+				} catch (IOException | RuntimeException e) {
+					spool.fail(e instanceof IOException ? (IOException) e : new IOException(e));
+					throw e;
+				}
+				spool.complete();
+				if (spoolingStream.clientFailure != null) {
+					throw spoolingStream.clientFailure;
+				}
+			}
+
+			private void writeFromSpool(InputStream inStream, OutputStream outStream, CountDownLatch drained)
+					throws IOException {
+				try (InputStream spoolStream = inStream) {
+					byte[] buffer = new byte[LocalIOUtils.DEFAULT_BUFFER_SIZE];
+					int read;
+					while ((read = spoolStream.read(buffer)) != -1) {
+						try {
+							outStream.write(buffer, 0, read);
+						} catch (IOException e) {
+							clientGone = true;
+							awaitDrained(drained);
+							throw e;
+						}
+					}
+				}
+			}
+
+			/**
+			 * Wait until done with the remote body, not to have it released while still read for the followers.
+			 */
+			private void awaitDrained(CountDownLatch drained) throws IOException {
+				try {
+					drained.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted reading the shared body");
+				}
+			}
+
+			private void drain(CountDownLatch drained) {
+				try {
+					wrappedEntity.writeTo(new OutputStream() {
+
+						@Override
+						public void write(int b) throws IOException {
+							write(new byte[] { (byte) b }, 0, 1);
+						}
+
+						@Override
+						public void write(byte[] b, int off, int len) throws IOException {
+							spool.write(b, off, len);
+							if (clientGone && !hasReaders()) {
+								throw new IOException("No one reads the shared body anymore");
+							}
+						}
+
+					});
+					spool.complete();
+				} catch (IOException e) {
+					logger.debug("Cannot read the shared body", e);
+					spool.fail(e);
+				} catch (RuntimeException e) {
+					logger.error("Cannot read the shared body", e);
+					spool.fail(new IOException(e));
+				} finally {
+					drained.countDown();
+				}
+			}
+
+		}
+
+		private class SpoolingOutputStream extends FilterOutputStream {
+
+			private IOException clientFailure;
+
+			SpoolingOutputStream(OutputStream out) {
+				super(out);
+			}
+
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				spool.write(b, off, len);
+				if (clientFailure == null) {
+					try {
+						out.write(b, off, len);
+					} catch (IOException e) {
+						clientFailure = e;
+					}
+				}
+				if (clientFailure != null && !hasReaders()) {
+					throw clientFailure;
+				}
+			}
+
+			@Override
+			public void flush() throws IOException {
+				if (clientFailure == null) {
+					out.flush();
+				}
+			}
+
+			@Override
+			public void close() throws IOException {
+				if (clientFailure == null) {
+					out.close();
+				}
+			}
+
+		}
+
+		private boolean hasReaders() {
+			synchronized (lock) {
+				return state.followers > 0;
+			}
+		}
+
+	}
+
+	/**
+	 * The state of a flight, shared by its leader and its followers.
+	 */
+	private static class State {
+
+		private final HttpRequest leaderRequest;
+
+		private HttpResponse head;
+
+		private long contentLength;
+
+		private boolean hasEntity;
+
+		private boolean landed;
+
+		/**
+		 * The followers waiting for the response or reading it.
+		 */
+		private int followers;
+
+		private State(HttpRequest leaderRequest) {
+			this.leaderRequest = leaderRequest;
+		}
+
+	}
+
+	private static String values(HttpRequest request, String name) {
+		StringBuilder values = new StringBuilder();
+		for (Header header : request.getHeaders(name)) {
+			if (values.length() > 0) {
+				values.append(',');
+			}
+			values.append(header.getValue().trim());
+		}
+		return values.toString();
+	}
+
+}
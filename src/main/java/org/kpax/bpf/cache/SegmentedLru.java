@@ -0,0 +1,176 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * Contributors:
+ *     Eugen Covaci - initial design and implementation
+ *******************************************************************************/
+
+package org.kpax.bpf.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/**
+ * A map bounded by the total weight of its values, evicting with the segmented LRU policy:
+ * a new entry starts in the probation segment and moves to the protected one on its first hit.
+ * The protected segment holds at most {@link #PROTECTED_RATIO} of the capacity, its least recently
+ * used entries going back to probation, and the evictions are taken from probation first.
+ * A burst of entries used once can then only evict each other, not the entries used repeatedly.
+ * <p>
+ * It is thread-safe.
+ *
+ * @param <K> The type of the keys.
+ * @param <V> The type of the values.
+ * @author Eugen Covaci
+ */
+public final class SegmentedLru<K, V> {
+
+	/**
+	 * The part of the capacity held by the protected segment.
+	 */
+	static final double PROTECTED_RATIO = 0.8;
+
+	private final long capacity;
+
+	private final long protectedCapacity;
+
+	private final ToLongFunction<V> weigher;
+
+	/**
+	 * Both in insertion order, the least recently used first.
+	 */
+	private final LinkedHashMap<K, V> probation = new LinkedHashMap<>();
+
+	private final LinkedHashMap<K, V> protectedSegment = new LinkedHashMap<>();
+
+	private long probationWeight;
+
+	private long protectedWeight;
+
+	private long evictions;
+
+	/**
+	 * @param capacity The maximum total weight.
+	 * @param weigher  The weight of a value.
+	 */
+	public SegmentedLru(long capacity, ToLongFunction<V> weigher) {
+		this.capacity = capacity;
+		this.protectedCapacity = (long) (capacity * PROTECTED_RATIO);
+		this.weigher = weigher;
+	}
+
+	/**
+	 * Get a value, as a hit.
+	 *
+	 * @param key The key.
+	 * @return The value, <code>null</code> if absent.
+	 */
+	public synchronized V get(K key) {
+		V value = protectedSegment.remove(key);
+		if (value != null) {
+			protectedSegment.put(key, value);
+			return value;
+		}
+		value = probation.remove(key);
+		if (value != null) {
+			long weight = weigher.applyAsLong(value);
+			probationWeight -= weight;
+			protectedSegment.put(key, value);
+			protectedWeight += weight;
+			while (protectedWeight > protectedCapacity) {
+				Map.Entry<K, V> eldest = removeEldest(protectedSegment);
+				long eldestWeight = weigher.applyAsLong(eldest.getValue());
+				protectedWeight -= eldestWeight;
+				probation.put(eldest.getKey(), eldest.getValue());
+				probationWeight += eldestWeight;
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Add or replace a value, evicting the least valuable other ones beyond the capacity.
+	 *
+	 * @param key   The key.
+	 * @param value The value.
+	 * @return <code>false</code> iff the value weighs more than the capacity, hence is not added.
+	 */
+	public synchronized boolean put(K key, V value) {
+		remove(key);
+		long weight = weigher.applyAsLong(value);
+		if (weight > capacity) {
+			return false;
+		}
+		probation.put(key, value);
+		probationWeight += weight;
+		while (probationWeight + protectedWeight > capacity) {
+			// The new value is the youngest in probation, never a victim
+			if (probation.size() > 1) {
+				probationWeight -= weigher.applyAsLong(removeEldest(probation).getValue());
+			} else {
+				protectedWeight -= weigher.applyAsLong(removeEldest(protectedSegment).getValue());
+			}
+			evictions++;
+		}
+		return true;
+	}
+
+	/**
+	 * @param key The key.
+	 * @return The removed value, <code>null</code> if absent.
+	 */
+	public synchronized V remove(K key) {
+		V value = probation.remove(key);
+		if (value != null) {
+			probationWeight -= weigher.applyAsLong(value);
+			return value;
+		}
+		value = protectedSegment.remove(key);
+		if (value != null) {
+			protectedWeight -= weigher.applyAsLong(value);
+		}
+		return value;
+	}
+
+	public synchronized void clear() {
+		probation.clear();
+		protectedSegment.clear();
+		probationWeight = 0;
+		protectedWeight = 0;
+	}
+
+	public synchronized int size() {
+		return probation.size() + protectedSegment.size();
+	}
+
+	/**
+	 * @return The total weight of the values.
+	 */
+	public synchronized long weight() {
+		return probationWeight + protectedWeight;
+	}
+
+	/**
+	 * @return The number of values evicted so far.
+	 */
+	public synchronized long evictions() {
+		return evictions;
+	}
+
+	private static <K, V> Map.Entry<K, V> removeEldest(LinkedHashMap<K, V> segment) {
+		Iterator<Map.Entry<K, V>> iterator = segment.entrySet().iterator();
+		Map.Entry<K, V> eldest = iterator.next();
+		iterator.remove();
+		return eldest;
+	}
+
+}
@@ -0,0 +1,244 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * Contributors:
+ *     Eugen Covaci - initial design and implementation
+ *******************************************************************************/
+
+package org.kpax.bpf.cache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.kpax.bpf.util.LocalIOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A body written once and read by any number of readers while it is being written:
+ * the first bytes are kept in memory, the rest goes to a temporary file.
+ * <p>
+ * The readers block until the bytes they need are written. The writer and each reader
+ * hold a reference, the temporary file being deleted once all of them are closed.
+ *
+ * @author Eugen Covaci
+ */
+public class Spool implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(Spool.class);
+
+	private final int memoryThreshold;
+
+	private final long readTimeout;
+
+	private byte[] memory = new byte[0];
+
+	private Path file;
+
+	private FileChannel fileChannel;
+
+	private long length;
+
+	private boolean complete;
+
+	private IOException failure;
+
+	private int references = 1;
+
+	/**
+	 * @param memoryThreshold The bytes kept in memory.
+	 * @param readTimeout     How long a reader waits for more bytes, in milliseconds, <code>0</code> for no limit.
+	 */
+	public Spool(int memoryThreshold, long readTimeout) {
+		this.memoryThreshold = memoryThreshold;
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * Append the bytes, waking the readers up.
+	 *
+	 * @throws IOException when the temporary file cannot be written.
+	 */
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+		if (complete || failure != null) {
+			throw new IllegalStateException("Spool already ended");
+		}
+		int inMemory = (int) Math.max(0, Math.min(len, memoryThreshold - length));
+		if (inMemory > 0) {
+			if (length + inMemory > memory.length) {
+				memory = Arrays.copyOf(memory, (int) Math.min(memoryThreshold,
+						Math.max(length + inMemory, Math.max(memory.length * 2, LocalIOUtils.DEFAULT_BUFFER_SIZE))));
+			}
+			System.arraycopy(b, off, memory, (int) length, inMemory);
+		}
+		if (inMemory < len) {
+			if (fileChannel == null) {
+				file = Files.createTempFile("bpf-spool", ".tmp");
+				fileChannel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+				logger.debug("Spool to {}", file);
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(b, off + inMemory, len - inMemory);
+			long position = length + inMemory - memoryThreshold;
+			while (buffer.hasRemaining()) {
+				position += fileChannel.write(buffer, position);
+			}
+		}
+		length += len;
+		notifyAll();
+	}
+
+	/**
+	 * The whole body has been written.
+	 */
+	public synchronized void complete() {
+		complete = true;
+		notifyAll();
+	}
+
+	/**
+	 * The body cannot be written to the end, the readers failing once they reach it.
+	 */
+	public synchronized void fail(IOException e) {
+		if (!complete && failure == null) {
+			failure = e;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * @return Whether the body has been written to the end, or has failed.
+	 */
+	public synchronized boolean isEnded() {
+		return complete || failure != null;
+	}
+
+	public synchronized long getLength() {
+		return length;
+	}
+
+	/**
+	 * @return A reader from the first byte, to be closed.
+	 */
+	public synchronized InputStream newInputStream() {
+		if (references == 0) {
+			throw new IllegalStateException("Spool closed");
+		}
+		references++;
+		return new SpoolInputStream();
+	}
+
+	/**
+	 * Release the writer's reference.
+	 */
+	@Override
+	public void close() {
+		release();
+	}
+
+	private synchronized void release() {
+		if (--references == 0) {
+			LocalIOUtils.close(fileChannel);
+			if (file != null) {
+				try {
+					Files.deleteIfExists(file);
+				} catch (IOException e) {
+					logger.warn("Cannot delete " + file, e);
+				}
+			}
+			memory = null;
+		}
+	}
+
+	/**
+	 * Wait for the bytes after <code>position</code>.
+	 *
+	 * @return The length available, <code>-1</code> at the end of a complete body.
+	 */
+	private synchronized long await(long position) throws IOException {
+		long deadline = System.currentTimeMillis() + readTimeout;
+		while (length <= position && !complete) {
+			if (failure != null) {
+				throw new IOException("The body could not be read to the end", failure);
+			}
+			long wait = readTimeout > 0 ? deadline - System.currentTimeMillis() : 0;
+			if (readTimeout > 0 && wait <= 0) {
+				throw new IOException("Timed out waiting for the body");
+			}
+			try {
+				wait(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted waiting for the body");
+			}
+		}
+		return length > position ? length : -1;
+	}
+
+	private class SpoolInputStream extends InputStream {
+
+		private long position;
+
+		private boolean closed;
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (closed) {
+				throw new IOException("Stream closed");
+			}
+			if (len == 0) {
+				return 0;
+			}
+			long available = await(position);
+			if (available < 0) {
+				return -1;
+			}
+			int count = (int) Math.min(len, available - position);
+			if (position < memoryThreshold) {
+				count = (int) Math.min(count, memoryThreshold - position);
+				synchronized (Spool.this) {
+					System.arraycopy(memory, (int) position, b, off, count);
+				}
+			} else {
+				// Positional reads do not interfere with the writes
+				count = fileChannel.read(ByteBuffer.wrap(b, off, count), position - memoryThreshold);
+			}
+			position += count;
+			return count;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(Integer.MAX_VALUE, getLength() - position);
+		}
+
+		@Override
+		public void close() {
+			if (!closed) {
+				closed = true;
+				release();
+			}
+		}
+
+	}
+
+}
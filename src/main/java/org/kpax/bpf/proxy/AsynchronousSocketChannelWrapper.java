@@ -17,16 +17,23 @@ package org.kpax.bpf.proxy;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.apache.commons.lang3.NotImplementedException;
 import org.apache.commons.lang3.Validate;
+import org.kpax.bpf.util.LocalIOUtils;
 
 /**
  * A helper class that wraps an {@link AsynchronousSocketChannel}.
+ * <p>
+ * The streams copy through direct buffers taken from a {@link BufferPool},
+ * so that the channel never needs temporary direct buffers of its own.
  * 
  * @author Eugen Covaci
  */
@@ -34,15 +41,22 @@ class AsynchronousSocketChannelWrapper implements Closeable {
 
 	private final AsynchronousSocketChannel socketChannel;
 
+	private final BufferPool bufferPool;
+
 	private final InputStream inputStream;
 
 	private final OutputStream outputStream;
 
-	public AsynchronousSocketChannelWrapper(AsynchronousSocketChannel socketChannel) {
+	private final WritableByteChannel writableChannel;
+
+	public AsynchronousSocketChannelWrapper(AsynchronousSocketChannel socketChannel, BufferPool bufferPool) {
 		Validate.notNull(socketChannel, "socketChannel cannot be null");
+		Validate.notNull(bufferPool, "bufferPool cannot be null");
 		this.socketChannel = socketChannel;
+		this.bufferPool = bufferPool;
 		inputStream = new SocketChannelInputStream();
 		outputStream = new SocketChannelOutputStream();
+		writableChannel = new SocketWritableChannel();
 	}
 
 	public AsynchronousSocketChannel getSocketChannel() {
@@ -57,11 +71,40 @@ class AsynchronousSocketChannelWrapper implements Closeable {
 		return outputStream;
 	}
 
+	/**
+	 * @return A channel writing the given buffers as they are, like the memory-mapped ones,
+	 * without copying them. Closing it closes the socket channel.
+	 */
+	public WritableByteChannel getWritableChannel() {
+		return writableChannel;
+	}
+
 	@Override
 	public void close() throws IOException {
 		socketChannel.close();
 	}
 
+	/**
+	 * Wait for the I/O operation using <code>pooledBuffer</code>, if any, to complete.
+	 */
+	private int await(Future<Integer> future, PooledBuffer pooledBuffer) throws IOException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			// The operation may still be pending, the buffer cannot be recycled
+			if (pooledBuffer != null) {
+				pooledBuffer.discard();
+			}
+			LocalIOUtils.close(socketChannel);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for socket channel");
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+	}
+
 	private class SocketChannelInputStream extends InputStream {
 
 		@Override
@@ -71,15 +114,19 @@ class AsynchronousSocketChannelWrapper implements Closeable {
 
 		@Override
 		public int read(byte[] b, int off, int len) throws IOException {
-			ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
-			try {
-				return socketChannel.read(buffer).get();
-			} catch (ExecutionException e) {
-				throw new IOException(e.getCause());
-			} catch (Exception e) {
-				throw new IOException(e);
+			if (len == 0) {
+				return 0;
+			}
+			try (PooledBuffer pooledBuffer = bufferPool.acquire(Math.min(len, BufferPool.MAX_BUFFER_SIZE))) {
+				ByteBuffer buffer = pooledBuffer.buffer();
+				buffer.limit(Math.min(len, buffer.capacity()));
+				int read = await(socketChannel.read(buffer), pooledBuffer);
+				if (read > 0) {
+					buffer.flip();
+					buffer.get(b, off, read);
+				}
+				return read;
 			}
-
 		}
 	}
 
@@ -92,15 +139,41 @@ class AsynchronousSocketChannelWrapper implements Closeable {
 
 		@Override
 		public void write(byte[] b, int off, int len) throws IOException {
-			ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
-			try {
-				socketChannel.write(buffer).get();
-			} catch (ExecutionException e) {
-				throw new IOException(e.getCause());
-			} catch (Exception e) {
-				throw new IOException(e);
+			if (len == 0) {
+				return;
+			}
+			try (PooledBuffer pooledBuffer = bufferPool.acquire(Math.min(len, BufferPool.MAX_BUFFER_SIZE))) {
+				ByteBuffer buffer = pooledBuffer.buffer();
+				int end = off + len;
+				while (off < end) {
+					buffer.clear();
+					int length = Math.min(end - off, buffer.capacity());
+					buffer.put(b, off, length).flip();
+					off += length;
+					while (buffer.hasRemaining()) {
+						await(socketChannel.write(buffer), pooledBuffer);
+					}
+				}
 			}
 		}
 	}
 
+	private class SocketWritableChannel implements WritableByteChannel {
+
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			return await(socketChannel.write(src), null);
+		}
+
+		@Override
+		public boolean isOpen() {
+			return socketChannel.isOpen();
+		}
+
+		@Override
+		public void close() throws IOException {
+			socketChannel.close();
+		}
+	}
+
 }
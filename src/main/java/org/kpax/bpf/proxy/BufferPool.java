@@ -0,0 +1,422 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * Contributors:
+ *     Eugen Covaci - initial design and implementation
+ *******************************************************************************/
+
+package org.kpax.bpf.proxy;
+
+import java.io.Closeable;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.commons.lang3.Validate;
+import org.kpax.bpf.SystemConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * A pool of direct {@link ByteBuffer}s shared by all the proxy's copy paths.
+ * <p>
+ * The buffers are grouped in power of two size classes, from {@link #MIN_BUFFER_SIZE} to {@link #MAX_BUFFER_SIZE}.
+ * A released buffer goes first to a small cache of the releasing thread, then to a global free list.
+ * The heap buffers of {@link #acquireArray(int)}, for the streams copying through <code>byte[]</code>,
+ * are pooled apart.
+ * The memory held by the pool, direct and heap buffers together, never exceeds the configured maximum:
+ * beyond it, or for capacities larger than {@link #MAX_BUFFER_SIZE}, non pooled heap buffers are handed out.
+ * <p>
+ * A {@link PooledBuffer} that is garbage collected without being released is reported as a leak
+ * and its buffer is reclaimed.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author Eugen Covaci
+ */
+@Component
+@ManagedResource(objectName = "org.kpax.bpf:type=BufferPool", description = "Pooled direct byte buffers")
+public class BufferPool implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(BufferPool.class);
+
+	public static final int MIN_BUFFER_SIZE = 4 * 1024;
+
+	public static final int MAX_BUFFER_SIZE = 128 * 1024;
+
+	/**
+	 * The maximum number of buffers per size class cached by each thread.
+	 */
+	private static final int THREAD_CACHE_SIZE = 4;
+
+	private static final int SIZE_CLASSES = Integer.numberOfTrailingZeros(MAX_BUFFER_SIZE / MIN_BUFFER_SIZE) + 1;
+
+	@Autowired
+	private SystemConfig systemConfig;
+
+	private long maxMemory;
+
+	private final Queue<ByteBuffer>[] freeLists = newQueues(SIZE_CLASSES);
+
+	/**
+	 * The free heap buffers, for the copy paths needing a <code>byte[]</code>.
+	 */
+	private final Queue<ByteBuffer>[] heapFreeLists = newQueues(SIZE_CLASSES);
+
+	private final ThreadLocal<ThreadCache> threadCaches = ThreadLocal.withInitial(this::newThreadCache);
+
+	private final Queue<ThreadCache> threadCacheRegistry = new ConcurrentLinkedQueue<>();
+
+	private final ReferenceQueue<PooledBuffer> leakQueue = new ReferenceQueue<>();
+
+	private final Set<LeakTracker> leakTrackers = ConcurrentHashMap.newKeySet();
+
+	private final AtomicLong allocatedMemory = new AtomicLong();
+
+	private final AtomicInteger outstanding = new AtomicInteger();
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	private final LongAdder unpooled = new LongAdder();
+
+	private final LongAdder leaks = new LongAdder();
+
+	public BufferPool() {
+	}
+
+	/**
+	 * @param maxMemory The maximum memory held by the pool, in bytes.
+	 */
+	public BufferPool(long maxMemory) {
+		this.maxMemory = maxMemory;
+	}
+
+	@PostConstruct
+	public void init() {
+		maxMemory = systemConfig.getBufferPoolMaxMemory();
+		logger.info("Buffer pool created with {} bytes maximum memory", maxMemory);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Queue<ByteBuffer>[] newQueues(int length) {
+		Queue<ByteBuffer>[] queues = new Queue[length];
+		for (int i = 0; i < length; i++) {
+			queues[i] = new ConcurrentLinkedQueue<>();
+		}
+		return queues;
+	}
+
+	private ThreadCache newThreadCache() {
+		ThreadCache threadCache = new ThreadCache(Thread.currentThread());
+		threadCacheRegistry.add(threadCache);
+		return threadCache;
+	}
+
+	/**
+	 * Get the size class of a capacity.
+	 *
+	 * @return The size class index, or -1 when the capacity is larger than {@link #MAX_BUFFER_SIZE}.
+	 */
+	private static int sizeClass(int capacity) {
+		if (capacity > MAX_BUFFER_SIZE) {
+			return -1;
+		}
+		if (capacity <= MIN_BUFFER_SIZE) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(capacity - 1) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+	}
+
+	/**
+	 * Acquire a cleared buffer having at least the required capacity.
+	 * The caller must release it by closing the returned {@link PooledBuffer}.
+	 *
+	 * @param capacity The minimum capacity.
+	 * @return The pooled buffer.
+	 */
+	public PooledBuffer acquire(int capacity) {
+		Validate.isTrue(capacity > 0, "capacity must be positive");
+		reclaimLeaks();
+		int sizeClass = sizeClass(capacity);
+		ByteBuffer buffer = null;
+		if (sizeClass >= 0) {
+			buffer = threadCaches.get().poll(sizeClass);
+			if (buffer == null) {
+				buffer = freeLists[sizeClass].poll();
+			}
+			if (buffer == null && reclaimDeadThreadCaches()) {
+				buffer = freeLists[sizeClass].poll();
+			}
+			if (buffer != null) {
+				hits.increment();
+			} else {
+				int size = MIN_BUFFER_SIZE << sizeClass;
+				if (reserve(size)) {
+					misses.increment();
+					buffer = ByteBuffer.allocateDirect(size);
+				} else {
+					logger.debug("Buffer pool exhausted, allocate a heap buffer");
+					sizeClass = -1;
+				}
+			}
+		}
+		if (buffer == null) {
+			unpooled.increment();
+			buffer = ByteBuffer.allocate(capacity);
+		}
+		return track(buffer, sizeClass, false);
+	}
+
+	/**
+	 * Acquire a cleared heap buffer having at least the required capacity, for the streams
+	 * reading and writing <code>byte[]</code>: its array starts at offset <code>0</code>.
+	 * The caller must release it by closing the returned {@link PooledBuffer}.
+	 *
+	 * @param capacity The minimum capacity.
+	 * @return The pooled buffer.
+	 */
+	public PooledBuffer acquireArray(int capacity) {
+		Validate.isTrue(capacity > 0, "capacity must be positive");
+		reclaimLeaks();
+		int sizeClass = sizeClass(capacity);
+		ByteBuffer buffer = null;
+		if (sizeClass >= 0) {
+			buffer = heapFreeLists[sizeClass].poll();
+			if (buffer != null) {
+				hits.increment();
+			} else {
+				int size = MIN_BUFFER_SIZE << sizeClass;
+				if (reserve(size)) {
+					misses.increment();
+					buffer = ByteBuffer.allocate(size);
+				} else {
+					logger.debug("Buffer pool exhausted, allocate a non pooled heap buffer");
+					sizeClass = -1;
+				}
+			}
+		}
+		if (buffer == null) {
+			unpooled.increment();
+			buffer = ByteBuffer.allocate(capacity);
+		}
+		return track(buffer, sizeClass, true);
+	}
+
+	private PooledBuffer track(ByteBuffer buffer, int sizeClass, boolean heap) {
+		buffer.clear();
+		outstanding.incrementAndGet();
+		PooledBuffer pooledBuffer = new PooledBuffer(this, buffer);
+		LeakTracker leakTracker = new LeakTracker(pooledBuffer, buffer, sizeClass, heap, leakQueue);
+		leakTrackers.add(leakTracker);
+		pooledBuffer.setLeakTracker(leakTracker);
+		return pooledBuffer;
+	}
+
+	private boolean reserve(int size) {
+		long current;
+		do {
+			current = allocatedMemory.get();
+			if (current + size > maxMemory) {
+				return false;
+			}
+		} while (!allocatedMemory.compareAndSet(current, current + size));
+		return true;
+	}
+
+	/**
+	 * Called by {@link PooledBuffer#close()}.
+	 */
+	void release(LeakTracker leakTracker) {
+		if (untrack(leakTracker) && leakTracker.sizeClass >= 0) {
+			ByteBuffer buffer = leakTracker.buffer;
+			buffer.clear();
+			if (leakTracker.heap) {
+				heapFreeLists[leakTracker.sizeClass].offer(buffer);
+			} else if (!threadCaches.get().offer(leakTracker.sizeClass, buffer)) {
+				freeLists[leakTracker.sizeClass].offer(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Called by {@link PooledBuffer#discard()}.
+	 */
+	void discard(LeakTracker leakTracker) {
+		if (untrack(leakTracker) && leakTracker.sizeClass >= 0) {
+			allocatedMemory.addAndGet(-leakTracker.buffer.capacity());
+		}
+	}
+
+	private boolean untrack(LeakTracker leakTracker) {
+		leakTracker.clear();
+		if (leakTrackers.remove(leakTracker)) {
+			outstanding.decrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	private void reclaimLeaks() {
+		LeakTracker leakTracker;
+		while ((leakTracker = (LeakTracker) leakQueue.poll()) != null) {
+			if (leakTrackers.remove(leakTracker)) {
+				outstanding.decrementAndGet();
+				leaks.increment();
+				logger.warn("A buffer of {} bytes has not been released before being garbage collected",
+						leakTracker.buffer.capacity());
+				if (leakTracker.sizeClass >= 0) {
+					leakTracker.buffer.clear();
+					(leakTracker.heap ? heapFreeLists : freeLists)[leakTracker.sizeClass].offer(leakTracker.buffer);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Move the buffers cached by the terminated threads to the free lists.
+	 *
+	 * @return <code>true</code> iff at least a thread cache has been reclaimed.
+	 */
+	private boolean reclaimDeadThreadCaches() {
+		boolean reclaimed = false;
+		for (Iterator<ThreadCache> itr = threadCacheRegistry.iterator(); itr.hasNext();) {
+			ThreadCache threadCache = itr.next();
+			if (!threadCache.owner.isAlive()) {
+				itr.remove();
+				threadCache.drainTo(freeLists);
+				reclaimed = true;
+			}
+		}
+		return reclaimed;
+	}
+
+	@ManagedAttribute(description = "The number of acquisitions served by a cached buffer")
+	public long getHits() {
+		return hits.sum();
+	}
+
+	@ManagedAttribute(description = "The number of acquisitions that allocated a new pooled buffer")
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	@ManagedAttribute(description = "The number of acquisitions served by a non pooled heap buffer")
+	public long getUnpooled() {
+		return unpooled.sum();
+	}
+
+	@ManagedAttribute(description = "The number of buffers garbage collected without being released")
+	public long getLeaks() {
+		reclaimLeaks();
+		return leaks.sum();
+	}
+
+	@ManagedAttribute(description = "The number of acquired buffers not released yet")
+	public int getOutstanding() {
+		return outstanding.get();
+	}
+
+	@ManagedAttribute(description = "The memory held by the pool, direct and heap buffers, in bytes")
+	public long getAllocatedMemory() {
+		return allocatedMemory.get();
+	}
+
+	@ManagedAttribute(description = "The maximum memory held by the pool, direct and heap buffers, in bytes")
+	public long getMaxMemory() {
+		return maxMemory;
+	}
+
+	@Override
+	public void close() {
+		logger.info("Buffer pool stats: hits {}, misses {}, unpooled {}, leaks {}, outstanding {}, allocated memory {}",
+				getHits(), getMisses(), getUnpooled(), getLeaks(), getOutstanding(), getAllocatedMemory());
+	}
+
+	/**
+	 * Keeps track of an acquired buffer, reachable only as long as its {@link PooledBuffer} is.
+	 */
+	static class LeakTracker extends PhantomReference<PooledBuffer> {
+
+		private final ByteBuffer buffer;
+
+		private final int sizeClass;
+
+		private final boolean heap;
+
+		private LeakTracker(PooledBuffer referent, ByteBuffer buffer, int sizeClass, boolean heap,
+				ReferenceQueue<PooledBuffer> queue) {
+			super(referent, queue);
+			this.buffer = buffer;
+			this.sizeClass = sizeClass;
+			this.heap = heap;
+		}
+
+	}
+
+	/**
+	 * The free buffers cached by a thread, accessed only by that thread
+	 * or, once it is terminated, by the reclaiming thread.
+	 */
+	private static class ThreadCache {
+
+		private final Thread owner;
+
+		private final ArrayDeque<ByteBuffer>[] queues;
+
+		@SuppressWarnings("unchecked")
+		private ThreadCache(Thread owner) {
+			this.owner = owner;
+			this.queues = new ArrayDeque[SIZE_CLASSES];
+			for (int i = 0; i < SIZE_CLASSES; i++) {
+				queues[i] = new ArrayDeque<>(THREAD_CACHE_SIZE);
+			}
+		}
+
+		private ByteBuffer poll(int sizeClass) {
+			return queues[sizeClass].poll();
+		}
+
+		private boolean offer(int sizeClass, ByteBuffer buffer) {
+			if (queues[sizeClass].size() < THREAD_CACHE_SIZE) {
+				queues[sizeClass].push(buffer);
+				return true;
+			}
+			return false;
+		}
+
+		private void drainTo(Queue<ByteBuffer>[] freeLists) {
+			for (int i = 0; i < SIZE_CLASSES; i++) {
+				ByteBuffer buffer;
+				while ((buffer = queues[i].poll()) != null) {
+					freeLists[i].offer(buffer);
+				}
+			}
+		}
+
+	}
+
+}
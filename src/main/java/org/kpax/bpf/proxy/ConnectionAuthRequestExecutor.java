@@ -0,0 +1,160 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * Contributors:
+ *     Eugen Covaci - initial design and implementation
+ *******************************************************************************/
+
+package org.kpax.bpf.proxy;
+
+import java.io.IOException;
+import java.util.Objects;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.auth.AUTH;
+import org.apache.http.auth.AuthScheme;
+import org.apache.http.auth.AuthSchemeProvider;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.AuthState;
+import org.apache.http.auth.Credentials;
+import org.apache.http.auth.MalformedChallengeException;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.config.Lookup;
+import org.apache.http.conn.routing.RouteInfo;
+import org.apache.http.impl.auth.HttpAuthenticator;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the proxy authentication state with the pooled connection it has been negotiated on.
+ * <p>
+ * Once the proxy accepts an authenticated request, the scheme's name and the user token
+ * (the principal the connection is leased for) are stored as the connection's attributes.
+ * The next requests on that connection, made for the same principal, are authenticated
+ * in advance with a fresh instance of the scheme, so the proxy has no reason to challenge them.
+ * When it still answers 407, the stored state is dropped and the regular challenge flow takes over.
+ * <p>
+ * Optionally, the requests sent on a connection without such state are authenticated in advance
+ * with a preemptive scheme (usually Negotiate), so even a new connection needs no 407 round trip.
+ *
+ * @author Eugen Covaci
+ */
+class ConnectionAuthRequestExecutor extends HttpRequestExecutor {
+
+	private static final Logger logger = LoggerFactory.getLogger(ConnectionAuthRequestExecutor.class);
+
+	static final String AUTH_SCHEME_ATTRIBUTE = "bpf.proxy-auth.scheme";
+
+	static final String AUTH_USER_TOKEN_ATTRIBUTE = "bpf.proxy-auth.user-token";
+
+	private final HttpAuthenticator authenticator = new HttpAuthenticator();
+
+	private final ProxyAuthMetrics proxyAuthMetrics;
+
+	private final String preemptiveSchemeName;
+
+	/**
+	 * @param proxyAuthMetrics     The authentication counters.
+	 * @param preemptiveSchemeName The scheme used to authenticate in advance the requests
+	 *                             sent on a connection without authentication state, <code>null</code> for none.
+	 */
+	ConnectionAuthRequestExecutor(ProxyAuthMetrics proxyAuthMetrics, String preemptiveSchemeName) {
+		this.proxyAuthMetrics = proxyAuthMetrics;
+		this.preemptiveSchemeName = preemptiveSchemeName;
+	}
+
+	@Override
+	public HttpResponse execute(HttpRequest request, HttpClientConnection conn, HttpContext context)
+			throws IOException, HttpException {
+		HttpClientContext clientContext = HttpClientContext.adapt(context);
+		RouteInfo route = clientContext.getHttpRoute();
+		AuthState proxyAuthState = clientContext.getProxyAuthState();
+		if (route == null || route.getProxyHost() == null || route.isTunnelled() || proxyAuthState == null
+				|| !(conn instanceof HttpContext)) {
+			return super.execute(request, conn, context);
+		}
+		HttpContext connectionContext = (HttpContext) conn;
+
+		boolean preemptive = !request.containsHeader(AUTH.PROXY_AUTH_RESP)
+				&& restoreAuthState(request, connectionContext, clientContext, route.getProxyHost(), proxyAuthState);
+
+		HttpResponse response = super.execute(request, conn, context);
+
+		if (response.getStatusLine().getStatusCode() == HttpStatus.SC_PROXY_AUTHENTICATION_REQUIRED) {
+			proxyAuthMetrics.challengeReceived();
+			connectionContext.removeAttribute(AUTH_SCHEME_ATTRIBUTE);
+			connectionContext.removeAttribute(AUTH_USER_TOKEN_ATTRIBUTE);
+			if (preemptive) {
+				logger.debug("Authentication in advance rejected, fall back to the challenge flow");
+				proxyAuthMetrics.preemptiveRejected();
+				proxyAuthState.reset();
+			}
+		} else if (request.containsHeader(AUTH.PROXY_AUTH_RESP) && proxyAuthState.getAuthScheme() != null) {
+			connectionContext.setAttribute(AUTH_SCHEME_ATTRIBUTE, proxyAuthState.getAuthScheme().getSchemeName());
+			connectionContext.setAttribute(AUTH_USER_TOKEN_ATTRIBUTE, clientContext.getUserToken());
+			if (preemptive) {
+				proxyAuthMetrics.challengeAvoided();
+			}
+		}
+		return response;
+	}
+
+	/**
+	 * Authenticate the request with the scheme previously accepted on this connection, if any,
+	 * otherwise with the preemptive scheme, if any.
+	 *
+	 * @return <code>true</code> iff the request has been authenticated.
+	 */
+	private boolean restoreAuthState(HttpRequest request, HttpContext connectionContext,
+			HttpClientContext clientContext, HttpHost proxy, AuthState proxyAuthState)
+			throws IOException, HttpException {
+		String schemeName = (String) connectionContext.getAttribute(AUTH_SCHEME_ATTRIBUTE);
+		if (schemeName == null
+				|| !Objects.equals(connectionContext.getAttribute(AUTH_USER_TOKEN_ATTRIBUTE), clientContext.getUserToken())) {
+			schemeName = preemptiveSchemeName;
+		}
+		if (schemeName == null) {
+			return false;
+		}
+		Lookup<AuthSchemeProvider> authSchemeRegistry = clientContext.getAuthSchemeRegistry();
+		AuthSchemeProvider authSchemeProvider = authSchemeRegistry != null ? authSchemeRegistry.lookup(schemeName) : null;
+		if (authSchemeProvider == null) {
+			return false;
+		}
+		try {
+			AuthScheme authScheme = authSchemeProvider.create(clientContext);
+			authScheme.processChallenge(new BasicHeader(AUTH.PROXY_AUTH, schemeName));
+			CredentialsProvider credentialsProvider = clientContext.getCredentialsProvider();
+			Credentials credentials = credentialsProvider != null
+					? credentialsProvider.getCredentials(new AuthScope(proxy, null, schemeName))
+					: null;
+			proxyAuthState.update(authScheme, credentials);
+			authenticator.generateAuthResponse(request, proxyAuthState, clientContext);
+		} catch (MalformedChallengeException e) {
+			logger.debug("Cannot restore the " + schemeName + " authentication state", e);
+		}
+		if (request.containsHeader(AUTH.PROXY_AUTH_RESP)) {
+			logger.debug("Request authenticated in advance with {} scheme", schemeName);
+			return true;
+		}
+		proxyAuthState.reset();
+		return false;
+	}
+
+}
@@ -16,7 +16,7 @@ package org.kpax.bpf.proxy;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.net.Socket;
+import java.nio.channels.AsynchronousSocketChannel;
 
 import javax.annotation.PostConstruct;
 
@@ -27,18 +27,20 @@ import org.apache.http.HttpException;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.ProtocolVersion;
 import org.apache.http.auth.AUTH;
+import org.apache.http.auth.AuthScheme;
 import org.apache.http.auth.AuthSchemeProvider;
+import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.AuthState;
+import org.apache.http.auth.MalformedChallengeException;
 import org.apache.http.client.config.AuthSchemes;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.client.protocol.RequestClientConnControl;
-import org.apache.http.config.ConnectionConfig;
 import org.apache.http.config.Registry;
 import org.apache.http.config.RegistryBuilder;
-import org.apache.http.conn.ManagedHttpClientConnection;
 import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.conn.routing.RouteInfo.LayerType;
 import org.apache.http.conn.routing.RouteInfo.TunnelType;
@@ -50,8 +52,8 @@ import org.apache.http.impl.auth.HttpAuthenticator;
 import org.apache.http.impl.auth.KerberosSchemeFactory;
 import org.apache.http.impl.auth.SPNegoSchemeFactory;
 import org.apache.http.impl.client.ProxyAuthenticationStrategy;
-import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory;
 import org.apache.http.impl.execchain.TunnelRefusedException;
+import org.apache.http.message.BasicHeader;
 import org.apache.http.message.BasicHttpRequest;
 import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HttpContext;
@@ -66,6 +68,7 @@ import org.apache.http.util.EntityUtils;
 import org.kpax.bpf.SystemConfig;
 import org.kpax.bpf.util.CrlfFormat;
 import org.kpax.bpf.util.HttpUtils;
+import org.kpax.bpf.util.LocalIOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -81,13 +84,28 @@ import org.springframework.stereotype.Component;
  */
 @Component
 @Scope(scopeName = ConfigurableBeanFactory.SCOPE_PROTOTYPE)
-class CustomProxyClient {
+public class CustomProxyClient {
 
 	private static final Logger logger = LoggerFactory.getLogger(CustomProxyClient.class);
 
 	@Autowired
 	private SystemConfig config;
 
+	@Autowired
+	private BufferPool bufferPool;
+
+	@Autowired
+	private ProxyContext proxyContext;
+
+	@Autowired
+	private ProxyAuthMetrics proxyAuthMetrics;
+
+	@Autowired
+	private UpstreamConnectionPool upstreamConnectionPool;
+
+	@Autowired
+	private UpstreamConnector upstreamConnector;
+
 	private HttpProcessor httpProcessor;
 	private HttpRequestExecutor requestExec;
 	private ProxyAuthenticationStrategy proxyAuthStrategy;
@@ -112,7 +130,13 @@ class CustomProxyClient {
 				.register(AuthSchemes.BASIC, new BasicSchemeFactory()).build();
 	}
 
-	public Socket tunnel(final HttpHost proxy, final HttpHost target,
+	/**
+	 * Establish a tunnel through the proxy, writing the successful CONNECT response to <code>responseStream</code>.
+	 * 
+	 * @return The connected tunnel, ready to be relayed.
+	 * @throws TunnelRefusedException when the proxy refuses the tunnel.
+	 */
+	public ProxyTunnel tunnel(final HttpHost proxy, final HttpHost target,
 			final ProtocolVersion protocolVersion, final OutputStream responseStream)
 			throws IOException, HttpException {
 		Args.notNull(proxy, "Proxy host");
@@ -124,13 +148,11 @@ class CustomProxyClient {
 		}
 		final HttpRoute route = new HttpRoute(host, RequestConfig.DEFAULT.getLocalAddress(),
 				proxy, false, TunnelType.TUNNELLED, LayerType.PLAIN);
-		final ManagedHttpClientConnection connection = ManagedHttpClientConnectionFactory.INSTANCE.create(route, ConnectionConfig.DEFAULT);
 		final HttpContext context = new BasicHttpContext();
 		final HttpRequest connect = new BasicHttpRequest(HttpUtils.HTTP_CONNECT, host.toHostString(), protocolVersion);
 
 		// Populate the execution context
 		context.setAttribute(HttpCoreContext.HTTP_TARGET_HOST, target);
-		context.setAttribute(HttpCoreContext.HTTP_CONNECTION, connection);
 		context.setAttribute(HttpCoreContext.HTTP_REQUEST, connect);
 		context.setAttribute(HttpClientContext.HTTP_ROUTE, route);
 		context.setAttribute(HttpClientContext.PROXY_AUTH_STATE, this.proxyAuthState);
@@ -140,73 +162,149 @@ class CustomProxyClient {
 
 		this.requestExec.preProcess(connect, this.httpProcessor, context);
 
-		HttpResponse response;
-		while (true) {
-			if (!connection.isOpen()) {
-				final Socket socket = HttpUtils.tuneSocket(new Socket(proxy.getHostName(),
-						proxy.getPort()), config.getSocketBufferSize());
-				connection.bind(socket);
-			}
+		// Each tunnel is a new connection, so no previous state can be reused as such
+		this.proxyAuthState.reset();
+		boolean preemptive = prepareAuthState(proxy, context);
 
-			this.authenticator.generateAuthResponse(connect, this.proxyAuthState, context);
-			response = this.requestExec.execute(connect, connection, context);
+		ProxyTunnel tunnel = null;
+		try {
+			HttpResponse response;
+			while (true) {
+				boolean standby = false;
+				if (tunnel == null || !tunnel.isOpen()) {
+					AsynchronousSocketChannel socketChannel = upstreamConnectionPool.pollChannel(proxy);
+					standby = socketChannel != null;
+					tunnel = new ProxyTunnel(standby ? socketChannel : upstreamConnector.connectChannel(proxy), bufferPool,
+							LocalIOUtils.DEFAULT_BUFFER_SIZE);
+				}
 
-			final int status = response.getStatusLine().getStatusCode();
-			logger.debug("Tunnel status code: {}", status);
-			if (status < 200) {
-				throw new HttpException("Unexpected response to CONNECT request: " + response.getStatusLine());
-			}
+				this.authenticator.generateAuthResponse(connect, this.proxyAuthState, context);
+				try {
+					response = tunnel.execute(connect);
+				} catch (IOException e) {
+					if (!standby) {
+						throw e;
+					}
+					// The proxy dropped the standby connection meanwhile, retry on a new one
+					logger.debug("Standby connection failed, retry on a new connection", e);
+					tunnel.close();
+					connect.removeHeaders(AUTH.PROXY_AUTH_RESP);
+					this.proxyAuthState.reset();
+					preemptive = prepareAuthState(proxy, context);
+					continue;
+				}
 
-			if (this.authenticator.isAuthenticationRequested(proxy, response, this.proxyAuthStrategy, this.proxyAuthState, context)) {
-				if (this.authenticator.handleAuthChallenge(proxy, response, this.proxyAuthStrategy, this.proxyAuthState, context)) {
-					// Retry request
-					if (this.reuseStrategy.keepAlive(response, context)) {
-						// Consume response content
-						logger.debug("Now consume entity");
-						EntityUtils.consume(response.getEntity());
+				final int status = response.getStatusLine().getStatusCode();
+				logger.debug("Tunnel status code: {}", status);
+				if (status < 200) {
+					throw new HttpException("Unexpected response to CONNECT request: " + response.getStatusLine());
+				}
+
+				if (status == HttpStatus.SC_PROXY_AUTHENTICATION_REQUIRED) {
+					proxyAuthMetrics.challengeReceived();
+					if (preemptive) {
+						logger.debug("Authentication in advance rejected, fall back to the challenge flow");
+						proxyAuthMetrics.preemptiveRejected();
+						proxyContext.setTunnelAuthScheme(proxy, null);
+						// Otherwise the scheme that was just rejected takes the challenge as a failure
+						this.proxyAuthState.reset();
+						preemptive = false;
+					}
+				}
+
+				if (this.authenticator.isAuthenticationRequested(proxy, response, this.proxyAuthStrategy, this.proxyAuthState, context)) {
+					if (this.authenticator.handleAuthChallenge(proxy, response, this.proxyAuthStrategy, this.proxyAuthState, context)) {
+						// Retry request
+						if (this.reuseStrategy.keepAlive(response, context)) {
+							// Consume response content
+							logger.debug("Now consume entity");
+							EntityUtils.consume(response.getEntity());
+						} else {
+							logger.debug("Close tunnel connection");
+							tunnel.close();
+						}
+						// discard previous auth header
+						connect.removeHeaders(AUTH.PROXY_AUTH_RESP);
 					} else {
-						logger.debug("Close tunnel connection");
-						connection.close();
+						break;
 					}
-					// discard previous auth header
-					connect.removeHeaders(AUTH.PROXY_AUTH_RESP);
 				} else {
 					break;
 				}
-			} else {
-				break;
+
 			}
 
-		}
+			final int status = response.getStatusLine().getStatusCode();
+			logger.debug("Tunnel final status code: {}", status);
 
-		final int status = response.getStatusLine().getStatusCode();
-		logger.debug("Tunnel final status code: {}", status);
+			if (status < 300 && connect.containsHeader(AUTH.PROXY_AUTH_RESP)
+					&& this.proxyAuthState.getAuthScheme() != null) {
+				proxyContext.setTunnelAuthScheme(proxy, this.proxyAuthState.getAuthScheme().getSchemeName());
+				if (preemptive) {
+					proxyAuthMetrics.challengeAvoided();
+				}
+			}
 
-		if (status > 299) { // Error case
+			if (status > 299) { // Error case
 
-			// Buffer response content
-			final HttpEntity entity = response.getEntity();
-			if (entity != null) {
-				response.setEntity(new BufferedHttpEntity(entity));
+				// Buffer response content
+				final HttpEntity entity = response.getEntity();
+				if (entity != null) {
+					response.setEntity(new BufferedHttpEntity(entity));
+				}
+				throw new TunnelRefusedException("CONNECT refused by proxy: " + response.getStatusLine(), response);
 			}
-			logger.debug("Close tunnel connection");
-			connection.close();
-			throw new TunnelRefusedException("CONNECT refused by proxy: " + response.getStatusLine(), response);
-		}
 
-		// Write the status line
-		responseStream.write(CrlfFormat.crlf(response.getStatusLine().toString()));
+			// Write the status line
+			responseStream.write(CrlfFormat.crlf(response.getStatusLine().toString()));
+
+			logger.debug("Start writing tunnel response headers");
+			for (Header header : response.getAllHeaders()) {
+				String strHeader = header.toString();
+				logger.debug("Write response tunnel header: {}", strHeader);
+				responseStream.write(CrlfFormat.crlf(strHeader));
+			}
 
-		logger.debug("Start writing tunnel response headers");
-		for (Header header : response.getAllHeaders()) {
-			String strHeader = header.toString();
-			logger.debug("Write response tunnel header: {}", strHeader);
-			responseStream.write(CrlfFormat.crlf(strHeader));
+			// Empty line
+			responseStream.write(CrlfFormat.CRLF.getBytes());
+			return tunnel;
+		} catch (IOException | HttpException | RuntimeException e) {
+			logger.debug("Close tunnel connection");
+			LocalIOUtils.close(tunnel);
+			throw e;
 		}
+	}
 
-		// Empty line
-		responseStream.write(CrlfFormat.CRLF.getBytes());
-		return connection.getSocket();
+	/**
+	 * Prepare the authentication state so that the first CONNECT attempt is already authenticated,
+	 * with the scheme the proxy accepted last time or, in preemptive mode, with Negotiate.
+	 *
+	 * @return <code>true</code> iff the authentication state has been prepared.
+	 */
+	private boolean prepareAuthState(HttpHost proxy, HttpContext context) {
+		String schemeName = proxyContext.getTunnelAuthScheme(proxy);
+		if (schemeName == null && config.isPreemptiveAuthEnabled()) {
+			schemeName = AuthSchemes.SPNEGO;
+		}
+		if (schemeName == null) {
+			return false;
+		}
+		AuthSchemeProvider authSchemeProvider = this.authSchemeRegistry.lookup(schemeName);
+		if (authSchemeProvider == null) {
+			return false;
+		}
+		try {
+			AuthScheme authScheme = authSchemeProvider.create(context);
+			authScheme.processChallenge(new BasicHeader(AUTH.PROXY_AUTH, schemeName));
+			this.proxyAuthState.update(authScheme, ProxyContext.NO_CREDENTIALS_PROVIDER
+					.getCredentials(new AuthScope(proxy, null, schemeName)));
+			logger.debug("Authenticate the CONNECT request in advance with {} scheme", schemeName);
+			return true;
+		} catch (MalformedChallengeException e) {
+			logger.debug("Cannot prepare the " + schemeName + " authentication state", e);
+			this.proxyAuthState.reset();
+			return false;
+		}
 	}
 
 }
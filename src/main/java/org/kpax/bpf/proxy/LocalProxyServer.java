@@ -17,16 +17,19 @@ package org.kpax.bpf.proxy;
 import java.io.Closeable;
 import java.net.InetSocketAddress;
 import java.net.StandardSocketOptions;
+import java.nio.channels.AsynchronousChannelGroup;
 import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.AsynchronousServerSocketChannel;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
 import java.security.GeneralSecurityException;
+import java.util.concurrent.Executors;
 
 import org.kpax.bpf.SystemConfig;
 import org.kpax.bpf.UserConfig;
 import org.kpax.bpf.auth.AuthenticationManager;
 import org.kpax.bpf.exception.CommandExecutionException;
+import org.kpax.bpf.exception.InvalidConfigException;
 import org.kpax.bpf.exception.InvalidKdcException;
 import org.kpax.bpf.exception.KdcNotFoundException;
 import org.slf4j.Logger;
@@ -57,6 +60,17 @@ public class LocalProxyServer implements Closeable {
     @Autowired
     private AuthenticationManager authenticationManager;
 
+    @Autowired
+    private UpstreamConnectionPool upstreamConnectionPool;
+
+    @Autowired
+    private UpstreamProxies upstreamProxies;
+
+    @Autowired
+    private Router router;
+
+    private AsynchronousChannelGroup channelGroup;
+
     private AsynchronousServerSocketChannel serverSocket;
 
     private boolean started;
@@ -69,6 +83,7 @@ public class LocalProxyServer implements Closeable {
      * @throws KdcNotFoundException      when no KDC server is found.
      * @throws CommandExecutionException when getting KDC server list failed.
      * @throws InvalidKdcException       when at least one KDC server is found but it is not valid.
+     * @throws InvalidConfigException    when the routing rules are not valid.
      * @throws Exception
      */
     public synchronized void start()
@@ -78,8 +93,20 @@ public class LocalProxyServer implements Closeable {
         }
         logger.info("Start local proxy server with userConfig {}", userConfig);
         try {
+            router.load();
+
+            // Explicitly asked by the user, do not wait for a previous failure's backoff
+            authenticationManager.clearLoginFailure();
             authenticationManager.authenticate();
-            serverSocket = AsynchronousServerSocketChannel.open()
+
+            // The event loop threads only read and parse the request heads,
+            // the requests are processed by the ProxyContext's threads
+            int eventLoopThreads = systemConfig.getEventLoopThreads() > 0
+                    ? systemConfig.getEventLoopThreads() : Runtime.getRuntime().availableProcessors();
+            logger.info("Create channel group with {} event loop threads", eventLoopThreads);
+            channelGroup = AsynchronousChannelGroup.withFixedThreadPool(eventLoopThreads,
+                    Executors.defaultThreadFactory());
+            serverSocket = AsynchronousServerSocketChannel.open(channelGroup)
                     .bind(new InetSocketAddress(userConfig.getLocalPort()));
             serverSocket.accept(null, new CompletionHandler<AsynchronousSocketChannel, Void>() {
                 public void completed(AsynchronousSocketChannel socketChanel, Void att) {
@@ -97,7 +124,7 @@ public class LocalProxyServer implements Closeable {
                                                 systemConfig.getServerSocketBufferSize())
                                         .setOption(StandardSocketOptions.SO_SNDBUF,
                                                 systemConfig.getServerSocketBufferSize()))
-                                .handleRequest();
+                                .handleConnection();
                     } catch (Exception e) {
                         logger.error("Error on handling connection", e);
                     }
@@ -109,6 +136,8 @@ public class LocalProxyServer implements Closeable {
                     }
                 }
             });
+            upstreamProxies.start();
+            upstreamConnectionPool.start();
             started = true;
             logger.info("Server started, listening on port: " + userConfig.getLocalPort());
         } catch (Exception e) {
@@ -120,6 +149,9 @@ public class LocalProxyServer implements Closeable {
                     logger.warn("Error on closing server socket", e1);
                 }
             }
+            if (channelGroup != null) {
+                channelGroup.shutdownNow();
+            }
             throw e;
         }
     }
@@ -134,6 +166,15 @@ public class LocalProxyServer implements Closeable {
                 logger.warn("Error on closing server socket", e);
             }
         }
+        if (channelGroup != null) {
+            try {
+                channelGroup.shutdownNow();
+            } catch (Exception e) {
+                logger.warn("Error on closing channel group", e);
+            }
+        }
+        upstreamConnectionPool.close();
+        upstreamProxies.close();
     }
 
     public boolean isStarted() {
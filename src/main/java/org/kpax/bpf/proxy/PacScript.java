@@ -0,0 +1,420 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * Contributors:
+ *     Eugen Covaci - initial design and implementation
+ *******************************************************************************/
+
+package org.kpax.bpf.proxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.script.Compilable;
+import javax.script.Invocable;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpHost;
+import org.kpax.bpf.SystemConfig;
+import org.kpax.bpf.exception.InvalidConfigException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Evaluates the <code>FindProxyForURL</code> function of a Proxy Auto-Config file,
+ * for the requests the routing rules do not decide (see {@link Router}).
+ * <p>
+ * The script engines are not thread-safe, so a few of them are kept in a pool,
+ * each one with the script already compiled and evaluated.
+ * The script gets the URL a browser would pass: without the default port,
+ * and with a path only for the plain HTTP requests, the tunnels' one being unknown.
+ * The decisions are cached by scheme, host and port, unless the path is asked to be part of the key
+ * for the scripts routing on it.
+ * <p>
+ * Only the <code>PROXY</code> and <code>DIRECT</code> results are supported:
+ * the <code>SOCKS</code> entries are skipped and a <code>DIRECT</code> after some proxies is ignored,
+ * the failover among the proxies being already done by {@link UpstreamProxies}.
+ *
+ * @author Eugen Covaci
+ */
+@Component
+@ManagedResource(objectName = "org.kpax.bpf:type=PacScript", description = "Proxy Auto-Config script")
+public class PacScript {
+
+	private static final Logger logger = LoggerFactory.getLogger(PacScript.class);
+
+	/**
+	 * The predefined functions of the PAC scripts.
+	 */
+	private static final String UTILS_RESOURCE = "pac_utils.js";
+
+	/**
+	 * The port of a <code>PROXY</code> result without one, as the browsers do.
+	 */
+	private static final int DEFAULT_PROXY_PORT = 80;
+
+	@Autowired
+	private SystemConfig systemConfig;
+
+	private String pacFile;
+
+	private int engines;
+
+	private int cacheSize;
+
+	private long cacheTtl;
+
+	private boolean cacheByPath;
+
+	/**
+	 * The engines ready to evaluate <code>FindProxyForURL</code>, <code>null</code> when there is no PAC file.
+	 */
+	private volatile BlockingQueue<Invocable> pool;
+
+	private Map<String, Decision> decisions;
+
+	/**
+	 * The proxies returned by the script so far, replaced on each addition.
+	 */
+	private volatile List<HttpHost> proxies = Collections.emptyList();
+
+	private final LongAdder evaluations = new LongAdder();
+
+	private final LongAdder cacheHits = new LongAdder();
+
+	private final LongAdder errors = new LongAdder();
+
+	public PacScript() {
+	}
+
+	/**
+	 * @param pacFile   The PAC file, empty for none.
+	 * @param engines   The number of script engines.
+	 * @param cacheSize The maximum number of cached decisions.
+	 * @param cacheTtl  How long a decision is cached, in seconds.
+	 */
+	public PacScript(String pacFile, int engines, int cacheSize, long cacheTtl) {
+		this(pacFile, engines, cacheSize, cacheTtl, false);
+	}
+
+	/**
+	 * @param pacFile     The PAC file, empty for none.
+	 * @param engines     The number of script engines.
+	 * @param cacheSize   The maximum number of cached decisions.
+	 * @param cacheTtl    How long a decision is cached, in seconds.
+	 * @param cacheByPath Whether the decisions are cached by the whole URL, path included.
+	 */
+	public PacScript(String pacFile, int engines, int cacheSize, long cacheTtl, boolean cacheByPath) {
+		this.pacFile = pacFile;
+		this.engines = engines;
+		this.cacheSize = cacheSize;
+		this.cacheTtl = cacheTtl;
+		this.cacheByPath = cacheByPath;
+		createCache();
+	}
+
+	@PostConstruct
+	public void init() {
+		pacFile = systemConfig.getPacFile();
+		engines = systemConfig.getPacEngines();
+		cacheSize = systemConfig.getPacCacheSize();
+		cacheTtl = systemConfig.getPacCacheTtl();
+		cacheByPath = systemConfig.isPacCacheByPath();
+		createCache();
+	}
+
+	private void createCache() {
+		decisions = Collections.synchronizedMap(new LinkedHashMap<String, Decision>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Decision> eldest) {
+				return size() > cacheSize;
+			}
+
+		});
+	}
+
+	/**
+	 * Load the PAC file again, if any.
+	 *
+	 * @throws InvalidConfigException when the file cannot be read or evaluated.
+	 */
+	public synchronized void load() {
+		decisions.clear();
+		if (StringUtils.isBlank(pacFile)) {
+			pool = null;
+			return;
+		}
+		File file = new File(pacFile);
+		try {
+			String script = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+			String utils;
+			try (InputStream in = PacScript.class.getResourceAsStream(UTILS_RESOURCE);
+					Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+				utils = IOUtils.toString(reader);
+			}
+			BlockingQueue<Invocable> loaded = new ArrayBlockingQueue<>(Math.max(engines, 1));
+			for (int i = 0; i < Math.max(engines, 1); i++) {
+				loaded.add(createEngine(utils, script));
+			}
+			pool = loaded;
+			logger.info("Loaded the PAC file {}", file.getAbsolutePath());
+		} catch (IOException | ScriptException e) {
+			throw new InvalidConfigException("Cannot load the PAC file " + pacFile + ": " + e.getMessage(), e);
+		}
+	}
+
+	private Invocable createEngine(String utils, String script) throws ScriptException {
+		ScriptEngine engine = new ScriptEngineManager().getEngineByName("javascript");
+		if (!(engine instanceof Compilable) || !(engine instanceof Invocable)) {
+			throw new InvalidConfigException("No JavaScript engine available for the PAC file");
+		}
+		engine.put("pacDns", new PacDns());
+		((Compilable) engine).compile(utils).eval();
+		((Compilable) engine).compile(script).eval();
+		if (engine.get("FindProxyForURL") == null) {
+			throw new ScriptException("FindProxyForURL is not defined");
+		}
+		return (Invocable) engine;
+	}
+
+	public boolean isEnabled() {
+		return pool != null;
+	}
+
+	/**
+	 * Find the route of a request without path, like a tunnel, with the PAC file.
+	 *
+	 * @see #route(String, String, int, String)
+	 */
+	public Route route(String scheme, String host, int port) {
+		return route(scheme, host, port, "/");
+	}
+
+	/**
+	 * Find the route of a request with the PAC file.
+	 *
+	 * @param scheme The scheme of the request.
+	 * @param host   The destination host.
+	 * @param port   The destination port.
+	 * @param path   The path of the request, with the query if any.
+	 * @return The route, {@link Route#DEFAULT} when there is no PAC file or it fails.
+	 */
+	public Route route(String scheme, String host, int port, String path) {
+		BlockingQueue<Invocable> current = pool;
+		if (current == null) {
+			return Route.DEFAULT;
+		}
+		int defaultPort = "https".equalsIgnoreCase(scheme) ? 443 : 80;
+		String origin = scheme + "://" + host + (port == defaultPort ? "" : ":" + port);
+		String url = origin + path;
+		String key = cacheByPath ? url : origin;
+		long now = System.currentTimeMillis();
+		Decision decision = decisions.get(key);
+		if (decision != null && decision.expiresAt > now) {
+			cacheHits.increment();
+			return decision.route;
+		}
+		Route route = evaluate(current, url, host);
+		if (route != null) {
+			decisions.put(key, new Decision(route, now + TimeUnit.SECONDS.toMillis(cacheTtl)));
+			return route;
+		}
+		return Route.DEFAULT;
+	}
+
+	/**
+	 * @return The route for this URL, <code>null</code> when the script fails.
+	 */
+	private Route evaluate(BlockingQueue<Invocable> current, String url, String host) {
+		evaluations.increment();
+		Invocable engine;
+		try {
+			engine = current.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		Object result;
+		try {
+			result = engine.invokeFunction("FindProxyForURL", url, host);
+		} catch (ScriptException | NoSuchMethodException | RuntimeException e) {
+			errors.increment();
+			logger.warn("FindProxyForURL failed for {}: {}", url, e.getMessage());
+			return null;
+		} finally {
+			current.add(engine);
+		}
+		Route route = parse(result != null ? result.toString() : "");
+		if (route == null) {
+			errors.increment();
+			logger.warn("Unsupported FindProxyForURL result for {}: {}", url, result);
+		} else {
+			logger.debug("FindProxyForURL {} returned {}", url, result);
+		}
+		return route;
+	}
+
+	/**
+	 * Parse a result like <code>PROXY proxy1:8080; PROXY proxy2:8080; DIRECT</code>.
+	 *
+	 * @return The route, <code>null</code> when there is no usable entry.
+	 */
+	private Route parse(String result) {
+		List<HttpHost> routeProxies = new ArrayList<>();
+		for (String entry : result.split(";")) {
+			String[] tokens = entry.trim().split("\\s+");
+			String type = tokens[0].toUpperCase(Locale.ROOT);
+			if (type.isEmpty() || type.equals("DIRECT")) {
+				if (routeProxies.isEmpty()) {
+					return Route.DIRECT;
+				}
+				break;
+			}
+			if ((type.equals("PROXY") || type.equals("HTTP")) && tokens.length > 1) {
+				HttpHost proxy = toProxy(tokens[1]);
+				if (proxy != null && !routeProxies.contains(proxy)) {
+					routeProxies.add(proxy);
+				}
+			}
+		}
+		if (routeProxies.isEmpty()) {
+			return null;
+		}
+		addProxies(routeProxies);
+		return Route.proxy(routeProxies);
+	}
+
+	private static HttpHost toProxy(String hostPort) {
+		int colon = hostPort.lastIndexOf(':');
+		if (colon < 0 || hostPort.endsWith("]")) {
+			return new HttpHost(hostPort, DEFAULT_PROXY_PORT);
+		}
+		String port = hostPort.substring(colon + 1);
+		if (!StringUtils.isNumeric(port) || port.isEmpty() || port.length() > 5) {
+			return null;
+		}
+		return new HttpHost(hostPort.substring(0, colon), Integer.parseInt(port));
+	}
+
+	private synchronized void addProxies(List<HttpHost> routeProxies) {
+		if (!proxies.containsAll(routeProxies)) {
+			List<HttpHost> added = new ArrayList<>(proxies);
+			for (HttpHost proxy : routeProxies) {
+				if (!added.contains(proxy)) {
+					added.add(proxy);
+				}
+			}
+			proxies = Collections.unmodifiableList(added);
+		}
+	}
+
+	/**
+	 * @return The proxies returned by the script so far, another instance once a new one is returned.
+	 */
+	List<HttpHost> getProxies() {
+		return proxies;
+	}
+
+	@ManagedAttribute(description = "The number of FindProxyForURL calls")
+	public long getEvaluations() {
+		return evaluations.sum();
+	}
+
+	@ManagedAttribute(description = "The number of decisions taken from the cache")
+	public long getCacheHits() {
+		return cacheHits.sum();
+	}
+
+	@ManagedAttribute(description = "The number of failed or unsupported FindProxyForURL calls")
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	@ManagedAttribute(description = "The number of cached decisions")
+	public int getCachedDecisions() {
+		return decisions.size();
+	}
+
+	private static final class Decision {
+
+		private final Route route;
+
+		private final long expiresAt;
+
+		private Decision(Route route, long expiresAt) {
+			this.route = route;
+			this.expiresAt = expiresAt;
+		}
+
+	}
+
+	/**
+	 * The DNS functions of the PAC scripts, bound as <code>pacDns</code>.
+	 */
+	public static final class PacDns {
+
+		/**
+		 * @return The first IPv4 address of the host, else its first address, <code>null</code> when it cannot be resolved.
+		 */
+		public String dnsResolve(String host) {
+			try {
+				InetAddress[] addresses = InetAddress.getAllByName(host);
+				for (InetAddress address : addresses) {
+					if (address instanceof Inet4Address) {
+						return address.getHostAddress();
+					}
+				}
+				return addresses[0].getHostAddress();
+			} catch (UnknownHostException e) {
+				return null;
+			}
+		}
+
+		public String myIpAddress() {
+			try {
+				return InetAddress.getLocalHost().getHostAddress();
+			} catch (UnknownHostException e) {
+				return "127.0.0.1";
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * Contributors:
+ *     Eugen Covaci - initial design and implementation
+ *******************************************************************************/
+
+package org.kpax.bpf.proxy;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A buffer acquired from a {@link BufferPool}.
+ * <p>
+ * Keep a reference to this object as long as the buffer is in use,
+ * then close it to give the buffer back to the pool.
+ *
+ * @author Eugen Covaci
+ */
+public final class PooledBuffer implements Closeable {
+
+	private final BufferPool bufferPool;
+
+	private final ByteBuffer buffer;
+
+	private final AtomicBoolean released = new AtomicBoolean();
+
+	private BufferPool.LeakTracker leakTracker;
+
+	PooledBuffer(BufferPool bufferPool, ByteBuffer buffer) {
+		this.bufferPool = bufferPool;
+		this.buffer = buffer;
+	}
+
+	void setLeakTracker(BufferPool.LeakTracker leakTracker) {
+		this.leakTracker = leakTracker;
+	}
+
+	public ByteBuffer buffer() {
+		if (released.get()) {
+			throw new IllegalStateException("Buffer already released");
+		}
+		return buffer;
+	}
+
+	/**
+	 * Give up the buffer without recycling it, when it might still be used by a pending I/O operation.
+	 */
+	public void discard() {
+		if (released.compareAndSet(false, true)) {
+			bufferPool.discard(leakTracker);
+		}
+	}
+
+	/**
+	 * Give the buffer back to the pool. Calling it more than once has no effect.
+	 */
+	@Override
+	public void close() {
+		if (released.compareAndSet(false, true)) {
+			bufferPool.release(leakTracker);
+		}
+	}
+
+}
@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * Contributors:
+ *     Eugen Covaci - initial design and implementation
+ *******************************************************************************/
+
+package org.kpax.bpf.proxy;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Counters of the authentication round trips with the remote proxy.
+ *
+ * @author Eugen Covaci
+ */
+@Component
+@ManagedResource(objectName = "org.kpax.bpf:type=ProxyAuthMetrics", description = "Remote proxy authentication")
+public class ProxyAuthMetrics {
+
+	private final LongAdder challenges = new LongAdder();
+
+	private final LongAdder challengesAvoided = new LongAdder();
+
+	private final LongAdder preemptiveRejected = new LongAdder();
+
+	/**
+	 * A 407 response has been received from the proxy.
+	 */
+	void challengeReceived() {
+		challenges.increment();
+	}
+
+	/**
+	 * A request authenticated in advance, without waiting for a challenge, has been accepted by the proxy.
+	 */
+	void challengeAvoided() {
+		challengesAvoided.increment();
+	}
+
+	/**
+	 * A request authenticated in advance has been answered with 407 anyway.
+	 */
+	void preemptiveRejected() {
+		preemptiveRejected.increment();
+	}
+
+	@ManagedAttribute(description = "The number of 407 responses received from the proxy")
+	public long getChallenges() {
+		return challenges.sum();
+	}
+
+	@ManagedAttribute(description = "The number of 407 round trips avoided by authenticating in advance")
+	public long getChallengesAvoided() {
+		return challengesAvoided.sum();
+	}
+
+	@ManagedAttribute(description = "The number of requests authenticated in advance but still challenged")
+	public long getPreemptiveRejected() {
+		return preemptiveRejected.sum();
+	}
+
+}
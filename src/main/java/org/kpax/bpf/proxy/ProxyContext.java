@@ -15,18 +15,23 @@
 package org.kpax.bpf.proxy;
 
 import java.io.Closeable;
+import java.security.AccessController;
 import java.security.Principal;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Future;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PostConstruct;
+import javax.security.auth.Subject;
 
 import org.apache.http.HeaderElement;
 import org.apache.http.HeaderElementIterator;
@@ -37,19 +42,25 @@ import org.apache.http.auth.Credentials;
 import org.apache.http.client.CredentialsProvider;
 import org.apache.http.client.config.AuthSchemes;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.config.RegistryBuilder;
 import org.apache.http.config.SocketConfig;
 import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.client.ProxyAuthenticationStrategy;
+import org.apache.http.impl.conn.DefaultRoutePlanner;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.message.BasicHeaderElementIterator;
 import org.apache.http.protocol.HTTP;
 import org.apache.http.protocol.HttpContext;
 import org.kpax.bpf.SystemConfig;
 import org.kpax.bpf.UserConfig;
+import org.kpax.bpf.util.LocalIOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -71,13 +82,31 @@ public class ProxyContext implements Closeable {
 	@Autowired
 	private UserConfig userConfig;
 
+	@Autowired
+	private ProxyAuthMetrics proxyAuthMetrics;
+
+	@Autowired
+	private UpstreamConnectionPool upstreamConnectionPool;
+
+	@Autowired
+	private UpstreamConnector upstreamConnector;
+
 	private ThreadPoolExecutor threadPool;
 
 	private PoolingHttpClientConnectionManager connectionManager;
 
 	private volatile SocketConfig socketConfig;
 
-	private volatile RequestConfig proxyRequestConfig;
+	private volatile SharedHttpClients httpClients;
+
+	private CloseableHttpClient directHttpClient;
+
+	private final ConnectionKeepAliveStrategy keepAliveStrategy = new CustomConnectionKeepAliveStrategy();
+
+	/**
+	 * The authentication scheme last accepted by each proxy for a CONNECT request.
+	 */
+	private final ConcurrentMap<HttpHost, String> tunnelAuthSchemes = new ConcurrentHashMap<>();
 
 	private Timer connectionEvictionTimer;
 
@@ -87,7 +116,10 @@ public class ProxyContext implements Closeable {
 		threadPool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS, new SynchronousQueue<>());
 
 		logger.info("Create pooling connection manager");
-		connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager = new PoolingHttpClientConnectionManager(RegistryBuilder.<ConnectionSocketFactory>create()
+				.register("http", upstreamConnectionPool.socketFactory())
+				.register("https", SSLConnectionSocketFactory.getSocketFactory())
+				.build(), upstreamConnector.dnsResolver());
 
 		logger.info("Configure connection manager");
 		if (systemConfig.getMaxConnections() != null) {
@@ -97,6 +129,17 @@ public class ProxyContext implements Closeable {
 			connectionManager.setDefaultMaxPerRoute(systemConfig.getMaxConnectionsPerRoute());
 		}
 
+		// No proxy, not even the system's one, for the requests routed DIRECT
+		directHttpClient = HttpClients.custom()
+				.setRoutePlanner(new DefaultRoutePlanner(null))
+				.setDefaultSocketConfig(getSocketConfig())
+				.setConnectionManager(connectionManager)
+				.setConnectionManagerShared(true)
+				.setKeepAliveStrategy(keepAliveStrategy)
+				.disableRedirectHandling()
+				.disableCookieManagement()
+				.build();
+
 		if (systemConfig.isEvictionEnabled()) {
 			logger.info("Create connection eviction timer");
 			connectionEvictionTimer = new Timer();
@@ -106,22 +149,118 @@ public class ProxyContext implements Closeable {
 		logger.info("Done proxy context's initialization");
 	}
 
-	public CloseableHttpClient getHttpClientBuilder(boolean retries) {
-		HttpClientBuilder builder = HttpClients.custom().useSystemProperties()
+	/**
+	 * Get the shared HTTP client, built once per proxy settings.
+	 * The returned client is thread safe and must not be closed by the caller.
+	 *
+	 * @param retries Whether the client should automatically retry the failed requests.
+	 * @return The HTTP client.
+	 */
+	public CloseableHttpClient getHttpClient(boolean retries) {
+		SharedHttpClients clients = getHttpClients();
+		return retries ? clients.retryingClient : clients.nonRetryingClient;
+	}
+
+	/**
+	 * Get the shared HTTP client for the requests sent straight to their destination
+	 * (see {@link Route#DIRECT}), to be used with a context made by <code>newHttpClientContext(null)</code>.
+	 * The returned client is thread safe and must not be closed by the caller.
+	 *
+	 * @return The HTTP client.
+	 */
+	public CloseableHttpClient getDirectHttpClient() {
+		return directHttpClient;
+	}
+
+	private SharedHttpClients getHttpClients() {
+		SharedHttpClients clients = httpClients;
+		if (clients == null || !clients.matches(userConfig.getProxyHost(), userConfig.getProxyPort())) {
+			synchronized (this) {
+				clients = httpClients;
+				if (clients == null || !clients.matches(userConfig.getProxyHost(), userConfig.getProxyPort())) {
+					SharedHttpClients previous = clients;
+					clients = createHttpClients(userConfig.getProxyHost(), userConfig.getProxyPort());
+					httpClients = clients;
+					if (previous != null) {
+						// Only the clients are closed, the connection manager is shared
+						logger.info("Proxy settings changed, close the previous HTTP clients");
+						LocalIOUtils.close(previous.retryingClient, previous.nonRetryingClient);
+					}
+				}
+			}
+		}
+		return clients;
+	}
+
+	private SharedHttpClients createHttpClients(String proxyHost, int proxyPort) {
+		logger.info("Create HTTP clients for proxies {}", proxyHost);
+
+		// Each request goes through the proxy chosen for it (see newHttpClientContext),
+		// this one is only the default
+		List<HttpHost> proxies = userConfig.getProxyHosts();
+		RequestConfig requestConfig = createProxyRequestConfig(proxies.isEmpty() ? null : proxies.get(0));
+		return new SharedHttpClients(proxyHost, proxyPort, requestConfig,
+				createHttpClientBuilder(requestConfig).build(),
+				createHttpClientBuilder(requestConfig).disableAutomaticRetries().build());
+	}
+
+	private HttpClientBuilder createHttpClientBuilder(RequestConfig requestConfig) {
+		return HttpClients.custom().useSystemProperties()
 				.setDefaultCredentialsProvider(NO_CREDENTIALS_PROVIDER)
 				.setProxyAuthenticationStrategy(new ProxyAuthenticationStrategy())
-				.setProxy(getProxyRequestConfig().getProxy())
-				.setDefaultRequestConfig(getProxyRequestConfig())
+				.setProxy(requestConfig.getProxy())
+				.setDefaultRequestConfig(requestConfig)
 				.setDefaultSocketConfig(getSocketConfig())
 				.setConnectionManager(connectionManager)
 				.setConnectionManagerShared(true)
-				.setKeepAliveStrategy(new CustomConnectionKeepAliveStrategy())
+				.setKeepAliveStrategy(keepAliveStrategy)
+				.setRequestExecutor(new ConnectionAuthRequestExecutor(proxyAuthMetrics,
+						systemConfig.isPreemptiveAuthEnabled() ? AuthSchemes.SPNEGO : null))
 				.disableRedirectHandling()
 				.disableCookieManagement();
-		if (!retries) {
-			builder.disableAutomaticRetries();
+	}
+
+	/**
+	 * Create the execution context of a request made on behalf of the current {@link Subject}.
+	 * <p>
+	 * The Subject's principal is used as user token, so that the pooled connections,
+	 * together with the proxy authentication state they carry, are only reused for the same principal.
+	 *
+	 * @param proxy The remote proxy to go through, <code>null</code> for none.
+	 * @return The new context.
+	 */
+	public HttpClientContext newHttpClientContext(HttpHost proxy) {
+		HttpClientContext context = HttpClientContext.create();
+		context.setRequestConfig(RequestConfig.copy(getProxyRequestConfig()).setProxy(proxy).build());
+		Subject subject = Subject.getSubject(AccessController.getContext());
+		if (subject != null) {
+			subject.getPrincipals().stream().findFirst().ifPresent(context::setUserToken);
+		}
+		return context;
+	}
+
+	/**
+	 * Get the authentication scheme the proxy accepted for the last authenticated CONNECT request.
+	 *
+	 * @param proxy The proxy.
+	 * @return The scheme's name or <code>null</code> if none.
+	 */
+	public String getTunnelAuthScheme(HttpHost proxy) {
+		return tunnelAuthSchemes.get(proxy);
+	}
+
+	/**
+	 * Remember the authentication scheme the proxy accepted for a CONNECT request.
+	 *
+	 * @param proxy      The proxy.
+	 * @param schemeName The scheme's name, <code>null</code> to forget it.
+	 */
+	public void setTunnelAuthScheme(HttpHost proxy, String schemeName) {
+		if (schemeName != null) {
+			tunnelAuthSchemes.put(proxy, schemeName);
+		} else {
+			tunnelAuthSchemes.remove(proxy);
 		}
-		return builder.build();
 	}
 
 	public void executeAsync(Runnable runnable) {
@@ -137,25 +276,21 @@ public class ProxyContext implements Closeable {
 	}
 
 	public RequestConfig getProxyRequestConfig() {
-		if (proxyRequestConfig == null) {
-			synchronized (this) {
-				if (proxyRequestConfig == null) {
-					logger.info("Create proxy request config");
-					HttpHost proxy = new HttpHost(userConfig.getProxyHost(), userConfig.getProxyPort());
-					List<String> proxyPreferredAuthSchemes = new ArrayList<>();
-					proxyPreferredAuthSchemes.add(AuthSchemes.SPNEGO);
-					proxyPreferredAuthSchemes.add(AuthSchemes.KERBEROS);
-					proxyPreferredAuthSchemes.add(AuthSchemes.DIGEST);
-					proxyPreferredAuthSchemes.add(AuthSchemes.BASIC);
-					proxyRequestConfig = RequestConfig.custom()
-							.setProxy(proxy)
-							.setProxyPreferredAuthSchemes(proxyPreferredAuthSchemes)
-							.setCircularRedirectsAllowed(true)
-							.build();
-				}
-			}
-		}
-		return proxyRequestConfig;
+		return getHttpClients().requestConfig;
+	}
+
+	private RequestConfig createProxyRequestConfig(HttpHost proxy) {
+		logger.info("Create proxy request config");
+		List<String> proxyPreferredAuthSchemes = new ArrayList<>();
+		proxyPreferredAuthSchemes.add(AuthSchemes.SPNEGO);
+		proxyPreferredAuthSchemes.add(AuthSchemes.KERBEROS);
+		proxyPreferredAuthSchemes.add(AuthSchemes.DIGEST);
+		proxyPreferredAuthSchemes.add(AuthSchemes.BASIC);
+		return RequestConfig.custom()
+				.setProxy(proxy)
+				.setProxyPreferredAuthSchemes(proxyPreferredAuthSchemes)
+				.setCircularRedirectsAllowed(true)
+				.build();
 	}
 
 	public SocketConfig getSocketConfig() {
@@ -184,6 +319,12 @@ public class ProxyContext implements Closeable {
 			logger.warn("Error on closing thread pool", e);
 		}
 
+		SharedHttpClients clients = httpClients;
+		if (clients != null) {
+			LocalIOUtils.close(clients.retryingClient, clients.nonRetryingClient);
+		}
+		LocalIOUtils.close(directHttpClient);
+
 		try {
 			connectionManager.close();
 		} catch (Exception e) {
@@ -199,6 +340,36 @@ public class ProxyContext implements Closeable {
 		}
 	}
 
+	/**
+	 * The HTTP clients built for given proxy settings.
+	 */
+	private static class SharedHttpClients {
+
+		private final String proxyHost;
+
+		private final int proxyPort;
+
+		private final RequestConfig requestConfig;
+
+		private final CloseableHttpClient retryingClient;
+
+		private final CloseableHttpClient nonRetryingClient;
+
+		private SharedHttpClients(String proxyHost, int proxyPort, RequestConfig requestConfig,
+				CloseableHttpClient retryingClient, CloseableHttpClient nonRetryingClient) {
+			this.proxyHost = proxyHost;
+			this.proxyPort = proxyPort;
+			this.requestConfig = requestConfig;
+			this.retryingClient = retryingClient;
+			this.nonRetryingClient = nonRetryingClient;
+		}
+
+		private boolean matches(String proxyHost, int proxyPort) {
+			return this.proxyPort == proxyPort && Objects.equals(this.proxyHost, proxyHost);
+		}
+
+	}
+
 	private static class NoCredentials implements Credentials {
 
 		@Override
@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * Contributors:
+ *     Eugen Covaci - initial design and implementation
+ *******************************************************************************/
+
+package org.kpax.bpf.proxy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.AsynchronousSocketChannel;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.http.Header;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.config.MessageConstraints;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.ContentLengthStrategy;
+import org.apache.http.impl.entity.LaxContentLengthStrategy;
+import org.apache.http.impl.io.ChunkedInputStream;
+import org.apache.http.impl.io.ContentLengthInputStream;
+import org.apache.http.impl.io.DefaultHttpRequestWriterFactory;
+import org.apache.http.impl.io.DefaultHttpResponseParserFactory;
+import org.apache.http.impl.io.HttpTransportMetricsImpl;
+import org.apache.http.impl.io.IdentityInputStream;
+import org.apache.http.impl.io.SessionInputBufferImpl;
+import org.apache.http.impl.io.SessionOutputBufferImpl;
+import org.apache.http.io.HttpMessageParser;
+import org.apache.http.io.HttpMessageWriter;
+import org.kpax.bpf.util.LocalIOUtils;
+
+/**
+ * A connection to the remote proxy over an {@link AsynchronousSocketChannel},
+ * used to negotiate a CONNECT tunnel.
+ * <p>
+ * Once the tunnel is established, the channel is meant to be handed over to a {@link TunnelRelay}
+ * together with the bytes already received from the proxy (see {@link #readBufferedBytes()}).
+ *
+ * @author Eugen Covaci
+ */
+class ProxyTunnel implements Closeable {
+
+	private final AsynchronousSocketChannelWrapper socketChannel;
+
+	private final SessionInputBufferImpl inputBuffer;
+
+	private final SessionOutputBufferImpl outputBuffer;
+
+	private final HttpMessageWriter<HttpRequest> requestWriter;
+
+	private final HttpMessageParser<HttpResponse> responseParser;
+
+	ProxyTunnel(AsynchronousSocketChannel socketChannel, BufferPool bufferPool, int bufferSize) {
+		Validate.notNull(socketChannel, "socketChannel cannot be null");
+		this.socketChannel = new AsynchronousSocketChannelWrapper(socketChannel, bufferPool);
+		this.inputBuffer = new SessionInputBufferImpl(new HttpTransportMetricsImpl(), bufferSize);
+		this.inputBuffer.bind(this.socketChannel.getInputStream());
+		this.outputBuffer = new SessionOutputBufferImpl(new HttpTransportMetricsImpl(), bufferSize);
+		this.outputBuffer.bind(this.socketChannel.getOutputStream());
+		this.requestWriter = DefaultHttpRequestWriterFactory.INSTANCE.create(outputBuffer);
+		this.responseParser = DefaultHttpResponseParserFactory.INSTANCE.create(inputBuffer, MessageConstraints.DEFAULT);
+	}
+
+	/**
+	 * Send the request and parse the response's head.
+	 * A successful response to CONNECT has no entity, for any other status
+	 * a lazy entity reading from this connection is attached.
+	 *
+	 * @param request The request, usually CONNECT.
+	 * @return The proxy's response.
+	 * @throws IOException
+	 * @throws HttpException
+	 */
+	HttpResponse execute(HttpRequest request) throws IOException, HttpException {
+		requestWriter.write(request);
+		outputBuffer.flush();
+		HttpResponse response = responseParser.parse();
+		int status = response.getStatusLine().getStatusCode();
+		if (status >= HttpStatus.SC_MULTIPLE_CHOICES) {
+			response.setEntity(createEntity(response));
+		}
+		return response;
+	}
+
+	private BasicHttpEntity createEntity(HttpResponse response) throws HttpException {
+		BasicHttpEntity entity = new BasicHttpEntity();
+		long length = LaxContentLengthStrategy.INSTANCE.determineLength(response);
+		InputStream content;
+		if (length == ContentLengthStrategy.CHUNKED) {
+			content = new ChunkedInputStream(inputBuffer);
+			entity.setChunked(true);
+			entity.setContentLength(-1);
+		} else if (length == ContentLengthStrategy.IDENTITY) {
+			content = new IdentityInputStream(inputBuffer);
+			entity.setContentLength(-1);
+		} else {
+			content = new ContentLengthInputStream(inputBuffer, length);
+			entity.setContentLength(length);
+		}
+		entity.setContent(content);
+		Header contentType = response.getFirstHeader(HttpHeaders.CONTENT_TYPE);
+		if (contentType != null) {
+			entity.setContentType(contentType);
+		}
+		Header contentEncoding = response.getFirstHeader(HttpHeaders.CONTENT_ENCODING);
+		if (contentEncoding != null) {
+			entity.setContentEncoding(contentEncoding);
+		}
+		return entity;
+	}
+
+	/**
+	 * Get the bytes received from the proxy but not parsed yet.
+	 * After a successful CONNECT, these belong to the tunnelled stream.
+	 *
+	 * @return The buffered bytes, possibly empty.
+	 * @throws IOException
+	 */
+	byte[] readBufferedBytes() throws IOException {
+		return LocalIOUtils.readBufferedBytes(inputBuffer);
+	}
+
+	AsynchronousSocketChannel getSocketChannel() {
+		return socketChannel.getSocketChannel();
+	}
+
+	boolean isOpen() {
+		return socketChannel.getSocketChannel().isOpen();
+	}
+
+	@Override
+	public void close() throws IOException {
+		socketChannel.close();
+	}
+
+}
@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * Contributors:
+ *     Eugen Covaci - initial design and implementation
+ *******************************************************************************/
+
+package org.kpax.bpf.proxy;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.http.HttpHost;
+
+/**
+ * The way a request goes to its destination, as decided by the routing rules (see {@link RoutingTable}).
+ *
+ * @author Eugen Covaci
+ */
+public final class Route {
+
+	public enum Type {
+		/**
+		 * Straight to the destination, without any proxy nor authentication.
+		 */
+		DIRECT,
+
+		/**
+		 * Through a remote proxy.
+		 */
+		PROXY,
+
+		/**
+		 * Not at all.
+		 */
+		REJECT
+	}
+
+	/**
+	 * Through any of the remote proxies configured by <code>proxy.host</code>.
+	 */
+	public static final Route DEFAULT = new Route(Type.PROXY, null);
+
+	public static final Route DIRECT = new Route(Type.DIRECT, null);
+
+	public static final Route REJECT = new Route(Type.REJECT, null);
+
+	private final Type type;
+
+	private final List<HttpHost> proxies;
+
+	private Route(Type type, List<HttpHost> proxies) {
+		this.type = type;
+		this.proxies = proxies;
+	}
+
+	/**
+	 * @param proxies The remote proxies to choose among.
+	 * @return The route through these proxies.
+	 */
+	public static Route proxy(List<HttpHost> proxies) {
+		return new Route(Type.PROXY, Collections.unmodifiableList(proxies));
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public boolean isDirect() {
+		return type == Type.DIRECT;
+	}
+
+	public boolean isRejected() {
+		return type == Type.REJECT;
+	}
+
+	/**
+	 * @return The remote proxies to choose among, <code>null</code> for the configured ones.
+	 */
+	public List<HttpHost> getProxies() {
+		return proxies;
+	}
+
+	@Override
+	public String toString() {
+		return proxies != null ? type + " " + proxies : type.toString();
+	}
+
+}
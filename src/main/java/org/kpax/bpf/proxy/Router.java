@@ -0,0 +1,220 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * Contributors:
+ *     Eugen Covaci - initial design and implementation
+ *******************************************************************************/
+
+package org.kpax.bpf.proxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpHost;
+import org.kpax.bpf.UserConfig;
+import org.kpax.bpf.exception.InvalidConfigException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Decides the route of each request from the rules in <code>config/routing.rules</code>
+ * (see {@link RoutingTable} for their syntax), loaded again each time the local proxy starts.
+ * The requests these rules do not match are routed by the PAC file, if any (see {@link PacScript}),
+ * else go through the configured proxies.
+ *
+ * @author Eugen Covaci
+ */
+@Component
+@ManagedResource(objectName = "org.kpax.bpf:type=Router", description = "Request routing")
+public class Router {
+
+	private static final Logger logger = LoggerFactory.getLogger(Router.class);
+
+	static final String RULES_FILE = "config/routing.rules";
+
+	@Autowired
+	private UserConfig userConfig;
+
+	@Autowired
+	private PacScript pacScript;
+
+	private volatile RoutingTable routingTable = RoutingTable.EMPTY;
+
+	/**
+	 * The proxies of the rules and of the PAC file, replaced when either changes.
+	 */
+	private volatile ProxiesSnapshot proxies = new ProxiesSnapshot(Collections.emptyList(), null, null);
+
+	private final LongAdder directRequests = new LongAdder();
+
+	private final LongAdder proxiedRequests = new LongAdder();
+
+	private final LongAdder rejectedRequests = new LongAdder();
+
+	@PostConstruct
+	public void init() {
+		try {
+			load();
+		} catch (InvalidConfigException e) {
+			// Reported again when the local proxy starts
+			logger.warn(e.getMessage());
+		}
+	}
+
+	/**
+	 * Load the routing rules and the PAC file again.
+	 *
+	 * @throws InvalidConfigException when the rules or the PAC file cannot be read or are not valid.
+	 */
+	@ManagedOperation(description = "Load the routing rules and the PAC file again")
+	public synchronized void load() {
+		loadRules();
+		pacScript.load();
+	}
+
+	private void loadRules() {
+		File rulesFile = new File(RULES_FILE);
+		if (!rulesFile.exists()) {
+			logger.info("No routing rules");
+			routingTable = RoutingTable.EMPTY;
+			return;
+		}
+		try {
+			List<String> lines = Files.readAllLines(rulesFile.toPath(), StandardCharsets.UTF_8);
+			routingTable = RoutingTable.parse(lines, userConfig.getProxyPort());
+			logger.info("Loaded {} routing rules", routingTable.size());
+		} catch (IOException | IllegalArgumentException e) {
+			throw new InvalidConfigException("Cannot load " + RULES_FILE + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Find the route of a CONNECT request and count it.
+	 *
+	 * @param target The destination.
+	 * @return The route.
+	 */
+	public Route routeTunnel(HttpHost target) {
+		// The tunnels carry TLS, whatever the port
+		return route("https", target.getHostName(), target.getPort() < 0 ? 443 : target.getPort(), "/");
+	}
+
+	/**
+	 * Find the route of a non-CONNECT request and count it.
+	 *
+	 * @param uri The absolute URI of the request.
+	 * @return The route.
+	 */
+	public Route route(URI uri) {
+		String scheme = uri.getScheme() != null ? uri.getScheme().toLowerCase(Locale.ROOT) : "http";
+		int port = uri.getPort() < 0 ? ("https".equals(scheme) ? 443 : 80) : uri.getPort();
+		String path = StringUtils.defaultIfEmpty(uri.getRawPath(), "/")
+				+ (uri.getRawQuery() != null ? "?" + uri.getRawQuery() : "");
+		return route(scheme, uri.getHost(), port, path);
+	}
+
+	private Route route(String scheme, String host, int port, String path) {
+		Route route = routingTable.route(host, port);
+		if (route == Route.DEFAULT && pacScript.isEnabled()) {
+			route = pacScript.route(scheme, host, port, path);
+		}
+		switch (route.getType()) {
+		case DIRECT:
+			directRequests.increment();
+			break;
+		case REJECT:
+			rejectedRequests.increment();
+			break;
+		default:
+			proxiedRequests.increment();
+		}
+		logger.debug("Route {}:{} {}", host, port, route);
+		return route;
+	}
+
+	/**
+	 * @return The proxies the rules and the PAC file route to, besides the configured ones,
+	 * another instance once they change.
+	 */
+	List<HttpHost> getProxies() {
+		List<HttpHost> currentRuleProxies = routingTable.getProxies();
+		List<HttpHost> currentPacProxies = pacScript.getProxies();
+		ProxiesSnapshot snapshot = proxies;
+		if (currentRuleProxies != snapshot.ruleProxies || currentPacProxies != snapshot.pacProxies) {
+			List<HttpHost> combined = new ArrayList<>(currentRuleProxies);
+			for (HttpHost proxy : currentPacProxies) {
+				if (!combined.contains(proxy)) {
+					combined.add(proxy);
+				}
+			}
+			// Racy on purpose, the threads meeting the same change only make equal lists
+			snapshot = new ProxiesSnapshot(Collections.unmodifiableList(combined), currentRuleProxies,
+					currentPacProxies);
+			proxies = snapshot;
+		}
+		return snapshot.proxies;
+	}
+
+	@ManagedAttribute(description = "The number of routing rules")
+	public int getRules() {
+		return routingTable.size();
+	}
+
+	@ManagedAttribute(description = "The number of requests sent straight to their destination")
+	public long getDirectRequests() {
+		return directRequests.sum();
+	}
+
+	@ManagedAttribute(description = "The number of requests sent through a remote proxy")
+	public long getProxiedRequests() {
+		return proxiedRequests.sum();
+	}
+
+	@ManagedAttribute(description = "The number of requests rejected by the routing rules")
+	public long getRejectedRequests() {
+		return rejectedRequests.sum();
+	}
+
+	/**
+	 * The combined proxies and the lists they were made of.
+	 */
+	private static final class ProxiesSnapshot {
+
+		private final List<HttpHost> proxies;
+
+		private final List<HttpHost> ruleProxies;
+
+		private final List<HttpHost> pacProxies;
+
+		private ProxiesSnapshot(List<HttpHost> proxies, List<HttpHost> ruleProxies, List<HttpHost> pacProxies) {
+			this.proxies = proxies;
+			this.ruleProxies = ruleProxies;
+			this.pacProxies = pacProxies;
+		}
+
+	}
+
+}
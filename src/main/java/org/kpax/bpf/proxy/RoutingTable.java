@@ -0,0 +1,426 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * Contributors:
+ *     Eugen Covaci - initial design and implementation
+ *******************************************************************************/
+
+package org.kpax.bpf.proxy;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpHost;
+import org.apache.http.conn.util.InetAddressUtils;
+
+/**
+ * The routing rules, compiled so that the route of a request is found without trying each rule in turn.
+ * <p>
+ * Each rule is a line <code>pattern action</code>, the first matching rule wins and
+ * the requests matching no rule go through the configured proxies. The pattern is one of:
+ * <ul>
+ * <li><code>host</code>: this host only</li>
+ * <li><code>.domain</code>: the domain and all its subdomains</li>
+ * <li><code>*.domain</code>: the subdomains only</li>
+ * <li>a host name with <code>*</code> and <code>?</code> wildcards, like <code>build-*.example.com</code></li>
+ * <li><code>address/prefix</code> or <code>address</code>: the IP addresses in this range, the host being an IP
+ * address (no DNS lookup is made), IPv6 between brackets when followed by a port</li>
+ * <li><code>*</code>: any host</li>
+ * </ul>
+ * optionally followed by <code>:port</code> to match only this destination port. The action is one of
+ * <code>DIRECT</code>, <code>REJECT</code> or <code>PROXY host[:port][,host[:port]...]</code>.
+ * <p>
+ * The host name patterns are kept in a tree of labels, from the top level domain down, and the address
+ * ranges in a binary tree of their bits, so that a lookup costs about the number of labels or bits
+ * of the host, whatever the number of rules. Only the patterns with wildcards are tried one by one.
+ * Instances are immutable once parsed.
+ *
+ * @author Eugen Covaci
+ */
+public final class RoutingTable {
+
+	public static final RoutingTable EMPTY = new RoutingTable();
+
+	private static final int ANY_PORT = -1;
+
+	private final LabelNode names = new LabelNode();
+
+	private final BitNode ipv4Ranges = new BitNode();
+
+	private final BitNode ipv6Ranges = new BitNode();
+
+	/**
+	 * The rules with wildcards, in their order.
+	 */
+	private final List<Rule> wildcards = new ArrayList<>();
+
+	/**
+	 * The rules for any host, in their order.
+	 */
+	private final List<Rule> anyHost = new ArrayList<>();
+
+	private final List<HttpHost> proxies = new ArrayList<>();
+
+	private final List<HttpHost> unmodifiableProxies = Collections.unmodifiableList(proxies);
+
+	private int size;
+
+	private RoutingTable() {
+	}
+
+	/**
+	 * Parse the routing rules, ignoring the empty lines and the comments (from <code>#</code> on).
+	 *
+	 * @param lines            The rules.
+	 * @param defaultProxyPort The port of the proxies given without one.
+	 * @return The compiled rules.
+	 * @throws IllegalArgumentException when a rule is not valid.
+	 */
+	public static RoutingTable parse(List<String> lines, int defaultProxyPort) {
+		RoutingTable table = new RoutingTable();
+		for (int i = 0; i < lines.size(); i++) {
+			String line = StringUtils.substringBefore(lines.get(i), "#").trim();
+			if (line.isEmpty()) {
+				continue;
+			}
+			try {
+				table.add(line, defaultProxyPort);
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Invalid routing rule at line " + (i + 1) + ": " + e.getMessage(), e);
+			}
+		}
+		return table;
+	}
+
+	private void add(String line, int defaultProxyPort) {
+		String[] tokens = line.split("\\s+", 2);
+		if (tokens.length < 2) {
+			throw new IllegalArgumentException("pattern and action expected");
+		}
+		Route route = parseAction(tokens[1], defaultProxyPort);
+
+		String pattern = tokens[0].toLowerCase(Locale.ROOT);
+		String hostPattern = pattern;
+		int port = ANY_PORT;
+		if (pattern.startsWith("[")) {
+			int end = pattern.indexOf(']');
+			if (end < 0) {
+				throw new IllegalArgumentException("missing ] in " + pattern);
+			}
+			String suffix = pattern.substring(end + 1);
+			int colon = suffix.indexOf(':');
+			if (colon >= 0) {
+				port = parsePort(suffix.substring(colon + 1));
+				suffix = suffix.substring(0, colon);
+			}
+			hostPattern = pattern.substring(1, end) + suffix;
+		} else if (pattern.indexOf(':') >= 0 && pattern.indexOf(':') == pattern.lastIndexOf(':')) {
+			int colon = pattern.indexOf(':');
+			port = parsePort(pattern.substring(colon + 1));
+			hostPattern = pattern.substring(0, colon);
+		}
+		if (hostPattern.isEmpty()) {
+			throw new IllegalArgumentException("empty host pattern");
+		}
+
+		Rule rule = new Rule(size++, port, route);
+		if (hostPattern.equals("*")) {
+			anyHost.add(rule);
+		} else if (hostPattern.indexOf('/') >= 0 || isIpAddress(hostPattern)) {
+			addRange(hostPattern, rule);
+		} else if (hostPattern.startsWith("*.") && !hasWildcard(hostPattern.substring(2))) {
+			names.node(hostPattern.substring(2)).subdomains.add(rule);
+		} else if (hostPattern.startsWith(".") && !hasWildcard(hostPattern.substring(1))) {
+			LabelNode node = names.node(hostPattern.substring(1));
+			node.exact.add(rule);
+			node.subdomains.add(rule);
+		} else if (hasWildcard(hostPattern)) {
+			rule.pattern = toRegex(hostPattern);
+			wildcards.add(rule);
+		} else {
+			names.node(StringUtils.removeEnd(hostPattern, ".")).exact.add(rule);
+		}
+	}
+
+	private Route parseAction(String action, int defaultProxyPort) {
+		String[] tokens = action.trim().split("[\\s,]+");
+		switch (tokens[0].toUpperCase(Locale.ROOT)) {
+		case "DIRECT":
+			return Route.DIRECT;
+		case "REJECT":
+			return Route.REJECT;
+		case "PROXY":
+			if (tokens.length < 2) {
+				throw new IllegalArgumentException("PROXY without any proxy");
+			}
+			List<HttpHost> routeProxies = new ArrayList<>();
+			for (int i = 1; i < tokens.length; i++) {
+				int colon = tokens[i].lastIndexOf(':');
+				HttpHost proxy = colon > 0
+						? new HttpHost(tokens[i].substring(0, colon), parsePort(tokens[i].substring(colon + 1)))
+						: new HttpHost(tokens[i], defaultProxyPort);
+				routeProxies.add(proxy);
+				if (!proxies.contains(proxy)) {
+					proxies.add(proxy);
+				}
+			}
+			return Route.proxy(routeProxies);
+		default:
+			throw new IllegalArgumentException("unknown action " + tokens[0]);
+		}
+	}
+
+	private void addRange(String range, Rule rule) {
+		int slash = range.indexOf('/');
+		String address = slash >= 0 ? range.substring(0, slash) : range;
+		if (!isIpAddress(address)) {
+			throw new IllegalArgumentException("invalid address " + address);
+		}
+		byte[] bytes = toBytes(address);
+		int prefix;
+		try {
+			prefix = slash >= 0 ? Integer.parseInt(range.substring(slash + 1)) : bytes.length * 8;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("invalid prefix length in " + range);
+		}
+		if (prefix < 0 || prefix > bytes.length * 8) {
+			throw new IllegalArgumentException("invalid prefix length in " + range);
+		}
+		(bytes.length == 4 ? ipv4Ranges : ipv6Ranges).node(bytes, prefix).rules.add(rule);
+	}
+
+	private static int parsePort(String port) {
+		if (!StringUtils.isNumeric(port) || port.isEmpty() || Integer.parseInt(port) > 65535) {
+			throw new IllegalArgumentException("invalid port " + port);
+		}
+		return Integer.parseInt(port);
+	}
+
+	private static boolean hasWildcard(String pattern) {
+		return pattern.indexOf('*') >= 0 || pattern.indexOf('?') >= 0;
+	}
+
+	private static Pattern toRegex(String pattern) {
+		StringBuilder regex = new StringBuilder();
+		StringBuilder literal = new StringBuilder();
+		for (char c : pattern.toCharArray()) {
+			if (c == '*' || c == '?') {
+				if (literal.length() > 0) {
+					regex.append(Pattern.quote(literal.toString()));
+					literal.setLength(0);
+				}
+				regex.append(c == '*' ? ".*" : ".");
+			} else {
+				literal.append(c);
+			}
+		}
+		if (literal.length() > 0) {
+			regex.append(Pattern.quote(literal.toString()));
+		}
+		return Pattern.compile(regex.toString());
+	}
+
+	private static boolean isIpAddress(String host) {
+		return InetAddressUtils.isIPv4Address(host) || InetAddressUtils.isIPv6Address(host);
+	}
+
+	/**
+	 * Convert an IP address literal, without any DNS lookup.
+	 */
+	private static byte[] toBytes(String address) {
+		try {
+			return InetAddress.getByName(address).getAddress();
+		} catch (UnknownHostException e) {
+			throw new IllegalArgumentException("invalid address " + address);
+		}
+	}
+
+	/**
+	 * Find the route of a request.
+	 *
+	 * @param host The destination host, a name or an IP address.
+	 * @param port The destination port.
+	 * @return The route of the first matching rule, {@link Route#DEFAULT} if none matches.
+	 */
+	public Route route(String host, int port) {
+		if (size == 0) {
+			return Route.DEFAULT;
+		}
+		String name = StringUtils.removeEnd(StringUtils.strip(host.toLowerCase(Locale.ROOT), "[]"), ".");
+		Rule best = first(null, anyHost, port);
+		if (isIpAddress(name)) {
+			byte[] bytes = toBytes(name);
+			best = (bytes.length == 4 ? ipv4Ranges : ipv6Ranges).match(bytes, best, port);
+		} else {
+			best = names.match(name, best, port);
+		}
+		for (Rule rule : wildcards) {
+			if (best != null && rule.index > best.index) {
+				break;
+			}
+			if (rule.matches(port) && rule.pattern.matcher(name).matches()) {
+				best = rule;
+				break;
+			}
+		}
+		return best != null ? best.route : Route.DEFAULT;
+	}
+
+	/**
+	 * @return The proxies the rules route to.
+	 */
+	public List<HttpHost> getProxies() {
+		return unmodifiableProxies;
+	}
+
+	/**
+	 * @return The number of rules.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Get the rule coming first, between the current best one and the first of the rules matching the port.
+	 *
+	 * @param rules The rules, in their order.
+	 */
+	private static Rule first(Rule best, List<Rule> rules, int port) {
+		for (Rule rule : rules) {
+			if (best != null && rule.index > best.index) {
+				return best;
+			}
+			if (rule.matches(port)) {
+				return rule;
+			}
+		}
+		return best;
+	}
+
+	private static final class Rule {
+
+		/**
+		 * The rule's position, the lower the stronger.
+		 */
+		private final int index;
+
+		private final int port;
+
+		private final Route route;
+
+		/**
+		 * For the rules with wildcards only.
+		 */
+		private Pattern pattern;
+
+		private Rule(int index, int port, Route route) {
+			this.index = index;
+			this.port = port;
+			this.route = route;
+		}
+
+		private boolean matches(int port) {
+			return this.port == ANY_PORT || this.port == port;
+		}
+
+	}
+
+	/**
+	 * A label of the host names tree, like <code>example</code> under <code>com</code>.
+	 */
+	private static final class LabelNode {
+
+		private final Map<String, LabelNode> children = new HashMap<>();
+
+		/**
+		 * The rules matching this very name.
+		 */
+		private final List<Rule> exact = new ArrayList<>();
+
+		/**
+		 * The rules matching the names below.
+		 */
+		private final List<Rule> subdomains = new ArrayList<>();
+
+		private LabelNode node(String name) {
+			LabelNode node = this;
+			for (int end = name.length(); end > 0; ) {
+				int start = name.lastIndexOf('.', end - 1) + 1;
+				node = node.children.computeIfAbsent(name.substring(start, end), label -> new LabelNode());
+				end = start - 1;
+			}
+			return node;
+		}
+
+		private Rule match(String name, Rule best, int port) {
+			LabelNode node = this;
+			for (int end = name.length(); end > 0; ) {
+				int start = name.lastIndexOf('.', end - 1) + 1;
+				node = node.children.get(name.substring(start, end));
+				if (node == null) {
+					break;
+				}
+				best = first(best, start > 0 ? node.subdomains : node.exact, port);
+				end = start - 1;
+			}
+			return best;
+		}
+
+	}
+
+	/**
+	 * A bit of the address ranges tree, the depth being the prefix length.
+	 */
+	private static final class BitNode {
+
+		private final BitNode[] children = new BitNode[2];
+
+		private final List<Rule> rules = new ArrayList<>();
+
+		private BitNode node(byte[] address, int prefix) {
+			BitNode node = this;
+			for (int i = 0; i < prefix; i++) {
+				int bit = bit(address, i);
+				if (node.children[bit] == null) {
+					node.children[bit] = new BitNode();
+				}
+				node = node.children[bit];
+			}
+			return node;
+		}
+
+		private Rule match(byte[] address, Rule best, int port) {
+			BitNode node = this;
+			best = first(best, node.rules, port);
+			for (int i = 0; i < address.length * 8; i++) {
+				node = node.children[bit(address, i)];
+				if (node == null) {
+					break;
+				}
+				best = first(best, node.rules, port);
+			}
+			return best;
+		}
+
+		private static int bit(byte[] address, int index) {
+			return (address[index >> 3] >> (7 - (index & 7))) & 1;
+		}
+
+	}
+
+}
@@ -0,0 +1,379 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * Contributors:
+ *     Eugen Covaci - initial design and implementation
+ *******************************************************************************/
+
+package org.kpax.bpf.proxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.message.BasicHttpRequest;
+import org.kpax.bpf.cache.Spool;
+import org.kpax.bpf.util.LocalIOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A large response entity downloaded in segments over several connections at once,
+ * for the remote proxies limiting the rate of each connection.
+ * <p>
+ * The first segment is read from the original response, while the others are requested
+ * with <code>Range</code> headers and read into {@link Spool}s by other threads.
+ * The segments are written to the local client in order, as a single body.
+ * When a range request is not honoured, the rest of the body is read from the original response,
+ * as if there were no segments at all.
+ *
+ * @author Eugen Covaci
+ */
+public class SegmentedEntity extends HttpEntityWrapper {
+
+	private static final Logger logger = LoggerFactory.getLogger(SegmentedEntity.class);
+
+	private static final Pattern CONTENT_RANGE = Pattern.compile("bytes\\s+(\\d+)-(\\d+)/(\\d+|\\*)",
+			Pattern.CASE_INSENSITIVE);
+
+	private final HttpRequest request;
+
+	private final String validator;
+
+	private final int segments;
+
+	private final RangeClient rangeClient;
+
+	private final Executor executor;
+
+	private final BufferPool bufferPool;
+
+	private final int memoryThreshold;
+
+	private final int repeats;
+
+	private volatile boolean cancelled;
+
+	/**
+	 * @param request         The original request.
+	 * @param response        The original response, accepted by {@link #isSegmentable(HttpRequest, HttpResponse, long)}.
+	 * @param segments        The number of segments, each one but the first on its own connection.
+	 * @param rangeClient     Executes the range requests.
+	 * @param executor        Runs the download of the segments.
+	 * @param bufferPool      Provides the buffers copying the segments.
+	 * @param memoryThreshold The bytes of a segment kept in memory, the rest going to a temporary file.
+	 * @param repeats         How many times the download of a segment is resumed after a failure.
+	 */
+	public SegmentedEntity(HttpRequest request, HttpResponse response, int segments, RangeClient rangeClient,
+			Executor executor, BufferPool bufferPool, int memoryThreshold, int repeats) {
+		super(response.getEntity());
+		this.request = request;
+		this.validator = validator(response);
+		this.segments = segments;
+		this.rangeClient = rangeClient;
+		this.executor = executor;
+		this.bufferPool = bufferPool;
+		this.memoryThreshold = memoryThreshold;
+		this.repeats = repeats;
+	}
+
+	/**
+	 * Whether the response body can be downloaded in segments: a complete response to a <code>GET</code> request,
+	 * of a known length, not encoded, with a validator and accepting byte ranges.
+	 *
+	 * @param threshold The minimum length of the body.
+	 */
+	public static boolean isSegmentable(HttpRequest request, HttpResponse response, long threshold) {
+		if (!"GET".equalsIgnoreCase(request.getRequestLine().getMethod())
+				|| request instanceof HttpEntityEnclosingRequest
+				|| request.containsHeader(HttpHeaders.RANGE)
+				|| response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+			return false;
+		}
+		HttpEntity entity = response.getEntity();
+		if (entity == null || entity.getContentLength() < Math.max(threshold, 1) || !acceptsBytes(response)) {
+			return false;
+		}
+		Header contentEncoding = response.getFirstHeader(HttpHeaders.CONTENT_ENCODING);
+		return (contentEncoding == null || "identity".equalsIgnoreCase(contentEncoding.getValue().trim()))
+				&& validator(response) != null;
+	}
+
+	private static boolean acceptsBytes(HttpResponse response) {
+		for (Header acceptRanges : response.getHeaders(HttpHeaders.ACCEPT_RANGES)) {
+			for (HeaderElement element : acceptRanges.getElements()) {
+				if ("bytes".equalsIgnoreCase(element.getName())) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return A strong entity tag or else the last modification date, <code>null</code> if there is none.
+	 */
+	private static String validator(HttpResponse response) {
+		Header etag = response.getFirstHeader(HttpHeaders.ETAG);
+		if (etag != null && !etag.getValue().trim().startsWith("W/")) {
+			return etag.getValue().trim();
+		}
+		Header lastModified = response.getFirstHeader(HttpHeaders.LAST_MODIFIED);
+		return lastModified != null ? lastModified.getValue().trim() : null;
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return false;
+	}
+
+	@Override
+	public void writeTo(OutputStream outStream) throws IOException {
+		long length = wrappedEntity.getContentLength();
+		long segmentLength = (length + segments - 1) / segments;
+		List<Segment> parts = new ArrayList<>();
+		try (PooledBuffer pooledBuffer = bufferPool.acquireArray(LocalIOUtils.DEFAULT_BUFFER_SIZE)) {
+			for (long first = segmentLength; first < length; first += segmentLength) {
+				Segment segment = new Segment(first, Math.min(length, first + segmentLength) - 1);
+				parts.add(segment);
+				try {
+					executor.execute(segment);
+				} catch (RejectedExecutionException e) {
+					segment.failed(new IOException("Cannot download the segment", e));
+					segment.spool.close();
+				}
+			}
+			logger.debug("Download {} bytes in {} segments", length, parts.size() + 1);
+
+			byte[] buffer = pooledBuffer.buffer().array();
+			InputStream inStream = wrappedEntity.getContent();
+			copy(inStream, outStream, Math.min(length, segmentLength), buffer);
+			if (started(parts)) {
+				// The rest of the original body is not needed
+				if (!parts.isEmpty() && inStream instanceof ConnectionReleaseTrigger) {
+					((ConnectionReleaseTrigger) inStream).abortConnection();
+				}
+				for (Segment segment : parts) {
+					copy(segment.input, outStream, segment.last - segment.first + 1, buffer);
+					segment.input.close();
+				}
+			} else {
+				logger.debug("Byte ranges not honoured, read the rest of the body as a whole");
+				cancelled = true;
+				copy(inStream, outStream, length - segmentLength, buffer);
+			}
+		} finally {
+			cancelled = true;
+			for (Segment segment : parts) {
+				segment.input.close();
+			}
+		}
+	}
+
+	/**
+	 * Wait for the responses to the range requests.
+	 *
+	 * @return <code>true</code> iff all of them are valid.
+	 */
+	private boolean started(List<Segment> parts) throws IOException {
+		for (Segment segment : parts) {
+			try {
+				segment.head.get();
+			} catch (ExecutionException e) {
+				logger.debug("Cannot download the segment " + segment, e.getCause());
+				return false;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for the segment " + segment);
+			}
+		}
+		return true;
+	}
+
+	private static void copy(InputStream inStream, OutputStream outStream, long count, byte[] buffer)
+			throws IOException {
+		while (count > 0) {
+			int read = inStream.read(buffer, 0, (int) Math.min(buffer.length, count));
+			if (read == -1) {
+				throw new IOException("Premature end of the body, " + count + " bytes missing");
+			}
+			outStream.write(buffer, 0, read);
+			count -= read;
+		}
+	}
+
+	/**
+	 * Executes a range request, handing the response to the reader before releasing the connection.
+	 */
+	@FunctionalInterface
+	public interface RangeClient {
+
+		void execute(HttpRequest request, ResponseReader reader) throws Exception;
+
+	}
+
+	@FunctionalInterface
+	public interface ResponseReader {
+
+		void read(HttpResponse response) throws IOException;
+
+	}
+
+	/**
+	 * A segment other than the first, downloaded into its spool.
+	 */
+	private class Segment implements Runnable {
+
+		private final long first;
+
+		private final long last;
+
+		private final Spool spool;
+
+		/**
+		 * Opened up front, so that the spool is kept after it is written.
+		 */
+		private final InputStream input;
+
+		/**
+		 * Completed once the first range response is found valid.
+		 */
+		private final CompletableFuture<Void> head = new CompletableFuture<>();
+
+		/**
+		 * The next byte to download.
+		 */
+		private long position;
+
+		private Segment(long first, long last) {
+			this.first = first;
+			this.last = last;
+			this.position = first;
+			this.spool = new Spool(memoryThreshold, 0);
+			this.input = spool.newInputStream();
+		}
+
+		@Override
+		public void run() {
+			try (Spool writer = spool;
+					PooledBuffer pooledBuffer = bufferPool.acquireArray(LocalIOUtils.DEFAULT_BUFFER_SIZE)) {
+				byte[] buffer = pooledBuffer.buffer().array();
+				for (int attempt = 0; ; attempt++) {
+					try {
+						rangeClient.execute(rangeRequest(), response -> read(response, buffer));
+						if (position <= last) {
+							throw new IOException("Premature end of the segment at " + position);
+						}
+						writer.complete();
+						logger.debug("Segment {} downloaded", this);
+						return;
+					} catch (Exception e) {
+						if (!head.isDone() || cancelled || attempt >= repeats) {
+							failed(e instanceof IOException ? (IOException) e : new IOException(e));
+							return;
+						}
+						logger.debug("Resume the segment " + this + " at " + position, e);
+					}
+				}
+			}
+		}
+
+		private HttpRequest rangeRequest() {
+			BasicHttpRequest rangeRequest = new BasicHttpRequest(request.getRequestLine());
+			for (Header header : request.getAllHeaders()) {
+				if (!header.getName().regionMatches(true, 0, "If-", 0, 3)
+						&& !HttpHeaders.ACCEPT_ENCODING.equalsIgnoreCase(header.getName())) {
+					rangeRequest.addHeader(header);
+				}
+			}
+			rangeRequest.setHeader(HttpHeaders.RANGE, "bytes=" + position + "-" + last);
+			rangeRequest.setHeader(HttpHeaders.IF_RANGE, validator);
+			// Otherwise the bytes would not be the ones of the original body
+			rangeRequest.setHeader(HttpHeaders.ACCEPT_ENCODING, "identity");
+			return rangeRequest;
+		}
+
+		private void read(HttpResponse response, byte[] buffer) throws IOException {
+			check(response);
+			head.complete(null);
+			try (InputStream inStream = response.getEntity().getContent()) {
+				while (position <= last) {
+					if (cancelled) {
+						throw new IOException("Segment download cancelled");
+					}
+					int read = inStream.read(buffer, 0, (int) Math.min(buffer.length, last - position + 1));
+					if (read == -1) {
+						return;
+					}
+					spool.write(buffer, 0, read);
+					position += read;
+				}
+			}
+		}
+
+		/**
+		 * Make sure the response holds the requested bytes of the original body.
+		 */
+		private void check(HttpResponse response) throws IOException {
+			if (response.getStatusLine().getStatusCode() != HttpStatus.SC_PARTIAL_CONTENT) {
+				throw new IOException("Unexpected range response: " + response.getStatusLine());
+			}
+			Header contentRange = response.getFirstHeader(HttpHeaders.CONTENT_RANGE);
+			Matcher matcher = contentRange != null ? CONTENT_RANGE.matcher(contentRange.getValue().trim()) : null;
+			if (matcher == null || !matcher.matches()
+					|| Long.parseLong(matcher.group(1)) != position
+					|| Long.parseLong(matcher.group(2)) != last
+					|| !String.valueOf(wrappedEntity.getContentLength()).equals(matcher.group(3))) {
+				throw new IOException("Unexpected content range: " + contentRange);
+			}
+			Header rangeValidator = response.getFirstHeader(validator.startsWith("\"")
+					? HttpHeaders.ETAG : HttpHeaders.LAST_MODIFIED);
+			if (rangeValidator != null && !rangeValidator.getValue().trim().equals(validator)) {
+				throw new IOException("The body has changed: " + rangeValidator);
+			}
+			Header contentEncoding = response.getFirstHeader(HttpHeaders.CONTENT_ENCODING);
+			if (response.getEntity() == null
+					|| contentEncoding != null && !"identity".equalsIgnoreCase(contentEncoding.getValue().trim())) {
+				throw new IOException("Unexpected range body");
+			}
+		}
+
+		private void failed(IOException e) {
+			head.completeExceptionally(e);
+			spool.fail(e);
+		}
+
+		@Override
+		public String toString() {
+			return first + "-" + last;
+		}
+
+	}
+
+}
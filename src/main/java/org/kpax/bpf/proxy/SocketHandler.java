@@ -14,38 +14,64 @@
 
 package org.kpax.bpf.proxy;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
-import java.net.Socket;
+import java.io.SequenceInputStream;
+import java.net.ConnectException;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import org.apache.http.ConnectionClosedException;
+import org.apache.commons.lang3.tuple.Pair;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
 import org.apache.http.HttpHeaders;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.ProtocolVersion;
 import org.apache.http.RequestLine;
 import org.apache.http.StatusLine;
 import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.io.DefaultHttpRequestParser;
+import org.apache.http.impl.io.ChunkedOutputStream;
 import org.apache.http.impl.io.HttpTransportMetricsImpl;
+import org.apache.http.impl.io.IdentityOutputStream;
 import org.apache.http.impl.io.SessionInputBufferImpl;
-import org.apache.http.io.HttpMessageParser;
+import org.apache.http.impl.io.SessionOutputBufferImpl;
 import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.protocol.HTTP;
 import org.apache.http.util.EntityUtils;
 import org.kpax.bpf.SystemConfig;
-import org.kpax.bpf.UserConfig;
 import org.kpax.bpf.auth.AuthenticationManager;
+import org.kpax.bpf.cache.CacheExchange;
+import org.kpax.bpf.cache.HttpCache;
+import org.kpax.bpf.cache.MappedFileEntity;
+import org.kpax.bpf.exception.CommandExecutionException;
+import org.kpax.bpf.exception.InvalidKdcException;
+import org.kpax.bpf.exception.KdcNotFoundException;
 import org.kpax.bpf.util.CloseableRepeater;
 import org.kpax.bpf.util.CrlfFormat;
 import org.kpax.bpf.util.HttpUtils;
 import org.kpax.bpf.util.LocalIOUtils;
+import org.kpax.bpf.util.RequestHeadParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -69,9 +95,6 @@ public class SocketHandler {
 	@Autowired
 	private SystemConfig systemConfig;
 
-	@Autowired
-	private UserConfig userConfig;
-
 	@Autowired
 	private ProxyContext proxyContext;
 
@@ -81,61 +104,247 @@ public class SocketHandler {
 	@Autowired
 	private CustomProxyClient proxyClient;
 
+	@Autowired
+	private BufferPool bufferPool;
+
+	@Autowired
+	private UpstreamProxies upstreamProxies;
+
+	@Autowired
+	private UpstreamConnector upstreamConnector;
+
+	@Autowired
+	private Router router;
+
+	@Autowired
+	private HttpCache httpCache;
+
 	private AsynchronousSocketChannelWrapper localSocketChannel;
 
+	private final RequestHeadParser requestHeadParser = new RequestHeadParser();
+
+	/**
+	 * The buffer of the pending request head read, if any.
+	 */
+	private PooledBuffer readBuffer;
+
+	private final CompletionHandler<Integer, Void> readHeadHandler = new CompletionHandler<Integer, Void>() {
+
+		@Override
+		public void completed(Integer result, Void attachment) {
+			PooledBuffer pooledBuffer = readBuffer;
+			readBuffer = null;
+			try {
+				if (result < 0) {
+					logger.debug("Local connection closed by client");
+					LocalIOUtils.close(localSocketChannel);
+				} else {
+					ByteBuffer buffer = pooledBuffer.buffer();
+					buffer.flip();
+					parseRequestHead(buffer);
+				}
+			} finally {
+				pooledBuffer.close();
+			}
+		}
+
+		@Override
+		public void failed(Throwable exc, Void attachment) {
+			LocalIOUtils.close(readBuffer);
+			readBuffer = null;
+			if (exc instanceof InterruptedByTimeoutException) {
+				logger.debug("Keep-alive timeout, close the local connection");
+			} else if (exc instanceof AsynchronousCloseException) {
+				logger.debug("Local connection already closed");
+			} else {
+				logger.debug("Error on reading request head", exc);
+			}
+			LocalIOUtils.close(localSocketChannel);
+		}
+	};
+
 	public SocketHandler bind(AsynchronousSocketChannel socketChannel) {
 		Assert.isNull(localSocketChannel, "Socket already binded!");
-		this.localSocketChannel = new AsynchronousSocketChannelWrapper(socketChannel);
+		this.localSocketChannel = new AsynchronousSocketChannelWrapper(socketChannel, bufferPool);
 		return this;
 	}
 
-	public void handleRequest() {
+	/**
+	 * Start handling the local connection, then return immediately.
+	 * <p>
+	 * The request head is read and parsed asynchronously, no thread is used while waiting for it.
+	 * Once complete, the request is processed by a {@link ProxyContext} thread.
+	 */
+	public void handleConnection() {
 		logger.debug("Connection received");
+		readRequestHead(0);
+	}
+
+	/**
+	 * Read asynchronously the next bytes of the request head.
+	 *
+	 * @param timeout The read timeout in milliseconds, zero means no timeout.
+	 */
+	private void readRequestHead(long timeout) {
 		try {
-			// Prepare request parsing
-			HttpTransportMetricsImpl metrics = new HttpTransportMetricsImpl();
-			SessionInputBufferImpl inputBuffer = new SessionInputBufferImpl(metrics, LocalIOUtils.DEFAULT_BUFFER_SIZE);
-			inputBuffer.bind(localSocketChannel.getInputStream());
-
-			// Parse the request
-			HttpMessageParser<HttpRequest> requestParser = new DefaultHttpRequestParser(inputBuffer);
-			HttpRequest request = requestParser.parse();
+			readBuffer = bufferPool.acquire(LocalIOUtils.DEFAULT_BUFFER_SIZE);
+			localSocketChannel.getSocketChannel().read(readBuffer.buffer(), timeout, TimeUnit.MILLISECONDS, null,
+					readHeadHandler);
+		} catch (Exception e) {
+			logger.debug("Error on reading request head", e);
+			LocalIOUtils.close(readBuffer, localSocketChannel);
+			readBuffer = null;
+		}
+	}
+
+	/**
+	 * Feed the parser with the received bytes and dispatch the request when its head is complete.
+	 *
+	 * @param buffer The received bytes, in read mode.
+	 */
+	private void parseRequestHead(ByteBuffer buffer) {
+		try {
+			if (requestHeadParser.parse(buffer)) {
+				HttpRequest request = requestHeadParser.getRequest();
+				requestHeadParser.reset();
+
+				// The remaining bytes belong to the body or to the next pipelined requests
+				byte[] bufferedBytes = new byte[buffer.remaining()];
+				buffer.get(bufferedBytes);
+				proxyContext.executeAsync(() -> processRequest(request, bufferedBytes));
+			} else {
+				readRequestHead(0);
+			}
+		} catch (Exception e) {
+			logger.error("Error on parsing request head", e);
+			LocalIOUtils.close(localSocketChannel);
+		}
+	}
+
+	/**
+	 * Process a request whose head has been parsed.
+	 *
+	 * @param request       The request.
+	 * @param bufferedBytes The bytes already received after the request head.
+	 */
+	private void processRequest(HttpRequest request, byte[] bufferedBytes) {
+		boolean tunnelled = false;
+		boolean keepAlive = false;
+		try {
+			// The buffered bytes are read first, then the local connection
+			ByteArrayInputStream bufferedStream = new ByteArrayInputStream(bufferedBytes);
+			SessionInputBufferImpl inputBuffer = new SessionInputBufferImpl(new HttpTransportMetricsImpl(),
+					LocalIOUtils.DEFAULT_BUFFER_SIZE);
+			inputBuffer.bind(new SequenceInputStream(bufferedStream, localSocketChannel.getInputStream()));
+
 			RequestLine requestLine = request.getRequestLine();
 			logger.debug("Start processing request line {}", requestLine);
 
 			if (HttpUtils.HTTP_CONNECT.equalsIgnoreCase(requestLine.getMethod())) {
-				handleConnect(requestLine);
+				tunnelled = handleConnect(requestLine, readUnconsumedBytes(inputBuffer, bufferedStream));
 			} else {
-				handleRequest(request, inputBuffer);
+				keepAlive = handleRequest(request, inputBuffer);
 			}
 
 			logger.debug("End processing request line {}", requestLine);
-		} catch (ConnectionClosedException e) {
-			logger.debug(e.getMessage(), e);
+
+			if (keepAlive) {
+				byte[] unconsumedBytes = readUnconsumedBytes(inputBuffer, bufferedStream);
+				if (unconsumedBytes.length > 0) {
+					// Pipelined request
+					parseRequestHead(ByteBuffer.wrap(unconsumedBytes));
+				} else {
+					// Wait for the next request no longer than the keep-alive timeout
+					readRequestHead(systemConfig.getKeepAliveTimeout() * 1000L);
+				}
+			}
+		} catch (GeneralSecurityException | KdcNotFoundException | CommandExecutionException | InvalidKdcException e) {
+			// Nothing has been sent to the remote proxy, nor written to the local connection
+			logger.warn("Cannot authenticate, reject the request: {}", e.toString());
+			logger.debug("Authentication error", e);
+			keepAlive = false;
+			writeErrorResponse(request.getProtocolVersion(), HttpStatus.SC_BAD_GATEWAY,
+					"Kerberos authentication failed: " + e.getMessage());
 		} catch (Throwable e) {
 			logger.error("Error on handling local socket connection", e);
+			keepAlive = false;
 		} finally {
-			LocalIOUtils.close(localSocketChannel);
+			// Once tunnelled, the local connection is closed by the relay
+			if (!tunnelled && !keepAlive) {
+				LocalIOUtils.close(localSocketChannel);
+			}
 		}
+	}
 
+	/**
+	 * Write a short error response, the local connection is to be closed afterwards.
+	 */
+	private void writeErrorResponse(ProtocolVersion protocolVersion, int status, String message) {
+		try {
+			byte[] body = (message + CrlfFormat.CRLF).getBytes(StandardCharsets.UTF_8);
+			OutputStream outputStream = localSocketChannel.getOutputStream();
+			outputStream.write(CrlfFormat.crlf(new BasicStatusLine(protocolVersion, status,
+					EnglishReasonPhraseCatalog.INSTANCE.getReason(status, null)).toString()));
+			outputStream.write(CrlfFormat.crlf(HttpUtils.createStrHttpHeader(HttpHeaders.CONTENT_TYPE,
+					"text/plain; charset=UTF-8")));
+			outputStream.write(CrlfFormat.crlf(HttpUtils.createStrHttpHeader(HttpHeaders.CONTENT_LENGTH,
+					String.valueOf(body.length))));
+			outputStream.write(CrlfFormat.crlf(HttpUtils.createStrHttpHeader(HTTP.CONN_DIRECTIVE, HTTP.CONN_CLOSE)));
+			outputStream.write(CrlfFormat.CRLF.getBytes());
+			outputStream.write(body);
+			outputStream.flush();
+		} catch (Exception e) {
+			logger.debug("Error on writing error response", e);
+		}
+	}
+
+	/**
+	 * Get the bytes received from the local connection but not consumed by the current request.
+	 */
+	private byte[] readUnconsumedBytes(SessionInputBufferImpl inputBuffer, ByteArrayInputStream bufferedStream)
+			throws IOException {
+		byte[] inputBufferBytes = LocalIOUtils.readBufferedBytes(inputBuffer);
+		if (bufferedStream.available() == 0) {
+			return inputBufferBytes;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream(inputBufferBytes.length + bufferedStream.available());
+		out.write(inputBufferBytes);
+		LocalIOUtils.copy(bufferedStream, out);
+		return out.toByteArray();
 	}
 
-	private void handleConnect(RequestLine requestLine) throws Exception {
+	/**
+	 * Establish a tunnel along the request's route and hand it over to a {@link TunnelRelay}.
+	 * 
+	 * @return <code>true</code> iff the tunnel relay took the ownership of the local connection.
+	 */
+	private boolean handleConnect(RequestLine requestLine, byte[] bufferedBytes) throws Exception {
 		URI uri = HttpUtils.parseConnectUri(requestLine.getUri());
 		logger.debug("Handle proxy connect request");
 
-		HttpHost proxy = new HttpHost(userConfig.getProxyHost(), userConfig.getProxyPort());
 		HttpHost target = new HttpHost(uri.getHost(), uri.getPort());
 
-		authenticationManager.executePrivileged(() -> {
-			Socket socket = null;
+		Route route = router.routeTunnel(target);
+		if (route.isRejected()) {
+			writeErrorResponse(requestLine.getProtocolVersion(), HttpStatus.SC_FORBIDDEN,
+					"Rejected by the routing rules");
+			return false;
+		}
+		if (route.isDirect()) {
+			// No proxy, hence no authentication
+			return openDirectTunnel(target, requestLine.getProtocolVersion(), bufferedBytes);
+		}
+
+		return authenticationManager.executePrivileged(() -> {
+			ProxyTunnel tunnel = null;
 			try {
 				// Creates a tunnel through proxy.
 				// No credentials provided, we only rely on JAAS.
-				socket = proxyClient.tunnel(proxy, target, requestLine.getProtocolVersion(), localSocketChannel.getOutputStream());
-				final OutputStream socketOutputStream = socket.getOutputStream();
-				proxyContext.executeAsync(() -> LocalIOUtils.copyQuietly(localSocketChannel.getInputStream(), socketOutputStream));
-				LocalIOUtils.copyQuietly(socket.getInputStream(), localSocketChannel.getOutputStream());
+				tunnel = openTunnel(target, route.getProxies(), requestLine.getProtocolVersion());
+				new TunnelRelay(localSocketChannel.getSocketChannel(), tunnel.getSocketChannel(),
+						bufferPool, LocalIOUtils.DEFAULT_BUFFER_SIZE)
+						.start(bufferedBytes, tunnel.readBufferedBytes());
+				return true;
 			} catch (org.apache.http.impl.execchain.TunnelRefusedException tre) {
 				try {
 					HttpResponse errorResponse = tre.getResponse();
@@ -167,40 +376,154 @@ public class SocketHandler {
 				}
 			} catch (Exception e) {
 				logger.error("Error on creating/handling proxy tunnel", e);
-			} finally {
-				if (socket != null) {
-					LocalIOUtils.close(socket);
-				}
+				LocalIOUtils.close(tunnel);
 			}
-			return null;
+			return false;
 		});
 
 	}
 
-	private void handleRequest(HttpRequest request, SessionInputBufferImpl inputBuffer) throws Exception {
+	/**
+	 * Connect straight to the target and hand the connection over to a {@link TunnelRelay}.
+	 *
+	 * @return <code>true</code> iff the tunnel relay took the ownership of the local connection.
+	 */
+	private boolean openDirectTunnel(HttpHost target, ProtocolVersion protocolVersion, byte[] bufferedBytes) {
+		AsynchronousSocketChannel socketChannel;
+		try {
+			socketChannel = upstreamConnector.connectChannel(target);
+		} catch (IOException e) {
+			logger.debug("Cannot connect to " + target, e);
+			writeErrorResponse(protocolVersion, HttpStatus.SC_BAD_GATEWAY, "Cannot connect to " + target.toHostString());
+			return false;
+		}
+		try {
+			OutputStream localOutputStream = localSocketChannel.getOutputStream();
+			localOutputStream.write(CrlfFormat.crlf(
+					new BasicStatusLine(protocolVersion, HttpStatus.SC_OK, "Connection established").toString()));
+			localOutputStream.write(CrlfFormat.CRLF.getBytes());
+			localOutputStream.flush();
+			new TunnelRelay(localSocketChannel.getSocketChannel(), socketChannel, bufferPool,
+					LocalIOUtils.DEFAULT_BUFFER_SIZE).start(bufferedBytes, new byte[0]);
+			return true;
+		} catch (Exception e) {
+			logger.error("Error on creating direct tunnel", e);
+			LocalIOUtils.close(socketChannel);
+			return false;
+		}
+	}
+
+	/**
+	 * Establish a tunnel through the best remote proxy, failing over to the next one
+	 * when the connection to the proxy cannot be established.
+	 *
+	 * @param proxies The proxies to choose among, <code>null</code> for the configured ones.
+	 */
+	private ProxyTunnel openTunnel(HttpHost target, List<HttpHost> proxies, ProtocolVersion protocolVersion)
+			throws Exception {
+		List<UpstreamProxies.Upstream> tried = new ArrayList<>();
+		Exception failure = null;
+		for (UpstreamProxies.Upstream upstream; (upstream = upstreamProxies.acquire(proxies, tried)) != null; ) {
+			long start = System.nanoTime();
+			try {
+				ProxyTunnel tunnel = proxyClient.tunnel(upstream.getHost(), target, protocolVersion,
+						localSocketChannel.getOutputStream());
+				upstreamProxies.responded(upstream, start);
+				upstreamProxies.released(upstream);
+				return tunnel;
+			} catch (org.apache.http.impl.execchain.TunnelRefusedException e) {
+				// The proxy is fine, it has answered
+				upstreamProxies.responded(upstream, start);
+				upstreamProxies.released(upstream);
+				throw e;
+			} catch (IOException | HttpException e) {
+				tried.add(upstream);
+				if (!upstreamProxies.failed(upstream, e)) {
+					throw e;
+				}
+				logger.debug("Cannot connect to proxy " + upstream, e);
+				failure = e;
+			}
+		}
+		throw failure != null ? failure : new ConnectException("No remote proxy configured");
+	}
+
+	/**
+	 * Execute the request through the best remote proxy, failing over to the next one
+	 * when the connection to the proxy cannot be established, so nothing has been sent yet.
+	 * The caller must release the returned proxy once done with the response.
+	 *
+	 * @param proxies The proxies to choose among, <code>null</code> for the configured ones.
+	 * @return The proxy and its response.
+	 */
+	private Pair<UpstreamProxies.Upstream, CloseableHttpResponse> executeRequest(CloseableHttpClient httpClient,
+			HttpHost target, List<HttpHost> proxies, HttpRequest request, boolean retryRequest) throws Exception {
+		List<UpstreamProxies.Upstream> tried = new ArrayList<>();
+		Exception failure = null;
+		for (UpstreamProxies.Upstream upstream; (upstream = upstreamProxies.acquire(proxies, tried)) != null; ) {
+			HttpHost proxy = upstream.getHost();
+			long start = System.nanoTime();
+			try {
+				CloseableHttpResponse response;
+				if (retryRequest) {
+					response = new CloseableRepeater<CloseableHttpResponse>().repeat(
+							() -> httpClient.execute(target, request, proxyContext.newHttpClientContext(proxy)),
+							(t) -> t.getStatusLine().getStatusCode() != HttpStatus.SC_PROXY_AUTHENTICATION_REQUIRED,
+							systemConfig.getRepeatsOnFailure());
+				} else {
+					response = httpClient.execute(target, request, proxyContext.newHttpClientContext(proxy));
+				}
+				upstreamProxies.responded(upstream, start);
+				return Pair.of(upstream, response);
+			} catch (IOException e) {
+				tried.add(upstream);
+				if (!upstreamProxies.failed(upstream, e)) {
+					throw e;
+				}
+				logger.debug("Cannot connect to proxy " + upstream, e);
+				failure = e;
+			} catch (Exception e) {
+				upstreamProxies.released(upstream);
+				throw e;
+			}
+		}
+		throw failure != null ? failure : new ConnectException("No remote proxy configured");
+	}
+
+	/**
+	 * Forward a non-CONNECT request along its route, unless the cache can serve it, and write back the response.
+	 * 
+	 * @return <code>true</code> iff the local connection can be used for the next request.
+	 */
+	private boolean handleRequest(HttpRequest request, SessionInputBufferImpl inputBuffer) throws Exception {
 		RequestLine requestLine = request.getRequestLine();
 		logger.debug("Handle non-connect request {}", requestLine);
 
+		boolean persistent = systemConfig.isKeepAliveEnabled() && HttpUtils.isPersistentConnection(request);
+		logger.debug("persistent {} ", persistent);
+
 		// Set our streaming entity
+		StreamingHttpEntity requestEntity = null;
+		CacheExchange exchange = null;
 		if (request instanceof BasicHttpEntityEnclosingRequest) {
 			BasicHttpEntityEnclosingRequest entityEnclosingRequest = (BasicHttpEntityEnclosingRequest) request;
 			logger.debug("Create StreamingHttpEntity");
-			HttpEntity entity = new StreamingHttpEntity(inputBuffer, entityEnclosingRequest);
-			entityEnclosingRequest.setEntity(entity);
+			requestEntity = new StreamingHttpEntity(inputBuffer, entityEnclosingRequest, bufferPool);
+			entityEnclosingRequest.setEntity(requestEntity);
 			logger.debug("Done configuring entityEnclosingRequest");
 		}
 
-		final boolean retryRequest = !(request instanceof BasicHttpEntityEnclosingRequest)
-				|| ((BasicHttpEntityEnclosingRequest) request).getEntity().isRepeatable();
+		final boolean retryRequest = requestEntity == null || requestEntity.isRepeatable();
 		logger.debug("retryRequest {} ", retryRequest);
 
 		URI uri = HttpUtils.parseUri(requestLine.getUri());
-		CloseableHttpClient httpClient = proxyContext.getHttpClientBuilder(retryRequest);
+		CloseableHttpClient httpClient = proxyContext.getHttpClient(retryRequest);
 
 		try {
-			// Remove banned headers
+			// Remove banned and hop-by-hop headers
 			for (Header header : request.getAllHeaders()) {
-				if (BANNED_REQUEST_HEADERS.contains(header.getName())) {
+				if (BANNED_REQUEST_HEADERS.contains(header.getName())
+						|| HttpUtils.isConnectionHeader(header.getName())) {
 					request.removeHeader(header);
 				} else {
 					if (logger.isDebugEnabled()) {
@@ -209,75 +532,226 @@ public class SocketHandler {
 				}
 			}
 
-			// Execute the request
-			authenticationManager.executePrivileged(() -> {
-				try {
-					HttpHost target = new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme());
-
-					CloseableHttpResponse response;
-					if (retryRequest) {
-						response = new CloseableRepeater<CloseableHttpResponse>().repeat(() -> httpClient.execute(target, request),
-								(t) -> t.getStatusLine().getStatusCode() != HttpStatus.SC_PROXY_AUTHENTICATION_REQUIRED,
-								systemConfig.getRepeatsOnFailure());
-					} else {
-						response = httpClient.execute(target, request);
-					}
+			HttpHost target = new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme());
+			Route route = router.route(uri);
+			if (route.isRejected()) {
+				writeErrorResponse(request.getProtocolVersion(), HttpStatus.SC_FORBIDDEN, "Rejected by the routing rules");
+				return false;
+			}
+
+			// Waits here for the response of an identical request in flight, if any
+			CacheExchange cacheExchange = httpCache.exchange(uri, request);
+			exchange = cacheExchange;
+			HttpResponse cachedResponse = cacheExchange.getCachedResponse();
 
+			// Execute the request
+			boolean reusable;
+			if (cachedResponse != null) {
+				reusable = writeResponse(request, cachedResponse, persistent);
+			} else if (route.isDirect()) {
+				// No proxy, hence no authentication
+				reusable = executeDirect(target, request, cacheExchange, persistent);
+			} else {
+				reusable = authenticationManager.executePrivileged(() -> {
 					try {
-						String statusLine = response.getStatusLine().toString();
-						logger.debug("Response status line: {}", statusLine);
-
-						OutputStream outputStream = localSocketChannel.getOutputStream();
-						outputStream.write(CrlfFormat.crlf(statusLine));
-
-						logger.debug("Start writing response headers");
-						for (Header header : response.getAllHeaders()) {
-							if (HttpHeaders.TRANSFER_ENCODING.equals(header.getName())) {
-
-								// Strip 'chunked' from Transfer-Encoding header's value
-								String nonChunkedTransferEncoding = HttpUtils.stripChunked(header.getValue());
-								if (nonChunkedTransferEncoding != null && !nonChunkedTransferEncoding.isEmpty()) {
-									outputStream.write(CrlfFormat.crlf(HttpUtils.createStrHttpHeader(HttpHeaders.TRANSFER_ENCODING,
-											nonChunkedTransferEncoding)));
-									logger.debug("Add chunk-striped header response");
-								} else {
-									logger.debug("Remove transfer encoding chunked header response");
-								}
-							} else {
-								String strHeader = header.toString();
-								logger.debug("Write response header: {}", strHeader);
-								outputStream.write(CrlfFormat.crlf(strHeader));
+						Pair<UpstreamProxies.Upstream, CloseableHttpResponse> result = executeRequest(httpClient, target,
+								route.getProxies(), request, retryRequest);
+						CloseableHttpResponse response = result.getRight();
+
+						// Once the remote body is spooled, the proxy is done with this request
+						AtomicBoolean released = new AtomicBoolean();
+						Runnable release = () -> {
+							if (released.compareAndSet(false, true)) {
+								upstreamProxies.released(result.getLeft());
 							}
+						};
+						try {
+							return writeResponse(request, spool(cacheExchange.complete(segment(request, response,
+									(rangeRequest, reader) -> executeRange(httpClient, target, route.getProxies(),
+											rangeRequest, reader))), release), persistent);
+						} finally {
+							LocalIOUtils.close(response);
+							release.run();
 						}
+					} catch (org.apache.http.client.ClientProtocolException e) {
+						logger.debug("Error on executing HTTP request", e);
+					} catch (Throwable e) {
+						logger.error("Error on executing HTTP request", e);
+					}
+					return false;
+				});
+			}
 
-						// Empty line marking the end
-						// of header's section
-						outputStream.write(CrlfFormat.CRLF.getBytes());
+			logger.debug("End handling non-connect request {}", requestLine);
 
-						HttpEntity entity = response.getEntity();
-						if (entity != null) {
-							logger.debug("Start writing entity content");
-							entity.writeTo(outputStream);
-							logger.debug("End writing entity content");
-						}
+			// The connection can be reused only if the whole request body
+			// has been read and the response has been completely written
+			return reusable && (requestEntity == null || requestEntity.isConsumed());
+		} finally {
+			LocalIOUtils.close(exchange, requestEntity);
+		}
+	}
 
-						EntityUtils.consume(entity);
-					} finally {
-						LocalIOUtils.close(response);
-					}
+	/**
+	 * Execute the request straight to its destination and write back the response.
+	 *
+	 * @return <code>true</code> iff the local connection is still persistent after this response.
+	 */
+	private boolean executeDirect(HttpHost target, HttpRequest request, CacheExchange cacheExchange,
+			boolean persistent) {
+		try (CloseableHttpResponse response = proxyContext.getDirectHttpClient().execute(target, request,
+				proxyContext.newHttpClientContext(null))) {
+			return writeResponse(request, spool(cacheExchange.complete(segment(request, response,
+					(rangeRequest, reader) -> {
+						try (CloseableHttpResponse rangeResponse = proxyContext.getDirectHttpClient().execute(target,
+								rangeRequest, proxyContext.newHttpClientContext(null))) {
+							reader.read(rangeResponse);
+						}
+					})), () -> {
+						// No remote proxy to release
+					}), persistent);
+		} catch (org.apache.http.client.ClientProtocolException e) {
+			logger.debug("Error on executing HTTP request", e);
+		} catch (Throwable e) {
+			logger.error("Error on executing HTTP request", e);
+		}
+		return false;
+	}
 
-				} catch (org.apache.http.client.ClientProtocolException e) {
-					logger.debug("Error on executing HTTP request", e);
-				} catch (Throwable e) {
-					logger.error("Error on executing HTTP request", e);
+	/**
+	 * Execute a range request of a segmented download through the best remote proxy,
+	 * on behalf of the current user like the original request.
+	 */
+	private void executeRange(CloseableHttpClient httpClient, HttpHost target, List<HttpHost> proxies,
+			HttpRequest rangeRequest, SegmentedEntity.ResponseReader reader) throws Exception {
+		Exception failure = authenticationManager.executePrivileged(() -> {
+			try {
+				Pair<UpstreamProxies.Upstream, CloseableHttpResponse> result = executeRequest(httpClient, target,
+						proxies, rangeRequest, true);
+				try (CloseableHttpResponse response = result.getRight()) {
+					reader.read(response);
+				} finally {
+					upstreamProxies.released(result.getLeft());
 				}
 				return null;
-			});
+			} catch (Exception e) {
+				return e;
+			}
+		});
+		if (failure != null) {
+			throw failure;
+		}
+	}
 
-			logger.debug("End handling non-connect request {}", requestLine);
-		} finally {
-			LocalIOUtils.close(httpClient);
+	/**
+	 * With the segmented downloads enabled, download a large body accepting byte ranges
+	 * over several remote connections at once.
+	 */
+	private HttpResponse segment(HttpRequest request, HttpResponse response, SegmentedEntity.RangeClient rangeClient) {
+		if (systemConfig.isDownloadSegmentsEnabled() && systemConfig.getDownloadSegmentsCount() > 1
+				&& SegmentedEntity.isSegmentable(request, response, systemConfig.getDownloadSegmentsThreshold())) {
+			response.setEntity(new SegmentedEntity(request, response, systemConfig.getDownloadSegmentsCount(),
+					rangeClient, proxyContext::executeAsync, bufferPool, systemConfig.getResponseSpoolMemory(),
+					systemConfig.getRepeatsOnFailure()));
 		}
+		return response;
+	}
+
+	/**
+	 * With the response spooling enabled, read the remote body apart from writing it to the local client,
+	 * so that a slow client does not hold the remote connection.
+	 *
+	 * @param drained Called once done with the remote body, if spooled.
+	 */
+	private HttpResponse spool(HttpResponse response, Runnable drained) {
+		HttpEntity entity = response.getEntity();
+		if (systemConfig.isResponseSpoolEnabled() && entity != null && entity.isStreaming()
+				&& !(entity instanceof MappedFileEntity)) {
+			response.setEntity(new SpoolingEntity(entity, systemConfig.getResponseSpoolMemory(),
+					proxyContext::executeAsync, bufferPool, drained));
+		}
+		return response;
+	}
+
+	/**
+	 * Write the remote response to the local connection.
+	 * When the local connection is persistent, a response without a known length
+	 * is written with chunked encoding (HTTP/1.1 clients only).
+	 * 
+	 * @return <code>true</code> iff the local connection is still persistent after this response.
+	 */
+	private boolean writeResponse(HttpRequest request, HttpResponse response, boolean persistent) throws IOException {
+		HttpEntity entity = response.getEntity();
+		boolean chunked = false;
+		if (persistent && entity != null && entity.getContentLength() < 0) {
+			if (request.getProtocolVersion().lessEquals(HttpVersion.HTTP_1_0)) {
+				// The end of the body can only be marked by closing the connection
+				persistent = false;
+			} else {
+				chunked = true;
+			}
+		}
+		logger.debug("Write response with persistent {} chunked {}", persistent, chunked);
+
+		SessionOutputBufferImpl outputBuffer = new SessionOutputBufferImpl(new HttpTransportMetricsImpl(),
+				LocalIOUtils.DEFAULT_BUFFER_SIZE);
+		outputBuffer.bind(localSocketChannel.getOutputStream());
+
+		String statusLine = response.getStatusLine().toString();
+		logger.debug("Response status line: {}", statusLine);
+		outputBuffer.write(CrlfFormat.crlf(statusLine));
+
+		logger.debug("Start writing response headers");
+		for (Header header : response.getAllHeaders()) {
+			if (HttpHeaders.TRANSFER_ENCODING.equals(header.getName())) {
+
+				// Strip 'chunked' from Transfer-Encoding header's value
+				String nonChunkedTransferEncoding = HttpUtils.stripChunked(header.getValue());
+				if (nonChunkedTransferEncoding != null && !nonChunkedTransferEncoding.isEmpty()) {
+					outputBuffer.write(CrlfFormat.crlf(HttpUtils.createStrHttpHeader(HttpHeaders.TRANSFER_ENCODING,
+							nonChunkedTransferEncoding)));
+					logger.debug("Add chunk-striped header response");
+				} else {
+					logger.debug("Remove transfer encoding chunked header response");
+				}
+			} else if (HttpUtils.isConnectionHeader(header.getName())) {
+				logger.debug("Remove connection header response: {}", header);
+			} else {
+				String strHeader = header.toString();
+				logger.debug("Write response header: {}", strHeader);
+				outputBuffer.write(CrlfFormat.crlf(strHeader));
+			}
+		}
+		if (chunked) {
+			// 'chunked' must be the last transfer coding
+			outputBuffer.write(CrlfFormat.crlf(HttpUtils.createStrHttpHeader(HttpHeaders.TRANSFER_ENCODING,
+					HTTP.CHUNK_CODING)));
+		}
+		outputBuffer.write(CrlfFormat.crlf(HttpUtils.createStrHttpHeader(HTTP.CONN_DIRECTIVE,
+				persistent ? HTTP.CONN_KEEP_ALIVE : HTTP.CONN_CLOSE)));
+
+		// Empty line marking the end
+		// of header's section
+		outputBuffer.write(CrlfFormat.CRLF.getBytes());
+
+		if (entity instanceof MappedFileEntity && !chunked) {
+			// A cached file, straight from the page cache to the socket
+			outputBuffer.flush();
+			((MappedFileEntity) entity).writeTo(localSocketChannel.getWritableChannel());
+		} else if (entity != null) {
+			logger.debug("Start writing entity content");
+			try (OutputStream outputStream = chunked
+					? new ChunkedOutputStream(LocalIOUtils.DEFAULT_BUFFER_SIZE, outputBuffer)
+					: new IdentityOutputStream(outputBuffer)) {
+				entity.writeTo(outputStream);
+			}
+			logger.debug("End writing entity content");
+		} else {
+			outputBuffer.flush();
+		}
+
+		EntityUtils.consume(entity);
+		return persistent;
 	}
 
 }
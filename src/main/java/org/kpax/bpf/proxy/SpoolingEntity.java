@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * Contributors:
+ *     Eugen Covaci - initial design and implementation
+ *******************************************************************************/
+
+package org.kpax.bpf.proxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.kpax.bpf.cache.Spool;
+import org.kpax.bpf.util.LocalIOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A response entity read at the remote side's pace into a {@link Spool} by another thread,
+ * while the local client is written at its own pace.
+ * <p>
+ * Once the remote body is read, the remote connection goes back to the pool, instead of being held
+ * until a slow client has read the whole body.
+ *
+ * @author Eugen Covaci
+ */
+public class SpoolingEntity extends HttpEntityWrapper {
+
+	private static final Logger logger = LoggerFactory.getLogger(SpoolingEntity.class);
+
+	private final int memoryThreshold;
+
+	private final Executor executor;
+
+	private final BufferPool bufferPool;
+
+	private final Runnable drained;
+
+	/**
+	 * @param entity          The remote entity.
+	 * @param memoryThreshold The bytes kept in memory, the rest going to a temporary file.
+	 * @param executor        Runs the reading of the remote body.
+	 * @param bufferPool      Provides the buffer writing the local client.
+	 * @param drained         Called once done with the remote body, read or failed, maybe before the client has it all.
+	 */
+	public SpoolingEntity(HttpEntity entity, int memoryThreshold, Executor executor, BufferPool bufferPool,
+			Runnable drained) {
+		super(entity);
+		this.memoryThreshold = memoryThreshold;
+		this.executor = executor;
+		this.bufferPool = bufferPool;
+		this.drained = drained;
+	}
+
+	@Override
+	public void writeTo(OutputStream outStream) throws IOException {
+		Spool spool = new Spool(memoryThreshold, 0);
+		try (InputStream inStream = spool.newInputStream()) {
+			try {
+				executor.execute(() -> drain(spool));
+			} catch (RejectedExecutionException e) {
+				spool.close();
+				throw new IOException("Cannot read the remote body", e);
+			}
+			try (PooledBuffer pooledBuffer = bufferPool.acquireArray(LocalIOUtils.DEFAULT_BUFFER_SIZE)) {
+				byte[] buffer = pooledBuffer.buffer().array();
+				int read;
+				while ((read = inStream.read(buffer)) != -1) {
+					outStream.write(buffer, 0, read);
+				}
+			}
+		}
+	}
+
+	private void drain(Spool spool) {
+		try (Spool writer = spool) {
+			wrappedEntity.writeTo(new OutputStream() {
+
+				@Override
+				public void write(int b) throws IOException {
+					write(new byte[] { (byte) b }, 0, 1);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					writer.write(b, off, len);
+				}
+
+			});
+			writer.complete();
+			logger.debug("Remote body of {} bytes read", writer.getLength());
+		} catch (IOException e) {
+			logger.debug("Cannot read the remote body", e);
+			spool.fail(e);
+		} catch (RuntimeException e) {
+			logger.error("Cannot read the remote body", e);
+			spool.fail(new IOException(e));
+		} finally {
+			drained.run();
+		}
+	}
+
+}
@@ -14,10 +14,11 @@
 
 package org.kpax.bpf.proxy;
 
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import org.apache.http.HttpHeaders;
 import org.apache.http.HttpRequest;
@@ -29,68 +30,100 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * A request entity streaming the body from the local connection.
+ * <p>
+ * Small bodies (up to {@link #INTERNAL_BUFFER_LENGTH} bytes) are first read into a pooled buffer,
+ * so that the entity is repeatable. The buffer is given back to the pool on {@link #close()}.
+ * 
  * @author Eugen Covaci
  */
-class StreamingHttpEntity extends AbstractHttpEntity {
+class StreamingHttpEntity extends AbstractHttpEntity implements Closeable {
 
 	private static final Logger logger = LoggerFactory.getLogger(StreamingHttpEntity.class);
 
 	private static final int INTERNAL_BUFFER_LENGTH = 100 * 1024;
 
-	private byte[] bufferedBytes;
+	/**
+	 * The buffered body bytes, in read mode; <code>null</code> when nothing is buffered.
+	 */
+	private PooledBuffer bufferedContent;
+
+	private int bufferedLength;
 
 	private final SessionInputBufferImpl inputBuffer;
 
+	private final BufferPool bufferPool;
+
 	private final long contentLength;
 
 	private boolean repeatable;
 
-	StreamingHttpEntity(SessionInputBufferImpl inputBuffer, HttpRequest request)
+	/**
+	 * The number of body bytes read from the local connection so far.
+	 */
+	private long readLength;
+
+	StreamingHttpEntity(SessionInputBufferImpl inputBuffer, HttpRequest request, BufferPool bufferPool)
 			throws IOException {
 		this.inputBuffer = inputBuffer;
+		this.bufferPool = bufferPool;
 		contentType = request.getFirstHeader(HttpHeaders.CONTENT_TYPE);
 		contentEncoding = request.getFirstHeader(HttpHeaders.CONTENT_ENCODING);
 		contentLength = HttpUtils.getContentLength(request);
 
 		// Set buffer and repeatable
 		if (contentLength > INTERNAL_BUFFER_LENGTH) {
-			bufferedBytes = new byte[0];
 			repeatable = false;
 		} else {
-			logger.debug("Read buffered bytes");
-			ByteArrayOutputStream out = new ByteArrayOutputStream();
-			writeTo(out, contentLength < 0 ? INTERNAL_BUFFER_LENGTH : contentLength);
-			bufferedBytes = out.toByteArray();
+			if (contentLength != 0) {
+				logger.debug("Read buffered bytes");
+				int maxLength = contentLength < 0 ? INTERNAL_BUFFER_LENGTH : (int) contentLength;
+				bufferedContent = bufferPool.acquire(maxLength);
+				ByteBuffer buffer = bufferedContent.buffer();
+				buffer.limit(maxLength);
+				try {
+					writeTo(new ByteBufferOutputStream(buffer), maxLength);
+				} catch (IOException | RuntimeException e) {
+					close();
+					throw e;
+				}
+				buffer.flip();
+				bufferedLength = buffer.remaining();
+			}
 			repeatable = !(contentLength < 0 && LocalIOUtils.isAvailable(this.inputBuffer));
 		}
 
-		logger.debug("bufferedBytes {}", bufferedBytes.length);
+		logger.debug("bufferedBytes {}", bufferedLength);
 	}
 
 	private void writeTo(OutputStream out, long maxLength) throws IOException {
-		byte[] buffer = new byte[OUTPUT_BUFFER_SIZE];
-		int length;
-		if (maxLength < 0) {
-			// consume until EOF
-			while (LocalIOUtils.isAvailable(inputBuffer)) {
-				length = inputBuffer.read(buffer);
-				if (length == -1) {
-					break;
+		try (PooledBuffer pooledBuffer = bufferPool.acquireArray(OUTPUT_BUFFER_SIZE)) {
+			byte[] buffer = pooledBuffer.buffer().array();
+			int length;
+			if (maxLength < 0) {
+				// consume until EOF
+				while (LocalIOUtils.isAvailable(inputBuffer)) {
+					length = inputBuffer.read(buffer, 0, OUTPUT_BUFFER_SIZE);
+					if (length == -1) {
+						break;
+					}
+					out.write(buffer, 0, length);
+					out.flush();
+					readLength += length;
 				}
-				out.write(buffer, 0, length);
-				out.flush();
-			}
-		} else {
-			// consume no more than maxLength
-			long remaining = maxLength;
-			while (remaining > 0 && LocalIOUtils.isAvailable(inputBuffer)) {
-				length = inputBuffer.read(buffer, 0, (int) Math.min(OUTPUT_BUFFER_SIZE, remaining));
-				if (length == -1) {
-					break;
+			} else {
+				// consume no more than maxLength
+				long remaining = maxLength;
+				while (remaining > 0 && LocalIOUtils.isAvailable(inputBuffer)) {
+					length = inputBuffer.read(buffer, 0, (int) Math.min(OUTPUT_BUFFER_SIZE, remaining));
+					if (length == -1) {
+						break;
+					}
+					out.write(buffer, 0, length);
+					out.flush();
+					readLength += length;
+					remaining -= length;
 				}
-				out.write(buffer, 0, length);
-				out.flush();
-				remaining -= length;
 			}
 		}
 	}
@@ -99,21 +132,43 @@ class StreamingHttpEntity extends AbstractHttpEntity {
 	public void writeTo(OutputStream outputStream) throws IOException {
 
 		// Write the initial buffer
-		if (bufferedBytes.length > 0) {
+		if (bufferedLength > 0) {
 			logger.debug("Write initial buffer");
-			outputStream.write(bufferedBytes);
+			ByteBuffer buffer = bufferedContent.buffer().duplicate();
+			if (buffer.hasArray()) {
+				outputStream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			} else {
+				try (PooledBuffer pooledChunk = bufferPool.acquireArray(OUTPUT_BUFFER_SIZE)) {
+					byte[] chunk = pooledChunk.buffer().array();
+					while (buffer.hasRemaining()) {
+						int length = Math.min(OUTPUT_BUFFER_SIZE, buffer.remaining());
+						buffer.get(chunk, 0, length);
+						outputStream.write(chunk, 0, length);
+					}
+				}
+			}
 			logger.debug("End Write initial buffer");
 		}
 
 		// Write the remaining bytes when non-repeatable
 		if (!repeatable) {
 			logger.debug("Write the remaining bytes");
-			long remaining = contentLength < 0 ? contentLength : contentLength - bufferedBytes.length;
+			long remaining = contentLength < 0 ? contentLength : contentLength - bufferedLength;
 			writeTo(outputStream, remaining);
 		}
 
 	}
 
+	/**
+	 * Check whether the whole request body has been read from the local connection,
+	 * so that the next request can be parsed from the same connection.
+	 * 
+	 * @return <code>true</code> iff the content length is known and all the body bytes have been read.
+	 */
+	boolean isConsumed() {
+		return contentLength >= 0 && readLength >= contentLength;
+	}
+
 	@Override
 	public boolean isStreaming() {
 		return true;
@@ -134,4 +189,29 @@ class StreamingHttpEntity extends AbstractHttpEntity {
 		throw new UnsupportedOperationException("No content available");
 	}
 
-}
\ No newline at end of file
+	@Override
+	public void close() {
+		LocalIOUtils.close(bufferedContent);
+	}
+
+	private static class ByteBufferOutputStream extends OutputStream {
+
+		private final ByteBuffer buffer;
+
+		private ByteBufferOutputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public void write(int b) {
+			buffer.put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			buffer.put(b, off, len);
+		}
+
+	}
+
+}
@@ -0,0 +1,211 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * Contributors:
+ *     Eugen Covaci - initial design and implementation
+ *******************************************************************************/
+
+package org.kpax.bpf.proxy;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.Validate;
+import org.kpax.bpf.util.LocalIOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Relays the bytes of a tunnel between two {@link AsynchronousSocketChannel}s,
+ * in both directions, using completion handlers only.
+ * <p>
+ * No thread is held while the tunnel is idle: each direction has exactly one pending
+ * read or write at any time. When one side reaches EOF, the other side's output is shut down;
+ * the channels are closed once both directions are done or on the first error.
+ * <p>
+ * Each direction copies through a direct buffer taken from the {@link BufferPool},
+ * given back when the direction has no pending operation left.
+ *
+ * @author Eugen Covaci
+ */
+class TunnelRelay implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(TunnelRelay.class);
+
+	private final AsynchronousSocketChannel localChannel;
+
+	private final AsynchronousSocketChannel remoteChannel;
+
+	private final BufferPool bufferPool;
+
+	private final int bufferSize;
+
+	private final AtomicInteger openDirections = new AtomicInteger(2);
+
+	private final AtomicBoolean closed = new AtomicBoolean();
+
+	TunnelRelay(AsynchronousSocketChannel localChannel, AsynchronousSocketChannel remoteChannel,
+			BufferPool bufferPool, int bufferSize) {
+		Validate.notNull(localChannel, "localChannel cannot be null");
+		Validate.notNull(remoteChannel, "remoteChannel cannot be null");
+		Validate.notNull(bufferPool, "bufferPool cannot be null");
+		Validate.isTrue(bufferSize > 0, "bufferSize must be positive");
+		this.localChannel = localChannel;
+		this.remoteChannel = remoteChannel;
+		this.bufferPool = bufferPool;
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * Start relaying, then return immediately.
+	 *
+	 * @param localBytes  The bytes already read from the local channel, to be sent first to the remote one.
+	 * @param remoteBytes The bytes already read from the remote channel, to be sent first to the local one.
+	 */
+	void start(byte[] localBytes, byte[] remoteBytes) {
+		logger.debug("Start tunnel relay with {} local and {} remote buffered bytes",
+				localBytes.length, remoteBytes.length);
+		new Direction(localChannel, remoteChannel, "local->remote").start(localBytes);
+		new Direction(remoteChannel, localChannel, "remote->local").start(remoteBytes);
+	}
+
+	@Override
+	public void close() {
+		if (closed.compareAndSet(false, true)) {
+			logger.debug("Close tunnel relay");
+			LocalIOUtils.close(localChannel, remoteChannel);
+		}
+	}
+
+	/**
+	 * One way of the tunnel: read from source, write to target, repeat.
+	 */
+	private class Direction {
+
+		private final AsynchronousSocketChannel source;
+
+		private final AsynchronousSocketChannel target;
+
+		private final String name;
+
+		private PooledBuffer pooledBuffer;
+
+		private ByteBuffer buffer;
+
+		private final CompletionHandler<Integer, Void> readHandler = new CompletionHandler<Integer, Void>() {
+
+			@Override
+			public void completed(Integer result, Void attachment) {
+				if (result < 0) {
+					finish();
+				} else {
+					buffer.flip();
+					write();
+				}
+			}
+
+			@Override
+			public void failed(Throwable exc, Void attachment) {
+				Direction.this.failed(exc);
+			}
+		};
+
+		private final CompletionHandler<Integer, Void> writeHandler = new CompletionHandler<Integer, Void>() {
+
+			@Override
+			public void completed(Integer result, Void attachment) {
+				if (buffer.hasRemaining()) {
+					write();
+				} else {
+					read();
+				}
+			}
+
+			@Override
+			public void failed(Throwable exc, Void attachment) {
+				Direction.this.failed(exc);
+			}
+		};
+
+		Direction(AsynchronousSocketChannel source, AsynchronousSocketChannel target, String name) {
+			this.source = source;
+			this.target = target;
+			this.name = name;
+		}
+
+		void start(byte[] initialBytes) {
+			try {
+				pooledBuffer = bufferPool.acquire(bufferSize);
+			} catch (Exception e) {
+				failed(e);
+				return;
+			}
+			buffer = pooledBuffer.buffer();
+			if (initialBytes.length > buffer.capacity()) {
+				buffer = ByteBuffer.wrap(initialBytes);
+			} else {
+				buffer.put(initialBytes).flip();
+			}
+			if (buffer.hasRemaining()) {
+				write();
+			} else {
+				read();
+			}
+		}
+
+		private void read() {
+			buffer = pooledBuffer.buffer();
+			buffer.clear();
+			try {
+				source.read(buffer, null, readHandler);
+			} catch (Exception e) {
+				failed(e);
+			}
+		}
+
+		private void write() {
+			try {
+				target.write(buffer, null, writeHandler);
+			} catch (Exception e) {
+				failed(e);
+			}
+		}
+
+		private void finish() {
+			logger.debug("EOF reached for {}", name);
+			try {
+				target.shutdownOutput();
+			} catch (Exception e) {
+				logger.debug("Error on shutting down output for " + name, e);
+			}
+			LocalIOUtils.close(pooledBuffer);
+			if (openDirections.decrementAndGet() == 0) {
+				close();
+			}
+		}
+
+		private void failed(Throwable exc) {
+			if (exc instanceof AsynchronousCloseException) {
+				logger.debug("Channel closed for {}", name);
+			} else {
+				logger.debug("Error on relaying " + name, exc);
+			}
+			LocalIOUtils.close(pooledBuffer);
+			close();
+		}
+
+	}
+
+}
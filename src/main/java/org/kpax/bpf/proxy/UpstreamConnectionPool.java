@@ -0,0 +1,386 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * Contributors:
+ *     Eugen Covaci - initial design and implementation
+ *******************************************************************************/
+
+package org.kpax.bpf.proxy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.protocol.HttpContext;
+import org.kpax.bpf.SystemConfig;
+import org.kpax.bpf.util.LocalIOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps a few connections to the remote proxy already established, so that neither
+ * a CONNECT tunnel nor the first request on a route has to wait for the TCP handshake.
+ * <p>
+ * The connections are kept for each healthy proxy (see {@link UpstreamProxies}).
+ * There are two kinds of standby connections: asynchronous channels for the tunnels
+ * (see {@link CustomProxyClient}) and plain sockets for the HTTP client's connection manager
+ * (see {@link #socketFactory()}). Both are replenished in background and expired
+ * before the proxy is likely to drop them as idle.
+ *
+ * @author Eugen Covaci
+ */
+@Component
+@ManagedResource(objectName = "org.kpax.bpf:type=UpstreamConnectionPool", description = "Standby connections to the remote proxy")
+public class UpstreamConnectionPool implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(UpstreamConnectionPool.class);
+
+	@Autowired
+	private SystemConfig systemConfig;
+
+	@Autowired
+	private UpstreamProxies upstreamProxies;
+
+	@Autowired
+	private UpstreamConnector upstreamConnector;
+
+	/**
+	 * The standby connections by proxy.
+	 */
+	private final Map<HttpHost, StandbyConnections> standbyConnections = new ConcurrentHashMap<>();
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	private final LongAdder expired = new LongAdder();
+
+	private final LongAdder connectFailures = new LongAdder();
+
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * Start keeping standby connections, if enabled. Calling it when already started has no effect.
+	 */
+	public synchronized void start() {
+		if (scheduler != null || systemConfig.getUpstreamPoolSize() <= 0) {
+			return;
+		}
+		logger.info("Start the upstream connection pool with {} standby connections of each kind",
+				systemConfig.getUpstreamPoolSize());
+		scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "upstream-pool");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		// Replenishing more often than the expiry keeps the pool full
+		long period = Math.max(1, systemConfig.getUpstreamPoolMaxIdle() / 2);
+		scheduler.scheduleWithFixedDelay(this::replenish, 0, period, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Take a standby tunnel channel to the proxy.
+	 *
+	 * @param proxy The proxy.
+	 * @return The connected channel or <code>null</code> if none is available.
+	 */
+	AsynchronousSocketChannel pollChannel(HttpHost proxy) {
+		StandbyConnections connections = standbyConnections.get(proxy);
+		return taken(connections != null ? connections.channels.poll() : null);
+	}
+
+	/**
+	 * Take a standby socket to the proxy, checking it has not been closed meanwhile.
+	 *
+	 * @param proxy The proxy.
+	 * @return The connected socket or <code>null</code> if none is available.
+	 */
+	Socket pollSocket(HttpHost proxy) {
+		Socket socket = null;
+		StandbyConnections connections = standbyConnections.get(proxy);
+		if (connections != null) {
+			while ((socket = connections.sockets.poll()) != null && !isAlive(socket)) {
+				expired.increment();
+				LocalIOUtils.close(socket);
+			}
+		}
+		return taken(socket);
+	}
+
+	private <T> T taken(T connection) {
+		ScheduledExecutorService scheduler = this.scheduler;
+		if (scheduler == null) {
+			// Closed meanwhile
+			if (connection instanceof Closeable) {
+				LocalIOUtils.close((Closeable) connection);
+			}
+			return null;
+		}
+		if (connection != null) {
+			hits.increment();
+			try {
+				scheduler.execute(this::replenish);
+			} catch (Exception e) {
+				logger.debug("Cannot schedule replenishing", e);
+			}
+		} else {
+			misses.increment();
+		}
+		return connection;
+	}
+
+	/**
+	 * A socket factory handing out the standby sockets for the connections to the proxy.
+	 *
+	 * @return The socket factory for the <code>http</code> scheme.
+	 */
+	public ConnectionSocketFactory socketFactory() {
+		return new StandbySocketFactory();
+	}
+
+	/**
+	 * Drop the expired connections and fill up the pool of each healthy proxy, from the scheduler's thread.
+	 */
+	private synchronized void replenish() {
+		Set<HttpHost> proxies = new HashSet<>();
+		for (UpstreamProxies.Upstream upstream : upstreamProxies.getUpstreams()) {
+			if (!upstream.isEjected()) {
+				proxies.add(upstream.getHost());
+			}
+		}
+		for (Iterator<Map.Entry<HttpHost, StandbyConnections>> itr = standbyConnections.entrySet()
+				.iterator(); itr.hasNext(); ) {
+			Map.Entry<HttpHost, StandbyConnections> entry = itr.next();
+			if (!proxies.contains(entry.getKey())) {
+				logger.debug("Drop the standby connections to {}", entry.getKey());
+				itr.remove();
+				entry.getValue().clear();
+			}
+		}
+
+		long maxIdle = TimeUnit.SECONDS.toNanos(systemConfig.getUpstreamPoolMaxIdle());
+		for (HttpHost proxy : proxies) {
+			StandbyConnections connections = standbyConnections.computeIfAbsent(proxy,
+					key -> new StandbyConnections());
+			try {
+				expired.add(connections.channels.expire(maxIdle) + connections.sockets.expire(maxIdle));
+				while (connections.channels.size() < systemConfig.getUpstreamPoolSize()) {
+					connections.channels.add(upstreamConnector.connectChannel(proxy));
+				}
+				while (connections.sockets.size() < systemConfig.getUpstreamPoolSize()) {
+					connections.sockets.add(upstreamConnector.connectSocket(proxy, 0));
+				}
+			} catch (Exception e) {
+				connectFailures.increment();
+				logger.debug("Cannot replenish the standby connections to " + proxy, e);
+			}
+		}
+	}
+
+	/**
+	 * Check that the proxy has not closed the socket while in standby, without consuming anything.
+	 */
+	private static boolean isAlive(Socket socket) {
+		if (socket.isClosed()) {
+			return false;
+		}
+		try {
+			socket.setSoTimeout(1);
+			socket.getInputStream().read();
+
+			// Either the end of stream or unexpected data
+			return false;
+		} catch (SocketTimeoutException e) {
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	@ManagedAttribute(description = "The number of connections taken from the pool")
+	public long getHits() {
+		return hits.sum();
+	}
+
+	@ManagedAttribute(description = "The number of connections requested while the pool was empty")
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	@ManagedAttribute(description = "The number of standby connections dropped as expired or closed by the proxy")
+	public long getExpired() {
+		return expired.sum();
+	}
+
+	@ManagedAttribute(description = "The number of failed attempts to replenish the pool")
+	public long getConnectFailures() {
+		return connectFailures.sum();
+	}
+
+	@ManagedAttribute(description = "The number of standby tunnel channels")
+	public int getStandbyChannels() {
+		return standbyConnections.values().stream().mapToInt(connections -> connections.channels.size()).sum();
+	}
+
+	@ManagedAttribute(description = "The number of standby sockets")
+	public int getStandbySockets() {
+		return standbyConnections.values().stream().mapToInt(connections -> connections.sockets.size()).sum();
+	}
+
+	@Override
+	public synchronized void close() {
+		if (scheduler != null) {
+			logger.info("Close the upstream connection pool");
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+		standbyConnections.values().forEach(StandbyConnections::clear);
+		standbyConnections.clear();
+	}
+
+	/**
+	 * The standby connections to one proxy address.
+	 */
+	private static class StandbyConnections {
+
+		private final Standby<AsynchronousSocketChannel> channels = new Standby<>();
+
+		private final Standby<Socket> sockets = new Standby<>();
+
+		private void clear() {
+			channels.clear();
+			sockets.clear();
+		}
+
+	}
+
+	/**
+	 * The standby connections of one kind, the most recent first.
+	 */
+	private static class Standby<T extends Closeable> {
+
+		private final Deque<Entry<T>> entries = new ConcurrentLinkedDeque<>();
+
+		private T poll() {
+			Entry<T> entry = entries.pollFirst();
+			return entry != null ? entry.connection : null;
+		}
+
+		private void add(T connection) {
+			entries.addFirst(new Entry<>(connection));
+		}
+
+		/**
+		 * Close the connections older than <code>maxIdle</code>.
+		 *
+		 * @return The number of connections closed.
+		 */
+		private int expire(long maxIdle) {
+			int count = 0;
+			long now = System.nanoTime();
+			for (Entry<T> entry; (entry = entries.peekLast()) != null && now - entry.created > maxIdle; ) {
+				if (entries.removeLastOccurrence(entry)) {
+					LocalIOUtils.close(entry.connection);
+					count++;
+				}
+			}
+			return count;
+		}
+
+		private int size() {
+			return entries.size();
+		}
+
+		private void clear() {
+			for (Entry<T> entry; (entry = entries.pollFirst()) != null; ) {
+				LocalIOUtils.close(entry.connection);
+			}
+		}
+
+	}
+
+	private static class Entry<T> {
+
+		private final T connection;
+
+		private final long created = System.nanoTime();
+
+		private Entry(T connection) {
+			this.connection = connection;
+		}
+
+	}
+
+	/**
+	 * Connects to the proxy with a standby socket when one is available, otherwise
+	 * through any of its addresses (see {@link UpstreamConnector}).
+	 * The socket options already applied to the new socket are copied to the connected one.
+	 */
+	private class StandbySocketFactory extends PlainConnectionSocketFactory {
+
+		@Override
+		public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host,
+				InetSocketAddress remoteAddress, InetSocketAddress localAddress, HttpContext context)
+				throws IOException {
+			if (socket == null || localAddress != null) {
+				return super.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+			}
+			Socket standby = pollSocket(host);
+			if (standby != null) {
+				try {
+					return replace(socket, standby);
+				} catch (IOException e) {
+					logger.debug("Cannot use the standby socket", e);
+					LocalIOUtils.close(standby);
+				}
+			}
+			Socket connected = upstreamConnector.connectSocket(host, connectTimeout);
+			try {
+				return replace(socket, connected);
+			} catch (IOException e) {
+				LocalIOUtils.close(connected);
+				throw e;
+			}
+		}
+
+		private Socket replace(Socket socket, Socket connected) throws IOException {
+			connected.setSoTimeout(socket.getSoTimeout());
+			connected.setTcpNoDelay(socket.getTcpNoDelay());
+			connected.setKeepAlive(socket.getKeepAlive());
+			connected.setSoLinger(socket.getSoLinger() >= 0, Math.max(socket.getSoLinger(), 0));
+			LocalIOUtils.close(socket);
+			return connected;
+		}
+
+	}
+
+}
@@ -0,0 +1,409 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * Contributors:
+ *     Eugen Covaci - initial design and implementation
+ *******************************************************************************/
+
+package org.kpax.bpf.proxy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.DnsResolver;
+import org.kpax.bpf.SystemConfig;
+import org.kpax.bpf.util.HttpUtils;
+import org.kpax.bpf.util.LocalIOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Connects to a remote proxy through any of its addresses, the Happy Eyeballs way (RFC 8305):
+ * the connections to the addresses are started one after another at a short interval,
+ * the next one right away when the previous fails, and the first established wins.
+ * A black-holed address costs then only this interval instead of the system's connect timeout.
+ * The destinations of the requests routed <code>DIRECT</code> (see {@link Router}) are connected to the same way.
+ * <p>
+ * The addresses are resolved and cached here, alternating IPv6 and IPv4, the address
+ * that answered first last time coming first.
+ *
+ * @author Eugen Covaci
+ */
+@Component
+@ManagedResource(objectName = "org.kpax.bpf:type=UpstreamConnector", description = "Connections to the remote proxies")
+public class UpstreamConnector {
+
+	private static final Logger logger = LoggerFactory.getLogger(UpstreamConnector.class);
+
+	/**
+	 * Beyond this number of hosts, the expired addresses are dropped from the cache.
+	 */
+	private static final int MAX_CACHED_HOSTS = 1024;
+
+	@Autowired
+	private SystemConfig systemConfig;
+
+	private long stagger;
+
+	private long timeout;
+
+	private long cacheTtl;
+
+	private int socketBufferSize;
+
+	private final Map<String, ResolvedAddresses> resolvedAddresses = new ConcurrentHashMap<>();
+
+	/**
+	 * The address that answered first, by proxy.
+	 */
+	private final Map<String, InetAddress> fastestAddresses = new ConcurrentHashMap<>();
+
+	private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "upstream-connect");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final LongAdder connects = new LongAdder();
+
+	private final LongAdder fallbacks = new LongAdder();
+
+	private final LongAdder connectFailures = new LongAdder();
+
+	private volatile long lastConnectMillis = -1;
+
+	public UpstreamConnector() {
+	}
+
+	/**
+	 * @param stagger  The delay before connecting to the next address, in milliseconds.
+	 * @param timeout  The maximum duration of a connection attempt, in milliseconds.
+	 * @param cacheTtl How long the resolved addresses are cached, in seconds.
+	 */
+	public UpstreamConnector(long stagger, long timeout, long cacheTtl) {
+		this.stagger = stagger;
+		this.timeout = timeout;
+		this.cacheTtl = cacheTtl;
+	}
+
+	@PostConstruct
+	public void init() {
+		stagger = systemConfig.getUpstreamConnectStagger();
+		timeout = systemConfig.getUpstreamConnectTimeout();
+		cacheTtl = systemConfig.getUpstreamDnsCacheTtl();
+		socketBufferSize = systemConfig.getSocketBufferSize();
+	}
+
+	/**
+	 * Connect a tunnel channel to the proxy.
+	 *
+	 * @param proxy The proxy.
+	 * @return The connected channel.
+	 * @throws ConnectException        when no address accepts the connection.
+	 * @throws ConnectTimeoutException when no address answers in time.
+	 */
+	public AsynchronousSocketChannel connectChannel(HttpHost proxy) throws IOException {
+		return connect(proxy, timeout, () -> {
+			AsynchronousSocketChannel socketChannel = AsynchronousSocketChannel.open();
+			try {
+				return socketBufferSize > 0 ? HttpUtils.tuneSocketChannel(socketChannel, socketBufferSize) : socketChannel;
+			} catch (IOException e) {
+				LocalIOUtils.close(socketChannel);
+				throw e;
+			}
+		}, (socketChannel, address) -> {
+			try {
+				socketChannel.connect(address).get();
+			} catch (ExecutionException e) {
+				throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+			} catch (InterruptedException e) {
+				throw new ConnectException("Interrupted");
+			}
+		});
+	}
+
+	/**
+	 * Connect a socket to the proxy.
+	 *
+	 * @param proxy   The proxy.
+	 * @param timeout The maximum duration of the attempt in milliseconds, the configured one if not positive.
+	 * @return The connected socket.
+	 * @throws ConnectException        when no address accepts the connection.
+	 * @throws ConnectTimeoutException when no address answers in time.
+	 */
+	public Socket connectSocket(HttpHost proxy, int timeout) throws IOException {
+		long connectTimeout = timeout > 0 ? timeout : this.timeout;
+		return connect(proxy, connectTimeout, () -> {
+			Socket socket = new Socket();
+			try {
+				socket.setTcpNoDelay(true);
+				if (socketBufferSize > 0) {
+					socket.setSendBufferSize(socketBufferSize);
+					socket.setReceiveBufferSize(socketBufferSize);
+				}
+				return socket;
+			} catch (IOException e) {
+				LocalIOUtils.close(socket);
+				throw e;
+			}
+		}, (socket, address) -> socket.connect(address, (int) connectTimeout));
+	}
+
+	/**
+	 * Race the connections to the proxy's addresses.
+	 */
+	private <T extends Closeable> T connect(HttpHost proxy, long timeout, Opener<T> opener,
+			Connector<T> connector) throws IOException {
+		String key = proxy.getHostName() + ":" + proxy.getPort();
+		List<InetAddress> addresses = new ArrayList<>(resolve(proxy.getHostName()));
+		InetAddress fastest = fastestAddresses.get(key);
+		if (fastest != null && addresses.remove(fastest)) {
+			addresses.add(0, fastest);
+		}
+
+		connects.increment();
+		long start = System.nanoTime();
+		CompletionService<Integer> completionService = new ExecutorCompletionService<>(executor);
+		List<T> connections = new ArrayList<>();
+		List<Future<Integer>> attempts = new ArrayList<>();
+		Throwable failure = null;
+		Integer winner = null;
+		boolean timedOut = false;
+		try {
+			long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeout);
+			int pending = 0;
+			while (winner == null) {
+				if (connections.size() < addresses.size()) {
+					int index = connections.size();
+					InetSocketAddress address = new InetSocketAddress(addresses.get(index), proxy.getPort());
+					T connection = opener.open();
+					connections.add(connection);
+					attempts.add(completionService.submit(() -> {
+						connector.connect(connection, address);
+						return index;
+					}));
+					pending++;
+				} else if (pending == 0) {
+					break;
+				}
+				long wait = connections.size() < addresses.size()
+						? Math.min(TimeUnit.MILLISECONDS.toNanos(stagger), deadline - System.nanoTime())
+						: deadline - System.nanoTime();
+				if (wait <= 0) {
+					timedOut = true;
+					break;
+				}
+
+				// Wait for the first outcome, then connect to the next address right away if it failed
+				Future<Integer> done = completionService.poll(wait, TimeUnit.NANOSECONDS);
+				if (done != null) {
+					pending--;
+					try {
+						winner = done.get();
+					} catch (ExecutionException e) {
+						failure = e.getCause();
+						logger.debug("Cannot connect to {} at {}: {}", key, addresses.get(attempts.indexOf(done)),
+								failure.toString());
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			failure = e;
+		} finally {
+			// Closing the losers also aborts their pending connections
+			for (int i = 0; i < connections.size(); i++) {
+				if (winner == null || i != winner) {
+					attempts.get(i).cancel(true);
+					LocalIOUtils.close(connections.get(i));
+				}
+			}
+		}
+		lastConnectMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+		if (winner == null) {
+			connectFailures.increment();
+			// The deadline ended the race, even if some addresses have refused the connection before
+			if (timedOut || failure == null || failure instanceof SocketTimeoutException) {
+				ConnectTimeoutException timeoutException = new ConnectTimeoutException(
+						"Connect to " + key + " timed out after " + timeout + " ms");
+				if (failure != null) {
+					timeoutException.initCause(failure);
+				}
+				throw timeoutException;
+			}
+			ConnectException connectException = new ConnectException("Cannot connect to " + key);
+			connectException.initCause(failure);
+			throw connectException;
+		}
+		InetAddress address = addresses.get(winner);
+		if (winner > 0) {
+			fallbacks.increment();
+			logger.info("{} answered first at {}, in {} ms", key, address, lastConnectMillis);
+		}
+		fastestAddresses.put(key, address);
+		return connections.get(winner);
+	}
+
+	/**
+	 * Get the addresses of a host, from the cache when not expired.
+	 * When it cannot be resolved anymore, the expired addresses are still used.
+	 *
+	 * @param host The host name.
+	 * @return The addresses, alternating IPv6 and IPv4.
+	 * @throws UnknownHostException when the host has never been resolved.
+	 */
+	public List<InetAddress> resolve(String host) throws UnknownHostException {
+		ResolvedAddresses resolved = resolvedAddresses.get(host);
+		if (resolved != null && resolved.expiry - System.nanoTime() > 0) {
+			return resolved.addresses;
+		}
+		try {
+			List<InetAddress> addresses = interleave(InetAddress.getAllByName(host));
+			long now = System.nanoTime();
+			resolvedAddresses.put(host, new ResolvedAddresses(addresses, now + TimeUnit.SECONDS.toNanos(cacheTtl)));
+			if (resolvedAddresses.size() > MAX_CACHED_HOSTS) {
+				resolvedAddresses.values().removeIf(it -> it.expiry - now <= 0);
+				fastestAddresses.keySet().removeIf(key -> !resolvedAddresses.containsKey(
+						key.substring(0, key.lastIndexOf(':'))));
+			}
+			return addresses;
+		} catch (UnknownHostException e) {
+			if (resolved == null) {
+				throw e;
+			}
+			logger.warn("Cannot resolve proxy {}, keep the previous addresses", host);
+			return resolved.addresses;
+		}
+	}
+
+	/**
+	 * A DNS resolver for the HTTP client's connection manager, giving only the preferred address of a host:
+	 * the connection is raced over all the addresses by the socket factory
+	 * (see {@link UpstreamConnectionPool#socketFactory()}), so it must not be retried for each one.
+	 *
+	 * @return The DNS resolver.
+	 */
+	public DnsResolver dnsResolver() {
+		return host -> new InetAddress[] { resolve(host).get(0) };
+	}
+
+	/**
+	 * Order the addresses by alternating the families, the family of the first address first.
+	 */
+	private static List<InetAddress> interleave(InetAddress[] addresses) {
+		LinkedList<InetAddress> first = new LinkedList<>();
+		LinkedList<InetAddress> second = new LinkedList<>();
+		for (InetAddress address : addresses) {
+			if ((address instanceof Inet6Address) == (addresses[0] instanceof Inet6Address)) {
+				first.add(address);
+			} else {
+				second.add(address);
+			}
+		}
+		if (second.isEmpty()) {
+			return Collections.unmodifiableList(Arrays.asList(addresses));
+		}
+		List<InetAddress> interleaved = new ArrayList<>(addresses.length);
+		while (!first.isEmpty() || !second.isEmpty()) {
+			if (!first.isEmpty()) {
+				interleaved.add(first.poll());
+			}
+			if (!second.isEmpty()) {
+				interleaved.add(second.poll());
+			}
+		}
+		return Collections.unmodifiableList(interleaved);
+	}
+
+	@ManagedAttribute(description = "The number of connections to the remote proxies")
+	public long getConnects() {
+		return connects.sum();
+	}
+
+	@ManagedAttribute(description = "The number of connections established with another address than the first tried")
+	public long getFallbacks() {
+		return fallbacks.sum();
+	}
+
+	@ManagedAttribute(description = "The number of connections failed on all the addresses")
+	public long getConnectFailures() {
+		return connectFailures.sum();
+	}
+
+	@ManagedAttribute(description = "The duration of the last connection (milliseconds), -1 if none")
+	public long getLastConnectMillis() {
+		return lastConnectMillis;
+	}
+
+	@PreDestroy
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	private static final class ResolvedAddresses {
+
+		private final List<InetAddress> addresses;
+
+		/**
+		 * As given by {@link System#nanoTime()}.
+		 */
+		private final long expiry;
+
+		private ResolvedAddresses(List<InetAddress> addresses, long expiry) {
+			this.addresses = addresses;
+			this.expiry = expiry;
+		}
+
+	}
+
+	@FunctionalInterface
+	private interface Opener<T> {
+		T open() throws IOException;
+	}
+
+	@FunctionalInterface
+	private interface Connector<T> {
+		void connect(T connection, InetSocketAddress address) throws IOException;
+	}
+
+}
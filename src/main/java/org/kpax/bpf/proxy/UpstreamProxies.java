@@ -0,0 +1,362 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * Contributors:
+ *     Eugen Covaci - initial design and implementation
+ *******************************************************************************/
+
+package org.kpax.bpf.proxy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.kpax.bpf.SystemConfig;
+import org.kpax.bpf.UserConfig;
+import org.kpax.bpf.util.LocalIOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * The remote proxies (see <code>proxy.host</code>) and the choice among them for each request.
+ * Each proxy is connected to through any of its addresses (see {@link UpstreamConnector}).
+ * <p>
+ * The choice goes to the healthy proxy with the lowest load, that is its outstanding requests
+ * multiplied by its response time (exponentially weighted moving average). A proxy is ejected
+ * when it refuses a connection, or after <code>upstream.max.failures</code> consecutive failed
+ * requests, then it is taken back as soon as a health probe (a connection every
+ * <code>upstream.health.period</code> seconds) succeeds. When no proxy is healthy,
+ * the least loaded one is tried anyway.
+ *
+ * @author Eugen Covaci
+ */
+@Component
+@ManagedResource(objectName = "org.kpax.bpf:type=UpstreamProxies", description = "The remote proxies")
+public class UpstreamProxies implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(UpstreamProxies.class);
+
+	/**
+	 * The weight of the last response time in the moving average.
+	 */
+	private static final double EWMA_WEIGHT = 0.3;
+
+	/**
+	 * The response time assumed before the first measurement (nanoseconds).
+	 */
+	private static final long DEFAULT_LATENCY = TimeUnit.MILLISECONDS.toNanos(100);
+
+	@Autowired
+	private SystemConfig systemConfig;
+
+	@Autowired
+	private UserConfig userConfig;
+
+	@Autowired
+	private UpstreamConnector upstreamConnector;
+
+	@Autowired
+	private Router router;
+
+	private volatile List<Upstream> upstreams = Collections.emptyList();
+
+	/**
+	 * The proxy settings the upstreams have been resolved for.
+	 */
+	private volatile String settings;
+
+	/**
+	 * The proxies of the routing rules and of the PAC file the upstreams have been resolved for.
+	 */
+	private volatile List<HttpHost> routedProxies;
+
+	private ScheduledExecutorService scheduler;
+
+	private ExecutorService probeExecutor;
+
+	private final LongAdder failovers = new LongAdder();
+
+	private final LongAdder ejections = new LongAdder();
+
+	/**
+	 * Start the health checks. Calling it when already started has no effect.
+	 */
+	public synchronized void start() {
+		if (scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "upstream-health");
+			thread.setDaemon(true);
+			return thread;
+		});
+		probeExecutor = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "upstream-probe");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(this::checkHealth, 0, systemConfig.getUpstreamHealthPeriod(),
+				TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Choose a proxy for a new request and count it as outstanding until
+	 * {@link #released(Upstream)} or {@link #failed(Upstream, Exception)} is called.
+	 *
+	 * @param proxies  The proxies to choose among (see {@link Route#getProxies()}),
+	 *                 <code>null</code> for the configured ones.
+	 * @param excluded The proxies already tried for this request.
+	 * @return The proxy or <code>null</code> when all have been tried.
+	 */
+	Upstream acquire(List<HttpHost> proxies, Collection<Upstream> excluded) {
+		Upstream best = null;
+		for (Upstream upstream : getUpstreams()) {
+			if (excluded.contains(upstream)
+					|| (proxies != null ? !proxies.contains(upstream.host) : !upstream.configured)) {
+				continue;
+			}
+			if (best == null || upstream.isPreferredTo(best)) {
+				best = upstream;
+			}
+		}
+		if (best != null) {
+			best.outstanding.incrementAndGet();
+			if (!excluded.isEmpty()) {
+				failovers.increment();
+				logger.info("Fail over to proxy {}", best);
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * The proxy has answered the request, which stays outstanding until released.
+	 *
+	 * @param startTime When the request was sent, as given by {@link System#nanoTime()}.
+	 */
+	void responded(Upstream upstream, long startTime) {
+		upstream.consecutiveFailures.set(0);
+		upstream.updateLatency(System.nanoTime() - startTime);
+	}
+
+	/**
+	 * The request failed with this proxy.
+	 *
+	 * @return <code>true</code> when the request has not reached the proxy, so it can be sent to another one.
+	 */
+	boolean failed(Upstream upstream, Exception e) {
+		upstream.outstanding.decrementAndGet();
+		boolean connectFailure = isConnectFailure(e);
+		if (connectFailure || upstream.consecutiveFailures.incrementAndGet() >= systemConfig.getUpstreamMaxFailures()) {
+			eject(upstream, e);
+		}
+		return connectFailure;
+	}
+
+	/**
+	 * The request the proxy has answered is over.
+	 */
+	void released(Upstream upstream) {
+		upstream.outstanding.decrementAndGet();
+	}
+
+	private static boolean isConnectFailure(Throwable e) {
+		return e instanceof ConnectException || e instanceof ConnectTimeoutException
+				|| e instanceof NoRouteToHostException || e instanceof UnknownHostException;
+	}
+
+	private void eject(Upstream upstream, Exception e) {
+		if (!upstream.ejected) {
+			upstream.ejected = true;
+			ejections.increment();
+			logger.warn("Proxy {} ejected: {}", upstream, e.toString());
+		}
+	}
+
+	/**
+	 * Get the proxies, the configured ones then the ones the routing rules or the PAC file route to,
+	 * again from the settings when they have changed.
+	 */
+	List<Upstream> getUpstreams() {
+		String current = userConfig.getProxyHost() + ":" + userConfig.getProxyPort();
+		List<HttpHost> currentRoutedProxies = router.getProxies();
+		if (!current.equals(settings) || currentRoutedProxies != routedProxies) {
+			synchronized (this) {
+				if (!current.equals(settings) || currentRoutedProxies != routedProxies) {
+					upstreams = resolve(upstreams, currentRoutedProxies);
+					settings = current;
+					routedProxies = currentRoutedProxies;
+				}
+			}
+		}
+		return upstreams;
+	}
+
+	/**
+	 * Get the proxies, keeping the state of the ones already known.
+	 */
+	private List<Upstream> resolve(List<Upstream> previous, List<HttpHost> routedProxies) {
+		List<Upstream> resolved = new ArrayList<>();
+		for (HttpHost proxy : userConfig.getProxyHosts()) {
+			Upstream upstream = upstreamOf(proxy, previous);
+			upstream.configured = true;
+			if (!resolved.contains(upstream)) {
+				resolved.add(upstream);
+			}
+		}
+		for (HttpHost proxy : routedProxies) {
+			if (resolved.stream().noneMatch(it -> it.host.equals(proxy))) {
+				Upstream upstream = upstreamOf(proxy, previous);
+				upstream.configured = false;
+				resolved.add(upstream);
+			}
+		}
+		return Collections.unmodifiableList(resolved);
+	}
+
+	private static Upstream upstreamOf(HttpHost proxy, List<Upstream> previous) {
+		return previous.stream().filter(it -> it.host.equals(proxy)).findFirst()
+				.orElseGet(() -> new Upstream(proxy));
+	}
+
+	/**
+	 * Probe each proxy, from the scheduler's thread.
+	 */
+	private void checkHealth() {
+		try {
+			for (Upstream upstream : getUpstreams()) {
+				probeExecutor.execute(() -> probe(upstream));
+			}
+		} catch (Exception e) {
+			logger.debug("Cannot check the proxies' health", e);
+		}
+	}
+
+	private void probe(Upstream upstream) {
+		try {
+			LocalIOUtils.close(upstreamConnector.connectSocket(upstream.host, systemConfig.getUpstreamProbeTimeout()));
+			if (upstream.ejected) {
+				upstream.consecutiveFailures.set(0);
+				upstream.ejected = false;
+				logger.info("Proxy {} is back", upstream);
+			}
+		} catch (IOException e) {
+			eject(upstream, e);
+		}
+	}
+
+	@ManagedAttribute(description = "The remote proxies' state")
+	public List<String> getUpstreamStates() {
+		List<String> states = new ArrayList<>();
+		for (Upstream upstream : upstreams) {
+			states.add(upstream + (upstream.ejected ? " ejected" : " healthy")
+					+ ", outstanding " + upstream.outstanding.get()
+					+ ", latency " + TimeUnit.NANOSECONDS.toMillis(upstream.latency) + " ms");
+		}
+		return states;
+	}
+
+	@ManagedAttribute(description = "The number of requests sent to another proxy after a connection failure")
+	public long getFailovers() {
+		return failovers.sum();
+	}
+
+	@ManagedAttribute(description = "The number of times a proxy has been ejected")
+	public long getEjections() {
+		return ejections.sum();
+	}
+
+	@Override
+	public synchronized void close() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			probeExecutor.shutdownNow();
+			scheduler = null;
+			probeExecutor = null;
+		}
+	}
+
+	/**
+	 * A remote proxy.
+	 */
+	static final class Upstream {
+
+		private final HttpHost host;
+
+		private final AtomicInteger outstanding = new AtomicInteger();
+
+		private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+		private volatile boolean ejected;
+
+		/**
+		 * Whether it is one of the configured proxies, otherwise only the routing rules or the PAC file route to it.
+		 */
+		private volatile boolean configured;
+
+		/**
+		 * The response time's moving average (nanoseconds).
+		 */
+		private volatile long latency = DEFAULT_LATENCY;
+
+		private Upstream(HttpHost host) {
+			this.host = host;
+		}
+
+		HttpHost getHost() {
+			return host;
+		}
+
+		boolean isEjected() {
+			return ejected;
+		}
+
+		private boolean isPreferredTo(Upstream other) {
+			if (ejected != other.ejected) {
+				return !ejected;
+			}
+			return load() < other.load();
+		}
+
+		private double load() {
+			return (outstanding.get() + 1) * (double) latency;
+		}
+
+		private void updateLatency(long sample) {
+			// Racy on purpose, losing a sample now and then does not matter
+			latency = (long) (EWMA_WEIGHT * sample + (1 - EWMA_WEIGHT) * latency);
+		}
+
+		@Override
+		public String toString() {
+			return host.toHostString();
+		}
+
+	}
+
+}
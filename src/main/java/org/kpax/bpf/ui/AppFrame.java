@@ -64,6 +64,7 @@ import org.kpax.bpf.SystemConfig;
 import org.kpax.bpf.UiConfig;
 import org.kpax.bpf.UserConfig;
 import org.kpax.bpf.exception.CommandExecutionException;
+import org.kpax.bpf.exception.InvalidConfigException;
 import org.kpax.bpf.exception.InvalidKdcException;
 import org.kpax.bpf.exception.KdcNotFoundException;
 import org.kpax.bpf.proxy.LocalProxyServer;
@@ -518,7 +519,8 @@ public class AppFrame extends JFrame {
 			SwingUtils.showErrorMessage("Validation Error", "Fill in the username");
 			return false;
 		}
-		if (passwordJPasswordField.getPassword() == null || passwordJPasswordField.getPassword().length == 0) {
+		if (!systemConfig.isPasswordOptional()
+				&& (passwordJPasswordField.getPassword() == null || passwordJPasswordField.getPassword().length == 0)) {
 			SwingUtils.showErrorMessage("Validation Error", "Fill in the password");
 			return false;
 		}
@@ -564,6 +566,9 @@ public class AppFrame extends JFrame {
 				logger.error("InvalidKdcException error", e);
 				SwingUtils.showErrorMessage(
 						"The Kerberos KDC configuration found seems to be invalid!\nTry using the 'krb5.conf' file provided by the proxy's administrator.\nSee the application's log for details.");
+			} catch (InvalidConfigException e) {
+				logger.error("InvalidConfigException error", e);
+				SwingUtils.showErrorMessage(e.getMessage());
 			} catch (Exception e) {
 				logger.error("Error on starting proxy server", e);
 				SwingUtils.showErrorMessage("Error on starting proxy server.\nSee the application's log for details.");
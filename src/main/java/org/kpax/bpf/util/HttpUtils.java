@@ -14,10 +14,13 @@
 
 package org.kpax.bpf.util;
 
+import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.StandardSocketOptions;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.List;
@@ -25,8 +28,10 @@ import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.Header;
+import org.apache.http.HeaderElement;
 import org.apache.http.HttpHeaders;
 import org.apache.http.HttpRequest;
+import org.apache.http.HttpVersion;
 import org.apache.http.NameValuePair;
 import org.apache.http.ProtocolVersion;
 import org.apache.http.client.utils.URIBuilder;
@@ -83,6 +88,43 @@ public class HttpUtils {
 		return contentLength != null ? Long.parseLong(contentLength) : -1;
 	}
 
+	/**
+	 * Check whether the client wants the connection to be kept open after the response.
+	 * <p>
+	 * The <code>Proxy-Connection</code> and <code>Connection</code> headers are honored,
+	 * otherwise HTTP/1.1 connections are persistent and HTTP/1.0 are not.
+	 * 
+	 * @param request The client's request.
+	 * @return <code>true</code> iff the connection is persistent.
+	 */
+	public static boolean isPersistentConnection(HttpRequest request) {
+		for (String name : new String[] { PROXY_CONNECTION, HTTP.CONN_DIRECTIVE }) {
+			for (Header header : request.getHeaders(name)) {
+				for (HeaderElement element : header.getElements()) {
+					if (HTTP.CONN_CLOSE.equalsIgnoreCase(element.getName())) {
+						return false;
+					}
+					if (HTTP.CONN_KEEP_ALIVE.equalsIgnoreCase(element.getName())) {
+						return true;
+					}
+				}
+			}
+		}
+		return !request.getProtocolVersion().lessEquals(HttpVersion.HTTP_1_0);
+	}
+
+	/**
+	 * Check whether a header is a hop-by-hop connection header, that should not be forwarded.
+	 * 
+	 * @param name The header's name.
+	 * @return <code>true</code> iff it is a connection header.
+	 */
+	public static boolean isConnectionHeader(String name) {
+		return PROXY_CONNECTION.equalsIgnoreCase(name)
+				|| HTTP.CONN_DIRECTIVE.equalsIgnoreCase(name)
+				|| HTTP.CONN_KEEP_ALIVE.equalsIgnoreCase(name);
+	}
+
 	public static Header createHttpHeader(String name, String value) {
 		return new BasicHeader(name, value);
 	}
@@ -98,4 +140,11 @@ public class HttpUtils {
 		return socket;
 	}
 
+	public static AsynchronousSocketChannel tuneSocketChannel(AsynchronousSocketChannel socketChannel, int bufferSize)
+			throws IOException {
+		return socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, true)
+				.setOption(StandardSocketOptions.SO_RCVBUF, bufferSize)
+				.setOption(StandardSocketOptions.SO_SNDBUF, bufferSize);
+	}
+
 }
@@ -17,8 +17,6 @@ package org.kpax.bpf.util;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.Iterator;
 
 import org.apache.commons.configuration2.PropertiesConfiguration;
@@ -52,26 +50,20 @@ public class LocalIOUtils extends IOUtils {
 	}
 
 	/**
-	 * Copy from <code>inputStream</code> to <code>outputStream</code> until EOF is
-	 * reached.
+	 * Read the bytes already buffered, without blocking for more.
 	 * 
-	 * @param inputStream
-	 *            The input stream to copy from.
-	 * @param outputStream
-	 *            The output stream to write into.
+	 * @param inputBuffer
+	 *            The input buffer.
+	 * @return The buffered bytes, possibly empty.
+	 * @throws IOException
 	 */
-	public static void copyQuietly(InputStream inputStream, OutputStream outputStream) {
-		byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
-		try {
-			int len;
-			while ((len = inputStream.read(buffer)) != EOF) {
-				outputStream.write(buffer, 0, len);
-				outputStream.flush();
-			}
-
-		} catch (Exception e) {
-			logger.debug("Error on reading bytes", e);
+	public static byte[] readBufferedBytes(SessionInputBufferImpl inputBuffer) throws IOException {
+		byte[] bytes = new byte[inputBuffer.length()];
+		int offset = 0;
+		while (offset < bytes.length) {
+			offset += inputBuffer.read(bytes, offset, bytes.length - offset);
 		}
+		return bytes;
 	}
 
 	/**
@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * Contributors:
+ *     Eugen Covaci - initial design and implementation
+ *******************************************************************************/
+
+package org.kpax.bpf.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.ProtocolException;
+import org.apache.http.RequestLine;
+import org.apache.http.impl.DefaultHttpRequestFactory;
+import org.apache.http.message.BasicLineParser;
+import org.apache.http.message.ParserCursor;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.util.CharArrayBuffer;
+
+/**
+ * Incremental parser for the request line and headers of an HTTP request.
+ * <p>
+ * The bytes are fed as they arrive, in any number of chunks. The parser consumes
+ * the buffers no further than the empty line ending the header section, so whatever
+ * remains in the last buffer belongs to the request body or to the next pipelined request.
+ * <p>
+ * This class is not thread safe.
+ *
+ * @author Eugen Covaci
+ */
+public class RequestHeadParser {
+
+	public static final int DEFAULT_MAX_HEAD_SIZE = 64 * 1024;
+
+	private final int maxHeadSize;
+
+	private final CharArrayBuffer lineBuffer = new CharArrayBuffer(128);
+
+	private final List<CharArrayBuffer> headerLines = new ArrayList<>();
+
+	private RequestLine requestLine;
+
+	private int headSize;
+
+	private HttpRequest request;
+
+	public RequestHeadParser() {
+		this(DEFAULT_MAX_HEAD_SIZE);
+	}
+
+	/**
+	 * @param maxHeadSize The maximum number of bytes of the request line and headers.
+	 */
+	public RequestHeadParser(int maxHeadSize) {
+		this.maxHeadSize = maxHeadSize;
+	}
+
+	/**
+	 * Consume bytes from <code>buffer</code> until the header section is complete or the buffer is empty.
+	 *
+	 * @param buffer The buffer to read from, in read mode.
+	 * @return <code>true</code> iff the request head is complete; see {@link #getRequest()}.
+	 * @throws HttpException when the request head is malformed or too large.
+	 */
+	public boolean parse(ByteBuffer buffer) throws HttpException {
+		if (request != null) {
+			throw new IllegalStateException("Request already parsed, reset the parser first");
+		}
+		while (buffer.hasRemaining()) {
+			if (++headSize > maxHeadSize) {
+				throw new ProtocolException("Request head larger than " + maxHeadSize + " bytes");
+			}
+			char ch = (char) (buffer.get() & 0xff);
+			if (ch != HTTP.LF) {
+				lineBuffer.append(ch);
+				continue;
+			}
+			int length = lineBuffer.length();
+			if (length > 0 && lineBuffer.charAt(length - 1) == HTTP.CR) {
+				lineBuffer.setLength(length - 1);
+			}
+			if (processLine()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return <code>true</code> iff the line ends the header section.
+	 */
+	private boolean processLine() throws HttpException {
+		try {
+			if (requestLine == null) {
+				if (!lineBuffer.isEmpty()) {
+					requestLine = BasicLineParser.INSTANCE.parseRequestLine(lineBuffer,
+							new ParserCursor(0, lineBuffer.length()));
+				}
+				// Leading empty lines are ignored
+				return false;
+			}
+			if (lineBuffer.isEmpty()) {
+				request = DefaultHttpRequestFactory.INSTANCE.newHttpRequest(requestLine);
+				for (CharArrayBuffer headerLine : headerLines) {
+					request.addHeader(BasicLineParser.INSTANCE.parseHeader(headerLine));
+				}
+				return true;
+			}
+			char first = lineBuffer.charAt(0);
+			if ((first == HTTP.SP || first == HTTP.HT) && !headerLines.isEmpty()) {
+				// Obsolete line folding
+				CharArrayBuffer previous = headerLines.get(headerLines.size() - 1);
+				previous.append(' ');
+				previous.append(lineBuffer, 0, lineBuffer.length());
+			} else {
+				CharArrayBuffer headerLine = new CharArrayBuffer(lineBuffer.length());
+				headerLine.append(lineBuffer, 0, lineBuffer.length());
+				headerLines.add(headerLine);
+			}
+			return false;
+		} catch (org.apache.http.ParseException e) {
+			throw new ProtocolException(e.getMessage(), e);
+		} finally {
+			lineBuffer.clear();
+		}
+	}
+
+	/**
+	 * @return The parsed request, or <code>null</code> when the head is not complete yet.
+	 */
+	public HttpRequest getRequest() {
+		return request;
+	}
+
+	/**
+	 * Prepare the parser for the next request.
+	 */
+	public void reset() {
+		lineBuffer.clear();
+		headerLines.clear();
+		requestLine = null;
+		request = null;
+		headSize = 0;
+	}
+
+}
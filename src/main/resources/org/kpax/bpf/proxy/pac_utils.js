@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * Contributors:
+ *     Eugen Covaci - initial design and implementation
+ *******************************************************************************/
+
+/*
+ * The predefined functions of the Proxy Auto-Config scripts.
+ * The DNS lookups are delegated to the Java object bound as pacDns (see PacScript).
+ */
+
+function dnsResolve(host) {
+    var address = pacDns.dnsResolve(host);
+    return address == null ? null : String(address);
+}
+
+function myIpAddress() {
+    return String(pacDns.myIpAddress());
+}
+
+function isPlainHostName(host) {
+    return host.indexOf('.') < 0;
+}
+
+function dnsDomainIs(host, domain) {
+    return host.length >= domain.length && host.substring(host.length - domain.length) == domain;
+}
+
+function localHostOrDomainIs(host, hostdom) {
+    return host == hostdom || hostdom.lastIndexOf(host + '.', 0) == 0;
+}
+
+function isResolvable(host) {
+    return dnsResolve(host) != null;
+}
+
+function dnsDomainLevels(host) {
+    return host.split('.').length - 1;
+}
+
+function convert_addr(ipchars) {
+    var bytes = ipchars.split('.');
+    return ((bytes[0] & 0xff) << 24) | ((bytes[1] & 0xff) << 16) | ((bytes[2] & 0xff) << 8) | (bytes[3] & 0xff);
+}
+
+function isInNet(ipaddr, pattern, maskstr) {
+    if (!/^\d{1,3}\.\d{1,3}\.\d{1,3}\.\d{1,3}$/.test(ipaddr)) {
+        ipaddr = dnsResolve(ipaddr);
+        if (ipaddr == null || ipaddr.indexOf(':') >= 0) {
+            return false;
+        }
+    }
+    var mask = convert_addr(maskstr);
+    return (convert_addr(ipaddr) & mask) == (convert_addr(pattern) & mask);
+}
+
+function shExpMatch(str, shexp) {
+    var regex = shexp.replace(/[.+^${}()|[\]\\]/g, '\\$&').replace(/\*/g, '.*').replace(/\?/g, '.');
+    return new RegExp('^' + regex + '$').test(str);
+}
+
+var pacWeekdays = { SUN: 0, MON: 1, TUE: 2, WED: 3, THU: 4, FRI: 5, SAT: 6 };
+
+var pacMonths = { JAN: 0, FEB: 1, MAR: 2, APR: 3, MAY: 4, JUN: 5, JUL: 6, AUG: 7, SEP: 8, OCT: 9, NOV: 10, DEC: 11 };
+
+/*
+ * The arguments without the trailing "GMT", if any, and whether it was there.
+ */
+function pacTimeArguments(args) {
+    var values = Array.prototype.slice.call(args);
+    var gmt = values.length > 0 && values[values.length - 1] == 'GMT';
+    if (gmt) {
+        values.pop();
+    }
+    return { values: values, gmt: gmt };
+}
+
+/*
+ * Whether value is between start and end, both included, the range possibly wrapping around.
+ */
+function pacInRange(value, start, end) {
+    return start <= end ? start <= value && value <= end : value >= start || value <= end;
+}
+
+function weekdayRange() {
+    var args = pacTimeArguments(arguments);
+    var now = new Date();
+    var day = args.gmt ? now.getUTCDay() : now.getDay();
+    var start = pacWeekdays[args.values[0]];
+    var end = args.values.length > 1 ? pacWeekdays[args.values[1]] : start;
+    if (start === undefined || end === undefined) {
+        return false;
+    }
+    return pacInRange(day, start, end);
+}
+
+function dateRange() {
+    var args = pacTimeArguments(arguments);
+    var now = new Date();
+    var today = {
+        day: args.gmt ? now.getUTCDate() : now.getDate(),
+        month: args.gmt ? now.getUTCMonth() : now.getMonth(),
+        year: args.gmt ? now.getUTCFullYear() : now.getFullYear()
+    };
+
+    // Each bound is made of a day, a month and a year, any of them possibly missing
+    function parse(values) {
+        var date = {};
+        for (var i = 0; i < values.length; i++) {
+            var value = values[i];
+            if (typeof value == 'string') {
+                date.month = pacMonths[value];
+            } else if (value > 31) {
+                date.year = value;
+            } else {
+                date.day = value;
+            }
+        }
+        return date;
+    }
+
+    // Compare the units present in the bound only
+    function key(date, reference) {
+        return (date.year !== undefined ? reference.year * 416 : 0)
+            + (date.month !== undefined ? reference.month * 32 : 0)
+            + (date.day !== undefined ? reference.day : 0);
+    }
+
+    // A single value, else as many values for each bound
+    var values = args.values;
+    if (values.length == 0 || values.length > 6 || (values.length > 1 && values.length % 2 != 0)) {
+        return false;
+    }
+    var start = parse(values.length == 1 ? values : values.slice(0, values.length / 2));
+    var end = values.length == 1 ? start : parse(values.slice(values.length / 2));
+    var startKey = key(start, fill(start));
+    var endKey = key(end, fill(end));
+    var todayKey = key(start, today);
+    return start.year !== undefined ? startKey <= todayKey && todayKey <= endKey : pacInRange(todayKey, startKey, endKey);
+
+    function fill(date) {
+        return {
+            day: date.day !== undefined ? date.day : today.day,
+            month: date.month !== undefined ? date.month : today.month,
+            year: date.year !== undefined ? date.year : today.year
+        };
+    }
+}
+
+function timeRange() {
+    var args = pacTimeArguments(arguments);
+    var now = new Date();
+    var hours = args.gmt ? now.getUTCHours() : now.getHours();
+    var minutes = args.gmt ? now.getUTCMinutes() : now.getMinutes();
+    var seconds = args.gmt ? now.getUTCSeconds() : now.getSeconds();
+    var values = args.values;
+    switch (values.length) {
+    case 1:
+        return hours == values[0];
+    case 2:
+        return pacInRange(hours, values[0], values[1] - 1);
+    case 4:
+        return pacInRange(hours * 60 + minutes, values[0] * 60 + values[1], values[2] * 60 + values[3] - 1);
+    case 6:
+        return pacInRange(hours * 3600 + minutes * 60 + seconds,
+            values[0] * 3600 + values[1] * 60 + values[2], values[3] * 3600 + values[4] * 60 + values[5]);
+    default:
+        return false;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.kproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.kpax.bpf.proxy.BufferPool;
+import org.kpax.bpf.proxy.PooledBuffer;
+
+public class BufferPoolTest {
+
+	@Test
+	public void testSizeClassesAndReuse() {
+		BufferPool pool = new BufferPool(1024 * 1024);
+		PooledBuffer first = pool.acquire(5000);
+		ByteBuffer buffer = first.buffer();
+		assertTrue(buffer.isDirect());
+		assertEquals(8 * 1024, buffer.capacity());
+		assertEquals(1, pool.getOutstanding());
+		first.close();
+		first.close();
+		assertEquals(0, pool.getOutstanding());
+
+		try (PooledBuffer second = pool.acquire(8 * 1024)) {
+			assertSame(buffer, second.buffer());
+			assertEquals(0, second.buffer().position());
+		}
+		assertEquals(1, pool.getHits());
+		assertEquals(1, pool.getMisses());
+		assertEquals(8 * 1024, pool.getAllocatedMemory());
+	}
+
+	@Test
+	public void testHardCap() {
+		BufferPool pool = new BufferPool(BufferPool.MIN_BUFFER_SIZE);
+		try (PooledBuffer first = pool.acquire(100); PooledBuffer second = pool.acquire(100)) {
+			assertTrue(first.buffer().isDirect());
+			assertFalse(second.buffer().isDirect());
+			assertEquals(100, second.buffer().capacity());
+			assertEquals(1, pool.getUnpooled());
+		}
+		try (PooledBuffer large = pool.acquire(BufferPool.MAX_BUFFER_SIZE + 1)) {
+			assertFalse(large.buffer().isDirect());
+		}
+		assertEquals(BufferPool.MIN_BUFFER_SIZE, pool.getAllocatedMemory());
+		assertEquals(0, pool.getOutstanding());
+	}
+
+	@Test
+	public void testArrays() {
+		BufferPool pool = new BufferPool(2 * BufferPool.MIN_BUFFER_SIZE);
+		PooledBuffer first = pool.acquireArray(100);
+		ByteBuffer buffer = first.buffer();
+		assertTrue(buffer.hasArray());
+		assertEquals(0, buffer.arrayOffset());
+		assertEquals(BufferPool.MIN_BUFFER_SIZE, buffer.capacity());
+		assertEquals(1, pool.getMisses());
+		first.close();
+
+		try (PooledBuffer second = pool.acquireArray(100)) {
+			assertSame(buffer, second.buffer());
+			assertEquals(1, pool.getHits());
+		}
+		// Kept apart from the direct buffers, but counted with them
+		try (PooledBuffer direct = pool.acquire(100)) {
+			assertTrue(direct.buffer().isDirect());
+		}
+		assertEquals(2 * BufferPool.MIN_BUFFER_SIZE, pool.getAllocatedMemory());
+		try (PooledBuffer second = pool.acquireArray(100); PooledBuffer third = pool.acquireArray(100)) {
+			assertTrue(third.buffer().hasArray());
+			assertEquals(1, pool.getUnpooled());
+		}
+		assertEquals(2 * BufferPool.MIN_BUFFER_SIZE, pool.getAllocatedMemory());
+		assertEquals(2, pool.getMisses());
+		assertEquals(0, pool.getOutstanding());
+	}
+
+	@Test
+	public void testLeakDetection() throws Exception {
+		BufferPool pool = new BufferPool(1024 * 1024);
+		pool.acquire(100);
+		for (int i = 0; i < 50 && pool.getLeaks() == 0; i++) {
+			System.gc();
+			Thread.sleep(20);
+		}
+		assertEquals(1, pool.getLeaks());
+		assertEquals(0, pool.getOutstanding());
+		try (PooledBuffer reclaimed = pool.acquire(100)) {
+			assertEquals(1, pool.getHits());
+		}
+	}
+
+	@Test
+	public void testDeadThreadCacheReclaimed() throws Exception {
+		BufferPool pool = new BufferPool(BufferPool.MIN_BUFFER_SIZE);
+		Thread thread = new Thread(() -> pool.acquire(100).close());
+		thread.start();
+		thread.join();
+		try (PooledBuffer buffer = pool.acquire(100)) {
+			assertTrue(buffer.buffer().isDirect());
+			assertEquals(1, pool.getHits());
+		}
+	}
+
+}
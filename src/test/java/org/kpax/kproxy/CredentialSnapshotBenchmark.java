@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * Contributors:
+ *     Eugen Covaci - initial design and implementation
+ *******************************************************************************/
+
+package org.kpax.kproxy;
+
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.Subject;
+import javax.security.auth.kerberos.KerberosPrincipal;
+
+import org.kpax.bpf.auth.AuthenticationManager;
+import org.kpax.bpf.auth.CredentialSnapshot;
+
+/**
+ * Measures the per-request overhead of {@link AuthenticationManager#executePrivileged(PrivilegedAction)}
+ * around a trivial action: the former way, checking a {@link Date} validity and calling
+ * {@link Subject#doAs(Subject, PrivilegedAction)}, against the {@link CredentialSnapshot} way.
+ * The action looks up the subject, as the HTTP client's context does.
+ * <p>
+ * Run it as a plain Java application, with the test classpath.
+ */
+public class CredentialSnapshotBenchmark {
+
+	private static final int WARMUP = 500_000;
+
+	private static final int ITERATIONS = 2_000_000;
+
+	private static volatile Date validityDate;
+
+	private static volatile Subject subject;
+
+	private static volatile CredentialSnapshot snapshot;
+
+	private static long sink;
+
+	public static void main(String[] args) {
+		subject = new Subject();
+		subject.getPrincipals().add(new KerberosPrincipal("user@EXAMPLE.COM"));
+		validityDate = new Date(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(8));
+		snapshot = new CredentialSnapshot(subject, validityDate);
+
+		PrivilegedAction<Integer> action = () -> Subject.getSubject(AccessController.getContext())
+				.getPrincipals().size();
+
+		for (int round = 0; round < 3; round++) {
+			long former = run(() -> {
+				Date date = validityDate;
+				if (date == null || !date.after(new Date())) {
+					throw new IllegalStateException();
+				}
+				return Subject.doAs(subject, action);
+			});
+			long current = run(() -> {
+				CredentialSnapshot credentials = snapshot;
+				if (credentials == null || !credentials.isValid()) {
+					throw new IllegalStateException();
+				}
+				return credentials.execute(action);
+			});
+			System.out.printf("round %d: Date + Subject.doAs %,d ns/op, snapshot %,d ns/op%n", round, former,
+					current);
+		}
+		System.out.println(sink);
+	}
+
+	private static long run(PrivilegedAction<Integer> request) {
+		for (int i = 0; i < WARMUP; i++) {
+			sink += request.run();
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++) {
+			sink += request.run();
+		}
+		return (System.nanoTime() - start) / ITERATIONS;
+	}
+
+}
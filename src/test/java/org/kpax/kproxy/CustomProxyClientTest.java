@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.kproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpVersion;
+import org.apache.http.auth.AUTH;
+import org.apache.http.auth.AuthScheme;
+import org.apache.http.auth.AuthSchemeProvider;
+import org.apache.http.auth.Credentials;
+import org.apache.http.client.config.AuthSchemes;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.message.BasicHeader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kpax.bpf.SystemConfig;
+import org.kpax.bpf.proxy.BufferPool;
+import org.kpax.bpf.proxy.CustomProxyClient;
+import org.kpax.bpf.proxy.ProxyAuthMetrics;
+import org.kpax.bpf.proxy.ProxyContext;
+import org.kpax.bpf.proxy.UpstreamConnectionPool;
+import org.kpax.bpf.proxy.UpstreamConnector;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class CustomProxyClientTest {
+
+	private ServerSocket proxyServer;
+
+	private Thread proxyThread;
+
+	/**
+	 * The Proxy-Authorization header of each CONNECT request received, empty for none.
+	 */
+	private final List<String> authorizations = new CopyOnWriteArrayList<>();
+
+	private final ProxyAuthMetrics proxyAuthMetrics = new ProxyAuthMetrics();
+
+	private final ProxyContext proxyContext = new ProxyContext();
+
+	private UpstreamConnector upstreamConnector;
+
+	private CustomProxyClient proxyClient;
+
+	@Before
+	public void setUp() throws Exception {
+		proxyServer = new ServerSocket(0);
+		proxyThread = new Thread(this::serve);
+		proxyThread.setDaemon(true);
+		proxyThread.start();
+
+		SystemConfig systemConfig = new SystemConfig();
+		ReflectionTestUtils.setField(systemConfig, "preemptiveAuthEnabled", true);
+		upstreamConnector = new UpstreamConnector(250, 3000, 60);
+
+		proxyClient = new CustomProxyClient();
+		ReflectionTestUtils.setField(proxyClient, "config", systemConfig);
+		ReflectionTestUtils.setField(proxyClient, "bufferPool", new BufferPool(1024 * 1024));
+		ReflectionTestUtils.setField(proxyClient, "proxyContext", proxyContext);
+		ReflectionTestUtils.setField(proxyClient, "proxyAuthMetrics", proxyAuthMetrics);
+		ReflectionTestUtils.setField(proxyClient, "upstreamConnectionPool", new UpstreamConnectionPool());
+		ReflectionTestUtils.setField(proxyClient, "upstreamConnector", upstreamConnector);
+		proxyClient.init();
+
+		// A Negotiate scheme not needing any Kerberos ticket
+		ReflectionTestUtils.setField(proxyClient, "authSchemeRegistry", RegistryBuilder.<AuthSchemeProvider>create()
+				.register(AuthSchemes.SPNEGO, (context) -> new FakeNegotiateScheme()).build());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		proxyServer.close();
+		proxyThread.join(5000);
+		upstreamConnector.close();
+	}
+
+	@Test
+	public void testPreemptiveRejected() throws Exception {
+		HttpHost proxy = new HttpHost("localhost", proxyServer.getLocalPort());
+		ByteArrayOutputStream responseStream = new ByteArrayOutputStream();
+		try (Closeable tunnel = proxyClient.tunnel(proxy, new HttpHost("example.com", 443),
+				HttpVersion.HTTP_1_1, responseStream)) {
+			assertNotNull(tunnel);
+		}
+		assertTrue(new String(responseStream.toByteArray(), StandardCharsets.US_ASCII)
+				.startsWith("HTTP/1.1 200 Connection established"));
+
+		// The token sent in advance, then the one answering the challenge
+		assertEquals(2, authorizations.size());
+		assertEquals("Negotiate dG9rZW4tMQ==", authorizations.get(0));
+		assertEquals("Negotiate dG9rZW4tMQ==", authorizations.get(1));
+		assertEquals(1, proxyAuthMetrics.getChallenges());
+		assertEquals(1, proxyAuthMetrics.getPreemptiveRejected());
+		assertEquals(AuthSchemes.SPNEGO, proxyContext.getTunnelAuthScheme(proxy));
+	}
+
+	/**
+	 * Rejects the first CONNECT request with a Negotiate challenge, then accepts the authenticated ones.
+	 */
+	private void serve() {
+		try (Socket socket = proxyServer.accept()) {
+			BufferedReader reader = new BufferedReader(
+					new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+			OutputStream out = socket.getOutputStream();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!line.startsWith("CONNECT ")) {
+					continue;
+				}
+				String authorization = "";
+				while ((line = reader.readLine()) != null && !line.isEmpty()) {
+					if (line.regionMatches(true, 0, AUTH.PROXY_AUTH_RESP + ":", 0, AUTH.PROXY_AUTH_RESP.length() + 1)) {
+						authorization = line.substring(AUTH.PROXY_AUTH_RESP.length() + 1).trim();
+					}
+				}
+				authorizations.add(authorization);
+				if (authorizations.size() == 1 || authorization.isEmpty()) {
+					out.write(("HTTP/1.1 407 Proxy Authentication Required\r\n"
+							+ "Proxy-Authenticate: Negotiate\r\nContent-Length: 0\r\n\r\n")
+							.getBytes(StandardCharsets.US_ASCII));
+				} else {
+					out.write("HTTP/1.1 200 Connection established\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+				}
+				out.flush();
+			}
+		} catch (Exception e) {
+			// Closed by the test
+		}
+	}
+
+	/**
+	 * Behaves like the SPNEGO scheme: a second challenge after a token has been sent means a failure.
+	 */
+	private static class FakeNegotiateScheme implements AuthScheme {
+
+		private boolean challenged;
+
+		private boolean tokenGenerated;
+
+		private boolean failed;
+
+		@Override
+		public void processChallenge(Header header) {
+			if (!challenged) {
+				challenged = true;
+			} else {
+				failed = true;
+			}
+		}
+
+		@Override
+		public String getSchemeName() {
+			return AuthSchemes.SPNEGO;
+		}
+
+		@Override
+		public String getParameter(String name) {
+			return null;
+		}
+
+		@Override
+		public String getRealm() {
+			return null;
+		}
+
+		@Override
+		public boolean isConnectionBased() {
+			return true;
+		}
+
+		@Override
+		public boolean isComplete() {
+			return tokenGenerated || failed;
+		}
+
+		@Override
+		@Deprecated
+		public Header authenticate(Credentials credentials, HttpRequest request) {
+			tokenGenerated = true;
+			return new BasicHeader(AUTH.PROXY_AUTH_RESP, "Negotiate dG9rZW4tMQ==");
+		}
+
+	}
+
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.kproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.kpax.kproxy.HttpMessagesForTest.body;
+import static org.kpax.kproxy.HttpMessagesForTest.get;
+import static org.kpax.kproxy.HttpMessagesForTest.response;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpRequest;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kpax.bpf.cache.CacheExchange;
+import org.kpax.bpf.cache.DiskStore;
+import org.kpax.bpf.cache.HttpCache;
+
+public class DiskStoreTest {
+
+	private static final String URL = "http://repo.example.com/maven2/org/example/lib/1.0/lib-1.0.jar";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testSurvivesRestart() throws IOException {
+		Path dir = folder.getRoot().toPath();
+		try (DiskStore store = open(dir, 1024 * 1024, 16)) {
+			HttpCache cache = new HttpCache(1024, 1024, store);
+			fetch(cache, URL, "artifact");
+			assertEquals(1, store.getEntries());
+			assertEquals(0, cache.getEntries());
+		}
+
+		try (DiskStore store = open(dir, 1024 * 1024, 16)) {
+			assertEquals(1, store.getEntries());
+			assertEquals(8, store.getSize());
+			HttpCache cache = new HttpCache(1024, 1024, store);
+			HttpResponse cached = cache.exchange(URI.create(URL), get(URL)).getCachedResponse();
+			assertNotNull(cached);
+			assertEquals("artifact", body(cached));
+			assertEquals("8", cached.getFirstHeader(HttpHeaders.CONTENT_LENGTH).getValue());
+			assertEquals(1, cache.getDiskHits());
+		}
+
+		// Another maximum of entries rebuilds the index
+		try (DiskStore store = open(dir, 1024 * 1024, 64)) {
+			assertEquals(1, store.getEntries());
+			assertNotNull(new HttpCache(1024, 1024, store).exchange(URI.create(URL), get(URL)).getCachedResponse());
+		}
+	}
+
+	@Test
+	public void testSameContentStoredOnce() throws IOException {
+		try (DiskStore store = open(folder.getRoot().toPath(), 1024 * 1024, 16)) {
+			HttpCache cache = new HttpCache(1024, 1024, store);
+			fetch(cache, URL, "artifact");
+			fetch(cache, URL.replace("1.0", "1.0-copy"), "artifact");
+			assertEquals(2, store.getEntries());
+			assertEquals(1, objects());
+
+			// Still referenced by the other entry
+			cache.exchange(URI.create(URL), new BasicHttpRequest("DELETE", URL, HttpVersion.HTTP_1_1))
+					.complete(response(HttpStatus.SC_NO_CONTENT, null));
+			assertEquals(1, store.getEntries());
+			assertEquals(1, objects());
+		}
+	}
+
+	@Test
+	public void testEviction() throws IOException {
+		try (DiskStore store = open(folder.getRoot().toPath(), 100, 16)) {
+			HttpCache cache = new HttpCache(1024, 1024, store);
+			for (int i = 0; i < 5; i++) {
+				fetch(cache, URL + i, "content " + i + new String(new char[16]));
+			}
+			// 25 bytes each, the least recently used evicted down to 90 bytes
+			assertTrue(store.getSize() <= 100);
+			assertEquals(store.getSize(), objects() * 25);
+			assertTrue(store.getEvictions() > 0);
+			assertNull(cache.exchange(URI.create(URL + 0), get(URL + 0)).getCachedResponse());
+			assertNotNull(cache.exchange(URI.create(URL + 4), get(URL + 4)).getCachedResponse());
+
+			// Bigger than a quarter of the size
+			fetch(cache, URL + 5, new String(new char[30]));
+			assertNull(cache.exchange(URI.create(URL + 5), get(URL + 5)).getCachedResponse());
+		}
+	}
+
+	@Test
+	public void testEvictionOfSameContent() throws IOException {
+		try (DiskStore store = open(folder.getRoot().toPath(), 1024 * 1024, 2)) {
+			HttpCache cache = new HttpCache(1024, 1024, store);
+			fetch(cache, URL, "artifact");
+			fetch(cache, URL.replace("1.0", "2.0"), "other artifact");
+
+			// Storing the same content again evicts the entry it was stored with
+			String copy = URL.replace("1.0", "1.0-copy");
+			fetch(cache, copy, "artifact");
+			assertEquals(2, store.getEntries());
+			assertEquals(2, objects());
+			assertNull(cache.exchange(URI.create(URL), get(URL)).getCachedResponse());
+			HttpResponse cached = cache.exchange(URI.create(copy), get(copy)).getCachedResponse();
+			assertNotNull(cached);
+			assertEquals("artifact", body(cached));
+			assertEquals(0, store.getCorruptions());
+		}
+	}
+
+	@Test
+	public void testCorruption() throws IOException {
+		try (DiskStore store = open(folder.getRoot().toPath(), 1024 * 1024, 16)) {
+			HttpCache cache = new HttpCache(1024, 1024, store);
+			fetch(cache, URL, "artifact");
+			try (Stream<Path> files = Files.walk(folder.getRoot().toPath().resolve("objects"))) {
+				Path object = files.filter(Files::isRegularFile).findFirst().get();
+				Files.write(object, "artifacT".getBytes(StandardCharsets.UTF_8), StandardOpenOption.TRUNCATE_EXISTING);
+			}
+			assertNull(cache.exchange(URI.create(URL), get(URL)).getCachedResponse());
+			assertEquals(1, store.getCorruptions());
+			assertEquals(0, store.getEntries());
+			assertEquals(0, objects());
+		}
+	}
+
+	@Test
+	public void testAccepts() throws IOException {
+		try (DiskStore store = open(folder.getRoot().toPath(), 1024 * 1024, 16)) {
+			assertTrue(store.accepts(URI.create(URL), response(HttpStatus.SC_OK, null)));
+			assertTrue(store.accepts(URI.create("http://example.com/app.JAR?x=1"), response(HttpStatus.SC_OK, null)));
+			assertFalse(store.accepts(URI.create("http://example.com/index.html"), response(HttpStatus.SC_OK, null)));
+			assertTrue(store.accepts(URI.create("http://example.com/app.js"),
+					response(HttpStatus.SC_OK, null, HttpHeaders.CACHE_CONTROL, "max-age=31536000, immutable")));
+		}
+	}
+
+	private static DiskStore open(Path dir, long maxSize, int maxEntries) throws IOException {
+		return new DiskStore(dir, maxSize, maxEntries, Arrays.asList("*.jar*", "*.pom"));
+	}
+
+	private long objects() throws IOException {
+		try (Stream<Path> files = Files.walk(folder.getRoot().toPath().resolve("objects"))) {
+			return files.filter(Files::isRegularFile).count();
+		}
+	}
+
+	private static void fetch(HttpCache cache, String url, String body) throws IOException {
+		HttpRequest request = get(url);
+		CacheExchange exchange = cache.exchange(URI.create(url), request);
+		body(exchange.complete(response(HttpStatus.SC_OK, body, HttpHeaders.CACHE_CONTROL, "max-age=3600")));
+	}
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.kproxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal DNS server over UDP, answering the SRV queries with the records it has been given,
+ * and NXDOMAIN for any other name. Stands for the network's DNS servers in tests.
+ */
+public class DnsServerForTest implements Closeable {
+
+	private static final int TYPE_SRV = 33;
+
+	private final DatagramSocket socket;
+
+	private final Map<String, List<String>> srvRecords = new ConcurrentHashMap<>();
+
+	private final AtomicInteger queries = new AtomicInteger();
+
+	public DnsServerForTest() throws IOException {
+		socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+		Thread thread = new Thread(this::serve, "dns-server-for-test");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @param name    The queried name, like <code>_kerberos._tcp.EXAMPLE.COM</code>.
+	 * @param records The SRV records, like <code>0 100 88 kdc.example.com</code>.
+	 */
+	public void addSrvRecords(String name, String... records) {
+		srvRecords.computeIfAbsent(name.toLowerCase(), key -> new ArrayList<>()).addAll(Arrays.asList(records));
+	}
+
+	public String getProviderUrl() {
+		return "dns://127.0.0.1:" + socket.getLocalPort();
+	}
+
+	public int getQueries() {
+		return queries.get();
+	}
+
+	private void serve() {
+		byte[] buffer = new byte[512];
+		while (!socket.isClosed()) {
+			try {
+				DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+				socket.receive(packet);
+				queries.incrementAndGet();
+				byte[] response = answer(ByteBuffer.wrap(packet.getData(), 0, packet.getLength()));
+				socket.send(new DatagramPacket(response, response.length, packet.getSocketAddress()));
+			} catch (IOException ignore) {
+			}
+		}
+	}
+
+	private byte[] answer(ByteBuffer query) throws IOException {
+		int id = query.getShort() & 0xFFFF;
+		query.position(12);
+
+		// The question
+		StringBuilder name = new StringBuilder();
+		for (int length; (length = query.get() & 0xFF) > 0;) {
+			if (name.length() > 0) {
+				name.append('.');
+			}
+			byte[] label = new byte[length];
+			query.get(label);
+			name.append(new String(label, "US-ASCII"));
+		}
+		int type = query.getShort() & 0xFFFF;
+		query.getShort();
+		int questionEnd = query.position();
+
+		List<String> records = srvRecords.get(name.toString().toLowerCase());
+		boolean found = records != null && type == TYPE_SRV;
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeShort(id);
+		out.writeShort(records != null ? 0x8580 : 0x8583);
+		out.writeShort(1);
+		out.writeShort(found ? records.size() : 0);
+		out.writeShort(0);
+		out.writeShort(0);
+		out.write(query.array(), 12, questionEnd - 12);
+		if (found) {
+			for (String record : records) {
+				String[] fields = record.split(" ");
+				byte[] target = encodeName(fields[3]);
+				out.writeShort(0xC00C);
+				out.writeShort(TYPE_SRV);
+				out.writeShort(1);
+				out.writeInt(60);
+				out.writeShort(6 + target.length);
+				out.writeShort(Integer.parseInt(fields[0]));
+				out.writeShort(Integer.parseInt(fields[1]));
+				out.writeShort(Integer.parseInt(fields[2]));
+				out.write(target);
+			}
+		}
+		return bytes.toByteArray();
+	}
+
+	private static byte[] encodeName(String name) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (String label : name.split("\\.")) {
+			out.write(label.length());
+			out.write(label.getBytes("US-ASCII"));
+		}
+		out.write(0);
+		return out.toByteArray();
+	}
+
+	@Override
+	public void close() {
+		socket.close();
+	}
+
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.kproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.kpax.kproxy.HttpMessagesForTest.body;
+import static org.kpax.kproxy.HttpMessagesForTest.get;
+import static org.kpax.kproxy.HttpMessagesForTest.response;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Date;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.message.BasicHttpRequest;
+import org.junit.Test;
+import org.kpax.bpf.cache.CacheExchange;
+import org.kpax.bpf.cache.HttpCache;
+
+public class HttpCacheTest {
+
+	private static final String URL = "http://www.example.com/repo/artifact.jar";
+
+	private final HttpCache cache = new HttpCache(1024 * 1024, 1024);
+
+	@Test
+	public void testFreshHit() throws IOException {
+		fetch(get(URL), response(HttpStatus.SC_OK, "hello", HttpHeaders.CACHE_CONTROL, "max-age=60"));
+
+		HttpResponse cached = cache.exchange(URI.create(URL), get(URL)).getCachedResponse();
+		assertNotNull(cached);
+		assertEquals(HttpStatus.SC_OK, cached.getStatusLine().getStatusCode());
+		assertEquals("hello", body(cached));
+		assertEquals("5", cached.getFirstHeader(HttpHeaders.CONTENT_LENGTH).getValue());
+		assertNotNull(cached.getFirstHeader(HttpHeaders.AGE));
+		assertEquals(1, cache.getHits());
+		assertEquals(5, cache.getBytesSaved());
+		assertEquals(0.5, cache.getHitRatio(), 0.001);
+
+		// Another URI
+		assertNull(cache.exchange(URI.create(URL + "?v=2"), get(URL + "?v=2")).getCachedResponse());
+	}
+
+	@Test
+	public void testRevalidation() throws IOException {
+		fetch(get(URL), response(HttpStatus.SC_OK, "hello", HttpHeaders.CACHE_CONTROL, "max-age=0",
+				HttpHeaders.ETAG, "\"v1\""));
+
+		HttpRequest request = get(URL);
+		CacheExchange exchange = cache.exchange(URI.create(URL), request);
+		assertNull(exchange.getCachedResponse());
+		assertEquals("\"v1\"", request.getFirstHeader(HttpHeaders.IF_NONE_MATCH).getValue());
+
+		HttpResponse response = exchange.complete(response(HttpStatus.SC_NOT_MODIFIED, null,
+				HttpHeaders.CACHE_CONTROL, "max-age=60", HttpHeaders.ETAG, "\"v1\""));
+		assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+		assertEquals("hello", body(response));
+		assertEquals(1, cache.getRevalidations());
+		assertEquals(1, cache.getValidatedHits());
+
+		// Fresh again
+		assertNotNull(cache.exchange(URI.create(URL), get(URL)).getCachedResponse());
+	}
+
+	@Test
+	public void testClientConditions() throws IOException {
+		fetch(get(URL), response(HttpStatus.SC_OK, "hello", HttpHeaders.CACHE_CONTROL, "max-age=60",
+				HttpHeaders.ETAG, "\"v1\""));
+
+		HttpRequest request = get(URL);
+		request.addHeader(HttpHeaders.IF_NONE_MATCH, "\"v0\", W/\"v1\"");
+		HttpResponse cached = cache.exchange(URI.create(URL), request).getCachedResponse();
+		assertEquals(HttpStatus.SC_NOT_MODIFIED, cached.getStatusLine().getStatusCode());
+		assertNull(cached.getEntity());
+	}
+
+	@Test
+	public void testRequestDirectives() throws IOException {
+		fetch(get(URL), response(HttpStatus.SC_OK, "hello", HttpHeaders.CACHE_CONTROL, "max-age=60",
+				HttpHeaders.ETAG, "\"v1\""));
+
+		HttpRequest noCache = get(URL);
+		noCache.addHeader(HttpHeaders.PRAGMA, "no-cache");
+		assertNull(cache.exchange(URI.create(URL), noCache).getCachedResponse());
+
+		HttpRequest maxAge = get(URL);
+		maxAge.addHeader(HttpHeaders.CACHE_CONTROL, "max-age=0");
+		assertNull(cache.exchange(URI.create(URL), maxAge).getCachedResponse());
+
+		HttpRequest onlyIfCached = get(URL + "/other");
+		onlyIfCached.addHeader(HttpHeaders.CACHE_CONTROL, "only-if-cached");
+		assertEquals(HttpStatus.SC_GATEWAY_TIMEOUT, cache.exchange(URI.create(URL + "/other"), onlyIfCached)
+				.getCachedResponse().getStatusLine().getStatusCode());
+	}
+
+	@Test
+	public void testHeuristicFreshness() throws IOException {
+		long now = System.currentTimeMillis();
+		fetch(get(URL), response(HttpStatus.SC_OK, "hello",
+				HttpHeaders.DATE, DateUtils.formatDate(new Date(now)),
+				HttpHeaders.LAST_MODIFIED, DateUtils.formatDate(new Date(now - 3600_000))));
+		assertNotNull(cache.exchange(URI.create(URL), get(URL)).getCachedResponse());
+
+		fetch(get(URL), response(HttpStatus.SC_OK, "hello",
+				HttpHeaders.DATE, DateUtils.formatDate(new Date(now)),
+				HttpHeaders.EXPIRES, DateUtils.formatDate(new Date(now - 1000)),
+				HttpHeaders.LAST_MODIFIED, DateUtils.formatDate(new Date(now - 3600_000))));
+		assertNull(cache.exchange(URI.create(URL), get(URL)).getCachedResponse());
+	}
+
+	@Test
+	public void testNotStored() throws IOException {
+		fetch(get(URL), response(HttpStatus.SC_OK, "hello", HttpHeaders.CACHE_CONTROL, "private, max-age=60"));
+		fetch(get(URL + "/1"), response(HttpStatus.SC_OK, "hello", HttpHeaders.CACHE_CONTROL, "no-store"));
+		fetch(get(URL + "/2"), response(HttpStatus.SC_OK, "hello", HttpHeaders.CACHE_CONTROL, "max-age=60",
+				"Set-Cookie", "session=1"));
+		fetch(get(URL + "/3"), response(HttpStatus.SC_OK, "hello", HttpHeaders.CACHE_CONTROL, "max-age=60",
+				HttpHeaders.VARY, "*"));
+		fetch(get(URL + "/4"), response(HttpStatus.SC_OK, new String(new char[2048]), HttpHeaders.CACHE_CONTROL,
+				"max-age=60"));
+		fetch(get(URL + "/5"), response(HttpStatus.SC_OK, "hello"));
+		HttpRequest authorized = get(URL + "/6");
+		authorized.addHeader(HttpHeaders.AUTHORIZATION, "Basic dXNlcjpwYXNz");
+		fetch(authorized, response(HttpStatus.SC_OK, "hello", HttpHeaders.CACHE_CONTROL, "max-age=60"));
+		assertEquals(0, cache.getEntries());
+	}
+
+	@Test
+	public void testVary() throws IOException {
+		HttpRequest gzip = get(URL);
+		gzip.addHeader(HttpHeaders.ACCEPT_ENCODING, "gzip");
+		fetch(gzip, response(HttpStatus.SC_OK, "hello", HttpHeaders.CACHE_CONTROL, "max-age=60",
+				HttpHeaders.VARY, "Accept-Encoding"));
+
+		HttpRequest sameEncoding = get(URL);
+		sameEncoding.addHeader(HttpHeaders.ACCEPT_ENCODING, "gzip");
+		assertNotNull(cache.exchange(URI.create(URL), sameEncoding).getCachedResponse());
+		assertNull(cache.exchange(URI.create(URL), get(URL)).getCachedResponse());
+	}
+
+	@Test
+	public void testInvalidation() throws IOException {
+		fetch(get(URL), response(HttpStatus.SC_OK, "hello", HttpHeaders.CACHE_CONTROL, "max-age=60"));
+		String other = "http://www.example.com/repo/other.jar";
+		fetch(get(other), response(HttpStatus.SC_OK, "hello", HttpHeaders.CACHE_CONTROL, "max-age=60"));
+		assertEquals(2, cache.getEntries());
+
+		HttpRequest put = new BasicHttpRequest("PUT", URL, HttpVersion.HTTP_1_1);
+		cache.exchange(URI.create(URL), put).complete(response(HttpStatus.SC_CREATED, null,
+				HttpHeaders.LOCATION, "other.jar"));
+		assertNull(cache.exchange(URI.create(URL), get(URL)).getCachedResponse());
+		assertNull(cache.exchange(URI.create(other), get(other)).getCachedResponse());
+		assertEquals(2, cache.getInvalidations());
+	}
+
+	@Test
+	public void testDisabled() throws IOException {
+		HttpCache disabled = new HttpCache();
+		HttpRequest request = get(URL);
+		CacheExchange exchange = disabled.exchange(URI.create(URL), request);
+		assertNull(exchange.getCachedResponse());
+		HttpResponse response = response(HttpStatus.SC_OK, "hello", HttpHeaders.CACHE_CONTROL, "max-age=60");
+		assertTrue(response == exchange.complete(response));
+		assertFalse(disabled.isEnabled());
+	}
+
+	/**
+	 * Forward the request through the cache, writing the response like the local proxy does.
+	 */
+	private void fetch(HttpRequest request, HttpResponse response) throws IOException {
+		CacheExchange exchange = cache.exchange(URI.create(request.getRequestLine().getUri()), request);
+		body(exchange.complete(response));
+	}
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.kproxy;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.client.ProxyAuthenticationStrategy;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.kpax.bpf.proxy.ProxyContext;
+
+/**
+ * Compares the per-request cost of building a new HTTP client for each request
+ * against using a shared client, as {@link ProxyContext#getHttpClient(boolean)} does.
+ * Both variants share the same pooled connection manager and execute real requests
+ * against a local server.
+ * <p>
+ * Run it as a plain Java application, with the test classpath.
+ */
+public class HttpClientReuseBenchmark {
+
+	private static final int WARMUP = 2_000;
+
+	private static final int ITERATIONS = 20_000;
+
+	public static void main(String[] args) throws Exception {
+		ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		Thread acceptor = new Thread(() -> serve(server));
+		acceptor.setDaemon(true);
+		acceptor.start();
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+		try {
+			HttpHost target = new HttpHost("127.0.0.1", server.getLocalPort());
+			Supplier<CloseableHttpClient> builder = () -> HttpClients.custom().useSystemProperties()
+					.setDefaultCredentialsProvider(ProxyContext.NO_CREDENTIALS_PROVIDER)
+					.setProxyAuthenticationStrategy(new ProxyAuthenticationStrategy())
+					.setConnectionManager(connectionManager)
+					.setConnectionManagerShared(true)
+					.disableRedirectHandling()
+					.disableCookieManagement()
+					.build();
+
+			CloseableHttpClient sharedClient = builder.get();
+			for (int round = 0; round < 3; round++) {
+				long perRequest = run(WARMUP, ITERATIONS, () -> {
+					try (CloseableHttpClient client = builder.get()) {
+						execute(client, target);
+					}
+				});
+				long shared = run(WARMUP, ITERATIONS, () -> execute(sharedClient, target));
+				System.out.printf("round %d: new client per request %,d ns/op, shared client %,d ns/op%n",
+						round, perRequest, shared);
+			}
+			sharedClient.close();
+
+			// The setup cost alone, without any I/O
+			long buildOnly = run(WARMUP, ITERATIONS, () -> builder.get().close());
+			System.out.printf("client build and close alone: %,d ns/op%n", buildOnly);
+		} finally {
+			connectionManager.close();
+			server.close();
+		}
+	}
+
+	/**
+	 * A minimal keep-alive HTTP server answering each request with a small response, in a single write.
+	 */
+	private static void serve(ServerSocket server) {
+		byte[] response = "HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello".getBytes(StandardCharsets.US_ASCII);
+		while (!server.isClosed()) {
+			try {
+				Socket socket = server.accept();
+				socket.setTcpNoDelay(true);
+				Thread handler = new Thread(() -> {
+					try (Socket s = socket;
+							BufferedReader reader = new BufferedReader(
+									new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII))) {
+						OutputStream out = s.getOutputStream();
+						String line;
+						while ((line = reader.readLine()) != null) {
+							if (line.isEmpty()) {
+								out.write(response);
+								out.flush();
+							}
+						}
+					} catch (IOException ignore) {
+					}
+				});
+				handler.setDaemon(true);
+				handler.start();
+			} catch (IOException ignore) {
+			}
+		}
+	}
+
+	private static void execute(CloseableHttpClient client, HttpHost target) throws Exception {
+		try (CloseableHttpResponse response = client.execute(target, new HttpGet("/"))) {
+			EntityUtils.consume(response.getEntity());
+		}
+	}
+
+	private static long run(int warmup, int iterations, Task task) throws Exception {
+		for (int i = 0; i < warmup; i++) {
+			task.run();
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			task.run();
+		}
+		return (System.nanoTime() - start) / iterations;
+	}
+
+	private interface Task {
+		void run() throws Exception;
+	}
+
+}
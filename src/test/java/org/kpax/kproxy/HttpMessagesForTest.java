@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * Contributors:
+ *     Eugen Covaci - initial design and implementation
+ *******************************************************************************/
+
+package org.kpax.kproxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+
+/**
+ * The requests and responses the cache tests pass through the cache, as they come from the local client
+ * and the remote side.
+ */
+public final class HttpMessagesForTest {
+
+	private HttpMessagesForTest() {
+	}
+
+	static HttpRequest get(String url) {
+		return new BasicHttpRequest("GET", url, HttpVersion.HTTP_1_1);
+	}
+
+	/**
+	 * @param body    The UTF-8 body, <code>null</code> for none.
+	 * @param headers The header names and values, in turn.
+	 */
+	static HttpResponse response(int status, String body, String... headers) {
+		return responseWith(status, body != null ? new ByteArrayEntity(body.getBytes(StandardCharsets.UTF_8)) : null,
+				headers);
+	}
+
+	/**
+	 * @param entity  The body, <code>null</code> for none.
+	 * @param headers The header names and values, in turn.
+	 */
+	static HttpResponse responseWith(int status, HttpEntity entity, String... headers) {
+		BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, status, "Status " + status);
+		for (int i = 0; i < headers.length; i += 2) {
+			response.addHeader(headers[i], headers[i + 1]);
+		}
+		response.setEntity(entity);
+		return response;
+	}
+
+	/**
+	 * Write the body like the local proxy does.
+	 *
+	 * @return The UTF-8 body, <code>null</code> for none.
+	 */
+	static String body(HttpResponse response) throws IOException {
+		if (response.getEntity() == null) {
+			return null;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		response.getEntity().writeTo(out);
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.kproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kpax.bpf.auth.KdcResolver;
+
+public class KdcResolverTest {
+
+	private DnsServerForTest dnsServer;
+
+	@Before
+	public void setUp() throws Exception {
+		dnsServer = new DnsServerForTest();
+		dnsServer.addSrvRecords("_kerberos._tcp.EXAMPLE.COM",
+				"10 0 88 backup.example.com",
+				"0 60 88 dc1.example.com",
+				"0 40 8888 dc2.example.com");
+	}
+
+	@After
+	public void tearDown() {
+		dnsServer.close();
+	}
+
+	@Test
+	public void testPriorityOrderAndPort() throws Exception {
+		KdcResolver resolver = new KdcResolver(dnsServer.getProviderUrl(), 60);
+		List<String> kdcs = resolver.resolve("example.com");
+		assertEquals(3, kdcs.size());
+		assertEquals(new HashSet<>(Arrays.asList("dc1.example.com", "dc2.example.com:8888")),
+				new HashSet<>(kdcs.subList(0, 2)));
+		assertEquals("backup.example.com", kdcs.get(2));
+	}
+
+	@Test
+	public void testCache() throws Exception {
+		KdcResolver resolver = new KdcResolver(dnsServer.getProviderUrl(), 60);
+		resolver.resolve("example.com");
+		resolver.resolve("example.com");
+		assertEquals(1, dnsServer.getQueries());
+		assertEquals(1, resolver.getLookups());
+		assertEquals(1, resolver.getCacheHits());
+
+		resolver.clearCache();
+		resolver.resolve("example.com");
+		assertEquals(2, dnsServer.getQueries());
+	}
+
+	@Test
+	public void testExpiredCache() throws Exception {
+		KdcResolver resolver = new KdcResolver(dnsServer.getProviderUrl(), 0);
+		resolver.resolve("example.com");
+		resolver.resolve("example.com");
+		assertEquals(2, resolver.getLookups());
+	}
+
+	@Test
+	public void testNoRecord() throws Exception {
+		KdcResolver resolver = new KdcResolver(dnsServer.getProviderUrl(), 60);
+		assertTrue(resolver.resolve("unknown.com").isEmpty());
+		assertEquals(0, resolver.getFallbacks());
+	}
+
+}
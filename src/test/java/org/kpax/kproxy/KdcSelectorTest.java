@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.kproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kpax.bpf.auth.KdcSelector;
+
+public class KdcSelectorTest {
+
+	private ServerSocket liveKdc;
+
+	private String live;
+
+	private String refusing;
+
+	@Before
+	public void setUp() throws Exception {
+		liveKdc = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		live = "127.0.0.1:" + liveKdc.getLocalPort();
+
+		// A port nobody listens on anymore
+		try (ServerSocket closed = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+			refusing = "127.0.0.1:" + closed.getLocalPort();
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		liveKdc.close();
+	}
+
+	@Test
+	public void testFailedKdcLast() {
+		KdcSelector selector = new KdcSelector(250, 3000);
+		List<String> kdcs = selector.select("example.com", Arrays.asList(refusing, live));
+		assertEquals(Arrays.asList(live, refusing), kdcs);
+		assertEquals(1, selector.getRaces());
+		assertTrue(selector.getLastRaceMillis() < 250);
+	}
+
+	@Test
+	public void testFastestRemembered() {
+		KdcSelector selector = new KdcSelector(250, 3000);
+		selector.select("example.com", Arrays.asList(refusing, live));
+		assertEquals(Arrays.asList(live, "other.example.com"),
+				selector.select("example.com", Arrays.asList("other.example.com", live)));
+	}
+
+	@Test
+	public void testNoKdcAnswering() {
+		KdcSelector selector = new KdcSelector(250, 3000);
+		List<String> kdcs = Arrays.asList(refusing, refusing.replace("127.0.0.1", "localhost"));
+		assertEquals(kdcs, selector.select("example.com", kdcs));
+		assertEquals(1, selector.getRacesLost());
+	}
+
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.kproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.http.HttpHost;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kpax.bpf.exception.InvalidConfigException;
+import org.kpax.bpf.proxy.PacScript;
+import org.kpax.bpf.proxy.Route;
+import org.kpax.bpf.proxy.Router;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class PacScriptTest {
+
+	private static final String SCRIPT = String.join("\n",
+			"function FindProxyForURL(url, host) {",
+			"  if (isPlainHostName(host) || dnsDomainIs(host, '.intranet.test')) return 'DIRECT';",
+			"  if (isInNet(host, '10.0.0.0', '255.0.0.0')) return 'DIRECT';",
+			"  if (shExpMatch(host, 'repo-*.example.com')) return 'PROXY repo-proxy:3128; DIRECT';",
+			"  if (host == 'socks.example.com') return 'SOCKS socks-proxy:1080';",
+			"  if (host == 'broken.example.com') throw 'broken';",
+			"  if (url.indexOf('https:') == 0) return 'PROXY secure-proxy:8443; PROXY other-proxy';",
+			"  return 'PROXY web-proxy:8080';",
+			"}");
+
+	private File pacFile;
+
+	@Before
+	public void setUp() throws IOException {
+		pacFile = File.createTempFile("proxy", ".pac");
+		Files.write(pacFile.toPath(), SCRIPT.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@After
+	public void tearDown() {
+		pacFile.delete();
+	}
+
+	@Test
+	public void testRoutes() {
+		PacScript pacScript = new PacScript(pacFile.getPath(), 2, 100, 60);
+		pacScript.load();
+		assertTrue(pacScript.isEnabled());
+		assertSame(Route.DIRECT, pacScript.route("http", "localhost", 80));
+		assertSame(Route.DIRECT, pacScript.route("http", "www.intranet.test", 80));
+		assertSame(Route.DIRECT, pacScript.route("http", "10.1.2.3", 80));
+		assertEquals(Arrays.asList(new HttpHost("repo-proxy", 3128)),
+				pacScript.route("http", "repo-01.example.com", 80).getProxies());
+		assertEquals(Arrays.asList(new HttpHost("secure-proxy", 8443), new HttpHost("other-proxy", 80)),
+				pacScript.route("https", "www.example.com", 443).getProxies());
+		assertEquals(Arrays.asList(new HttpHost("web-proxy", 8080)),
+				pacScript.route("http", "www.example.com", 80).getProxies());
+	}
+
+	@Test
+	public void testUnsupported() {
+		PacScript pacScript = new PacScript(pacFile.getPath(), 1, 100, 60);
+		pacScript.load();
+		assertSame(Route.DEFAULT, pacScript.route("http", "socks.example.com", 80));
+		assertSame(Route.DEFAULT, pacScript.route("http", "broken.example.com", 80));
+		assertEquals(2, pacScript.getErrors());
+
+		// The failures are not cached
+		pacScript.route("http", "broken.example.com", 80);
+		assertEquals(3, pacScript.getErrors());
+	}
+
+	@Test
+	public void testCache() {
+		PacScript pacScript = new PacScript(pacFile.getPath(), 1, 2, 60);
+		pacScript.load();
+		Route route = pacScript.route("http", "www.example.com", 80);
+		assertSame(route, pacScript.route("http", "www.example.com", 80));
+		assertEquals(1, pacScript.getEvaluations());
+		assertEquals(1, pacScript.getCacheHits());
+
+		pacScript.route("http", "a.example.com", 80);
+		pacScript.route("http", "b.example.com", 80);
+		assertEquals(2, pacScript.getCachedDecisions());
+		pacScript.route("http", "www.example.com", 80);
+		assertEquals(4, pacScript.getEvaluations());
+
+		// The path is not part of the key
+		pacScript.route("http", "dl.example.com", 80, "/downloads/jdk.tar.gz");
+		assertEquals(5, pacScript.getEvaluations());
+		pacScript.route("http", "dl.example.com", 80, "/downloads/jre.tar.gz");
+		assertEquals(5, pacScript.getEvaluations());
+		pacScript.route("http", "dl.example.com", 8080, "/downloads/jre.tar.gz");
+		assertEquals(6, pacScript.getEvaluations());
+	}
+
+	@Test
+	public void testConcurrentCalls() throws Exception {
+		PacScript pacScript = new PacScript(pacFile.getPath(), 2, 0, 0);
+		pacScript.load();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Route>> routes = new ArrayList<>();
+			for (int i = 0; i < 100; i++) {
+				String host = i % 2 == 0 ? "host" + i : "host" + i + ".example.com";
+				routes.add(executor.submit(() -> pacScript.route("http", host, 80)));
+			}
+			for (int i = 0; i < routes.size(); i++) {
+				assertEquals(i % 2 == 0, routes.get(i).get().isDirect());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testNoPacFile() {
+		PacScript pacScript = new PacScript("", 1, 100, 60);
+		pacScript.load();
+		assertFalse(pacScript.isEnabled());
+		assertSame(Route.DEFAULT, pacScript.route("http", "localhost", 80));
+	}
+
+	@Test
+	public void testInvalidScript() throws IOException {
+		Files.write(pacFile.toPath(), "function FindProxyForURL(url, host) {".getBytes(StandardCharsets.UTF_8));
+		try {
+			new PacScript(pacFile.getPath(), 1, 100, 60).load();
+			fail("Invalid script expected");
+		} catch (InvalidConfigException e) {
+			assertTrue(e.getMessage().startsWith("Cannot load the PAC file"));
+		}
+	}
+
+	@Test
+	public void testUrl() throws IOException {
+		write("function FindProxyForURL(url, host) {",
+				"  if (shExpMatch(url, 'http://www.example.com/downloads/*')) return 'PROXY download-proxy:3128';",
+				"  if (shExpMatch(url, 'http://*.example.com/*')) return 'DIRECT';",
+				"  if (url == 'https://secure.example.com/') return 'DIRECT';",
+				"  if (url == 'https://secure.example.com:8443/') return 'PROXY secure-proxy:8443';",
+				"  return 'PROXY web-proxy:8080';",
+				"}");
+		PacScript pacScript = new PacScript(pacFile.getPath(), 1, 100, 60, true);
+		pacScript.load();
+		Router router = new Router();
+		ReflectionTestUtils.setField(router, "pacScript", pacScript);
+		List<HttpHost> proxies = ReflectionTestUtils.invokeMethod(router, "getProxies");
+
+		// The default ports left out, the path of the plain HTTP requests kept
+		assertEquals(Arrays.asList(new HttpHost("download-proxy", 3128)),
+				router.route(URI.create("http://www.example.com/downloads/jdk.tar.gz?mirror=1")).getProxies());
+		assertTrue(router.route(URI.create("http://www.example.com:80/index.html")).isDirect());
+		assertEquals(Arrays.asList(new HttpHost("web-proxy", 8080)),
+				router.route(URI.create("http://www.example.com:8080/index.html")).getProxies());
+
+		// The tunnels are HTTPS on any port
+		assertTrue(router.routeTunnel(new HttpHost("secure.example.com", 443)).isDirect());
+		assertEquals(Arrays.asList(new HttpHost("secure-proxy", 8443)),
+				router.routeTunnel(new HttpHost("secure.example.com", 8443)).getProxies());
+
+		// Another list only once the PAC file has returned new proxies
+		assertTrue(proxies.isEmpty());
+		proxies = ReflectionTestUtils.invokeMethod(router, "getProxies");
+		assertEquals(Arrays.asList(new HttpHost("download-proxy", 3128), new HttpHost("web-proxy", 8080),
+				new HttpHost("secure-proxy", 8443)), proxies);
+		assertSame(proxies, ReflectionTestUtils.invokeMethod(router, "getProxies"));
+	}
+
+	@Test
+	public void testWeekdayRange() throws IOException {
+		PacScript pacScript = expressions();
+		ZonedDateTime now = ZonedDateTime.now(ZoneOffset.UTC);
+		DayOfWeek today = now.getDayOfWeek();
+
+		// Bounds one day away at least, so the test does not depend on when it runs
+		assertTrue(evaluate(pacScript, "weekdayRange('SUN', 'SAT', 'GMT')"));
+		assertTrue(evaluate(pacScript, "weekdayRange(" + day(today.minus(1)) + ", " + day(today.plus(1)) + ", 'GMT')"));
+		assertFalse(evaluate(pacScript, "weekdayRange(" + day(today.plus(2)) + ", " + day(today.plus(4)) + ", 'GMT')"));
+
+		// Wrapping around the end of the week
+		assertTrue(evaluate(pacScript, "weekdayRange(" + day(today.plus(5)) + ", " + day(today.plus(1)) + ", 'GMT')"));
+		assertFalse(evaluate(pacScript, "weekdayRange(" + day(today.plus(2)) + ", " + day(today.minus(2)) + ", 'GMT')"));
+
+		assertFalse(evaluate(pacScript, "weekdayRange('MONDAY')"));
+	}
+
+	@Test
+	public void testDateRange() throws IOException {
+		PacScript pacScript = expressions();
+		LocalDate today = ZonedDateTime.now(ZoneOffset.UTC).toLocalDate();
+		int year = today.getYear();
+
+		assertTrue(evaluate(pacScript, "dateRange(" + (year - 1) + ", " + (year + 1) + ", 'GMT')"));
+		assertFalse(evaluate(pacScript, "dateRange(" + (year + 1) + ", " + (year + 2) + ", 'GMT')"));
+		assertTrue(evaluate(pacScript, "dateRange(" + date(today.minusDays(1)) + ", " + date(today.plusDays(1)) + ", 'GMT')"));
+		assertFalse(evaluate(pacScript, "dateRange(" + date(today.plusDays(2)) + ", " + date(today.plusDays(5)) + ", 'GMT')"));
+		assertFalse(evaluate(pacScript, "dateRange(" + date(today.minusYears(1)) + ", " + date(today.minusDays(2)) + ", 'GMT')"));
+
+		// Months without the year, wrapping around the end of the year
+		LocalDate nextMonth = today.plusMonths(1);
+		LocalDate previousMonth = today.minusMonths(1);
+		assertTrue(evaluate(pacScript, "dateRange(" + month(previousMonth) + ", " + month(nextMonth) + ", 'GMT')"));
+		assertFalse(evaluate(pacScript, "dateRange(" + month(today.plusMonths(2)) + ", " + month(today.minusMonths(2)) + ", 'GMT')"));
+
+		// A single date is not a valid argument list, nor any odd number of values but one
+		assertFalse(evaluate(pacScript, "dateRange(" + date(today) + ", 'GMT')"));
+		assertFalse(evaluate(pacScript, "dateRange(1, 'JAN', " + (year - 1) + ", 31, 'DEC')"));
+		assertTrue(evaluate(pacScript, "dateRange(" + year + ", 'GMT')"));
+	}
+
+	@Test
+	public void testTimeRange() throws IOException {
+		PacScript pacScript = expressions();
+		int hour = ZonedDateTime.now(ZoneOffset.UTC).getHour();
+
+		assertTrue(evaluate(pacScript, "timeRange(0, 24, 'GMT')"));
+		assertTrue(evaluate(pacScript, "timeRange(" + (hour - 1 + 24) % 24 + ", " + (hour + 2) % 24 + ", 'GMT')"));
+		assertFalse(evaluate(pacScript, "timeRange(" + (hour + 2) % 24 + ", " + (hour + 4) % 24 + ", 'GMT')"));
+		assertTrue(evaluate(pacScript, "timeRange(" + (hour - 1 + 24) % 24 + ", 30, " + (hour + 2) % 24 + ", 30, 'GMT')"));
+		assertFalse(evaluate(pacScript, "timeRange(" + (hour + 2) % 24 + ", 0, " + (hour + 3) % 24 + ", 0, 'GMT')"));
+		assertTrue(evaluate(pacScript, "timeRange(" + (hour - 1 + 24) % 24 + ", 0, 0, " + (hour + 2) % 24 + ", 0, 0, 'GMT')"));
+		assertFalse(evaluate(pacScript, "timeRange(" + (hour + 2) % 24 + ", 0, 0, " + (hour + 3) % 24 + ", 0, 0, 'GMT')"));
+		assertFalse(evaluate(pacScript, "timeRange(1, 2, 3)"));
+	}
+
+	/**
+	 * Load a PAC file evaluating the host as a JavaScript expression: <code>DIRECT</code> means true.
+	 */
+	private PacScript expressions() throws IOException {
+		write("function FindProxyForURL(url, host) {",
+				"  return eval(host) ? 'DIRECT' : 'PROXY web-proxy:8080';",
+				"}");
+		PacScript pacScript = new PacScript(pacFile.getPath(), 1, 0, 0);
+		pacScript.load();
+		return pacScript;
+	}
+
+	private static boolean evaluate(PacScript pacScript, String expression) {
+		Route route = pacScript.route("http", expression, 80);
+		assertTrue(expression, route != Route.DEFAULT);
+		return route.isDirect();
+	}
+
+	private static String day(DayOfWeek day) {
+		return "'" + day.name().substring(0, 3) + "'";
+	}
+
+	private static String month(LocalDate date) {
+		return "'" + date.getMonth().name().substring(0, 3) + "'";
+	}
+
+	private static String date(LocalDate date) {
+		return date.getDayOfMonth() + ", " + month(date) + ", " + date.getYear();
+	}
+
+	private void write(String... lines) throws IOException {
+		Files.write(pacFile.toPath(), String.join("\n", lines).getBytes(StandardCharsets.UTF_8));
+	}
+
+}
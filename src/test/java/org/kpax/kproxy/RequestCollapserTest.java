@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.kproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.kpax.kproxy.HttpMessagesForTest.body;
+import static org.kpax.kproxy.HttpMessagesForTest.get;
+import static org.kpax.kproxy.HttpMessagesForTest.response;
+import static org.kpax.kproxy.HttpMessagesForTest.responseWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.InputStreamEntity;
+import org.junit.After;
+import org.junit.Test;
+import org.kpax.bpf.cache.CacheExchange;
+import org.kpax.bpf.cache.HttpCache;
+
+public class RequestCollapserTest {
+
+	private static final String URL = "http://repo.example.com/maven2/org/example/lib/maven-metadata.xml";
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	@After
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testStreamedToFollowers() throws Exception {
+		// A tiny memory part, so that most of the body goes through the temporary file
+		HttpCache cache = new HttpCache(1024 * 1024, 1024, null, 5000, 4);
+		CacheExchange leader = cache.exchange(URI.create(URL), get(URL));
+		assertNull(leader.getCachedResponse());
+
+		Future<CacheExchange> follower = executor.submit(() -> cache.exchange(URI.create(URL), get(URL)));
+		waitForFollowers(cache, follower);
+
+		PipedOutputStream origin = new PipedOutputStream();
+		PipedInputStream originBody = new PipedInputStream(origin);
+		HttpResponse response = leader.complete(responseWith(HttpStatus.SC_OK,
+				new InputStreamEntity(originBody, 11), HttpHeaders.CACHE_CONTROL, "max-age=60"));
+		Future<String> leaderBody = executor.submit(() -> body(response));
+
+		CacheExchange shared = follower.get(5, TimeUnit.SECONDS);
+		HttpResponse sharedResponse = shared.getCachedResponse();
+		assertNotNull(sharedResponse);
+		assertEquals(HttpStatus.SC_OK, sharedResponse.getStatusLine().getStatusCode());
+
+		// The first bytes reach the follower before the body is complete
+		origin.write("hello ".getBytes(StandardCharsets.UTF_8));
+		origin.flush();
+		InputStream sharedBody = sharedResponse.getEntity().getContent();
+		byte[] first = new byte[6];
+		int read = 0;
+		while (read < first.length) {
+			read += sharedBody.read(first, read, first.length - read);
+		}
+		assertEquals("hello ", new String(first, StandardCharsets.UTF_8));
+
+		origin.write("world".getBytes(StandardCharsets.UTF_8));
+		origin.close();
+		ByteArrayOutputStream rest = new ByteArrayOutputStream();
+		byte[] buffer = new byte[16];
+		while ((read = sharedBody.read(buffer)) != -1) {
+			rest.write(buffer, 0, read);
+		}
+		assertEquals("world", new String(rest.toByteArray(), StandardCharsets.UTF_8));
+		assertEquals("hello world", leaderBody.get(5, TimeUnit.SECONDS));
+		shared.close();
+		leader.close();
+		assertEquals(1, cache.getCollapsed());
+		assertEquals(1, cache.getMisses());
+
+		// Stored by the leader
+		assertNotNull(cache.exchange(URI.create(URL), get(URL)).getCachedResponse());
+	}
+
+	@Test
+	public void testSlowBody() throws Exception {
+		HttpCache cache = new HttpCache(1024 * 1024, 1024, null, 200, 1024);
+		CacheExchange leader = cache.exchange(URI.create(URL), get(URL));
+		Future<CacheExchange> follower = executor.submit(() -> cache.exchange(URI.create(URL), get(URL)));
+		waitForFollowers(cache, follower);
+
+		PipedOutputStream origin = new PipedOutputStream();
+		PipedInputStream originBody = new PipedInputStream(origin);
+		HttpResponse response = leader.complete(responseWith(HttpStatus.SC_OK,
+				new InputStreamEntity(originBody, 11), HttpHeaders.CACHE_CONTROL, "max-age=60"));
+		Future<String> leaderBody = executor.submit(() -> body(response));
+		CacheExchange shared = follower.get(5, TimeUnit.SECONDS);
+		Future<String> sharedBody = executor.submit(() -> body(shared.getCachedResponse()));
+
+		// The origin pausing longer than the wait for the response head
+		origin.write("hello ".getBytes(StandardCharsets.UTF_8));
+		origin.flush();
+		Thread.sleep(500);
+		origin.write("world".getBytes(StandardCharsets.UTF_8));
+		origin.close();
+		assertEquals("hello world", leaderBody.get(5, TimeUnit.SECONDS));
+		assertEquals("hello world", sharedBody.get(5, TimeUnit.SECONDS));
+		shared.close();
+		leader.close();
+	}
+
+	@Test
+	public void testSlowLeaderClient() throws Exception {
+		HttpCache cache = new HttpCache(1024 * 1024, 1024, null, 5000, 16);
+		CacheExchange leader = cache.exchange(URI.create(URL), get(URL));
+		Future<CacheExchange> follower = executor.submit(() -> cache.exchange(URI.create(URL), get(URL)));
+		waitForFollowers(cache, follower);
+
+		// Read from the origin in several chunks
+		String body = StringUtils.repeat("hello world ", 10_000);
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		HttpResponse response = leader.complete(responseWith(HttpStatus.SC_OK,
+				new InputStreamEntity(new ByteArrayInputStream(bytes), bytes.length),
+				HttpHeaders.CACHE_CONTROL, "max-age=60"));
+		CacheExchange shared = follower.get(5, TimeUnit.SECONDS);
+
+		// The leader's client reading nothing until the follower has the whole body
+		CountDownLatch clientReading = new CountDownLatch(1);
+		ByteArrayOutputStream received = new ByteArrayOutputStream();
+		Future<?> leaderBody = executor.submit(() -> {
+			response.getEntity().writeTo(new OutputStream() {
+
+				@Override
+				public void write(int b) throws IOException {
+					write(new byte[] { (byte) b }, 0, 1);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					try {
+						clientReading.await();
+					} catch (InterruptedException e) {
+						throw new IOException(e);
+					}
+					received.write(b, off, len);
+				}
+
+			});
+			return null;
+		});
+		assertEquals(body, executor.submit(() -> body(shared.getCachedResponse())).get(5, TimeUnit.SECONDS));
+		assertFalse(leaderBody.isDone());
+
+		clientReading.countDown();
+		leaderBody.get(5, TimeUnit.SECONDS);
+		assertEquals(body, new String(received.toByteArray(), StandardCharsets.UTF_8));
+		shared.close();
+		leader.close();
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		HttpCache cache = new HttpCache(1024 * 1024, 1024, null, 100, 1024);
+		CacheExchange leader = cache.exchange(URI.create(URL), get(URL));
+
+		CacheExchange follower = cache.exchange(URI.create(URL), get(URL));
+		assertNull(follower.getCachedResponse());
+		assertEquals(1, cache.getCollapseFallbacks());
+		follower.close();
+		leader.close();
+	}
+
+	@Test
+	public void testNotShared() throws Exception {
+		HttpCache cache = new HttpCache(1024 * 1024, 1024, null, 5000, 1024);
+		CacheExchange leader = cache.exchange(URI.create(URL), get(URL));
+		Future<CacheExchange> follower = executor.submit(() -> cache.exchange(URI.create(URL), get(URL)));
+		waitForFollowers(cache, follower);
+
+		body(leader.complete(response(HttpStatus.SC_OK, "secret", HttpHeaders.CACHE_CONTROL, "private")));
+		leader.close();
+		assertNull(follower.get(5, TimeUnit.SECONDS).getCachedResponse());
+		assertEquals(1, cache.getCollapseFallbacks());
+	}
+
+	@Test
+	public void testLeaderFailure() throws Exception {
+		HttpCache cache = new HttpCache(1024 * 1024, 1024, null, 5000, 1024);
+		CacheExchange leader = cache.exchange(URI.create(URL), get(URL));
+		Future<CacheExchange> follower = executor.submit(() -> cache.exchange(URI.create(URL), get(URL)));
+		waitForFollowers(cache, follower);
+
+		// Like an unreachable origin
+		leader.close();
+		assertNull(follower.get(5, TimeUnit.SECONDS).getCachedResponse());
+
+		// Forwarded on its own, like the next one
+		assertNull(cache.exchange(URI.create(URL), get(URL)).getCachedResponse());
+		assertEquals(3, cache.getMisses());
+	}
+
+	/**
+	 * The follower counts as a request once it waits.
+	 */
+	private static void waitForFollowers(HttpCache cache, Future<?> follower) throws InterruptedException {
+		for (int i = 0; i < 100 && cache.getRequests() < 2; i++) {
+			Thread.sleep(10);
+		}
+		Thread.sleep(50);
+		assertFalse(follower.isDone());
+	}
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.kproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.ProtocolException;
+import org.junit.Test;
+import org.kpax.bpf.util.RequestHeadParser;
+
+public class RequestHeadParserTest {
+
+	private static ByteBuffer toBuffer(String str) {
+		return ByteBuffer.wrap(str.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	@Test
+	public void testByteByByte() throws Exception {
+		RequestHeadParser parser = new RequestHeadParser();
+		String head = "GET http://example.com/ HTTP/1.1\r\nHost: example.com\r\nAccept: */*\r\n\r\n";
+		for (int i = 0; i < head.length() - 1; i++) {
+			assertFalse(parser.parse(toBuffer(head.substring(i, i + 1))));
+		}
+		assertTrue(parser.parse(toBuffer("\n")));
+		HttpRequest request = parser.getRequest();
+		assertEquals("GET", request.getRequestLine().getMethod());
+		assertEquals("http://example.com/", request.getRequestLine().getUri());
+		assertEquals("example.com", request.getFirstHeader("Host").getValue());
+		assertEquals(2, request.getAllHeaders().length);
+	}
+
+	@Test
+	public void testPipelinedRemainder() throws Exception {
+		RequestHeadParser parser = new RequestHeadParser();
+		ByteBuffer buffer = toBuffer("POST http://example.com/ HTTP/1.1\r\nContent-Length: 5\r\n\r\nhello"
+				+ "GET http://example.com/ HTTP/1.1\n\n");
+		assertTrue(parser.parse(buffer));
+		assertTrue(parser.getRequest() instanceof HttpEntityEnclosingRequest);
+		assertEquals("hello", StandardCharsets.ISO_8859_1.decode(buffer.slice()).toString().substring(0, 5));
+		buffer.position(buffer.position() + 5);
+
+		parser.reset();
+		assertTrue(parser.parse(buffer));
+		assertEquals("GET", parser.getRequest().getRequestLine().getMethod());
+		assertFalse(buffer.hasRemaining());
+	}
+
+	@Test
+	public void testLeadingEmptyLinesAndFolding() throws Exception {
+		RequestHeadParser parser = new RequestHeadParser();
+		assertTrue(parser.parse(toBuffer("\r\nGET / HTTP/1.0\r\nX-Test: a\r\n b\r\n\r\n")));
+		assertEquals("a  b", parser.getRequest().getFirstHeader("X-Test").getValue());
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void testTooLarge() throws Exception {
+		RequestHeadParser parser = new RequestHeadParser(16);
+		parser.parse(toBuffer("GET http://example.com/ HTTP/1.1\r\n\r\n"));
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void testMalformedRequestLine() throws Exception {
+		new RequestHeadParser().parse(toBuffer("garbage\r\n\r\n"));
+	}
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.kproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.http.HttpHost;
+import org.junit.Test;
+import org.kpax.bpf.proxy.Route;
+import org.kpax.bpf.proxy.RoutingTable;
+
+public class RoutingTableTest {
+
+	private final RoutingTable table = RoutingTable.parse(Arrays.asList(
+			"# Comment",
+			"localhost              DIRECT",
+			"ads.example.com        REJECT   # Before the domain",
+			".example.com:8081      PROXY repo-proxy:3128, other-proxy",
+			".example.com           DIRECT",
+			"*.corp.net             DIRECT",
+			"build-??.test.org      DIRECT",
+			"10.0.0.0/8             DIRECT",
+			"10.1.0.0/16            REJECT",
+			"[fd00::]/8:443         DIRECT",
+			"",
+			"*:25                   REJECT"), 8080);
+
+	@Test
+	public void testHostNames() {
+		assertSame(Route.DIRECT, table.route("localhost", 80));
+		assertSame(Route.DIRECT, table.route("LocalHost.", 80));
+		assertSame(Route.DEFAULT, table.route("localhost.localdomain", 80));
+		assertSame(Route.DIRECT, table.route("example.com", 80));
+		assertSame(Route.DIRECT, table.route("www.example.com", 443));
+		assertSame(Route.REJECT, table.route("ads.example.com", 80));
+		assertSame(Route.DEFAULT, table.route("example.org", 80));
+		assertSame(Route.DEFAULT, table.route("corp.net", 80));
+		assertSame(Route.DIRECT, table.route("a.b.corp.net", 80));
+	}
+
+	@Test
+	public void testWildcards() {
+		assertSame(Route.DIRECT, table.route("build-01.test.org", 80));
+		assertSame(Route.DEFAULT, table.route("build-001.test.org", 80));
+	}
+
+	@Test
+	public void testPorts() {
+		Route route = table.route("repo.example.com", 8081);
+		assertEquals(Arrays.asList(new HttpHost("repo-proxy", 3128), new HttpHost("other-proxy", 8080)),
+				route.getProxies());
+		assertEquals(route.getProxies(), table.getProxies());
+		assertSame(Route.REJECT, table.route("smtp.example.org", 25));
+
+		// The first matching rule wins
+		assertSame(Route.DIRECT, table.route("www.example.com", 25));
+	}
+
+	@Test
+	public void testAddressRanges() {
+		assertSame(Route.DIRECT, table.route("10.1.2.3", 80));
+		assertSame(Route.DIRECT, table.route("10.255.0.1", 80));
+		assertSame(Route.DEFAULT, table.route("11.0.0.1", 80));
+		assertSame(Route.DIRECT, table.route("[fd00::1]", 443));
+		assertSame(Route.DEFAULT, table.route("fd00::1", 80));
+		assertSame(Route.DEFAULT, table.route("fe80::1", 443));
+	}
+
+	@Test
+	public void testEmpty() {
+		assertSame(Route.DEFAULT, RoutingTable.EMPTY.route("localhost", 80));
+		assertTrue(RoutingTable.parse(Collections.singletonList("  # Nothing"), 8080).getProxies().isEmpty());
+	}
+
+	@Test
+	public void testInvalidRule() {
+		try {
+			RoutingTable.parse(Arrays.asList("localhost DIRECT", "10.0.0.0/33 DIRECT"), 8080);
+			fail("Invalid rule expected");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().startsWith("Invalid routing rule at line 2"));
+		}
+	}
+
+}
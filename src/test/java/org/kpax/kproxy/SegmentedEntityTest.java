@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.kproxy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kpax.bpf.cache.CacheExchange;
+import org.kpax.bpf.cache.DiskStore;
+import org.kpax.bpf.cache.HttpCache;
+import org.kpax.bpf.proxy.BufferPool;
+import org.kpax.bpf.proxy.SegmentedEntity;
+
+public class SegmentedEntityTest {
+
+	private static final String URL = "http://download.example.com/jdk/jdk-8u192-linux-x64.tar.gz";
+
+	private static final String ETAG = "\"5b8f-1a2b3c\"";
+
+	private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	private final BufferPool bufferPool = new BufferPool(1024 * 1024);
+
+	private final byte[] body = new byte[100_000];
+
+	private final List<String> ranges = new CopyOnWriteArrayList<>();
+
+	public SegmentedEntityTest() {
+		new Random(1).nextBytes(body);
+	}
+
+	@After
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testReassembledInOrder() throws IOException {
+		assertArrayEquals(body, download((request, reader) -> reader.read(partial(request, Integer.MAX_VALUE))));
+		assertEquals(3, ranges.size());
+		assertTrue(ranges.containsAll(Arrays.asList("bytes=25000-49999", "bytes=50000-74999", "bytes=75000-99999")));
+	}
+
+	@Test
+	public void testRangesNotHonoured() throws IOException {
+		// Like a server ignoring the Range header
+		assertArrayEquals(body, download((request, reader) -> {
+			range(request);
+			reader.read(response(HttpStatus.SC_OK, body, 0, body.length));
+		}));
+		assertFalse(ranges.isEmpty());
+	}
+
+	@Test
+	public void testChangedBody() throws IOException {
+		assertArrayEquals(body, download((request, reader) -> {
+			HttpResponse response = partial(request, Integer.MAX_VALUE);
+			response.setHeader(HttpHeaders.ETAG, "\"new\"");
+			reader.read(response);
+		}));
+	}
+
+	@Test
+	public void testResumed() throws IOException {
+		assertArrayEquals(body, download((request, reader) -> {
+			// The first attempt of each segment breaks after 1000 bytes
+			String range = request.getFirstHeader(HttpHeaders.RANGE).getValue();
+			long first = Long.parseLong(range.substring("bytes=".length(), range.indexOf('-')));
+			reader.read(partial(request, first % 25000 == 0 ? 1000 : Integer.MAX_VALUE));
+		}));
+		assertEquals(6, ranges.size());
+		assertTrue(ranges.contains("bytes=26000-49999"));
+	}
+
+	@Test
+	public void testCached() throws IOException {
+		try (DiskStore store = new DiskStore(folder.getRoot().toPath(), 1024 * 1024, 16,
+				Arrays.asList("*.tar.gz"))) {
+			HttpCache cache = new HttpCache(1024, 1024, store);
+			HttpRequest request = get();
+			HttpResponse response = original();
+			response.addHeader(HttpHeaders.CACHE_CONTROL, "max-age=3600");
+			response.setEntity(new SegmentedEntity(request, response, 4,
+					(rangeRequest, reader) -> reader.read(partial(rangeRequest, Integer.MAX_VALUE)), executor,
+					bufferPool, 4096, 3));
+
+			// The cache copy must not read the body over the original connection only
+			try (CacheExchange exchange = cache.exchange(URI.create(URL), request)) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				exchange.complete(response).getEntity().writeTo(out);
+				assertArrayEquals(body, out.toByteArray());
+			}
+			assertEquals(3, ranges.size());
+			assertEquals(1, store.getEntries());
+
+			ByteArrayOutputStream cached = new ByteArrayOutputStream();
+			cache.exchange(URI.create(URL), get()).getCachedResponse().getEntity().writeTo(cached);
+			assertArrayEquals(body, cached.toByteArray());
+		}
+	}
+
+	@Test
+	public void testSegmentable() {
+		HttpRequest request = get();
+		assertTrue(SegmentedEntity.isSegmentable(request, original(), 1000));
+		assertFalse(SegmentedEntity.isSegmentable(request, original(), body.length + 1));
+
+		HttpResponse noRanges = original();
+		noRanges.setHeader(HttpHeaders.ACCEPT_RANGES, "none");
+		assertFalse(SegmentedEntity.isSegmentable(request, noRanges, 1000));
+
+		HttpResponse weak = original();
+		weak.setHeader(HttpHeaders.ETAG, "W/" + ETAG);
+		assertFalse(SegmentedEntity.isSegmentable(request, weak, 1000));
+
+		HttpResponse encoded = original();
+		encoded.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+		assertFalse(SegmentedEntity.isSegmentable(request, encoded, 1000));
+
+		HttpRequest rangeRequest = get();
+		rangeRequest.setHeader(HttpHeaders.RANGE, "bytes=0-99");
+		assertFalse(SegmentedEntity.isSegmentable(rangeRequest, original(), 1000));
+	}
+
+	private byte[] download(SegmentedEntity.RangeClient rangeClient) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new SegmentedEntity(get(), original(), 4, rangeClient, executor, bufferPool, 4096, 3).writeTo(out);
+		return out.toByteArray();
+	}
+
+	private long[] range(HttpRequest request) {
+		assertEquals(ETAG, request.getFirstHeader(HttpHeaders.IF_RANGE).getValue());
+		String range = request.getFirstHeader(HttpHeaders.RANGE).getValue();
+		ranges.add(range);
+		Matcher matcher = RANGE.matcher(range);
+		assertTrue(matcher.matches());
+		return new long[] { Long.parseLong(matcher.group(1)), Long.parseLong(matcher.group(2)) };
+	}
+
+	/**
+	 * @param available The bytes sent before the connection breaks.
+	 */
+	private HttpResponse partial(HttpRequest request, int available) {
+		long[] range = range(request);
+		int length = (int) (range[1] - range[0] + 1);
+		HttpResponse response = response(HttpStatus.SC_PARTIAL_CONTENT, body, 0, 0);
+		response.setEntity(new InputStreamEntity(breaking(
+				new ByteArrayInputStream(body, (int) range[0], Math.min(length, available))), length));
+		response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + range[0] + "-" + range[1] + "/" + body.length);
+		return response;
+	}
+
+	private static InputStream breaking(InputStream in) {
+		return new InputStream() {
+
+			@Override
+			public int read() throws IOException {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int read = in.read(b, off, len);
+				if (read == -1) {
+					throw new IOException("Connection reset");
+				}
+				return read;
+			}
+
+		};
+	}
+
+	private HttpResponse original() {
+		return response(HttpStatus.SC_OK, body, 0, body.length);
+	}
+
+	private static HttpResponse response(int status, byte[] body, int offset, int length) {
+		BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, status, "Status " + status);
+		response.addHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+		response.addHeader(HttpHeaders.ETAG, ETAG);
+		response.setEntity(new InputStreamEntity(new ByteArrayInputStream(body, offset, length), length));
+		return response;
+	}
+
+	private static HttpRequest get() {
+		return new BasicHttpRequest("GET", URL, HttpVersion.HTTP_1_1);
+	}
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.kproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.kpax.bpf.cache.SegmentedLru;
+
+public class SegmentedLruTest {
+
+	@Test
+	public void testWeightBound() {
+		SegmentedLru<String, String> lru = new SegmentedLru<>(10, String::length);
+		lru.put("a", "aaaa");
+		lru.put("b", "bbbb");
+		lru.put("c", "cccc");
+		assertEquals(8, lru.weight());
+		assertEquals(2, lru.size());
+		assertEquals(1, lru.evictions());
+		assertNull(lru.get("a"));
+
+		assertFalse(lru.put("d", "ddddddddddd"));
+		lru.remove("b");
+		assertEquals(4, lru.weight());
+	}
+
+	@Test
+	public void testScanResistance() {
+		SegmentedLru<String, String> lru = new SegmentedLru<>(10, String::length);
+		lru.put("hot1", "xx");
+		lru.put("hot2", "xx");
+		lru.get("hot1");
+		lru.get("hot2");
+
+		// Entries used once evict each other, not the ones used again
+		for (int i = 0; i < 20; i++) {
+			lru.put("scan" + i, "xx");
+		}
+		assertNotNull(lru.get("hot1"));
+		assertNotNull(lru.get("hot2"));
+		assertEquals(10, lru.weight());
+	}
+
+	@Test
+	public void testProtectedBound() {
+		SegmentedLru<String, String> lru = new SegmentedLru<>(10, String::length);
+		for (int i = 0; i < 5; i++) {
+			lru.put("k" + i, "xx");
+			lru.get("k" + i);
+		}
+
+		// The protected segment holds 8 at most, the least recently used going back to probation
+		lru.put("new", "xx");
+		assertNull(lru.get("k0"));
+		assertNotNull(lru.get("k1"));
+	}
+
+	@Test
+	public void testNewValueKept() {
+		SegmentedLru<String, String> lru = new SegmentedLru<>(10, String::length);
+		lru.put("hot1", "xxxx");
+		lru.put("hot2", "xxxx");
+		lru.get("hot1");
+		lru.get("hot2");
+
+		// Only the protected segment to evict from
+		assertTrue(lru.put("new", "xxx"));
+		assertNotNull(lru.get("new"));
+		assertNull(lru.get("hot1"));
+		assertEquals(7, lru.weight());
+	}
+
+}
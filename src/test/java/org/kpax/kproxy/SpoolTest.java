@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.kproxy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.kpax.bpf.cache.Spool;
+
+public class SpoolTest {
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	@After
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testReadWhileWritten() throws Exception {
+		byte[] body = new byte[100_000];
+		new Random(1).nextBytes(body);
+
+		// Most of it goes to the temporary file
+		Spool spool = new Spool(1000, 5000);
+		InputStream early = spool.newInputStream();
+		Future<byte[]> earlyRead = executor.submit(() -> readAll(early));
+		Future<byte[]> lateRead = null;
+		for (int off = 0; off < body.length; off += 777) {
+			spool.write(body, off, Math.min(777, body.length - off));
+			if (off == 777 * 64) {
+				// A late reader starts from the first byte too
+				InputStream late = spool.newInputStream();
+				lateRead = executor.submit(() -> readAll(late));
+			}
+		}
+		spool.complete();
+		spool.close();
+		assertArrayEquals(body, earlyRead.get(5, TimeUnit.SECONDS));
+		assertArrayEquals(body, lateRead.get(5, TimeUnit.SECONDS));
+		assertEquals(body.length, spool.getLength());
+	}
+
+	@Test
+	public void testFailure() throws Exception {
+		Spool spool = new Spool(1000, 5000);
+		try (InputStream in = spool.newInputStream()) {
+			spool.write(new byte[10], 0, 10);
+			spool.fail(new IOException("remote reset"));
+			assertEquals(10, in.read(new byte[100]));
+			try {
+				in.read(new byte[100]);
+				fail("The failure must reach the reader");
+			} catch (IOException e) {
+				assertEquals("remote reset", e.getCause().getMessage());
+			}
+		}
+		spool.close();
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		Spool spool = new Spool(1000, 50);
+		try (InputStream in = spool.newInputStream()) {
+			in.read();
+			fail("The reader must not wait forever");
+		} catch (IOException e) {
+			assertEquals("Timed out waiting for the body", e.getMessage());
+		}
+		spool.close();
+	}
+
+	@Test
+	public void testNoTimeout() throws Exception {
+		Spool spool = new Spool(1000, 0);
+		InputStream in = spool.newInputStream();
+		Future<byte[]> read = executor.submit(() -> readAll(in));
+
+		// Far longer than the timeout above
+		Thread.sleep(300);
+		assertFalse(read.isDone());
+		spool.write(new byte[] { 42 }, 0, 1);
+		spool.complete();
+		assertArrayEquals(new byte[] { 42 }, read.get(5, TimeUnit.SECONDS));
+		spool.close();
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		try (InputStream stream = in) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1024];
+			int read;
+			while ((read = stream.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			return out.toByteArray();
+		}
+	}
+
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.kproxy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.http.entity.InputStreamEntity;
+import org.junit.After;
+import org.junit.Test;
+import org.kpax.bpf.proxy.BufferPool;
+import org.kpax.bpf.proxy.SpoolingEntity;
+
+public class SpoolingEntityTest {
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	private final BufferPool bufferPool = new BufferPool(1024 * 1024);
+
+	private final byte[] body = new byte[100_000];
+
+	private final CountDownLatch drained = new CountDownLatch(1);
+
+	/**
+	 * Whether the remote body has been closed, which releases the remote connection.
+	 */
+	private final AtomicBoolean remoteClosed = new AtomicBoolean();
+
+	public SpoolingEntityTest() {
+		new Random(1).nextBytes(body);
+	}
+
+	@After
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testDrainedBeforeSlowClient() throws Exception {
+		// Most of it goes to the temporary file
+		SpoolingEntity entity = new SpoolingEntity(new InputStreamEntity(remote(body.length), body.length), 1000,
+				executor, bufferPool, drained::countDown);
+
+		// A client not reading anything until told to
+		CountDownLatch clientReading = new CountDownLatch(1);
+		ByteArrayOutputStream received = new ByteArrayOutputStream();
+		Future<?> written = executor.submit(() -> {
+			entity.writeTo(new OutputStream() {
+
+				@Override
+				public void write(int b) throws IOException {
+					write(new byte[] { (byte) b }, 0, 1);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					try {
+						clientReading.await();
+					} catch (InterruptedException e) {
+						throw new IOException(e);
+					}
+					received.write(b, off, len);
+				}
+
+			});
+			return null;
+		});
+
+		assertTrue(drained.await(5, TimeUnit.SECONDS));
+		assertTrue(remoteClosed.get());
+		assertFalse(written.isDone());
+
+		clientReading.countDown();
+		written.get(5, TimeUnit.SECONDS);
+		assertArrayEquals(body, received.toByteArray());
+		assertEquals(0, bufferPool.getOutstanding());
+	}
+
+	@Test
+	public void testDrainFailure() throws Exception {
+		// The remote side resets after 10000 bytes
+		SpoolingEntity entity = new SpoolingEntity(new InputStreamEntity(remote(10_000), body.length), 1000,
+				executor, bufferPool, drained::countDown);
+		ByteArrayOutputStream received = new ByteArrayOutputStream();
+		try {
+			entity.writeTo(received);
+			fail("The failure must reach the reader");
+		} catch (IOException e) {
+			assertEquals("Connection reset", e.getCause().getMessage());
+		}
+		assertEquals(10_000, received.size());
+		assertTrue(drained.await(5, TimeUnit.SECONDS));
+		assertTrue(remoteClosed.get());
+	}
+
+	@Test
+	public void testRejected() throws Exception {
+		executor.shutdown();
+		SpoolingEntity entity = new SpoolingEntity(new InputStreamEntity(remote(body.length), body.length), 1000,
+				executor, bufferPool, drained::countDown);
+		try {
+			entity.writeTo(new ByteArrayOutputStream());
+			fail("No thread to read the remote body");
+		} catch (IOException e) {
+			assertEquals("Cannot read the remote body", e.getMessage());
+		}
+		assertEquals(1, drained.getCount());
+	}
+
+	/**
+	 * @param available The bytes sent before the connection resets.
+	 */
+	private InputStream remote(int available) {
+		return new FilterInputStream(new ByteArrayInputStream(body, 0, available)) {
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int read = super.read(b, off, len);
+				if (read == -1 && available < body.length) {
+					throw new IOException("Connection reset");
+				}
+				return read;
+			}
+
+			@Override
+			public void close() throws IOException {
+				remoteClosed.set(true);
+				super.close();
+			}
+
+		};
+	}
+
+}
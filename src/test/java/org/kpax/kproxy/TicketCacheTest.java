@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.kproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Date;
+
+import javax.security.auth.login.LoginException;
+
+import org.apache.kerby.kerberos.kerb.server.SimpleKdcServer;
+import org.apache.kerby.kerberos.kerb.type.ticket.TgtTicket;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kpax.bpf.SystemConfig;
+import org.kpax.bpf.UserConfig;
+import org.kpax.bpf.auth.KerberosAuthenticator;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class TicketCacheTest {
+
+	private static final String PRINCIPAL = "Quasimodo@EXAMPLE.COM";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private SimpleKdcServer kdcServer;
+
+	@Before
+	public void setUp() throws Exception {
+		int port;
+		try (ServerSocket socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+		kdcServer = new SimpleKdcServer();
+		kdcServer.setWorkDir(folder.newFolder("kdc"));
+		kdcServer.setKdcRealm("EXAMPLE.COM");
+		kdcServer.setAllowTcp(true);
+		kdcServer.setAllowUdp(false);
+		kdcServer.setKdcTcpPort(port);
+		kdcServer.init();
+		kdcServer.start();
+		kdcServer.createPrincipal(PRINCIPAL, "1234");
+
+		System.setProperty("java.security.krb5.conf", new File(folder.getRoot(), "kdc/krb5.conf").getAbsolutePath());
+		refreshKerberosConfig();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		System.clearProperty("java.security.krb5.conf");
+		refreshKerberosConfig();
+		kdcServer.stop();
+	}
+
+	@Test
+	public void testUserTicketCache() throws Exception {
+		// Like the one written by kinit
+		File ticketCache = folder.newFile("krb5cc_user");
+		TgtTicket tgt = kdcServer.getKrbClient().requestTgt(PRINCIPAL, "1234");
+		kdcServer.getKrbClient().storeTicket(tgt, ticketCache);
+
+		KerberosAuthenticator authenticator = authenticator("", ticketCache.getPath(), "", null);
+		login(authenticator);
+		assertTrue((Boolean) ReflectionTestUtils.invokeMethod(authenticator, "isFromTicketCache"));
+		assertEquals(tgt.getEncKdcRepPart().getEndTime().getTime(),
+				((Date) ReflectionTestUtils.invokeMethod(authenticator, "getExpiryDate")).getTime());
+	}
+
+	@Test
+	public void testPrivateTicketCache() throws Exception {
+		File keytab = new File(folder.getRoot(), "quasimodo.keytab");
+		kdcServer.exportPrincipal(PRINCIPAL, keytab);
+		File privateCache = new File(folder.getRoot(), "krb5cc_bpf");
+
+		KerberosAuthenticator authenticator = authenticator(privateCache.getPath(), "", keytab.getPath(), null);
+		login(authenticator);
+		assertFalse((Boolean) ReflectionTestUtils.invokeMethod(authenticator, "isFromTicketCache"));
+		assertTrue(privateCache.isFile());
+
+		// Like after a restart, without a keytab nor a password
+		KerberosAuthenticator restarted = authenticator(privateCache.getPath(), "", "", null);
+		login(restarted);
+		assertTrue((Boolean) ReflectionTestUtils.invokeMethod(restarted, "isFromTicketCache"));
+	}
+
+	@Test
+	public void testNoUsableTicket() throws Exception {
+		File privateCache = folder.newFile("krb5cc_bpf");
+		Files.write(privateCache.toPath(), "not a ticket cache".getBytes(StandardCharsets.US_ASCII));
+
+		try {
+			login(authenticator(privateCache.getPath(), "", "", null));
+			fail("No password must be sent to the KDC");
+		} catch (LoginException e) {
+			assertTrue(e.getMessage().startsWith("No usable ticket found"));
+		}
+	}
+
+	private static KerberosAuthenticator authenticator(String privateTicketCacheFile, String ticketCacheFile,
+			String keytabFile, String password) {
+		SystemConfig systemConfig = new SystemConfig();
+		ReflectionTestUtils.setField(systemConfig, "ticketThreshold", 60);
+		ReflectionTestUtils.setField(systemConfig, "privateTicketCacheFile", privateTicketCacheFile);
+		ReflectionTestUtils.setField(systemConfig, "ticketCacheFile", ticketCacheFile);
+		ReflectionTestUtils.setField(systemConfig, "keytabFile", keytabFile);
+
+		UserConfig userConfig = new UserConfig();
+		userConfig.setUsername("Quasimodo");
+		userConfig.setDomain("example.com");
+		userConfig.setPassword(password);
+
+		KerberosAuthenticator authenticator = new KerberosAuthenticator();
+		ReflectionTestUtils.setField(authenticator, "config", systemConfig);
+		ReflectionTestUtils.setField(authenticator, "userConfig", userConfig);
+		return authenticator;
+	}
+
+	private static void login(KerberosAuthenticator authenticator) throws Exception {
+		try {
+			ReflectionTestUtils.invokeMethod(authenticator, "login", (Date) null);
+		} catch (UndeclaredThrowableException e) {
+			throw (Exception) e.getCause();
+		}
+	}
+
+	@SuppressWarnings("restriction")
+	private static void refreshKerberosConfig() throws Exception {
+		sun.security.krb5.Config.refresh();
+	}
+
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.kproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Constructor;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kpax.bpf.proxy.UpstreamConnector;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class UpstreamConnectorTest {
+
+	private ServerSocket liveProxy;
+
+	private int refusingPort;
+
+	private UpstreamConnector connector;
+
+	private final List<Socket> fillers = new ArrayList<>();
+
+	@Before
+	public void setUp() throws Exception {
+		liveProxy = new ServerSocket(0);
+
+		// A port nobody listens on anymore
+		try (ServerSocket closed = new ServerSocket(0)) {
+			refusingPort = closed.getLocalPort();
+		}
+		connector = new UpstreamConnector(250, 3000, 60);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for (Socket filler : fillers) {
+			filler.close();
+		}
+		connector.close();
+		liveProxy.close();
+	}
+
+	@Test
+	public void testConnect() throws Exception {
+		HttpHost proxy = new HttpHost("localhost", liveProxy.getLocalPort());
+		try (Socket socket = connector.connectSocket(proxy, 0)) {
+			assertTrue(socket.isConnected());
+		}
+		try (AsynchronousSocketChannel socketChannel = connector.connectChannel(proxy)) {
+			assertTrue(socketChannel.isOpen());
+		}
+		assertEquals(2, connector.getConnects());
+		assertEquals(0, connector.getConnectFailures());
+	}
+
+	@Test
+	public void testConnectRefused() throws Exception {
+		try {
+			connector.connectSocket(new HttpHost("localhost", refusingPort), 0);
+			fail("Connection refused expected");
+		} catch (ConnectException e) {
+			assertEquals(1, connector.getConnectFailures());
+			assertTrue(connector.getLastConnectMillis() < 250 * connector.resolve("localhost").size());
+		}
+	}
+
+	@Test
+	public void testAddressesCached() throws Exception {
+		assertSame(connector.resolve("localhost"), connector.resolve("localhost"));
+	}
+
+	@Test
+	public void testBlackHoledFallback() throws Exception {
+		try (ServerSocket blackHole = blackHole(); ServerSocket live = new ServerSocket()) {
+			live.bind(new InetSocketAddress("127.0.0.2", blackHole.getLocalPort()));
+			HttpHost proxy = new HttpHost("proxy.example.com", blackHole.getLocalPort());
+			addresses(proxy.getHostName(), "127.0.0.1", "127.0.0.2");
+
+			long start = System.nanoTime();
+			try (Socket socket = connector.connectSocket(proxy, 0)) {
+				assertEquals(InetAddress.getByName("127.0.0.2"), socket.getInetAddress());
+			}
+			// Right after the stagger delay, long before the timeout
+			assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+			assertEquals(1, connector.getFallbacks());
+
+			// The fastest address is tried first from now on
+			try (AsynchronousSocketChannel socketChannel = connector.connectChannel(proxy)) {
+				assertEquals(new InetSocketAddress("127.0.0.2", blackHole.getLocalPort()),
+						socketChannel.getRemoteAddress());
+			}
+			assertTrue(connector.getLastConnectMillis() < 250);
+			assertEquals(1, connector.getFallbacks());
+		}
+	}
+
+	@Test
+	public void testTimeoutAfterRefused() throws Exception {
+		try (ServerSocket blackHole = blackHole()) {
+			// Nobody listens on the first address
+			HttpHost proxy = new HttpHost("proxy.example.com", blackHole.getLocalPort());
+			addresses(proxy.getHostName(), "127.0.0.2", "127.0.0.1");
+			try {
+				connector.connectSocket(proxy, 500);
+				fail("Connect timeout expected");
+			} catch (ConnectTimeoutException e) {
+				assertTrue(e.getMessage().endsWith("timed out after 500 ms"));
+				assertEquals(1, connector.getConnectFailures());
+			}
+		}
+	}
+
+	/**
+	 * A server dropping the connection requests, its backlog being full.
+	 */
+	private ServerSocket blackHole() throws Exception {
+		ServerSocket serverSocket = new ServerSocket();
+		serverSocket.bind(new InetSocketAddress("127.0.0.1", 0), 1);
+		while (true) {
+			Socket filler = new Socket();
+			try {
+				filler.connect(serverSocket.getLocalSocketAddress(), 200);
+				fillers.add(filler);
+			} catch (SocketTimeoutException e) {
+				filler.close();
+				return serverSocket;
+			}
+		}
+	}
+
+	/**
+	 * Make the host resolve to these addresses, in this order.
+	 */
+	@SuppressWarnings("unchecked")
+	private void addresses(String host, String... addresses) throws Exception {
+		List<InetAddress> resolved = new ArrayList<>();
+		for (String address : addresses) {
+			resolved.add(InetAddress.getByName(address));
+		}
+		Constructor<?> constructor = Class.forName(UpstreamConnector.class.getName() + "$ResolvedAddresses")
+				.getDeclaredConstructor(List.class, long.class);
+		constructor.setAccessible(true);
+		Map<String, Object> resolvedAddresses = (Map<String, Object>) ReflectionTestUtils.getField(connector,
+				"resolvedAddresses");
+		resolvedAddresses.put(host, constructor.newInstance(resolved, System.nanoTime() + TimeUnit.HOURS.toNanos(1)));
+	}
+
+}
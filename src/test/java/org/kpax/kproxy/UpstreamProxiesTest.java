@@ -0,0 +1,410 @@
+/*
+ * Copyright (c) 2018 Eugen Covaci.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.kproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kpax.bpf.SystemConfig;
+import org.kpax.bpf.UserConfig;
+import org.kpax.bpf.exception.InvalidConfigException;
+import org.kpax.bpf.proxy.BufferPool;
+import org.kpax.bpf.proxy.CustomProxyClient;
+import org.kpax.bpf.proxy.PacScript;
+import org.kpax.bpf.proxy.ProxyAuthMetrics;
+import org.kpax.bpf.proxy.ProxyContext;
+import org.kpax.bpf.proxy.Router;
+import org.kpax.bpf.proxy.SocketHandler;
+import org.kpax.bpf.proxy.UpstreamConnectionPool;
+import org.kpax.bpf.proxy.UpstreamConnector;
+import org.kpax.bpf.proxy.UpstreamProxies;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class UpstreamProxiesTest {
+
+	private static final HttpHost ALPHA = new HttpHost("alpha", 3128);
+
+	private static final HttpHost BETA = new HttpHost("beta", 3128);
+
+	private final SystemConfig systemConfig = new SystemConfig();
+
+	private final UserConfig userConfig = new UserConfig();
+
+	private final UpstreamConnector upstreamConnector = new UpstreamConnector(250, 3000, 60);
+
+	private final UpstreamProxies upstreamProxies = new UpstreamProxies();
+
+	private final List<Closeable> closeables = new ArrayList<>();
+
+	@Before
+	public void setUp() {
+		ReflectionTestUtils.setField(systemConfig, "upstreamMaxFailures", 3);
+		ReflectionTestUtils.setField(systemConfig, "upstreamHealthPeriod", 1);
+		ReflectionTestUtils.setField(systemConfig, "upstreamProbeTimeout", 1000);
+		userConfig.setProxyHost("alpha, beta");
+		userConfig.setProxyPort(3128);
+
+		Router router = new Router();
+		ReflectionTestUtils.setField(router, "userConfig", userConfig);
+		ReflectionTestUtils.setField(router, "pacScript", new PacScript());
+
+		ReflectionTestUtils.setField(upstreamProxies, "systemConfig", systemConfig);
+		ReflectionTestUtils.setField(upstreamProxies, "userConfig", userConfig);
+		ReflectionTestUtils.setField(upstreamProxies, "upstreamConnector", upstreamConnector);
+		ReflectionTestUtils.setField(upstreamProxies, "router", router);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		for (Closeable closeable : closeables) {
+			closeable.close();
+		}
+		upstreamProxies.close();
+		upstreamConnector.close();
+	}
+
+	@Test
+	public void testProxyHosts() {
+		userConfig.setProxyHost("alpha, beta:8080, [fd00::1]:3129, [fd00::2]");
+		assertEquals(Arrays.asList(ALPHA, new HttpHost("beta", 8080), new HttpHost("fd00::1", 3129),
+				new HttpHost("fd00::2", 3128)), userConfig.getProxyHosts());
+
+		for (String invalid : new String[] { "fd00::1", "[fd00::1", "[fd00::1]3128", "alpha:99999999999",
+				"alpha:0", "alpha:65536", "alpha:", ":3128" }) {
+			userConfig.setProxyHost(invalid);
+			try {
+				userConfig.getProxyHosts();
+				fail("Accepted " + invalid);
+			} catch (InvalidConfigException e) {
+				assertTrue(e.getMessage().startsWith("Invalid"));
+			}
+		}
+	}
+
+	@Test
+	public void testLeastOutstanding() {
+		Object alpha = acquire();
+		assertEquals(ALPHA, hostOf(alpha));
+		assertEquals(BETA, hostOf(acquire()));
+
+		ReflectionTestUtils.invokeMethod(upstreamProxies, "released", alpha);
+		assertEquals(ALPHA, hostOf(acquire()));
+	}
+
+	@Test
+	public void testLeastLatency() {
+		Object alpha = acquire();
+		respond(alpha, 500);
+		Object beta = acquire();
+		assertEquals(BETA, hostOf(beta));
+		respond(beta, 50);
+
+		// 220 ms against 85 ms, until beta has two requests more
+		assertEquals(BETA, hostOf(acquire()));
+		assertEquals(BETA, hostOf(acquire()));
+		assertEquals(ALPHA, hostOf(acquire()));
+	}
+
+	@Test
+	public void testEjection() {
+		Object alpha = acquire();
+		respond(alpha, 10);
+
+		// Some requests failing after reaching the proxy
+		for (int i = 0; i < 2; i++) {
+			assertSame(alpha, acquire());
+			assertFalse(failed(alpha, new SocketTimeoutException("Read timed out")));
+			assertFalse(isEjected(alpha));
+		}
+		assertSame(alpha, acquire());
+		assertFalse(failed(alpha, new SocketTimeoutException("Read timed out")));
+		assertTrue(isEjected(alpha));
+		assertEquals(1, upstreamProxies.getEjections());
+		assertEquals(BETA, hostOf(acquire()));
+
+		// A refused connection at once
+		Object beta = acquire();
+		assertTrue(failed(beta, new ConnectException("Connection refused")));
+		assertTrue(isEjected(beta));
+		assertEquals(2, upstreamProxies.getEjections());
+
+		// Still tried when none is healthy
+		assertSame(alpha, acquire());
+	}
+
+	@Test
+	public void testProbeRecovery() throws Exception {
+		ServerSocket alphaServer = listen();
+		int closedPort = closedPort();
+		userConfig.setProxyHost("127.0.0.1:" + alphaServer.getLocalPort() + ", 127.0.0.1:" + closedPort);
+
+		List<?> upstreams = ReflectionTestUtils.invokeMethod(upstreamProxies, "getUpstreams");
+		Object alpha = upstreams.get(0);
+		Object beta = upstreams.get(1);
+		failed(acquire(), new ConnectException("Connection refused"));
+		assertTrue(isEjected(alpha));
+
+		upstreamProxies.start();
+		long deadline = System.currentTimeMillis() + 5000;
+		// Each proxy is probed on its own thread
+		while ((isEjected(alpha) || !isEjected(beta)) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		assertFalse(isEjected(alpha));
+		assertTrue(isEjected(beta));
+		assertSame(alpha, acquire());
+	}
+
+	@Test
+	public void testRequestFailover() throws Exception {
+		CloseableHttpClient httpClient = new FakeHttpClient();
+		SocketHandler socketHandler = socketHandler();
+		HttpRequest request = new BasicHttpRequest("GET", "http://example.com/", HttpVersion.HTTP_1_1);
+
+		Pair<?, CloseableHttpResponse> result = ReflectionTestUtils.invokeMethod(socketHandler, "executeRequest",
+				httpClient, new HttpHost("example.com", 80), null, request, false);
+		assertEquals(BETA, hostOf(result.getLeft()));
+		assertEquals(HttpStatus.SC_OK, result.getRight().getStatusLine().getStatusCode());
+		assertEquals(1, upstreamProxies.getFailovers());
+		assertTrue(upstreamProxies.getUpstreamStates().get(0).startsWith("alpha:3128 ejected, outstanding 0"));
+		assertTrue(upstreamProxies.getUpstreamStates().get(1).startsWith("beta:3128 healthy, outstanding 1"));
+	}
+
+	@Test
+	public void testNoFailoverOnceSent() throws Exception {
+		userConfig.setProxyHost("gamma, beta");
+		SocketHandler socketHandler = socketHandler();
+		HttpRequest request = new BasicHttpRequest("GET", "http://example.com/", HttpVersion.HTTP_1_1);
+		try {
+			invoke(socketHandler, "executeRequest", new FakeHttpClient(), new HttpHost("example.com", 80), null,
+					request, false);
+			fail("The request may have reached the proxy");
+		} catch (SocketTimeoutException e) {
+			assertEquals(0, upstreamProxies.getFailovers());
+		}
+	}
+
+	@Test
+	public void testTunnelFailover() throws Exception {
+		ServerSocket betaServer = listen();
+		Thread proxyThread = new Thread(() -> serveTunnel(betaServer));
+		proxyThread.setDaemon(true);
+		proxyThread.start();
+		userConfig.setProxyHost("127.0.0.1:" + closedPort() + ", 127.0.0.1:" + betaServer.getLocalPort());
+
+		SocketHandler socketHandler = socketHandler();
+		try (Closeable tunnel = ReflectionTestUtils.invokeMethod(socketHandler, "openTunnel",
+				new HttpHost("example.com", 443), null, HttpVersion.HTTP_1_1)) {
+			assertEquals(1, upstreamProxies.getFailovers());
+			assertEquals(1, upstreamProxies.getEjections());
+		}
+	}
+
+	private SocketHandler socketHandler() throws Exception {
+		ReflectionTestUtils.setField(systemConfig, "preemptiveAuthEnabled", false);
+		BufferPool bufferPool = new BufferPool(1024 * 1024);
+		ProxyContext proxyContext = new ProxyContext() {
+
+			@Override
+			public HttpClientContext newHttpClientContext(HttpHost proxy) {
+				HttpClientContext context = HttpClientContext.create();
+				context.setRequestConfig(RequestConfig.custom().setProxy(proxy).build());
+				return context;
+			}
+
+		};
+
+		CustomProxyClient proxyClient = new CustomProxyClient();
+		ReflectionTestUtils.setField(proxyClient, "config", systemConfig);
+		ReflectionTestUtils.setField(proxyClient, "bufferPool", bufferPool);
+		ReflectionTestUtils.setField(proxyClient, "proxyContext", proxyContext);
+		ReflectionTestUtils.setField(proxyClient, "proxyAuthMetrics", new ProxyAuthMetrics());
+		ReflectionTestUtils.setField(proxyClient, "upstreamConnectionPool", new UpstreamConnectionPool());
+		ReflectionTestUtils.setField(proxyClient, "upstreamConnector", upstreamConnector);
+		proxyClient.init();
+
+		SocketHandler socketHandler = new SocketHandler();
+		ReflectionTestUtils.setField(socketHandler, "systemConfig", systemConfig);
+		ReflectionTestUtils.setField(socketHandler, "proxyContext", proxyContext);
+		ReflectionTestUtils.setField(socketHandler, "proxyClient", proxyClient);
+		ReflectionTestUtils.setField(socketHandler, "bufferPool", bufferPool);
+		ReflectionTestUtils.setField(socketHandler, "upstreamProxies", upstreamProxies);
+		return socketHandler.bind(localConnection());
+	}
+
+	/**
+	 * The local proxy's side of a client connection.
+	 */
+	private AsynchronousSocketChannel localConnection() throws Exception {
+		AsynchronousServerSocketChannel server = AsynchronousServerSocketChannel.open()
+				.bind(new InetSocketAddress("127.0.0.1", 0));
+		AsynchronousSocketChannel client = AsynchronousSocketChannel.open();
+		client.connect(server.getLocalAddress()).get(5, TimeUnit.SECONDS);
+		AsynchronousSocketChannel local = server.accept().get(5, TimeUnit.SECONDS);
+		closeables.add(server);
+		closeables.add(client);
+		closeables.add(local);
+		return local;
+	}
+
+	private ServerSocket listen() throws IOException {
+		ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		closeables.add(serverSocket);
+		return serverSocket;
+	}
+
+	private static int closedPort() throws IOException {
+		try (ServerSocket serverSocket = new ServerSocket(0)) {
+			return serverSocket.getLocalPort();
+		}
+	}
+
+	private static void serveTunnel(ServerSocket serverSocket) {
+		try (Socket socket = serverSocket.accept()) {
+			BufferedReader reader = new BufferedReader(
+					new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+			String line;
+			while ((line = reader.readLine()) != null && !line.isEmpty()) {
+				// Skip the request head
+			}
+			socket.getOutputStream().write("HTTP/1.1 200 Connection established\r\n\r\n"
+					.getBytes(StandardCharsets.US_ASCII));
+			socket.getOutputStream().flush();
+			reader.read();
+		} catch (IOException e) {
+			// Closed by the test
+		}
+	}
+
+	private Object acquire() {
+		Collection<?> excluded = Collections.emptyList();
+		return ReflectionTestUtils.invokeMethod(upstreamProxies, "acquire", null, excluded);
+	}
+
+	/**
+	 * Answer the outstanding request, then release it.
+	 */
+	private void respond(Object upstream, long latencyMillis) {
+		ReflectionTestUtils.invokeMethod(upstreamProxies, "responded", upstream,
+				System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(latencyMillis));
+		ReflectionTestUtils.invokeMethod(upstreamProxies, "released", upstream);
+	}
+
+	private boolean failed(Object upstream, Exception e) {
+		return ReflectionTestUtils.invokeMethod(upstreamProxies, "failed", upstream, e);
+	}
+
+	private static boolean isEjected(Object upstream) {
+		return ReflectionTestUtils.invokeMethod(upstream, "isEjected");
+	}
+
+	private static HttpHost hostOf(Object upstream) {
+		return ReflectionTestUtils.invokeMethod(upstream, "getHost");
+	}
+
+	private static Object invoke(Object target, String name, Object... args) throws Exception {
+		try {
+			return ReflectionTestUtils.invokeMethod(target, name, args);
+		} catch (UndeclaredThrowableException e) {
+			throw (Exception) e.getCause();
+		}
+	}
+
+	/**
+	 * Cannot connect to alpha, times out reading from gamma, gets a response from beta.
+	 */
+	@SuppressWarnings("deprecation")
+	private static class FakeHttpClient extends CloseableHttpClient {
+
+		@Override
+		protected CloseableHttpResponse doExecute(HttpHost target, HttpRequest request, HttpContext context)
+				throws IOException {
+			HttpHost proxy = HttpClientContext.adapt(context).getRequestConfig().getProxy();
+			if (proxy.getHostName().equals("alpha")) {
+				throw new ConnectException("Connection refused");
+			}
+			if (proxy.getHostName().equals("gamma")) {
+				throw new SocketTimeoutException("Read timed out");
+			}
+			return new FakeResponse();
+		}
+
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public HttpParams getParams() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public ClientConnectionManager getConnectionManager() {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+	private static class FakeResponse extends BasicHttpResponse implements CloseableHttpResponse {
+
+		FakeResponse() {
+			super(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+		}
+
+		@Override
+		public void close() {
+		}
+
+	}
+
+}